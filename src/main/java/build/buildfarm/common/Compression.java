@@ -0,0 +1,142 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * the codec for compressed blob transfer
+ *
+ * Compressed blobs are named by the digest of their uncompressed content,
+ * as {instance_name}/compressed-blobs/{compressor}/{hash}/{size}, and
+ * uploaded as {instance_name}/uploads/{uuid}/compressed-blobs/...
+ *
+ * The only compressor is deflate, raw RFC 1951 data, as implemented by
+ * java.util.zip.
+ */
+public final class Compression {
+  public static final String DEFLATE = "deflate";
+
+  // build.bazel.remote.execution.v2.Compressor.Value.DEFLATE
+  public static final int DEFLATE_COMPRESSOR_VALUE = 2;
+
+  private static final int LEVEL = Deflater.BEST_SPEED;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private Compression() { }
+
+  public static boolean isSupported(String compressor) {
+    return compressor.equals(DEFLATE);
+  }
+
+  /** an input stream of the compressed content of in */
+  public static InputStream compress(InputStream in) {
+    Deflater deflater = new Deflater(LEVEL, /* nowrap=*/ true);
+    return new DeflaterInputStream(in, deflater, BUFFER_SIZE) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          deflater.end();
+        }
+      }
+    };
+  }
+
+  /** an output stream which writes the uncompressed content of its input to out */
+  public static OutputStream decompress(OutputStream out) {
+    Inflater inflater = new Inflater(/* nowrap=*/ true);
+    return new InflaterOutputStream(out, inflater, BUFFER_SIZE) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          inflater.end();
+        }
+      }
+    };
+  }
+
+  /** compresses a sequence of chunks */
+  public static final class ChunkDeflater {
+    private final Deflater deflater = new Deflater(LEVEL, /* nowrap=*/ true);
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /** the compressed content available after chunk, which is complete if last */
+    public ByteString deflate(ByteString chunk, boolean last) {
+      deflater.setInput(chunk.toByteArray());
+      if (last) {
+        deflater.finish();
+      }
+      ByteString.Output out = ByteString.newOutput();
+      while (last ? !deflater.finished() : !deflater.needsInput()) {
+        int length = deflater.deflate(buffer);
+        out.write(buffer, 0, length);
+      }
+      return out.toByteString();
+    }
+
+    public void end() {
+      deflater.end();
+    }
+  }
+
+  /** decompresses a sequence of chunks */
+  public static final class ChunkInflater {
+    private final Inflater inflater = new Inflater(/* nowrap=*/ true);
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    public ByteString inflate(ByteString chunk) throws IOException {
+      inflater.setInput(chunk.toByteArray());
+      ByteString.Output out = ByteString.newOutput();
+      try {
+        while (!inflater.finished()) {
+          int length = inflater.inflate(buffer);
+          if (length == 0) {
+            if (inflater.needsDictionary()) {
+              throw new IOException("compressed content requires a dictionary");
+            }
+            if (inflater.needsInput()) {
+              break;
+            }
+          }
+          out.write(buffer, 0, length);
+        }
+      } catch (DataFormatException e) {
+        throw new IOException(e);
+      }
+      return out.toByteString();
+    }
+
+    /** whether the end of the compressed content has been reached */
+    public boolean finished() {
+      return inflater.finished();
+    }
+
+    public void end() {
+      inflater.end();
+    }
+  }
+}
@@ -14,25 +14,65 @@
 
 package build.buildfarm.common;
 
-import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Level.SEVERE;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.Duration;
-import com.google.protobuf.util.Durations;
 import io.grpc.Deadline;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.function.BooleanSupplier;
+import java.util.logging.Logger;
 
+/**
+ * periodically polls while resumed, until the poll fails or the expiry
+ * deadline passes
+ *
+ * All pollers share a single timer wheel and a bounded pool of threads
+ * with which to run their polls, so that an idle poller holds no thread.
+ */
 public class Poller {
+  private static final Logger logger = Logger.getLogger(Poller.class.getName());
+
+  private static final int POLL_THREADS = 32;
+  private static final long TICK_MILLIS = 100;
+  private static final int TICKS_PER_WHEEL = 512;
+
+  private static final ThreadPoolExecutor pollService = newPollService();
+  private static final TimerWheel timerWheel = new TimerWheel(
+      "poller-timer-wheel",
+      TICK_MILLIS,
+      MILLISECONDS,
+      TICKS_PER_WHEEL,
+      pollService);
+
   private final long periodMicros;
   private Deadline periodDeadline = null;
   private ActivePoller activePoller = null;
 
+  private static ThreadPoolExecutor newPollService() {
+    ThreadPoolExecutor pollService = new ThreadPoolExecutor(
+        POLL_THREADS,
+        POLL_THREADS,
+        60,
+        SECONDS,
+        new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("poller-%d").setDaemon(true).build());
+    pollService.allowCoreThreadTimeOut(true);
+    return pollService;
+  }
+
   private class ActivePoller implements Runnable {
     private final BooleanSupplier poll;
     private final Runnable onExpiration;
     private final Deadline expirationDeadline;
-    private volatile boolean running = true;
+    // guarded by this
+    private boolean running = true;
+    private TimerWheel.Timeout timeout = null;
 
     ActivePoller(BooleanSupplier poll, Runnable onExpiration, Deadline expirationDeadline) {
       this.poll = poll;
@@ -40,32 +80,19 @@ public class Poller {
       this.expirationDeadline = expirationDeadline;
     }
 
-    private Duration getWaitTime() {
-      checkNotNull(periodDeadline);
-      Deadline waitDeadline = expirationDeadline.minimum(periodDeadline);
-      long waitMicros = waitDeadline.timeRemaining(MICROSECONDS);
-      if (waitMicros <= 0) {
-        return Duration.getDefaultInstance();
-      }
-      return Durations.fromMicros(waitMicros);
-    }
-
-    private void waitForNextDeadline() {
-      try {
-        Duration waitTime = getWaitTime();
-        if (waitTime.getSeconds() != 0 || waitTime.getNanos() != 0) {
-            wait(
-                waitTime.getSeconds() * 1000 + waitTime.getNanos() / 1000000,
-                waitTime.getNanos() % 1000000);
-        }
-      } catch (InterruptedException e) {
-        running = false;
+    synchronized void scheduleNext() {
+      if (running) {
+        Deadline waitDeadline = expirationDeadline.minimum(periodDeadline);
+        timeout = timerWheel.schedule(this, waitDeadline.timeRemaining(MICROSECONDS), MICROSECONDS);
       }
     }
 
     @Override
     public synchronized void run() {
-      while (running) {
+      if (!running) {
+        return;
+      }
+      try {
         if (expirationDeadline.isExpired()) {
           onExpiration.run();
           running = false;
@@ -75,15 +102,20 @@ public class Poller {
           while (periodDeadline.isExpired()) {
             periodDeadline = periodDeadline.offset(periodMicros, MICROSECONDS);
           }
-        } else {
-          waitForNextDeadline();
         }
+      } catch (RuntimeException e) {
+        logger.log(SEVERE, "error polling", e);
+        running = false;
       }
+      scheduleNext();
     }
 
-    public synchronized void stop() {
+    synchronized void stop() {
       running = false;
-      notify();
+      if (timeout != null) {
+        timeout.cancel();
+        timeout = null;
+      }
     }
   }
 
@@ -96,7 +128,7 @@ public class Poller {
   public void resume(BooleanSupplier poll, Runnable onExpiry, Deadline expiryDeadline) {
     checkState(activePoller == null);
     activePoller = new ActivePoller(poll, onExpiry, expiryDeadline);
-    new Thread(activePoller).start();
+    activePoller.scheduleNext();
   }
 
   public void pause() {
@@ -0,0 +1,154 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.logging.Level.SEVERE;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * a hashed timer wheel, expiring any number of timeouts from a single
+ * thread with constant cost scheduling and cancellation
+ *
+ * Timeouts are placed in the bucket of the tick in which they expire,
+ * counting the rotations of the wheel remaining before they are due.
+ * Expiration is accurate to within a tick. Expired tasks are dispatched to
+ * the executor, and must not assume they run on the wheel thread.
+ */
+public class TimerWheel {
+  private static final Logger logger = Logger.getLogger(TimerWheel.class.getName());
+
+  private final long tickNanos;
+  private final Executor executor;
+  private final List<Set<Timeout>> buckets;
+  private final int mask;
+  private final Thread thread;
+  private final long startNanos;
+  // guarded by buckets
+  private long tick = 0;
+  private volatile boolean stopped = false;
+
+  public final class Timeout {
+    private final Runnable task;
+    private final int bucket;
+    private long rounds;
+    private boolean done = false;
+
+    private Timeout(Runnable task, int bucket, long rounds) {
+      this.task = task;
+      this.bucket = bucket;
+      this.rounds = rounds;
+    }
+
+    /** returns false if the timeout has already expired or been cancelled */
+    public boolean cancel() {
+      synchronized (buckets) {
+        if (done) {
+          return false;
+        }
+        done = true;
+        buckets.get(bucket).remove(this);
+        return true;
+      }
+    }
+  }
+
+  public TimerWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel, Executor executor) {
+    checkArgument(tickDuration > 0, "tickDuration must be positive");
+    checkArgument(ticksPerWheel > 0, "ticksPerWheel must be positive");
+    tickNanos = unit.toNanos(tickDuration);
+    this.executor = executor;
+    int size = Integer.highestOneBit(ticksPerWheel);
+    if (size < ticksPerWheel) {
+      size <<= 1;
+    }
+    mask = size - 1;
+    buckets = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      buckets.add(new LinkedHashSet<>());
+    }
+    startNanos = System.nanoTime();
+    thread = new Thread(this::run, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** run task on the executor once delay has elapsed */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    long delayNanos = Math.max(0, unit.toNanos(delay));
+    long dueTick = (System.nanoTime() - startNanos + delayNanos + tickNanos - 1) / tickNanos;
+    synchronized (buckets) {
+      // never place a timeout in a bucket which has already been processed
+      long ticks = Math.max(dueTick - tick, 0);
+      long due = tick + ticks;
+      Timeout timeout = new Timeout(task, (int) (due & mask), ticks / buckets.size());
+      buckets.get(timeout.bucket).add(timeout);
+      return timeout;
+    }
+  }
+
+  private void run() {
+    while (!stopped) {
+      long deadline = startNanos + (tick + 1) * tickNanos;
+      long sleepNanos = deadline - System.nanoTime();
+      if (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          if (stopped) {
+            break;
+          }
+          continue;
+        }
+      }
+      List<Timeout> expired = new ArrayList<>();
+      synchronized (buckets) {
+        Iterator<Timeout> iter = buckets.get((int) (tick & mask)).iterator();
+        while (iter.hasNext()) {
+          Timeout timeout = iter.next();
+          if (timeout.rounds == 0) {
+            iter.remove();
+            timeout.done = true;
+            expired.add(timeout);
+          } else {
+            timeout.rounds--;
+          }
+        }
+        tick++;
+      }
+      for (Timeout timeout : expired) {
+        try {
+          executor.execute(timeout.task);
+        } catch (RejectedExecutionException e) {
+          logger.log(SEVERE, "could not dispatch expired timeout", e);
+        }
+      }
+    }
+  }
+
+  public void stop() {
+    stopped = true;
+    thread.interrupt();
+  }
+}
@@ -50,7 +50,9 @@ public class UrlPath {
   public enum ResourceOperation {
     Blob(3),
     UploadBlob(5),
-    OperationStream(4);
+    OperationStream(4),
+    CompressedBlob(4),
+    UploadCompressedBlob(6);
 
     private final int minComponentLength;
     private ResourceOperation(int minComponentLength) {
@@ -65,10 +67,14 @@ public class UrlPath {
     String[] components = resourceName.split("/");
 
     // Keep following checks ordered by descending minComponentLength
-    if (components.length >= ResourceOperation.UploadBlob.minComponentLength && isUploadBlob(components)) {
+    if (components.length >= ResourceOperation.UploadCompressedBlob.minComponentLength && isUploadCompressedBlob(components)) {
+      return ResourceOperation.UploadCompressedBlob;
+    } else if (components.length >= ResourceOperation.UploadBlob.minComponentLength && isUploadBlob(components)) {
       return ResourceOperation.UploadBlob;
     } else if (components.length >= ResourceOperation.OperationStream.minComponentLength && isOperationStream(components)) {
       return ResourceOperation.OperationStream;
+    } else if (components.length >= ResourceOperation.CompressedBlob.minComponentLength && isCompressedBlob(components)) {
+      return ResourceOperation.CompressedBlob;
     } else if (components.length >= ResourceOperation.Blob.minComponentLength && isBlob(components)) {
       return ResourceOperation.Blob;
     }
@@ -87,6 +93,17 @@ public class UrlPath {
       components[components.length - 5].equals("uploads");
   }
 
+  private static boolean isCompressedBlob(String[] components) {
+    // {instance_name=**}/compressed-blobs/{compressor}/{hash}/{size}
+    return components[components.length - 4].equals("compressed-blobs");
+  }
+
+  private static boolean isUploadCompressedBlob(String[] components) {
+    // {instance_name=**}/uploads/{uuid}/compressed-blobs/{compressor}/{hash}/{size}
+    return components[components.length - 4].equals("compressed-blobs") &&
+      components[components.length - 6].equals("uploads");
+  }
+
   private static boolean isOperationStream(String[] components) {
     // {instance_name=**}/operations/{uuid}/streams/{stream}
     return components[components.length - 2].equals("streams") &&
@@ -132,6 +149,40 @@ public class UrlPath {
             components.length - 3));
   }
 
+  public static String fromCompressedBlobName(String compressedBlobName) {
+    // {instance_name=**}/compressed-blobs/{compressor}/{hash}/{size}
+    String[] components = compressedBlobName.split("/");
+    return String.join(
+        "/", Iterables.limit(
+            Arrays.asList(components),
+            components.length - 4));
+  }
+
+  public static String fromUploadCompressedBlobName(String uploadCompressedBlobName) {
+    // {instance_name=**}/uploads/{uuid}/compressed-blobs/{compressor}/{hash}/{size}
+    String[] components = uploadCompressedBlobName.split("/");
+    return String.join(
+        "/", Iterables.limit(
+            Arrays.asList(components),
+            components.length - 6));
+  }
+
+  /** the compressor of a compressed-blobs resource name */
+  public static String parseCompressor(String resourceName) {
+    String[] components = resourceName.split("/");
+    return components[components.length - 3];
+  }
+
+  public static UUID parseUploadCompressedBlobUUID(String resourceName)
+      throws InvalidResourceNameException {
+    String[] components = resourceName.split("/");
+    try {
+      return UUID.fromString(components[components.length - 5]);
+    } catch (IllegalArgumentException e) {
+      throw new InvalidResourceNameException(resourceName, e.getMessage(), e);
+    }
+  }
+
   public static String fromUploadBlobName(String uploadBlobName) {
     // {instance_name=**}/uploads/{uuid}/blobs/{hash}/{size}
     String[] components = uploadBlobName.split("/");
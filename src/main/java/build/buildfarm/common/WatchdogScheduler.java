@@ -0,0 +1,131 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.logging.Level.SEVERE;
+
+import build.buildfarm.common.function.InterruptingRunnable;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * watchdogs for any number of subjects, expiring from a single timer wheel
+ *
+ * Unlike a Watchdog, a scheduled watchdog holds no thread while it waits.
+ * Petting only records a new deadline, which is observed when the
+ * previously scheduled timeout fires. Expiry handlers run on a fixed pool
+ * of threads.
+ */
+public class WatchdogScheduler {
+  private static final Logger logger = Logger.getLogger(WatchdogScheduler.class.getName());
+
+  private static final long TICK_MILLIS = 100;
+  private static final int TICKS_PER_WHEEL = 512;
+
+  private final ExecutorService expiryService;
+  private final TimerWheel timerWheel;
+
+  public WatchdogScheduler(String name, int expiryThreads) {
+    expiryService = newFixedThreadPool(
+        expiryThreads,
+        new ThreadFactoryBuilder().setNameFormat(name + "-expiry-%d").setDaemon(true).build());
+    // timeouts only reschedule or hand off to the expiry service
+    timerWheel = new TimerWheel(name, TICK_MILLIS, MILLISECONDS, TICKS_PER_WHEEL, directExecutor());
+  }
+
+  public class ScheduledWatchdog {
+    private final long petTimeoutNanos;
+    private final InterruptingRunnable onExpiry;
+    private volatile long deadlineNanos;
+    // guarded by this
+    private boolean stopped = false;
+    private TimerWheel.Timeout timeout = null;
+
+    private ScheduledWatchdog(Duration petTimeout, InterruptingRunnable onExpiry) {
+      petTimeoutNanos = petTimeout.getSeconds() * 1000000000L + petTimeout.getNanos();
+      this.onExpiry = onExpiry;
+      deadlineNanos = System.nanoTime() + petTimeoutNanos;
+    }
+
+    private synchronized void schedule() {
+      if (!stopped) {
+        timeout = timerWheel.schedule(this::onTimeout, deadlineNanos - System.nanoTime(), NANOSECONDS);
+      }
+    }
+
+    private void onTimeout() {
+      if (deadlineNanos - System.nanoTime() > 0) {
+        // petted since this timeout was scheduled
+        schedule();
+        return;
+      }
+      try {
+        expiryService.execute(this::expire);
+      } catch (RejectedExecutionException e) {
+        logger.log(SEVERE, "could not run watchdog expiry", e);
+      }
+    }
+
+    private void expire() {
+      synchronized (this) {
+        if (stopped) {
+          return;
+        }
+        stopped = true;
+        timeout = null;
+      }
+      try {
+        onExpiry.runInterruptibly();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (RuntimeException e) {
+        logger.log(SEVERE, "error running watchdog expiry", e);
+      }
+    }
+
+    /** defers expiry until the pet timeout elapses from now */
+    public void pet() {
+      deadlineNanos = System.nanoTime() + petTimeoutNanos;
+    }
+
+    /** prevents expiry, if it has not already begun */
+    public synchronized void stop() {
+      stopped = true;
+      if (timeout != null) {
+        timeout.cancel();
+        timeout = null;
+      }
+    }
+  }
+
+  /** start a watchdog which runs onExpiry if it is not petted within petTimeout */
+  public ScheduledWatchdog start(Duration petTimeout, InterruptingRunnable onExpiry) {
+    ScheduledWatchdog watchdog = new ScheduledWatchdog(petTimeout, onExpiry);
+    watchdog.schedule();
+    return watchdog;
+  }
+
+  public void stop() {
+    timerWheel.stop();
+    expiryService.shutdownNow();
+  }
+}
@@ -14,6 +14,7 @@
 
 package build.buildfarm.common.grpc;
 
+import build.buildfarm.common.Compression.ChunkInflater;
 import build.buildfarm.common.grpc.Retrier.Backoff;
 import build.buildfarm.common.io.ByteStringQueueInputStream;
 import com.google.bytestream.ByteStreamGrpc.ByteStreamStub;
@@ -26,6 +27,7 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
 import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
@@ -44,23 +46,65 @@ public final class ByteStreamHelper {
       Supplier<Backoff> backoffSupplier,
       Predicate<Status> isRetriable,
       @Nullable ListeningScheduledExecutorService retryService) {
-    ReadRequest request = ReadRequest.newBuilder()
-        .setResourceName(resourceName)
-        .setReadOffset(offset)
-        .build();
+    return newInput(
+        resourceName,
+        /* compressedResourceName=*/ null,
+        offset,
+        bsStubSupplier,
+        backoffSupplier,
+        isRetriable,
+        retryService);
+  }
+
+  /**
+   * reads resourceName from offset, preferring its compressed form
+   * compressedResourceName if it is not null
+   *
+   * Compressed content is inflated as it arrives, and offsets always count
+   * uncompressed bytes. If the server rejects the compressed resource, the
+   * read falls back to resourceName.
+   */
+  public static final InputStream newInput(
+      String resourceName,
+      @Nullable String compressedResourceName,
+      long offset,
+      Supplier<ByteStreamStub> bsStubSupplier,
+      Supplier<Backoff> backoffSupplier,
+      Predicate<Status> isRetriable,
+      @Nullable ListeningScheduledExecutorService retryService) {
     BlockingQueue<ByteString> queue = new LinkedBlockingQueue<ByteString>();
     ByteStringQueueInputStream inputStream = new ByteStringQueueInputStream(queue);
     StreamObserver<ReadResponse> responseObserver = new StreamObserver<ReadResponse>() {
       long requestOffset = offset;
       long currentOffset = offset;
       Backoff backoff = backoffSupplier.get();
+      boolean compressed = compressedResourceName != null;
+      ChunkInflater inflater = compressed ? new ChunkInflater() : null;
+      boolean received = false;
+
+      void start() {
+        bsStubSupplier.get().read(
+            ReadRequest.newBuilder()
+                .setResourceName(compressed ? compressedResourceName : resourceName)
+                .setReadOffset(requestOffset)
+                .build(),
+            this);
+      }
 
       @Override
       public void onNext(ReadResponse response) {
-        ByteString data = response.getData();
+        received = true;
         try {
-          queue.put(data);
-          currentOffset += data.size();
+          ByteString data = response.getData();
+          if (compressed) {
+            data = inflater.inflate(data);
+          }
+          if (!data.isEmpty()) {
+            queue.put(data);
+            currentOffset += data.size();
+          }
+        } catch (IOException e) {
+          inputStream.setException(e);
         } catch (InterruptedException e) {
           // cancel context?
           inputStream.setException(e);
@@ -69,21 +113,37 @@ public final class ByteStreamHelper {
 
       private void retryRequest() {
         requestOffset = currentOffset;
-        bsStubSupplier.get().read(
-            request.toBuilder()
-                .setReadOffset(requestOffset)
-                .build(),
-            this);
+        if (compressed) {
+          // a compressed read restarts its content at the request offset
+          inflater.end();
+          inflater = new ChunkInflater();
+          received = false;
+        }
+        start();
+      }
+
+      private void endInflater() {
+        if (compressed) {
+          inflater.end();
+        }
       }
 
       @Override
       public void onError(Throwable t) {
         Status status = Status.fromThrowable(t);
+        if (compressed && !received && status.getCode() == Status.Code.INVALID_ARGUMENT) {
+          // the server does not support this compressor
+          endInflater();
+          compressed = false;
+          start();
+          return;
+        }
         long nextDelayMillis = backoff.nextDelayMillis();
         if (status.getCode() == Status.Code.DEADLINE_EXCEEDED && currentOffset != requestOffset) {
           backoff = backoffSupplier.get();
           retryRequest();
         } else if (retryService == null || nextDelayMillis < 0 || !isRetriable.test(status)) {
+          endInflater();
           inputStream.setException(t);
         } else {
           ListenableFuture<?> schedulingResult =
@@ -107,10 +167,23 @@ public final class ByteStreamHelper {
 
       @Override
       public void onCompleted() {
+        if (compressed) {
+          boolean finished = inflater.finished();
+          inflater.end();
+          if (!finished) {
+            inputStream.setException(new IOException("compressed content of " + resourceName + " was truncated"));
+            return;
+          }
+        }
         inputStream.setCompleted();
       }
     };
-    bsStubSupplier.get().read(request, responseObserver);
+    bsStubSupplier.get().read(
+        ReadRequest.newBuilder()
+            .setResourceName(compressedResourceName != null ? compressedResourceName : resourceName)
+            .setReadOffset(offset)
+            .build(),
+        responseObserver);
     return inputStream;
   }
 }
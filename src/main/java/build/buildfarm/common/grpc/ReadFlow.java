@@ -0,0 +1,185 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common.grpc;
+
+import static io.grpc.Status.NOT_FOUND;
+import static io.grpc.Status.OUT_OF_RANGE;
+import static java.util.logging.Level.SEVERE;
+
+import build.buildfarm.common.io.ByteStringInputStream;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Status;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * sends the content of a stream to an observer, producing chunks only
+ * while the call is ready, so that content is read no faster than the
+ * client consumes it
+ *
+ * Each drain runs until the call becomes unready, and is resumed by the
+ * onReady handler of the call, so no thread is held while the client is
+ * slow. The stream is closed when the read completes, fails, or is
+ * cancelled.
+ */
+public class ReadFlow<T> implements Runnable {
+  private static final Logger logger = Logger.getLogger(ReadFlow.class.getName());
+
+  private final InputStream in;
+  private final boolean unlimited;
+  private final int chunkSize;
+  private final Function<ByteString, T> toResponse;
+  private final StreamObserver<T> responseObserver;
+  private final BooleanSupplier isReady;
+  private long remaining;
+  private boolean complete = false;
+  private boolean draining = false;
+
+  ReadFlow(
+      InputStream in,
+      long limit,
+      int chunkSize,
+      Function<ByteString, T> toResponse,
+      StreamObserver<T> responseObserver,
+      BooleanSupplier isReady) {
+    this.in = in;
+    unlimited = limit == 0;
+    remaining = limit;
+    this.chunkSize = chunkSize;
+    this.toResponse = toResponse;
+    this.responseObserver = responseObserver;
+    this.isReady = isReady;
+  }
+
+  /**
+   * responds with up to limit bytes of in, or all of it if limit is 0,
+   * taking ownership of it
+   *
+   * Observers which cannot report readiness are sent the whole response
+   * before this returns.
+   */
+  public static <T> void start(
+      InputStream in,
+      long limit,
+      int chunkSize,
+      Function<ByteString, T> toResponse,
+      StreamObserver<T> responseObserver) {
+    if (responseObserver instanceof CallStreamObserver) {
+      CallStreamObserver<T> callObserver = (CallStreamObserver<T>) responseObserver;
+      ReadFlow<T> flow = new ReadFlow<>(
+          in, limit, chunkSize, toResponse, responseObserver, callObserver::isReady);
+      if (callObserver instanceof ServerCallStreamObserver) {
+        ((ServerCallStreamObserver<T>) callObserver).setOnCancelHandler(flow::cancel);
+      }
+      callObserver.setOnReadyHandler(flow);
+      flow.run();
+    } else {
+      new ReadFlow<>(in, limit, chunkSize, toResponse, responseObserver, () -> true).run();
+    }
+  }
+
+  private ByteString readChunk(int maxLength) throws IOException {
+    if (in instanceof ByteStringInputStream) {
+      // chunks from a ByteStringInputStream are sent without copying
+      return ((ByteStringInputStream) in).readByteString(maxLength);
+    }
+    byte[] buf = new byte[maxLength];
+    int readBytes = in.read(buf);
+    if (readBytes == -1) {
+      return null;
+    }
+    if (readBytes < buf.length / 2) {
+      // do not retain a mostly empty buffer
+      return ByteString.copyFrom(buf, 0, readBytes);
+    }
+    // the buffer is never reused, and may be sent without copying
+    return UnsafeByteOperations.unsafeWrap(buf, 0, readBytes);
+  }
+
+  @Override
+  public synchronized void run() {
+    // onReady may be delivered within onNext, and the drain in
+    // progress will observe the readiness
+    if (draining) {
+      return;
+    }
+    draining = true;
+    try {
+      while (!complete && isReady.getAsBoolean()) {
+        int maxLength = unlimited ? chunkSize : (int) Math.min(remaining, chunkSize);
+        ByteString chunk = readChunk(maxLength);
+        if (chunk == null) {
+          if (unlimited) {
+            finish();
+          } else {
+            fail(OUT_OF_RANGE.asException());
+          }
+        } else if (!chunk.isEmpty()) {
+          if (!unlimited) {
+            remaining -= chunk.size();
+          }
+          responseObserver.onNext(toResponse.apply(chunk));
+          if (!unlimited && remaining == 0) {
+            finish();
+          }
+        }
+      }
+    } catch (NoSuchFileException e) {
+      fail(NOT_FOUND.asException());
+    } catch (IOException e) {
+      fail(Status.fromThrowable(e).asException());
+    } finally {
+      draining = false;
+    }
+  }
+
+  private void finish() {
+    if (close()) {
+      responseObserver.onCompleted();
+    }
+  }
+
+  private void fail(Throwable t) {
+    if (close()) {
+      responseObserver.onError(t);
+    }
+  }
+
+  synchronized void cancel() {
+    close();
+  }
+
+  /** returns false if the read was already complete */
+  private boolean close() {
+    if (complete) {
+      return false;
+    }
+    complete = true;
+    try {
+      in.close();
+    } catch (IOException e) {
+      logger.log(SEVERE, "error closing read stream", e);
+    }
+    return true;
+  }
+}
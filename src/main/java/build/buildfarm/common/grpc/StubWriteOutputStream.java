@@ -3,6 +3,7 @@ package build.buildfarm.common.grpc;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import build.buildfarm.common.Write;
+import build.buildfarm.common.io.FeedbackOutputStream;
 import com.google.bytestream.ByteStreamGrpc.ByteStreamBlockingStub;
 import com.google.bytestream.ByteStreamGrpc.ByteStreamStub;
 import com.google.bytestream.ByteStreamProto.WriteRequest;
@@ -14,17 +15,28 @@ import com.google.common.base.Suppliers;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
 import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
-public class StubWriteOutputStream extends OutputStream implements Write {
+/**
+ * writes to a bytestream resource on a remote service
+ *
+ * Writes wait while the outbound stream is not ready, so that no more than
+ * a chunk is buffered beyond the transport's window.
+ */
+public class StubWriteOutputStream extends FeedbackOutputStream implements Write {
   public static final long UNLIMITED_EXPECTED_SIZE = Long.MAX_VALUE;
 
   private static final int CHUNK_SIZE = 16 * 1024;
+  private static final long READY_WAIT_MILLIS = 100;
 
   private final Supplier<ByteStreamBlockingStub> bsBlockingStub;
   private final Supplier<ByteStreamStub> bsStub;
@@ -58,6 +70,9 @@ public class StubWriteOutputStream extends OutputStream implements Write {
   private int offset = 0;
   private long writtenBytes = 0;
   private StreamObserver<WriteRequest> writeObserver = null;
+  private volatile ClientCallStreamObserver<WriteRequest> requestStream = null;
+  // guarded by this
+  private List<Runnable> onReadyCallbacks = new ArrayList<>();
   private long deadlineAfter = 0;
   private TimeUnit deadlineAfterUnits = null;
 
@@ -97,7 +112,8 @@ public class StubWriteOutputStream extends OutputStream implements Write {
     }
   }
 
-  private void flushSome(boolean finishWrite) {
+  private void flushSome(boolean finishWrite) throws IOException {
+    awaitReady();
     WriteRequest.Builder request = WriteRequest.newBuilder()
         .setWriteOffset(getCommittedSize())
         .setData(ByteString.copyFrom(buf, 0, offset))
@@ -136,13 +152,60 @@ public class StubWriteOutputStream extends OutputStream implements Write {
     }
   }
 
+  private synchronized void awaitReady() throws IOException {
+    while (!isReady() && !writeFuture.isDone()) {
+      try {
+        // the onReady handler notifies, the timeout guards against a missed transition
+        wait(READY_WAIT_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(Status.CANCELLED.withCause(e).asException());
+      }
+    }
+  }
+
+  private void onReady() {
+    List<Runnable> callbacks;
+    synchronized (this) {
+      notifyAll();
+      callbacks = onReadyCallbacks;
+      onReadyCallbacks = new ArrayList<>();
+    }
+    for (Runnable callback : callbacks) {
+      callback.run();
+    }
+  }
+
+  @Override
+  public boolean isReady() {
+    ClientCallStreamObserver<WriteRequest> stream = requestStream;
+    return writeObserver == null || stream == null || stream.isReady();
+  }
+
+  @Override
+  public void whenReady(Runnable onReady) {
+    synchronized (this) {
+      onReadyCallbacks.add(onReady);
+    }
+    // a transition to ready may have preceded the registration
+    if (isReady() || writeFuture.isDone()) {
+      onReady();
+    }
+  }
+
   private void initiateWrite() throws IOException {
     if (writeObserver == null) {
       checkNotNull(deadlineAfterUnits);
       writeObserver = bsStub.get()
           .withDeadlineAfter(deadlineAfter, deadlineAfterUnits)
           .write(
-              new StreamObserver<WriteResponse>() {
+              new ClientResponseObserver<WriteRequest, WriteResponse>() {
+                @Override
+                public void beforeStart(ClientCallStreamObserver<WriteRequest> requestStream) {
+                  StubWriteOutputStream.this.requestStream = requestStream;
+                  requestStream.setOnReadyHandler(StubWriteOutputStream.this::onReady);
+                }
+
                 @Override
                 public void onNext(WriteResponse response) {
                   writtenBytes += response.getCommittedSize() - getCommittedSize();
@@ -152,6 +215,8 @@ public class StubWriteOutputStream extends OutputStream implements Write {
                 @Override
                 public void onError(Throwable t) {
                   writeFuture.setException(t);
+                  // release any waiters to observe the failure
+                  onReady();
                 }
 
                 @Override
@@ -0,0 +1,34 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common.io;
+
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * an input stream which can present its content as ByteStrings without
+ * copying it into intermediate buffers
+ */
+public abstract class ByteStringInputStream extends InputStream {
+  /**
+   * read up to maxLength bytes from the stream, advancing its position
+   *
+   * returns null if the stream is at its end. The returned ByteString may
+   * share storage with the underlying source, which must not be modified
+   * while it is referenced.
+   */
+  public abstract ByteString readByteString(int maxLength) throws IOException;
+}
@@ -0,0 +1,33 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common.io;
+
+import java.io.OutputStream;
+
+/**
+ * an output stream which reports whether its destination can accept more
+ * content, so that a producer may defer writes rather than block in them
+ */
+public abstract class FeedbackOutputStream extends OutputStream {
+  /** whether content written now would be sent without waiting */
+  public abstract boolean isReady();
+
+  /**
+   * run onReady once, when the stream is next ready, or when it fails
+   *
+   * onReady is run immediately if the stream is ready now.
+   */
+  public abstract void whenReady(Runnable onReady);
+}
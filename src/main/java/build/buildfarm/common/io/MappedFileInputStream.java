@@ -0,0 +1,246 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common.io;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * presents the content of an immutable file through read-only mappings
+ *
+ * Mappings are established in windows of at most windowSize bytes, and
+ * ByteStrings produced from this stream wrap the mapping directly. The file
+ * must not be truncated while this stream or any of its ByteStrings are
+ * referenced.
+ *
+ * A window is unmapped when the stream moves past it or is closed, unless
+ * a ByteString wrapping it has been handed out, in which case it remains
+ * mapped until that ByteString is collected. The total size of such
+ * windows is limited across all streams, and content is copied into
+ * ByteStrings instead while it is exceeded.
+ */
+public class MappedFileInputStream extends ByteStringInputStream {
+  private static final long DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  private static final long MAX_SHARED_MAPPED_BYTES = 1024L * 1024 * 1024;
+
+  private static final AtomicLong sharedMappedBytes = new AtomicLong();
+  private static final Set<SharedWindow> sharedWindows = ConcurrentHashMap.newKeySet();
+  private static final ReferenceQueue<ByteBuffer> releasedWindows = new ReferenceQueue<>();
+  private static final Consumer<ByteBuffer> unmapper = createUnmapper();
+
+  private final FileChannel channel;
+  private final long size;
+  private final long windowSize;
+  private long position;
+  private long windowStart = 0;
+  private ByteBuffer window = null;
+  private boolean windowShared = false;
+
+  /** the mapping of a window remains reachable from every slice of it */
+  private static final class SharedWindow extends PhantomReference<ByteBuffer> {
+    final long size;
+
+    SharedWindow(ByteBuffer window) {
+      super(window, releasedWindows);
+      size = window.capacity();
+    }
+  }
+
+  /**
+   * unmapping is not available through the platform API, and is done by
+   * the cleaner of a mapping where it can be reached
+   */
+  private static Consumer<ByteBuffer> createUnmapper() {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      Object unsafe = theUnsafe.get(null);
+      return (buffer) -> {
+        try {
+          invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException e) {
+          // left to be unmapped when collected
+        }
+      };
+    } catch (ReflectiveOperationException|RuntimeException e) {
+      // cleaners are reached through the buffer prior to java 9
+    }
+    try {
+      Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+      Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+      return (buffer) -> {
+        try {
+          Object bufferCleaner = cleaner.invoke(buffer);
+          if (bufferCleaner != null) {
+            clean.invoke(bufferCleaner);
+          }
+        } catch (ReflectiveOperationException e) {
+          // left to be unmapped when collected
+        }
+      };
+    } catch (ReflectiveOperationException|RuntimeException e) {
+      return (buffer) -> {};
+    }
+  }
+
+  private static void reclaimSharedWindows() {
+    Reference<? extends ByteBuffer> released;
+    while ((released = releasedWindows.poll()) != null) {
+      SharedWindow sharedWindow = (SharedWindow) released;
+      if (sharedWindows.remove(sharedWindow)) {
+        sharedMappedBytes.addAndGet(-sharedWindow.size);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  static long getSharedMappedBytes() {
+    reclaimSharedWindows();
+    return sharedMappedBytes.get();
+  }
+
+  /**
+   * the first window is mapped on construction, so that an unsupported
+   * channel will throw UnsupportedOperationException here
+   */
+  public MappedFileInputStream(FileChannel channel, long offset) throws IOException {
+    this(channel, offset, DEFAULT_WINDOW_SIZE);
+  }
+
+  public MappedFileInputStream(FileChannel channel, long offset, long windowSize) throws IOException {
+    this.channel = channel;
+    this.windowSize = windowSize;
+    size = channel.size();
+    position = Math.max(0, Math.min(offset, size));
+    if (position < size) {
+      window();
+    }
+  }
+
+  private ByteBuffer window() throws IOException {
+    if (window == null
+        || position < windowStart
+        || position >= windowStart + window.capacity()) {
+      unmap();
+      windowStart = position;
+      window = channel.map(READ_ONLY, windowStart, Math.min(size - windowStart, windowSize));
+    }
+    return window;
+  }
+
+  private void unmap() {
+    if (window != null && !windowShared) {
+      unmapper.accept(window);
+    }
+    window = null;
+    windowShared = false;
+  }
+
+  /** returns false if the window may not be referenced by a ByteString */
+  private boolean shareWindow() {
+    if (windowShared) {
+      return true;
+    }
+    reclaimSharedWindows();
+    long windowBytes = window.capacity();
+    if (sharedMappedBytes.addAndGet(windowBytes) > MAX_SHARED_MAPPED_BYTES) {
+      sharedMappedBytes.addAndGet(-windowBytes);
+      return false;
+    }
+    sharedWindows.add(new SharedWindow(window));
+    windowShared = true;
+    return true;
+  }
+
+  private ByteBuffer slice(int maxLength) throws IOException {
+    ByteBuffer buffer = window().duplicate();
+    int index = (int) (position - windowStart);
+    int length = Math.min(maxLength, buffer.capacity() - index);
+    buffer.position(index);
+    buffer.limit(index + length);
+    position += length;
+    return buffer;
+  }
+
+  @Override
+  public int available() {
+    return (int) Math.min(Integer.MAX_VALUE, size - position);
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position >= size) {
+      return -1;
+    }
+    return slice(1).get() & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (position >= size) {
+      return -1;
+    }
+    ByteBuffer buffer = slice(len);
+    int n = buffer.remaining();
+    buffer.get(b, off, n);
+    return n;
+  }
+
+  @Override
+  public ByteString readByteString(int maxLength) throws IOException {
+    if (position >= size) {
+      return null;
+    }
+    ByteBuffer buffer = slice(maxLength);
+    if (!shareWindow()) {
+      return ByteString.copyFrom(buffer);
+    }
+    return UnsafeByteOperations.unsafeWrap(buffer.slice());
+  }
+
+  @Override
+  public long skip(long n) {
+    long skipped = Math.max(0, Math.min(n, size - position));
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public void close() throws IOException {
+    unmap();
+    channel.close();
+  }
+}
@@ -15,11 +15,14 @@
 package build.buildfarm.instance;
 
 import static build.buildfarm.instance.Utils.putBlob;
+import static build.buildfarm.instance.Utils.putBlobFuture;
+import static com.google.common.util.concurrent.Futures.catching;
 import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
 import static com.google.common.util.concurrent.Futures.immediateFuture;
 import static com.google.common.util.concurrent.Futures.transform;
 import static com.google.common.util.concurrent.Futures.transformAsync;
 import static com.google.common.util.concurrent.Futures.allAsList;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
 import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
 import static java.lang.String.format;
@@ -30,6 +33,7 @@ import build.bazel.remote.execution.v2.Action;
 import build.bazel.remote.execution.v2.ActionResult;
 import build.bazel.remote.execution.v2.ActionCacheUpdateCapabilities;
 import build.bazel.remote.execution.v2.BatchReadBlobsResponse.Response;
+import build.bazel.remote.execution.v2.BatchUpdateBlobsRequest;
 import build.bazel.remote.execution.v2.BatchUpdateBlobsResponse;
 import build.bazel.remote.execution.v2.CacheCapabilities;
 import build.bazel.remote.execution.v2.CacheCapabilities.SymlinkAbsolutePathStrategy;
@@ -239,6 +243,48 @@ public abstract class AbstractServerInstance implements Instance {
     return contentAddressableStorage.getAllFuture(digests);
   }
 
+  @Override
+  public ListenableFuture<Iterable<BatchUpdateBlobsResponse.Response>> putAllBlobsFuture(
+      Iterable<BatchUpdateBlobsRequest.Request> requests,
+      long writeDeadlineAfter,
+      TimeUnit writeDeadlineAfterUnits) {
+    ImmutableList.Builder<ListenableFuture<BatchUpdateBlobsResponse.Response>> responses = ImmutableList.builder();
+    for (BatchUpdateBlobsRequest.Request request : requests) {
+      responses.add(putBlobResponseFuture(
+          request.getDigest(),
+          request.getData(),
+          writeDeadlineAfter,
+          writeDeadlineAfterUnits));
+    }
+    return transform(
+        allAsList(responses.build()),
+        (responseList) -> responseList,
+        directExecutor());
+  }
+
+  protected ListenableFuture<BatchUpdateBlobsResponse.Response> putBlobResponseFuture(
+      Digest digest,
+      ByteString data,
+      long writeDeadlineAfter,
+      TimeUnit writeDeadlineAfterUnits) {
+    return catching(
+        transform(
+            putBlobFuture(this, digest, data, writeDeadlineAfter, writeDeadlineAfterUnits),
+            (d) -> putBlobResponse(digest, Status.Code.OK),
+            directExecutor()),
+        Throwable.class,
+        (t) -> putBlobResponse(digest, Status.fromThrowable(t).getCode()),
+        directExecutor());
+  }
+
+  private static BatchUpdateBlobsResponse.Response putBlobResponse(Digest digest, Status.Code code) {
+    return BatchUpdateBlobsResponse.Response.newBuilder()
+        .setDigest(digest)
+        .setStatus(com.google.rpc.Status.newBuilder()
+            .setCode(code.value()))
+        .build();
+  }
+
   ByteString getBlob(Digest blobDigest) throws InterruptedException {
     return getBlob(blobDigest, 0, 0);
   }
@@ -16,6 +16,7 @@ package build.buildfarm.instance;
 
 import build.bazel.remote.execution.v2.ActionResult;
 import build.bazel.remote.execution.v2.BatchReadBlobsResponse.Response;
+import build.bazel.remote.execution.v2.BatchUpdateBlobsRequest;
 import build.bazel.remote.execution.v2.BatchUpdateBlobsResponse;
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
@@ -84,6 +85,10 @@ public interface Instance {
   Write getBlobWrite(Digest digest, UUID uuid);
   Iterable<Digest> putAllBlobs(Iterable<ByteString> blobs)
       throws IOException, IllegalArgumentException, InterruptedException;
+  ListenableFuture<Iterable<BatchUpdateBlobsResponse.Response>> putAllBlobsFuture(
+      Iterable<BatchUpdateBlobsRequest.Request> requests,
+      long writeDeadlineAfter,
+      TimeUnit writeDeadlineAfterUnits);
 
   Write getOperationStreamWrite(String name);
   InputStream newOperationStreamInput(
@@ -44,7 +44,8 @@ import build.buildfarm.common.DigestUtil.ActionKey;
 import build.buildfarm.common.TokenizableIterator;
 import build.buildfarm.common.TreeIterator;
 import build.buildfarm.common.TreeIterator.DirectoryEntry;
-import build.buildfarm.common.Watchdog;
+import build.buildfarm.common.WatchdogScheduler;
+import build.buildfarm.common.WatchdogScheduler.ScheduledWatchdog;
 import build.buildfarm.common.Watcher;
 import build.buildfarm.common.Write;
 import build.buildfarm.instance.AbstractServerInstance;
@@ -109,6 +110,8 @@ import java.util.logging.Logger;
 public class MemoryInstance extends AbstractServerInstance {
   private static final Logger logger = Logger.getLogger(MemoryInstance.class.getName());
 
+  private static final int WATCHDOG_EXPIRY_THREADS = 16;
+
   public static final String TIMEOUT_OUT_OF_BOUNDS =
       "A timeout specified is out of bounds with a configured range";
 
@@ -134,8 +137,10 @@ public class MemoryInstance extends AbstractServerInstance {
       });
   private final List<Operation> queuedOperations = Lists.newArrayList();
   private final List<Worker> workers = Lists.newArrayList();
-  private final Map<String, Watchdog> requeuers = Maps.newConcurrentMap();
-  private final Map<String, Watchdog> operationTimeoutDelays = Maps.newConcurrentMap();
+  private final WatchdogScheduler watchdogScheduler =
+      new WatchdogScheduler("memory-instance-watchdog", WATCHDOG_EXPIRY_THREADS);
+  private final Map<String, ScheduledWatchdog> requeuers = Maps.newConcurrentMap();
+  private final Map<String, ScheduledWatchdog> operationTimeoutDelays = Maps.newConcurrentMap();
   private final OperationsMap outstandingOperations;
   private final Executor watcherExecutor;
 
@@ -225,6 +230,12 @@ public class MemoryInstance extends AbstractServerInstance {
     this.watcherExecutor = watcherExecutor;
   }
 
+  @Override
+  public void stop() throws InterruptedException {
+    watchdogScheduler.stop();
+    super.stop();
+  }
+
   private static ActionCache createActionCache(ActionCacheConfig config, ContentAddressableStorage cas, DigestUtil digestUtil) {
     switch (config.getTypeCase()) {
       default:
@@ -416,7 +427,7 @@ public class MemoryInstance extends AbstractServerInstance {
       return false;
     }
     // pet the requeue watchdog
-    Watchdog requeuer = requeuers.get(operationName);
+    ScheduledWatchdog requeuer = requeuers.get(operationName);
     if (requeuer == null) {
       return false;
     }
@@ -432,12 +443,12 @@ public class MemoryInstance extends AbstractServerInstance {
     String operationName = operation.getName();
     if (operation.getDone()) {
       // destroy requeue timer
-      Watchdog requeuer = requeuers.remove(operationName);
+      ScheduledWatchdog requeuer = requeuers.remove(operationName);
       if (requeuer != null) {
         requeuer.stop();
       }
       // destroy action timed out failure
-      Watchdog operationTimeoutDelay =
+      ScheduledWatchdog operationTimeoutDelay =
           operationTimeoutDelays.remove(operationName);
       if (operationTimeoutDelay != null) {
         operationTimeoutDelay.stop();
@@ -451,7 +462,7 @@ public class MemoryInstance extends AbstractServerInstance {
       }
       logger.info(format("Operation %s was %s", operationName, operationStatus));
     } else if (isExecuting(operation)) {
-      Watchdog requeuer = requeuers.get(operationName);
+      ScheduledWatchdog requeuer = requeuers.get(operationName);
       if (requeuer == null) {
         // restore a requeuer if a worker indicates they are executing
         onDispatched(operation);
@@ -475,16 +486,10 @@ public class MemoryInstance extends AbstractServerInstance {
             .setSeconds(actionTimeout.getSeconds() + delay.getSeconds())
             .setNanos(actionTimeout.getNanos() + delay.getNanos())
             .build();
-        // this is an overuse of Watchdog, we will never pet it
-        Watchdog operationTimeoutDelay = new Watchdog(timeout, () -> {
-          try {
-            expireOperation(operation);
-          } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-          }
-        });
+        // this is an overuse of a watchdog, we will never pet it
+        ScheduledWatchdog operationTimeoutDelay =
+            watchdogScheduler.start(timeout, () -> expireOperation(operation));
         operationTimeoutDelays.put(operationName, operationTimeoutDelay);
-        new Thread(operationTimeoutDelay).start();
       }
     }
     return true;
@@ -492,12 +497,11 @@ public class MemoryInstance extends AbstractServerInstance {
 
   private void onDispatched(Operation operation) {
     Duration timeout = config.getOperationPollTimeout();
-    Watchdog requeuer = new Watchdog(timeout, () -> {
+    ScheduledWatchdog requeuer = watchdogScheduler.start(timeout, () -> {
       logger.info("REQUEUEING " + operation.getName());
       requeueOperation(operation);
     });
     requeuers.put(operation.getName(), requeuer);
-    new Thread(requeuer).start();
   }
 
   List<Directory> getCompleteTree(Digest rootDigest) {
@@ -0,0 +1,129 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static com.google.common.util.concurrent.Futures.getUninterruptibly;
+
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * coalesces concurrent requests into batches
+ *
+ * The first caller to arrive while no batch is running becomes its leader,
+ * and runs every request that is pending, including its own, as a single
+ * batch. Other callers wait for their results. If more requests arrived
+ * while the batch ran, the earliest of their callers leads the next one,
+ * so that no caller serves more than one batch under sustained load.
+ * Requests from many threads which become due together are served by a
+ * single round trip each.
+ */
+class PipelinedBatcher<T, R> {
+  @FunctionalInterface
+  interface BatchFunction<T, R> {
+    /** results must be in the order of requests */
+    List<R> apply(List<T> requests) throws IOException;
+  }
+
+  private static final class Pending<T, R> {
+    final T request;
+    final SettableFuture<R> result = SettableFuture.create();
+    // guarded by the batcher
+    boolean leader = false;
+
+    Pending(T request) {
+      this.request = request;
+    }
+  }
+
+  private final BatchFunction<T, R> batchFunction;
+  // guarded by this
+  private List<Pending<T, R>> pending = new ArrayList<>();
+  private boolean running = false;
+
+  PipelinedBatcher(BatchFunction<T, R> batchFunction) {
+    this.batchFunction = batchFunction;
+  }
+
+  R call(T request) throws IOException {
+    Pending<T, R> call = new Pending<>(request);
+    boolean interrupted = false;
+    synchronized (this) {
+      pending.add(call);
+      if (!running) {
+        running = true;
+        call.leader = true;
+      }
+      while (!call.leader && !call.result.isDone()) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (call.leader) {
+      runBatch();
+    }
+    try {
+      return getUninterruptibly(call.result);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw new IOException(cause.getMessage(), cause);
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private void runBatch() {
+    List<Pending<T, R>> batch;
+    synchronized (this) {
+      batch = pending;
+      pending = new ArrayList<>();
+    }
+    List<T> requests = new ArrayList<>(batch.size());
+    for (Pending<T, R> call : batch) {
+      requests.add(call.request);
+    }
+    try {
+      List<R> results = batchFunction.apply(requests);
+      for (int i = 0; i < batch.size(); i++) {
+        batch.get(i).result.set(results.get(i));
+      }
+    } catch (IOException|RuntimeException e) {
+      for (Pending<T, R> call : batch) {
+        call.result.setException(e);
+      }
+    }
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        running = false;
+      } else {
+        pending.get(0).leader = true;
+      }
+      notifyAll();
+    }
+  }
+}
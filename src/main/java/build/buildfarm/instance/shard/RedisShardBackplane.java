@@ -68,6 +68,7 @@ import java.net.SocketTimeoutException;
 import java.time.Instant;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -75,6 +76,7 @@ import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.logging.Logger;
@@ -112,6 +114,12 @@ public class RedisShardBackplane implements ShardBackplane {
   private ExecutorService subscriberService = null;
   private boolean poolStarted = false;
 
+  // concurrent polls are sent together as pipelined batches
+  private final PipelinedBatcher<Map.Entry<String, String>, Boolean> pollBatcher =
+      new PipelinedBatcher<>(this::pollOperations);
+  private final PipelinedBatcher<String, Void> queueingBatcher =
+      new PipelinedBatcher<>(this::queueingOperations);
+
   private Set<String> workerSet = null;
   private long workerSetExpiresAt = 0;
 
@@ -401,13 +409,21 @@ public class RedisShardBackplane implements ShardBackplane {
   }
 
   void publish(Jedis jedis, String channel, Instant effectiveAt, OperationChange.Builder operationChange) {
+    publish(jedis::publish, channel, effectiveAt, operationChange);
+  }
+
+  private void publish(
+      BiConsumer<String, String> publisher,
+      String channel,
+      Instant effectiveAt,
+      OperationChange.Builder operationChange) {
     try {
       String operationChangeJson = printOperationChange(
           operationChange
               .setEffectiveAt(toTimestamp(effectiveAt))
               .setSource(source)
               .build());
-      jedis.publish(channel, operationChangeJson);
+      publisher.accept(channel, operationChangeJson);
     } catch (InvalidProtocolBufferException e) {
       logger.log(SEVERE, "error printing operation change", e);
       // very unlikely, printer would have to fail
@@ -415,10 +431,14 @@ public class RedisShardBackplane implements ShardBackplane {
   }
 
   void publishReset(Jedis jedis, Operation operation) {
+    publishReset(jedis::publish, operation);
+  }
+
+  private void publishReset(BiConsumer<String, String> publisher, Operation operation) {
     Instant effectiveAt = Instant.now();
     Instant expiresAt = nextExpiresAt(effectiveAt);
     publish(
-        jedis,
+        publisher,
         operationChannel(operation.getName()),
         Instant.now(),
         OperationChange.newBuilder()
@@ -876,11 +896,18 @@ public class RedisShardBackplane implements ShardBackplane {
   @Override
   public Map<Digest, Set<String>> getBlobDigestsWorkers(Iterable<Digest> blobDigests)
       throws IOException {
-    // FIXME pipeline
+    Set<Digest> uniqueDigests = Sets.newLinkedHashSet(blobDigests);
     ImmutableMap.Builder<Digest, Set<String>> blobDigestsWorkers = new ImmutableMap.Builder<>();
     withVoidBackplaneException((jedis) -> {
-      for (Digest blobDigest : blobDigests) {
-        Set<String> workers = jedis.smembers(casKey(blobDigest));
+      List<Response<Set<String>>> members = new ArrayList<>(uniqueDigests.size());
+      Pipeline p = jedis.pipelined();
+      for (Digest blobDigest : uniqueDigests) {
+        members.add(p.smembers(casKey(blobDigest)));
+      }
+      p.sync();
+      int i = 0;
+      for (Digest blobDigest : uniqueDigests) {
+        Set<String> workers = members.get(i++).get();
         if (workers.isEmpty()) {
           continue;
         }
@@ -1183,15 +1210,42 @@ public class RedisShardBackplane implements ShardBackplane {
       logger.log(SEVERE, "error printing dispatched operation " + operationName, e);
       return false;
     }
+    return pollBatcher.call(new AbstractMap.SimpleImmutableEntry<>(operationName, json));
+  }
+
+  private List<Boolean> pollOperations(List<Map.Entry<String, String>> polls) throws IOException {
+    String dispatchedOperationsHashName = config.getDispatchedOperationsHashName();
     return withBackplaneException((jedis) -> {
-      if (jedis.hexists(config.getDispatchedOperationsHashName(), operationName)) {
-        if (jedis.hset(config.getDispatchedOperationsHashName(), operationName, json) == 0) {
-          return true;
+      Pipeline pipeline = jedis.pipelined();
+      List<Response<Boolean>> exists = new ArrayList<>(polls.size());
+      for (Map.Entry<String, String> poll : polls) {
+        exists.add(pipeline.hexists(dispatchedOperationsHashName, poll.getKey()));
+      }
+      pipeline.sync();
+
+      pipeline = jedis.pipelined();
+      List<Response<Long>> sets = new ArrayList<>(polls.size());
+      for (int i = 0; i < polls.size(); i++) {
+        Map.Entry<String, String> poll = polls.get(i);
+        sets.add(exists.get(i).get()
+            ? pipeline.hset(dispatchedOperationsHashName, poll.getKey(), poll.getValue())
+            : null);
+      }
+      pipeline.sync();
+
+      ImmutableList.Builder<Boolean> results = ImmutableList.builder();
+      pipeline = jedis.pipelined();
+      for (int i = 0; i < polls.size(); i++) {
+        Response<Long> set = sets.get(i);
+        boolean polled = set != null && set.get() == 0;
+        if (set != null && !polled) {
+          /* someone else beat us to the punch, delete our incorrectly added key */
+          pipeline.hdel(dispatchedOperationsHashName, polls.get(i).getKey());
         }
-        /* someone else beat us to the punch, delete our incorrectly added key */
-        jedis.hdel(config.getDispatchedOperationsHashName(), operationName);
+        results.add(polled);
       }
-      return false;
+      pipeline.sync();
+      return results.build();
     });
   }
 
@@ -1216,11 +1270,19 @@ public class RedisShardBackplane implements ShardBackplane {
 
   @Override
   public void queueing(String operationName) throws IOException {
-    Operation operation = keepaliveOperation(operationName);
+    queueingBatcher.call(operationName);
+  }
+
+  private List<Void> queueingOperations(List<String> operationNames) throws IOException {
     // publish so that watchers reset their timeout
     withVoidBackplaneException((jedis) -> {
-      publishReset(jedis, operation);
+      Pipeline pipeline = jedis.pipelined();
+      for (String operationName : operationNames) {
+        publishReset(pipeline::publish, keepaliveOperation(operationName));
+      }
+      pipeline.sync();
     });
+    return Collections.nCopies(operationNames.size(), null);
   }
 
   @Override
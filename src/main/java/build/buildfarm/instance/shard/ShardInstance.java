@@ -41,6 +41,9 @@ import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Level.WARNING;
 
 import build.bazel.remote.execution.v2.Action;
+import build.bazel.remote.execution.v2.BatchReadBlobsResponse.Response;
+import build.bazel.remote.execution.v2.BatchUpdateBlobsRequest;
+import build.bazel.remote.execution.v2.BatchUpdateBlobsResponse;
 import build.bazel.remote.execution.v2.ActionResult;
 import build.bazel.remote.execution.v2.Command;
 import build.bazel.remote.execution.v2.Digest;
@@ -83,7 +86,9 @@ import build.buildfarm.v1test.ExecutingOperationMetadata;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
 import com.google.common.cache.LoadingCache;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
@@ -145,6 +150,9 @@ import javax.naming.ConfigurationException;
 public class ShardInstance extends AbstractServerInstance {
   private static final Logger logger = Logger.getLogger(ShardInstance.class.getName());
 
+  // the content limit of each BatchUpdateBlobs request sent to a worker
+  private static final long MAX_WORKER_BATCH_UPDATE_SIZE = 3 * 1024 * 1024;
+
   private static ListenableFuture<Void> IMMEDIATE_VOID_FUTURE = Futures.<Void>immediateFuture(null);
 
   private final Runnable onStop;
@@ -167,7 +175,7 @@ public class ShardInstance extends AbstractServerInstance {
           .build();
 
   private final Random rand = new Random();
-  private final Writes writes = new Writes(this::writeInstanceSupplier);
+  private final Writes writes = new Writes(this::getRandomWorker, this::workerStub);
 
   private final ListeningExecutorService operationTransformService =
       listeningDecorator(newFixedThreadPool(24));
@@ -739,6 +747,245 @@ public class ShardInstance extends AbstractServerInstance {
         directExecutor());
   }
 
+  /**
+   * reads a batch of blobs with a single BatchReadBlobs request to each
+   * worker which holds any of them, in parallel
+   *
+   * Blob locations are retrieved from the backplane in one request. Any
+   * blob without a location, or which its worker fails to provide, is read
+   * individually, with the missing blob correction of getBlob.
+   */
+  @Override
+  public ListenableFuture<Iterable<Response>> getAllBlobsFuture(Iterable<Digest> digests) {
+    List<Digest> digestList = ImmutableList.copyOf(digests);
+    Map<Digest, ListenableFuture<Response>> responses;
+    try {
+      responses = getAllBlobResponses(digestList);
+    } catch (IOException e) {
+      return immediateFailedFuture(e);
+    }
+    ImmutableList.Builder<ListenableFuture<Response>> orderedResponses = ImmutableList.builder();
+    for (Digest digest : digestList) {
+      orderedResponses.add(responses.get(digest));
+    }
+    return transform(
+        allAsList(orderedResponses.build()),
+        (responseList) -> responseList,
+        directExecutor());
+  }
+
+  private Map<Digest, ListenableFuture<Response>> getAllBlobResponses(List<Digest> digests)
+      throws IOException {
+    Set<Digest> uniqueDigests = Sets.newLinkedHashSet(digests);
+    Set<String> workerSet = backplane.getWorkers();
+    Map<Digest, Set<String>> digestsWorkers = backplane.getBlobDigestsWorkers(
+        Iterables.filter(uniqueDigests, (digest) -> digest.getSizeBytes() != 0));
+
+    Map<Digest, ListenableFuture<Response>> responses = new HashMap<>();
+    Map<String, List<Digest>> workersDigests = new HashMap<>();
+    for (Digest digest : uniqueDigests) {
+      if (digest.getSizeBytes() == 0) {
+        responses.put(digest, immediateFuture(Response.newBuilder()
+            .setDigest(digest)
+            .setStatus(com.google.rpc.Status.newBuilder().setCode(Code.OK.value()))
+            .build()));
+        continue;
+      }
+      Set<String> locationSet = digestsWorkers.getOrDefault(digest, ImmutableSet.of());
+      List<String> workers = new ArrayList<>(Sets.intersection(locationSet, workerSet));
+      if (workers.isEmpty()) {
+        responses.put(digest, getBlobResponseFuture(digest));
+      } else {
+        String worker = workers.get(rand.nextInt(workers.size()));
+        workersDigests.computeIfAbsent(worker, (w) -> new ArrayList<>()).add(digest);
+      }
+    }
+
+    for (Map.Entry<String, List<Digest>> entry : workersDigests.entrySet()) {
+      String worker = entry.getKey();
+      List<Digest> workerDigests = entry.getValue();
+      ListenableFuture<Map<Digest, Response>> workerResponsesFuture = getWorkerBlobResponses(worker, workerDigests);
+      for (Digest digest : workerDigests) {
+        responses.put(digest, transformAsync(
+            workerResponsesFuture,
+            (workerResponses) -> {
+              Response response = workerResponses.get(digest);
+              if (response != null && response.getStatus().getCode() == Code.OK.value()) {
+                return immediateFuture(response);
+              }
+              return getBlobResponseFuture(digest);
+            },
+            directExecutor()));
+      }
+    }
+    return responses;
+  }
+
+  private ListenableFuture<Map<Digest, Response>> getWorkerBlobResponses(String worker, List<Digest> digests) {
+    return catching(
+        transform(
+            workerStub(worker).getAllBlobsFuture(digests),
+            (workerResponses) -> {
+              Map<Digest, Response> responsesByDigest = new HashMap<>();
+              for (Response response : workerResponses) {
+                responsesByDigest.put(response.getDigest(), response);
+              }
+              return responsesByDigest;
+            },
+            directExecutor()),
+        Throwable.class,
+        (t) -> {
+          Status status = Status.fromThrowable(t);
+          if (status.getCode() == Code.UNAVAILABLE) {
+            removeMalfunctioningWorker(worker, t, format("getAllBlobs(%d)", digests.size()));
+          } else {
+            logger.log(WARNING, format("error reading %d blobs from %s", digests.size(), worker), t);
+          }
+          // every blob is read individually
+          return ImmutableMap.of();
+        },
+        directExecutor());
+  }
+
+  private ListenableFuture<Response> getBlobResponseFuture(Digest digest) {
+    return catching(
+        transform(
+            getBlobFuture(digest),
+            (content) -> Response.newBuilder()
+                .setDigest(digest)
+                .setData(content)
+                .setStatus(com.google.rpc.Status.newBuilder().setCode(Code.OK.value()))
+                .build(),
+            directExecutor()),
+        Throwable.class,
+        (t) -> {
+          Status status = Status.fromThrowable(t);
+          return Response.newBuilder()
+              .setDigest(digest)
+              .setStatus(com.google.rpc.Status.newBuilder()
+                  .setCode(status.getCode().value())
+                  .setMessage(Strings.nullToEmpty(status.getDescription())))
+              .build();
+        },
+        directExecutor());
+  }
+
+  /**
+   * writes a batch of blobs with as few BatchUpdateBlobs requests to
+   * workers as their size permits, in parallel
+   *
+   * Each request to a worker carries at most MAX_WORKER_BATCH_UPDATE_SIZE
+   * bytes of content. Batches are spread over the workers at random. Any
+   * blob which is larger than a batch, or which its worker fails to store,
+   * is written individually.
+   */
+  @Override
+  public ListenableFuture<Iterable<BatchUpdateBlobsResponse.Response>> putAllBlobsFuture(
+      Iterable<BatchUpdateBlobsRequest.Request> requests,
+      long writeDeadlineAfter,
+      TimeUnit writeDeadlineAfterUnits) {
+    List<BatchUpdateBlobsRequest.Request> requestList = ImmutableList.copyOf(requests);
+    List<String> workers;
+    try {
+      workers = new ArrayList<>(backplane.getWorkers());
+    } catch (IOException e) {
+      return immediateFailedFuture(e);
+    }
+    Collections.shuffle(workers, rand);
+
+    List<ListenableFuture<BatchUpdateBlobsResponse.Response>> responses =
+        new ArrayList<>(Collections.nCopies(requestList.size(), null));
+    List<List<Integer>> batches = new ArrayList<>();
+    List<Integer> batch = new ArrayList<>();
+    long batchSize = 0;
+    for (int i = 0; i < requestList.size(); i++) {
+      BatchUpdateBlobsRequest.Request request = requestList.get(i);
+      long size = request.getData().size();
+      if (workers.isEmpty() || size > MAX_WORKER_BATCH_UPDATE_SIZE) {
+        responses.set(i, putBlobResponseFuture(
+            request.getDigest(),
+            request.getData(),
+            writeDeadlineAfter,
+            writeDeadlineAfterUnits));
+        continue;
+      }
+      if (batchSize + size > MAX_WORKER_BATCH_UPDATE_SIZE) {
+        batches.add(batch);
+        batch = new ArrayList<>();
+        batchSize = 0;
+      }
+      batch.add(i);
+      batchSize += size;
+    }
+    if (!batch.isEmpty()) {
+      batches.add(batch);
+    }
+
+    for (int b = 0; b < batches.size(); b++) {
+      String worker = workers.get(b % workers.size());
+      ImmutableList.Builder<BatchUpdateBlobsRequest.Request> workerRequests = ImmutableList.builder();
+      for (int i : batches.get(b)) {
+        workerRequests.add(requestList.get(i));
+      }
+      ListenableFuture<Map<Digest, BatchUpdateBlobsResponse.Response>> workerResponsesFuture =
+          putWorkerBlobs(worker, workerRequests.build(), writeDeadlineAfter, writeDeadlineAfterUnits);
+      for (int i : batches.get(b)) {
+        BatchUpdateBlobsRequest.Request request = requestList.get(i);
+        responses.set(i, transformAsync(
+            workerResponsesFuture,
+            (workerResponses) -> {
+              BatchUpdateBlobsResponse.Response response = workerResponses.get(request.getDigest());
+              if (response != null) {
+                int code = response.getStatus().getCode();
+                if (code == Code.OK.value() || code == Code.INVALID_ARGUMENT.value()) {
+                  return immediateFuture(response);
+                }
+              }
+              return putBlobResponseFuture(
+                  request.getDigest(),
+                  request.getData(),
+                  writeDeadlineAfter,
+                  writeDeadlineAfterUnits);
+            },
+            directExecutor()));
+      }
+    }
+    return transform(
+        allAsList(responses),
+        (responseList) -> responseList,
+        directExecutor());
+  }
+
+  private ListenableFuture<Map<Digest, BatchUpdateBlobsResponse.Response>> putWorkerBlobs(
+      String worker,
+      List<BatchUpdateBlobsRequest.Request> requests,
+      long writeDeadlineAfter,
+      TimeUnit writeDeadlineAfterUnits) {
+    return catching(
+        transform(
+            workerStub(worker).putAllBlobsFuture(requests, writeDeadlineAfter, writeDeadlineAfterUnits),
+            (workerResponses) -> {
+              Map<Digest, BatchUpdateBlobsResponse.Response> responsesByDigest = new HashMap<>();
+              for (BatchUpdateBlobsResponse.Response response : workerResponses) {
+                responsesByDigest.put(response.getDigest(), response);
+              }
+              return responsesByDigest;
+            },
+            directExecutor()),
+        Throwable.class,
+        (t) -> {
+          Status status = Status.fromThrowable(t);
+          if (status.getCode() == Code.UNAVAILABLE) {
+            removeMalfunctioningWorker(worker, t, format("putAllBlobs(%d)", requests.size()));
+          } else {
+            logger.log(WARNING, format("error writing %d blobs to %s", requests.size(), worker), t);
+          }
+          // every blob is written individually
+          return ImmutableMap.of();
+        },
+        directExecutor());
+  }
+
   public abstract static class WorkersCallback implements FutureCallback<List<String>> {
     private final Random rand;
 
@@ -759,18 +1006,17 @@ public class ShardInstance extends AbstractServerInstance {
     protected abstract void onQueue(Deque<String> workers);
   }
 
-  private Instance writeInstanceSupplier() {
-    String worker = getRandomWorker();
-    return workerStub(worker);
-  }
-
-  String getRandomWorker() {
+  /** a random worker which is not one of excludedWorkers */
+  String getRandomWorker(Set<String> excludedWorkers) {
     Set<String> workers;
     try {
       workers = backplane.getWorkers();
     } catch (IOException e) {
       throw Status.fromThrowable(e).asRuntimeException();
     }
+    if (!excludedWorkers.isEmpty()) {
+      workers = Sets.difference(workers, excludedWorkers);
+    }
     if (workers.isEmpty()) {
       throw Status.UNAVAILABLE.withDescription("no available workers").asRuntimeException();
     }
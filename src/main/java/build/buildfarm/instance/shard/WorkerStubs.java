@@ -57,7 +57,8 @@ public class WorkerStubs {
         "", worker, digestUtil, createChannel(worker),
         60 /* FIXME CONFIG */, TimeUnit.SECONDS,
         newStubRetrier(),
-        newStubRetryService());
+        newStubRetryService(),
+        /* compressBlobs=*/ true);
   }
 
   private static ManagedChannel createChannel(String target) {
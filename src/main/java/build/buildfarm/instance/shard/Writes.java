@@ -1,56 +1,286 @@
 package build.buildfarm.instance.shard;
 
+import static build.buildfarm.common.grpc.Retrier.DEFAULT_IS_RETRIABLE;
+
 import build.bazel.remote.execution.v2.Digest;
 import build.buildfarm.common.Write;
+import build.buildfarm.common.io.FeedbackOutputStream;
 import build.buildfarm.instance.Instance;
 import build.buildfarm.v1test.BlobWriteKey;
 import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.grpc.Status;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 class Writes {
-  private final Supplier<Instance> instanceSupplier;
-  private final LoadingCache<BlobWriteKey, Instance> blobWriteInstances;
+  // attempts on further workers when a write's worker is unavailable
+  private static final int MAX_FAILOVERS = 2;
+
+  private final Function<Set<String>, String> workerSupplier;
+  private final Function<String, Instance> workerInstances;
+  private final LoadingCache<BlobWriteKey, UploadWorkers> uploadWorkers;
+
+  /** the worker receiving an upload, and those which have failed it */
+  private static class UploadWorkers {
+    // guarded by this
+    private String worker = null;
+    private final Set<String> failedWorkers = new HashSet<>();
+
+    synchronized String get(Function<Set<String>, String> workerSupplier) {
+      if (worker == null) {
+        worker = workerSupplier.apply(ImmutableSet.copyOf(failedWorkers));
+      }
+      return worker;
+    }
+
+    synchronized void fail(String failedWorker) {
+      failedWorkers.add(failedWorker);
+      if (failedWorker.equals(worker)) {
+        worker = null;
+      }
+    }
+  }
 
-  Writes(Supplier<Instance> instanceSupplier) {
+  /**
+   * workerSupplier selects a worker for an upload from those not in the
+   * given set of workers which have failed it
+   */
+  Writes(Function<Set<String>, String> workerSupplier, Function<String, Instance> workerInstances) {
     this(
-        instanceSupplier,
+        workerSupplier,
+        workerInstances,
         /* writeExpiresAfter=*/ 1,
         /* writeExpiresUnit=*/ TimeUnit.HOURS);
   }
 
   Writes(
-      Supplier<Instance> instanceSupplier,
+      Function<Set<String>, String> workerSupplier,
+      Function<String, Instance> workerInstances,
       long writeExpiresAfter,
       TimeUnit writeExpiresUnit) {
-    this.instanceSupplier = instanceSupplier;
-    blobWriteInstances = CacheBuilder.newBuilder()
+    this.workerSupplier = workerSupplier;
+    this.workerInstances = workerInstances;
+    uploadWorkers = CacheBuilder.newBuilder()
         .expireAfterWrite(writeExpiresAfter, writeExpiresUnit)
-        .build(new CacheLoader<BlobWriteKey, Instance>() {
+        .build(new CacheLoader<BlobWriteKey, UploadWorkers>() {
           @Override
-          public Instance load(BlobWriteKey key) {
-            return instanceSupplier.get();
+          public UploadWorkers load(BlobWriteKey key) {
+            return new UploadWorkers();
           }
         });
   }
 
-  public Write get(Digest digest, UUID uuid) {
-    BlobWriteKey key = BlobWriteKey.newBuilder()
-        .setDigest(digest)
-        .setIdentifier(uuid.toString())
-        .build();
+  private UploadWorkers getUploadWorkers(BlobWriteKey key) {
     try {
-      return blobWriteInstances.get(key).getBlobWrite(digest, uuid);
+      return uploadWorkers.get(key);
     } catch (ExecutionException e) {
       Throwable cause = e.getCause();
       Throwables.propagateIfInstanceOf(cause, RuntimeException.class);
       throw new UncheckedExecutionException(cause);
     }
   }
+
+  private static boolean isWorkerFailure(Throwable t) {
+    return DEFAULT_IS_RETRIABLE.apply(Status.fromThrowable(t));
+  }
+
+  /**
+   * a write to a worker, which moves to another worker when its worker is
+   * found to be unavailable
+   *
+   * Content is never retained here, so a write which fails after sending
+   * content cannot be replayed. Its failure is returned to the client, and
+   * the upload is directed to another worker, from which the client will
+   * observe the committed size when it resumes.
+   */
+  private class FailoverWrite implements Write {
+    private final Digest digest;
+    private final UUID uuid;
+    private final UploadWorkers workers;
+    private final List<Runnable> listeners = new ArrayList<>();
+    // guarded by this
+    private String worker;
+    private Write delegate;
+    private boolean failed = false;
+
+    FailoverWrite(BlobWriteKey key, Digest digest, UUID uuid) {
+      this.digest = digest;
+      this.uuid = uuid;
+      workers = getUploadWorkers(key);
+      worker = workers.get(workerSupplier);
+      delegate = workerInstances.apply(worker).getBlobWrite(digest, uuid);
+    }
+
+    private synchronized Write getDelegate() {
+      if (failed) {
+        failover();
+      }
+      return delegate;
+    }
+
+    /** direct further writes of this upload away from the current worker */
+    private synchronized void onWorkerFailure() {
+      if (!failed) {
+        failed = true;
+        workers.fail(worker);
+      }
+    }
+
+    private synchronized void failover() {
+      onWorkerFailure();
+      worker = workers.get(workerSupplier);
+      delegate = workerInstances.apply(worker).getBlobWrite(digest, uuid);
+      failed = false;
+      for (Runnable listener : listeners) {
+        addDelegateListener(delegate, listener);
+      }
+    }
+
+    private void addDelegateListener(Write listenerDelegate, Runnable listener) {
+      // a failed worker's write completes with its failure, which is not ours to deliver
+      listenerDelegate.addListener(
+          () -> {
+            boolean current;
+            synchronized (this) {
+              current = delegate == listenerDelegate;
+            }
+            if (current) {
+              listener.run();
+            }
+          },
+          Runnable::run);
+    }
+
+    private <T> T withFailover(Supplier<T> call) {
+      for (int failovers = 0; ; failovers++) {
+        try {
+          return call.get();
+        } catch (RuntimeException e) {
+          if (failovers == MAX_FAILOVERS || !isWorkerFailure(e)) {
+            throw e;
+          }
+          onWorkerFailure();
+        }
+      }
+    }
+
+    @Override
+    public long getCommittedSize() {
+      return withFailover(() -> getDelegate().getCommittedSize());
+    }
+
+    @Override
+    public boolean isComplete() {
+      return withFailover(() -> getDelegate().isComplete());
+    }
+
+    @Override
+    public OutputStream getOutput(long deadlineAfter, TimeUnit deadlineAfterUnits) throws IOException {
+      return new FailoverOutputStream(getDelegate().getOutput(deadlineAfter, deadlineAfterUnits));
+    }
+
+    @Override
+    public void reset() {
+      getDelegate().reset();
+    }
+
+    @Override
+    public void addListener(Runnable onCompleted, Executor executor) {
+      Runnable listener = () -> executor.execute(onCompleted);
+      Write listenerDelegate;
+      synchronized (this) {
+        listenerDelegate = getDelegate();
+        listeners.add(listener);
+      }
+      addDelegateListener(listenerDelegate, listener);
+    }
+
+    private class FailoverOutputStream extends FeedbackOutputStream {
+      private final OutputStream out;
+
+      FailoverOutputStream(OutputStream out) {
+        this.out = out;
+      }
+
+      private IOException onFailure(IOException e) {
+        if (isWorkerFailure(e)) {
+          onWorkerFailure();
+        }
+        return e;
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        try {
+          out.write(b);
+        } catch (IOException e) {
+          throw onFailure(e);
+        }
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        try {
+          out.write(b, off, len);
+        } catch (IOException e) {
+          throw onFailure(e);
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        try {
+          out.flush();
+        } catch (IOException e) {
+          throw onFailure(e);
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          out.close();
+        } catch (IOException e) {
+          throw onFailure(e);
+        }
+      }
+
+      @Override
+      public boolean isReady() {
+        return !(out instanceof FeedbackOutputStream) || ((FeedbackOutputStream) out).isReady();
+      }
+
+      @Override
+      public void whenReady(Runnable onReady) {
+        if (out instanceof FeedbackOutputStream) {
+          ((FeedbackOutputStream) out).whenReady(onReady);
+        } else {
+          onReady.run();
+        }
+      }
+    }
+  }
+
+  public Write get(Digest digest, UUID uuid) {
+    BlobWriteKey key = BlobWriteKey.newBuilder()
+        .setDigest(digest)
+        .setIdentifier(uuid.toString())
+        .build();
+    return new FailoverWrite(key, digest, uuid);
+  }
 }
@@ -23,6 +23,8 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.Compression;
+import build.buildfarm.common.Compression.ChunkDeflater;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.grpc.Retrier;
 import build.buildfarm.common.grpc.RetryException;
@@ -37,6 +39,7 @@ import com.google.common.util.concurrent.ListenableScheduledFuture;
 import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
 import build.bazel.remote.execution.v2.Digest;
 import build.buildfarm.common.grpc.Retrier;
 import build.buildfarm.common.grpc.RetryException;
@@ -77,6 +80,7 @@ public class ByteStreamUploader {
   private final long callTimeoutSecs;
   private final Retrier retrier;
   private final ListeningScheduledExecutorService retryService;
+  private final @Nullable String compressor;
 
   private final Object lock = new Object();
 
@@ -108,7 +112,25 @@ public class ByteStreamUploader {
       long callTimeoutSecs,
       Retrier retrier,
       ListeningScheduledExecutorService retryService) {
+    this(instanceName, channel, callCredentials, callTimeoutSecs, retrier, retryService, /* compressor=*/ null);
+  }
+
+  /**
+   * Creates a new instance which uploads content compressed with {@code compressor}.
+   *
+   * @param compressor the compressor to apply to uploaded content, one of the names in {@link
+   *     Compression}. May be {@code null}, in which case content is uploaded uncompressed
+   */
+  public ByteStreamUploader(
+      @Nullable String instanceName,
+      Channel channel,
+      @Nullable CallCredentials callCredentials,
+      long callTimeoutSecs,
+      Retrier retrier,
+      ListeningScheduledExecutorService retryService,
+      @Nullable String compressor) {
     checkArgument(callTimeoutSecs > 0, "callTimeoutSecs must be gt 0.");
+    checkArgument(compressor == null || Compression.isSupported(compressor), "unsupported compressor");
 
     this.instanceName = instanceName;
     this.channel = channel;
@@ -116,6 +138,7 @@ public class ByteStreamUploader {
     this.callTimeoutSecs = callTimeoutSecs;
     this.retrier = retrier;
     this.retryService = retryService;
+    this.compressor = compressor;
   }
 
   /**
@@ -293,7 +316,7 @@ public class ByteStreamUploader {
     }
 
     AsyncUpload newUpload =
-        new AsyncUpload(channel, callCredentials, callTimeoutSecs, instanceName, chunker, listener);
+        new AsyncUpload(channel, callCredentials, callTimeoutSecs, instanceName, compressor, chunker, listener);
     overallUploadResult.addListener(
         () -> {
           if (overallUploadResult.isCancelled()) {
@@ -316,6 +339,17 @@ public class ByteStreamUploader {
     return resourceName;
   }
 
+  public static String getCompressedResourceName(UUID uuid, String instanceName, String compressor, Digest digest) {
+    String resourceName =
+        format(
+            "uploads/%s/compressed-blobs/%s/%s/%d",
+            uuid, compressor, digest.getHash(), digest.getSizeBytes());
+    if (!Strings.isNullOrEmpty(instanceName)) {
+      resourceName = instanceName + "/" + resourceName;
+    }
+    return resourceName;
+  }
+
   private static class AsyncUpload {
 
     interface Listener {
@@ -328,6 +362,7 @@ public class ByteStreamUploader {
     private final CallCredentials callCredentials;
     private final long callTimeoutSecs;
     private final String instanceName;
+    private final @Nullable String compressor;
     private final Chunker chunker;
     private final Listener listener;
 
@@ -338,12 +373,14 @@ public class ByteStreamUploader {
         CallCredentials callCredentials,
         long callTimeoutSecs,
         String instanceName,
+        @Nullable String compressor,
         Chunker chunker,
         Listener listener) {
       this.channel = channel;
       this.callCredentials = callCredentials;
       this.callTimeoutSecs = callTimeoutSecs;
       this.instanceName = instanceName;
+      this.compressor = compressor;
       this.chunker = chunker;
       this.listener = listener;
     }
@@ -360,6 +397,9 @@ public class ByteStreamUploader {
 
             private final WriteRequest.Builder requestBuilder = WriteRequest.newBuilder();
             private boolean callHalfClosed = false;
+            // offsets of a compressed upload count compressed bytes
+            private final ChunkDeflater deflater = compressor == null ? null : new ChunkDeflater();
+            private long compressedOffset = 0;
 
             @Override
             public void onMessage(WriteResponse response) {
@@ -368,6 +408,9 @@ public class ByteStreamUploader {
 
             @Override
             public void onClose(Status status, Metadata trailers) {
+              if (deflater != null) {
+                deflater.end();
+              }
               if (status.isOk() || Code.ALREADY_EXISTS.equals(status.getCode())) {
                 listener.success();
               } else {
@@ -394,16 +437,28 @@ public class ByteStreamUploader {
                   requestBuilder.clear();
                   Chunker.Chunk chunk = chunker.next();
 
-                  if (chunk.getOffset() == 0) {
+                  boolean isLastChunk = !chunker.hasNext();
+                  ByteString data = chunk.getData();
+                  long offset = chunk.getOffset();
+                  if (deflater != null) {
+                    data = deflater.deflate(data, isLastChunk);
+                    if (data.isEmpty() && !isLastChunk) {
+                      // the deflater has buffered this chunk entirely
+                      continue;
+                    }
+                    offset = compressedOffset;
+                    compressedOffset += data.size();
+                  }
+
+                  if (offset == 0) {
                     // Resource name only needs to be set on the first write for each file.
                     requestBuilder.setResourceName(newResourceName(chunk.getDigest()));
                   }
 
-                  boolean isLastChunk = !chunker.hasNext();
                   WriteRequest request =
                       requestBuilder
-                          .setData(chunk.getData())
-                          .setWriteOffset(chunk.getOffset())
+                          .setData(data)
+                          .setWriteOffset(offset)
                           .setFinishWrite(isLastChunk)
                           .build();
 
@@ -424,6 +479,9 @@ public class ByteStreamUploader {
             }
 
             private String newResourceName(Digest digest) {
+              if (compressor != null) {
+                return getCompressedResourceName(UUID.randomUUID(), instanceName, compressor, digest);
+              }
               return getResourceName(UUID.randomUUID(), instanceName, digest);
             }
           };
@@ -50,6 +50,8 @@ import build.bazel.remote.execution.v2.RequestMetadata;
 import build.bazel.remote.execution.v2.ResultsCachePolicy;
 import build.bazel.remote.execution.v2.ServerCapabilities;
 import build.bazel.remote.execution.v2.UpdateActionResultRequest;
+import build.buildfarm.common.Compression;
+import build.buildfarm.common.Compression.ChunkInflater;
 import build.buildfarm.common.Write;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.DigestUtil.ActionKey;
@@ -122,6 +124,7 @@ public class StubInstance implements Instance {
   private final TimeUnit deadlineAfterUnits;
   private final Retrier retrier;
   private final @Nullable ListeningScheduledExecutorService retryService;
+  private final boolean compressBlobs;
   private boolean isStopped = false;
   private final int maxBatchUpdateBlobsSize = 3 * 1024 * 1024;
 
@@ -157,6 +160,22 @@ public class StubInstance implements Instance {
       long deadlineAfter, TimeUnit deadlineAfterUnits,
       Retrier retrier,
       @Nullable ListeningScheduledExecutorService retryService) {
+    this(name, identifier, digestUtil, channel, deadlineAfter, deadlineAfterUnits, retrier, retryService, /* compressBlobs=*/ false);
+  }
+
+  /**
+   * compressBlobs requests blob content in compressed form, falling back to
+   * uncompressed reads from servers which do not support it
+   */
+  public StubInstance(
+      String name,
+      String identifier,
+      DigestUtil digestUtil,
+      ManagedChannel channel,
+      long deadlineAfter, TimeUnit deadlineAfterUnits,
+      Retrier retrier,
+      @Nullable ListeningScheduledExecutorService retryService,
+      boolean compressBlobs) {
     this.name = name;
     this.identifier = identifier;
     this.digestUtil = digestUtil;
@@ -165,6 +184,7 @@ public class StubInstance implements Instance {
     this.deadlineAfterUnits = deadlineAfterUnits;
     this.retrier = retrier;
     this.retryService = retryService;
+    this.compressBlobs = compressBlobs;
   }
 
   public Channel getChannel() {
@@ -337,8 +357,18 @@ public class StubInstance implements Instance {
       long offset,
       long deadlineAfter,
       TimeUnit deadlineAfterUnits) {
+    return newInput(resourceName, /* compressedResourceName=*/ null, offset, deadlineAfter, deadlineAfterUnits);
+  }
+
+  InputStream newInput(
+      String resourceName,
+      @Nullable String compressedResourceName,
+      long offset,
+      long deadlineAfter,
+      TimeUnit deadlineAfterUnits) {
     return ByteStreamHelper.newInput(
         resourceName,
+        compressedResourceName,
         offset,
         Suppliers.memoize(() -> ByteStreamGrpc.newStub(channel)
             .withDeadlineAfter(deadlineAfter, deadlineAfterUnits)),
@@ -355,6 +385,14 @@ public class StubInstance implements Instance {
         DigestUtil.toString(blobDigest));
   }
 
+  public String getCompressedBlobName(Digest blobDigest) {
+    return format(
+        "%s/compressed-blobs/%s/%s",
+        getName(),
+        Compression.DEFLATE,
+        DigestUtil.toString(blobDigest));
+  }
+
   @Override
   public void getBlob(
       Digest blobDigest,
@@ -364,28 +402,84 @@ public class StubInstance implements Instance {
       TimeUnit readDeadlineAfterUnits,
       StreamObserver<ByteString> blobObserver) {
     throwIfStopped();
+    // limits are expressed in uncompressed bytes, so only unlimited reads are compressed
+    getBlob(blobDigest, offset, limit, compressBlobs && limit == 0, readDeadlineAfter, readDeadlineAfterUnits, blobObserver);
+  }
+
+  private void getBlob(
+      Digest blobDigest,
+      long offset,
+      long limit,
+      boolean compressed,
+      long readDeadlineAfter,
+      TimeUnit readDeadlineAfterUnits,
+      StreamObserver<ByteString> blobObserver) {
+    ChunkInflater inflater = compressed ? new ChunkInflater() : null;
     newBSStub()
         .withDeadlineAfter(readDeadlineAfter, readDeadlineAfterUnits)
         .read(
             ReadRequest.newBuilder()
-                .setResourceName(getBlobName(blobDigest))
+                .setResourceName(compressed ? getCompressedBlobName(blobDigest) : getBlobName(blobDigest))
                 .setReadOffset(offset)
                 .setReadLimit(limit)
                 .build(),
             new StreamObserver<ReadResponse>() {
+              boolean received = false;
+              boolean failed = false;
+
               @Override
               public void onNext(ReadResponse response) {
-                blobObserver.onNext(response.getData());
+                received = true;
+                if (failed) {
+                  return;
+                }
+                ByteString data = response.getData();
+                if (compressed) {
+                  try {
+                    data = inflater.inflate(data);
+                  } catch (IOException e) {
+                    failed = true;
+                    blobObserver.onError(Status.DATA_LOSS.withCause(e).asException());
+                    return;
+                  }
+                  if (data.isEmpty()) {
+                    return;
+                  }
+                }
+                blobObserver.onNext(data);
               }
 
               @Override
               public void onCompleted() {
-                blobObserver.onCompleted();
+                if (compressed) {
+                  boolean finished = inflater.finished();
+                  inflater.end();
+                  if (!failed && !finished) {
+                    failed = true;
+                    blobObserver.onError(Status.DATA_LOSS
+                        .withDescription("compressed content was truncated")
+                        .asException());
+                  }
+                }
+                if (!failed) {
+                  blobObserver.onCompleted();
+                }
               }
 
               @Override
               public void onError(Throwable t) {
-                blobObserver.onError(t);
+                if (compressed) {
+                  inflater.end();
+                }
+                if (failed) {
+                  return;
+                }
+                if (compressed && !received && Status.fromThrowable(t).getCode() == Status.Code.INVALID_ARGUMENT) {
+                  // the server does not support this compressor
+                  getBlob(blobDigest, offset, limit, /* compressed=*/ false, readDeadlineAfter, readDeadlineAfterUnits, blobObserver);
+                } else {
+                  blobObserver.onError(t);
+                }
               }
             });
   }
@@ -395,7 +489,12 @@ public class StubInstance implements Instance {
       long offset,
       long deadlineAfter,
       TimeUnit deadlineAfterUnits) {
-    return newInput(getBlobName(digest), offset, deadlineAfter, deadlineAfterUnits);
+    return newInput(
+        getBlobName(digest),
+        compressBlobs ? getCompressedBlobName(digest) : null,
+        offset,
+        deadlineAfter,
+        deadlineAfterUnits);
   }
 
   @Override
@@ -403,6 +502,7 @@ public class StubInstance implements Instance {
       Iterable<Digest> digests) {
     return transform(
         casFutureStub.get()
+            .withDeadlineAfter(deadlineAfter, deadlineAfterUnits)
             .batchReadBlobs(BatchReadBlobsRequest.newBuilder()
                 .setInstanceName(getName())
                 .addAllDigests(digests)
@@ -481,6 +581,23 @@ public class StubInstance implements Instance {
     return Iterables.transform(batchResponse.getResponsesList(), (response) -> response.getDigest());
   }
 
+  @Override
+  public ListenableFuture<Iterable<BatchUpdateBlobsResponse.Response>> putAllBlobsFuture(
+      Iterable<Request> requests,
+      long writeDeadlineAfter,
+      TimeUnit writeDeadlineAfterUnits) {
+    throwIfStopped();
+    return transform(
+        casFutureStub.get()
+            .withDeadlineAfter(writeDeadlineAfter, writeDeadlineAfterUnits)
+            .batchUpdateBlobs(BatchUpdateBlobsRequest.newBuilder()
+                .setInstanceName(getName())
+                .addAllRequests(requests)
+                .build()),
+        (response) -> response.getResponsesList(),
+        directExecutor());
+  }
+
   @Override
   public String getTree(
       Digest rootDigest,
@@ -15,14 +15,17 @@
 package build.buildfarm.server;
 
 import static build.buildfarm.common.IOUtils.formatIOError;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.common.util.concurrent.MoreExecutors.shutdownAndAwaitTermination;
-import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.Executors.newFixedThreadPool;
 import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.SEVERE;
 
+import build.buildfarm.common.TimerWheel;
 import build.buildfarm.common.grpc.TracingMetadataUtils.ServerHeadersInterceptor;
 import build.buildfarm.v1test.BuildFarmServerConfig;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.common.options.OptionsParser;
 import com.google.protobuf.TextFormat;
 import io.grpc.Server;
@@ -38,7 +41,7 @@ import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import javax.naming.ConfigurationException;
@@ -50,7 +53,12 @@ public class BuildFarmServer {
   public static final Logger logger =
     Logger.getLogger(BuildFarmServer.class.getName());
 
-  private final ScheduledExecutorService keepaliveScheduler = newSingleThreadScheduledExecutor();
+  // keepalive timeouts only hand off to the delivery service
+  private final TimerWheel keepaliveWheel =
+      new TimerWheel("keepalive", 100, TimeUnit.MILLISECONDS, 512, directExecutor());
+  private final ExecutorService operationDeliveryService = newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(),
+      new ThreadFactoryBuilder().setNameFormat("operation-delivery-%d").setDaemon(true).build());
   private final Instances instances;
   private final Server server;
   private boolean stopping = false;
@@ -73,12 +81,16 @@ public class BuildFarmServer {
             instances,
             /* deadlineAfter=*/ 1, TimeUnit.DAYS,
             /* requestLogLevel=*/ FINE))
-        .addService(new ByteStreamService(instances, /* writeDeadlineAfter=*/ 1, TimeUnit.DAYS))
+        .addService(new ByteStreamService(
+            instances,
+            /* writeDeadlineAfter=*/ 1, TimeUnit.DAYS,
+            config.getReadChunkSizeBytes()))
         .addService(new ExecutionService(
             instances,
             config.getExecuteKeepaliveAfterSeconds(),
             TimeUnit.SECONDS,
-            keepaliveScheduler))
+            keepaliveWheel,
+            operationDeliveryService))
         .addService(new OperationQueueService(instances))
         .addService(new OperationsService(instances))
         .intercept(TransmitStatusRuntimeExceptionInterceptor.instance())
@@ -128,8 +140,9 @@ public class BuildFarmServer {
         server.shutdownNow();
       }
     }
-    if (!shutdownAndAwaitTermination(keepaliveScheduler, 10, TimeUnit.SECONDS)) {
-      logger.warning("could not shut down keepalive scheduler");
+    keepaliveWheel.stop();
+    if (!shutdownAndAwaitTermination(operationDeliveryService, 10, TimeUnit.SECONDS)) {
+      logger.warning("could not shut down operation delivery service");
     }
   }
 
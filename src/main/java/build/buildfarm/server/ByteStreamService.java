@@ -15,7 +15,10 @@
 package build.buildfarm.server;
 
 import static build.buildfarm.common.UrlPath.detectResourceOperation;
+import static build.buildfarm.common.UrlPath.fromCompressedBlobName;
+import static build.buildfarm.common.UrlPath.fromUploadCompressedBlobName;
 import static build.buildfarm.common.UrlPath.parseBlobDigest;
+import static build.buildfarm.common.UrlPath.parseCompressor;
 import static build.buildfarm.common.UrlPath.parseUploadBlobDigest;
 import static build.buildfarm.common.UrlPath.parseUploadBlobUUID;
 import static io.grpc.Status.INVALID_ARGUMENT;
@@ -25,8 +28,10 @@ import static java.lang.String.format;
 import static java.util.logging.Level.SEVERE;
 
 import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.Compression;
 import build.buildfarm.common.UrlPath.InvalidResourceNameException;
 import build.buildfarm.common.Write;
+import build.buildfarm.common.grpc.ReadFlow;
 import build.buildfarm.instance.Instance;
 import com.google.bytestream.ByteStreamGrpc.ByteStreamImplBase;
 import com.google.bytestream.ByteStreamProto.QueryWriteStatusRequest;
@@ -35,6 +40,7 @@ import com.google.bytestream.ByteStreamProto.ReadRequest;
 import com.google.bytestream.ByteStreamProto.ReadResponse;
 import com.google.bytestream.ByteStreamProto.WriteRequest;
 import com.google.bytestream.ByteStreamProto.WriteResponse;
+import com.google.common.io.ByteStreams;
 import com.google.protobuf.ByteString;
 import io.grpc.Context;
 import io.grpc.Context.CancellableContext;
@@ -52,53 +58,42 @@ import java.util.logging.Logger;
 public class ByteStreamService extends ByteStreamImplBase {
   private static final Logger logger = Logger.getLogger(ByteStreamService.class.getName());
 
-  private static int CHUNK_SIZE = 64 * 1024;
+  static final int DEFAULT_READ_CHUNK_SIZE = 64 * 1024;
 
   private final long deadlineAfter;
   private final TimeUnit deadlineAfterUnits;
   private final Instances instances;
+  private final int readChunkSize;
 
   public ByteStreamService(
       Instances instances,
       long deadlineAfter,
       TimeUnit deadlineAfterUnits) {
+    this(instances, deadlineAfter, deadlineAfterUnits, DEFAULT_READ_CHUNK_SIZE);
+  }
+
+  public ByteStreamService(
+      Instances instances,
+      long deadlineAfter,
+      TimeUnit deadlineAfterUnits,
+      int readChunkSize) {
     this.instances = instances;
     this.deadlineAfter = deadlineAfter;
     this.deadlineAfterUnits = deadlineAfterUnits;
+    this.readChunkSize = readChunkSize > 0 ? readChunkSize : DEFAULT_READ_CHUNK_SIZE;
   }
 
+  /** responds to a read with up to limit bytes of in, taking ownership of it */
   void readFrom(
       InputStream in,
       long limit,
-      StreamObserver<ReadResponse> responseObserver)
-      throws IOException {
-    byte buf[] = new byte[CHUNK_SIZE];
-    boolean unlimited = limit == 0;
-    long remaining = limit;
-    boolean complete = false;
-    while (!complete) {
-      int readBytes = in.read(buf, 0, (int) Math.min(remaining, buf.length));
-      if (readBytes == -1) {
-        if (!unlimited) {
-          responseObserver.onError(OUT_OF_RANGE.asException());
-          remaining = -1;
-        }
-        complete = true;
-      } else if (readBytes > 0) {
-        if (readBytes > remaining) {
-          logger.warning(format("read %d bytes, expected %d", readBytes, remaining));
-          readBytes = (int) remaining;
-        }
-        responseObserver.onNext(ReadResponse.newBuilder()
-            .setData(ByteString.copyFrom(buf, 0, readBytes))
-            .build());
-        remaining -= readBytes;
-        complete = remaining == 0;
-      }
-    }
-    if (remaining == 0) {
-      responseObserver.onCompleted();
-    }
+      StreamObserver<ReadResponse> responseObserver) {
+    ReadFlow.start(
+        in,
+        limit,
+        readChunkSize,
+        (chunk) -> ReadResponse.newBuilder().setData(chunk).build(),
+        responseObserver);
   }
 
   void readLimitedBlob(
@@ -107,8 +102,8 @@ public class ByteStreamService extends ByteStreamImplBase {
       long offset,
       long limit,
       StreamObserver<ReadResponse> responseObserver) {
-    try (InputStream in = instance.newBlobInput(digest, offset, deadlineAfter, deadlineAfterUnits)) {
-      readFrom(in, limit, responseObserver);
+    try {
+      readFrom(instance.newBlobInput(digest, offset, deadlineAfter, deadlineAfterUnits), limit, responseObserver);
     } catch (NoSuchFileException e) {
       responseObserver.onError(NOT_FOUND.asException());
     } catch (IOException e) {
@@ -137,14 +132,56 @@ public class ByteStreamService extends ByteStreamImplBase {
     }
   }
 
+  /**
+   * responds with the compressed content of up to limit bytes of a blob,
+   * from an offset in its uncompressed content
+   *
+   * Offset and limit are in the units of the blob, so that a read may
+   * resume from the uncompressed size it has received, and the compressed
+   * response is a complete stream for the range.
+   */
+  void readCompressedBlob(
+      Instance instance,
+      String compressor,
+      Digest digest,
+      long offset,
+      long limit,
+      StreamObserver<ReadResponse> responseObserver) {
+    if (!Compression.isSupported(compressor)) {
+      responseObserver.onError(INVALID_ARGUMENT
+          .withDescription("unsupported compressor " + compressor)
+          .asException());
+    } else if (offset > digest.getSizeBytes()) {
+      responseObserver.onError(OUT_OF_RANGE.asException());
+    } else {
+      long available = digest.getSizeBytes() - offset;
+      if (limit == 0 || limit > available) {
+        limit = available;
+      }
+      try {
+        InputStream in = limit == 0
+            ? ByteString.EMPTY.newInput()
+            : instance.newBlobInput(digest, offset, deadlineAfter, deadlineAfterUnits);
+        readFrom(Compression.compress(ByteStreams.limit(in, limit)), /* limit=*/ 0, responseObserver);
+      } catch (NoSuchFileException e) {
+        responseObserver.onError(NOT_FOUND.asException());
+      } catch (IOException e) {
+        responseObserver.onError(Status.fromThrowable(e).asException());
+      }
+    }
+  }
+
   void readOperationStream(
       Instance instance,
       String resourceName,
       long offset,
       long limit,
       StreamObserver<ReadResponse> responseObserver) {
-    try (InputStream in = instance.newOperationStreamInput(resourceName, offset, deadlineAfter, deadlineAfterUnits)) {
-      readFrom(in, limit, responseObserver);
+    try {
+      readFrom(
+          instance.newOperationStreamInput(resourceName, offset, deadlineAfter, deadlineAfterUnits),
+          limit,
+          responseObserver);
     } catch (NoSuchFileException e) {
       responseObserver.onError(NOT_FOUND.asException());
     } catch (IOException e) {
@@ -175,7 +212,17 @@ public class ByteStreamService extends ByteStreamImplBase {
             limit,
             responseObserver);
         break;
+      case CompressedBlob:
+        readCompressedBlob(
+            instances.get(fromCompressedBlobName(resourceName)),
+            parseCompressor(resourceName),
+            parseBlobDigest(resourceName),
+            offset,
+            limit,
+            responseObserver);
+        break;
       case UploadBlob:
+      case UploadCompressedBlob:
       default:
         responseObserver.onError(INVALID_ARGUMENT.asException());
         break;
@@ -267,6 +314,42 @@ public class ByteStreamService extends ByteStreamImplBase {
     };
   }
 
+  /**
+   * compressed uploads are not resumed, and are committed only when
+   * complete, after which the size of their compressed content is unknown
+   */
+  static Write getCompressedUploadBlobWrite(
+      Instance instance,
+      Digest digest) {
+    Write blobWrite = getBlobWrite(instance, digest);
+    return new Write() {
+      @Override
+      public long getCommittedSize() {
+        return isComplete() ? -1 : 0;
+      }
+
+      @Override
+      public boolean isComplete() {
+        return blobWrite.isComplete();
+      }
+
+      @Override
+      public OutputStream getOutput(long deadlineAfter, TimeUnit deadlineAfterUnits) throws IOException {
+        return blobWrite.getOutput(deadlineAfter, deadlineAfterUnits);
+      }
+
+      @Override
+      public void reset() {
+        blobWrite.reset();
+      }
+
+      @Override
+      public void addListener(Runnable onCompleted, Executor executor) {
+        blobWrite.addListener(onCompleted, executor);
+      }
+    };
+  }
+
   static Write getUploadBlobWrite(
       Instance instance,
       Digest digest,
@@ -295,6 +378,14 @@ public class ByteStreamService extends ByteStreamImplBase {
         return getOperationStreamWrite(
             instances.getFromOperationStream(resourceName),
             resourceName);
+      case CompressedBlob:
+        return getBlobWrite(
+            instances.get(fromCompressedBlobName(resourceName)),
+            parseBlobDigest(resourceName));
+      case UploadCompressedBlob:
+        return getCompressedUploadBlobWrite(
+            instances.get(fromUploadCompressedBlobName(resourceName)),
+            parseUploadBlobDigest(resourceName));
       default:
         throw new IllegalArgumentException();
     }
@@ -14,20 +14,44 @@
 
 package build.buildfarm.server;
 
+import build.buildfarm.common.Compression;
 import build.buildfarm.instance.Instance;
+import build.bazel.remote.execution.v2.CacheCapabilities;
 import build.bazel.remote.execution.v2.CapabilitiesGrpc;
 import build.bazel.remote.execution.v2.GetCapabilitiesRequest;
 import build.bazel.remote.execution.v2.ServerCapabilities;
 import build.bazel.semver.SemVer;
+import com.google.protobuf.UnknownFieldSet;
 import io.grpc.stub.StreamObserver;
 
 public class CapabilitiesService extends CapabilitiesGrpc.CapabilitiesImplBase {
+  // build.bazel.remote.execution.v2.CacheCapabilities.supported_compressors
+  private static final int SUPPORTED_COMPRESSORS_FIELD_NUMBER = 6;
+
   private final Instances instances;
 
   public CapabilitiesService(Instances instances) {
     this.instances = instances;
   }
 
+  /**
+   * advertises the compressed-blobs resources served by ByteStreamService
+   *
+   * The vendored remote execution API predates supported_compressors, so
+   * it is added as the unknown field it is in that schema.
+   */
+  private static CacheCapabilities withSupportedCompressors(CacheCapabilities cacheCapabilities) {
+    return cacheCapabilities.toBuilder()
+        .setUnknownFields(UnknownFieldSet.newBuilder(cacheCapabilities.getUnknownFields())
+            .mergeField(
+                SUPPORTED_COMPRESSORS_FIELD_NUMBER,
+                UnknownFieldSet.Field.newBuilder()
+                    .addVarint(Compression.DEFLATE_COMPRESSOR_VALUE)
+                    .build())
+            .build())
+        .build();
+  }
+
   @Override
   public void getCapabilities(
       GetCapabilitiesRequest request, StreamObserver<ServerCapabilities> responseObserver) {
@@ -39,7 +63,9 @@ public class CapabilitiesService extends CapabilitiesGrpc.CapabilitiesImplBase {
       return;
     }
 
-    responseObserver.onNext(instance.getCapabilities().toBuilder()
+    ServerCapabilities capabilities = instance.getCapabilities();
+    responseObserver.onNext(capabilities.toBuilder()
+        .setCacheCapabilities(withSupportedCompressors(capabilities.getCacheCapabilities()))
         .setLowApiVersion(SemVer.newBuilder().setMajor(2))
         .setHighApiVersion(SemVer.newBuilder().setMajor(2))
         .build());
@@ -14,10 +14,7 @@
 
 package build.buildfarm.server;
 
-import static build.buildfarm.instance.Utils.putBlobFuture;
 import static com.google.common.util.concurrent.Futures.addCallback;
-import static com.google.common.util.concurrent.Futures.allAsList;
-import static com.google.common.util.concurrent.Futures.catching;
 import static com.google.common.util.concurrent.Futures.transform;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
@@ -27,9 +24,7 @@ import static java.util.logging.Level.SEVERE;
 import build.bazel.remote.execution.v2.BatchReadBlobsRequest;
 import build.bazel.remote.execution.v2.BatchReadBlobsResponse;
 import build.bazel.remote.execution.v2.BatchUpdateBlobsRequest;
-import build.bazel.remote.execution.v2.BatchUpdateBlobsRequest.Request;
 import build.bazel.remote.execution.v2.BatchUpdateBlobsResponse;
-import build.bazel.remote.execution.v2.BatchUpdateBlobsResponse.Response;
 import build.bazel.remote.execution.v2.ContentAddressableStorageGrpc;
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
@@ -38,9 +33,7 @@ import build.bazel.remote.execution.v2.FindMissingBlobsResponse;
 import build.bazel.remote.execution.v2.GetTreeRequest;
 import build.bazel.remote.execution.v2.GetTreeResponse;
 import build.buildfarm.instance.Instance;
-import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
@@ -114,50 +107,6 @@ public class ContentAddressableStorageService extends ContentAddressableStorageG
         directExecutor());
   }
 
-  private static com.google.rpc.Status statusForCode(Code code) {
-    return com.google.rpc.Status.newBuilder()
-        .setCode(code.value())
-        .build();
-  }
-
-  private static ListenableFuture<Response> toResponseFuture(ListenableFuture<Code> codeFuture, Digest digest) {
-    return transform(
-        codeFuture,
-        new Function<Code, Response>() {
-          @Override
-          public Response apply(Code code) {
-            return Response.newBuilder()
-                .setDigest(digest)
-                .setStatus(statusForCode(code))
-                .build();
-          }
-        },
-        directExecutor());
-  }
-
-  private static Iterable<ListenableFuture<Response>> putAllBlobs(
-      Instance instance,
-      Iterable<Request> requests,
-      long writeDeadlineAfter,
-      TimeUnit writeDeadlineAfterUnits) {
-    ImmutableList.Builder<ListenableFuture<Response>> responses = new ImmutableList.Builder<>();
-    for (Request request : requests) {
-      Digest digest = request.getDigest();
-      responses.add(
-          toResponseFuture(
-              catching(
-                  transform(
-                      putBlobFuture(instance, digest, request.getData(), writeDeadlineAfter, writeDeadlineAfterUnits),
-                      (d) -> Code.OK,
-                      directExecutor()),
-                  Throwable.class,
-                  (e) -> Status.fromThrowable(e).getCode(),
-                  directExecutor()),
-              digest));
-    }
-    return responses.build();
-  }
-
   @Override
   public void batchUpdateBlobs(
       BatchUpdateBlobsRequest batchRequest,
@@ -170,17 +119,14 @@ public class ContentAddressableStorageService extends ContentAddressableStorageG
       return;
     }
 
-    BatchUpdateBlobsResponse.Builder response = BatchUpdateBlobsResponse.newBuilder();
     ListenableFuture<BatchUpdateBlobsResponse> responseFuture = transform(
-        allAsList(
-            Iterables.transform(
-                putAllBlobs(
-                    instance,
-                    batchRequest.getRequestsList(),
-                    writeDeadlineAfter,
-                    writeDeadlineAfterUnits),
-                (future) -> transform(future, response::addResponses, directExecutor()))),
-        (result) -> response.build(),
+        instance.putAllBlobsFuture(
+            batchRequest.getRequestsList(),
+            writeDeadlineAfter,
+            writeDeadlineAfterUnits),
+        (responses) -> BatchUpdateBlobsResponse.newBuilder()
+            .addAllResponses(responses)
+            .build(),
         directExecutor());
 
     addCallback(
@@ -15,15 +15,16 @@
 package build.buildfarm.server;
 
 import static com.google.common.util.concurrent.Futures.addCallback;
-import static com.google.common.util.concurrent.Futures.immediateFuture;
-import static com.google.common.util.concurrent.Futures.scheduleAsync;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.logging.Level.SEVERE;
 
 import build.bazel.remote.execution.v2.ExecuteRequest;
 import build.bazel.remote.execution.v2.ExecutionGrpc;
 import build.bazel.remote.execution.v2.WaitExecutionRequest;
 import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.TimerWheel;
 import build.buildfarm.common.Watcher;
 import build.buildfarm.common.grpc.TracingMetadataUtils;
 import build.buildfarm.instance.Instance;
@@ -32,125 +33,246 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.longrunning.Operation;
 import io.grpc.Context;
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Logger;
-import javax.annotation.Nullable;
 
 public class ExecutionService extends ExecutionGrpc.ExecutionImplBase {
   public static final Logger logger = Logger.getLogger(ExecutionService.class.getName());
 
   private final Instances instances;
-  private final long keepaliveAfter;
-  private final TimeUnit keepaliveUnit;
-  private final ScheduledExecutorService keepaliveScheduler;
+  private final long keepaliveAfterNanos;
+  private final TimerWheel keepaliveWheel;
+  private final Executor deliveryExecutor;
 
   public ExecutionService(
       Instances instances,
       long keepaliveAfter,
       TimeUnit keepaliveUnit,
-      ScheduledExecutorService keepaliveScheduler) {
+      TimerWheel keepaliveWheel,
+      Executor deliveryExecutor) {
     this.instances = instances;
-    this.keepaliveAfter = keepaliveAfter;
-    this.keepaliveUnit = keepaliveUnit;
-    this.keepaliveScheduler = keepaliveScheduler;
+    this.keepaliveAfterNanos = keepaliveUnit.toNanos(keepaliveAfter);
+    this.keepaliveWheel = keepaliveWheel;
+    this.deliveryExecutor = deliveryExecutor;
   }
 
   private void logExecute(String instanceName, ExecuteRequest request) {
     logger.info(format("ExecutionSuccess: %s: %s", instanceName, DigestUtil.toString(request.getActionDigest())));
   }
 
-  private void withCancellation(StreamObserver<Operation> responseObserver, ListenableFuture<Void> future) {
+  private void withCancellation(
+      KeepaliveWatcher watcher,
+      StreamObserver<Operation> responseObserver,
+      ListenableFuture<Void> future) {
     addCallback(
         future,
         new FutureCallback<Void>() {
           @Override
           public void onSuccess(Void result) {
-            if (!Context.current().isCancelled()) {
-              responseObserver.onCompleted();
-            }
+            watcher.complete(responseObserver::onCompleted);
           }
 
           @Override
           public void onFailure(Throwable t) {
-            if (!Context.current().isCancelled() &&
-                !(t instanceof CancellationException)) {
-              responseObserver.onError(Status.fromThrowable(t).asException());
+            if (!(t instanceof CancellationException)) {
+              watcher.complete(() -> responseObserver.onError(Status.fromThrowable(t).asException()));
             }
           }
         },
-        Context.current().fixedContextExecutor(directExecutor()));
+        directExecutor());
     Context.current().addListener(
         (context) -> future.cancel(false),
         directExecutor());
   }
 
-  abstract class KeepaliveWatcher implements Watcher {
+  /**
+   * delivers the updates for a watched operation to a single stream
+   *
+   * Only the latest update is retained while one is pending, so a stream
+   * which cannot keep up, or is not ready for more, is sent only the
+   * current state of the operation once it can proceed. Delivery runs on
+   * the shared delivery executor, one task at a time per watcher, and the
+   * completion of the stream follows the last delivery. Keepalives are
+   * timeouts on the shared wheel, which are rescheduled when an update has
+   * been delivered since they were scheduled.
+   */
+  class KeepaliveWatcher implements Watcher {
     private final Context ctx;
-    private ListenableFuture<?> keepaliveFuture = null;
-
-    abstract void deliver(Operation operation);
+    private final StreamObserver<Operation> responseObserver;
+    private final BooleanSupplier isReady;
+    private volatile long lastDeliveryNanos;
+    private volatile RuntimeException deliveryException = null;
+    // guarded by this
+    private String operationName = null;
+    private Operation pending = null;
+    private Runnable completion = null;
+    private boolean draining = false;
+    private boolean closed = false;
+    private TimerWheel.Timeout keepaliveTimeout = null;
 
-    KeepaliveWatcher(Context ctx) {
+    KeepaliveWatcher(Context ctx, StreamObserver<Operation> responseObserver) {
       this.ctx = ctx;
+      this.responseObserver = responseObserver;
+      if (responseObserver instanceof ServerCallStreamObserver) {
+        ServerCallStreamObserver<Operation> serverCallObserver =
+            (ServerCallStreamObserver<Operation>) responseObserver;
+        isReady = serverCallObserver::isReady;
+        serverCallObserver.setOnReadyHandler(this::drain);
+      } else {
+        isReady = () -> true;
+      }
+      lastDeliveryNanos = System.nanoTime();
       ctx.addListener(
-          (context) -> cancel(),
+          (context) -> close(),
           directExecutor());
     }
 
-    @Nullable ListenableFuture<?> getFuture() {
-      return keepaliveFuture;
+    synchronized boolean isKeepaliveScheduled() {
+      return keepaliveTimeout != null;
     }
 
-    private synchronized void cancel() {
-      if (keepaliveFuture != null) {
-        keepaliveFuture.cancel(false);
-        keepaliveFuture = null;
+    private synchronized void close() {
+      closed = true;
+      pending = null;
+      completion = null;
+      if (keepaliveTimeout != null) {
+        keepaliveTimeout.cancel();
+        keepaliveTimeout = null;
       }
     }
 
     @Override
-    public final synchronized void observe(Operation operation) {
-      cancel();
+    public final void observe(Operation operation) {
       if (operation == null) {
         throw Status.NOT_FOUND.asRuntimeException();
       }
-      deliver(operation);
-      keepaliveFuture = scheduleKeepalive(operation.getName());
+      RuntimeException e = deliveryException;
+      if (e != null) {
+        throw e;
+      }
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        operationName = operation.getName();
+        // replaces any update which has not yet been delivered
+        pending = operation;
+        if (keepaliveTimeout == null) {
+          scheduleKeepalive(keepaliveAfterNanos);
+        }
+      }
+      drain();
     }
 
-    private ListenableFuture<?> scheduleKeepalive(String operationName) {
-      if (keepaliveAfter <= 0) {
-        return null;
+    /** finish the stream with onComplete after any pending delivery */
+    void complete(Runnable onComplete) {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        completion = onComplete;
       }
-      return scheduleAsync(
-          () -> {
-            deliverKeepalive(operationName);
-            return immediateFuture(null);
-          },
-          keepaliveAfter,
-          keepaliveUnit,
-          keepaliveScheduler);
+      drain();
     }
 
-    private synchronized void deliverKeepalive(String operationName) {
-      if (!ctx.isCancelled()) {
-        deliver(Operation.newBuilder()
-            .setName(operationName)
-            .build());
-        keepaliveFuture = scheduleKeepalive(operationName);
+    // guarded by this
+    private void scheduleKeepalive(long delayNanos) {
+      if (keepaliveAfterNanos > 0 && !closed) {
+        keepaliveTimeout = keepaliveWheel.schedule(this::onKeepaliveTimeout, delayNanos, NANOSECONDS);
+      }
+    }
+
+    private void onKeepaliveTimeout() {
+      synchronized (this) {
+        keepaliveTimeout = null;
+        if (closed || completion != null) {
+          return;
+        }
+        long idleNanos = System.nanoTime() - lastDeliveryNanos;
+        if (idleNanos < keepaliveAfterNanos) {
+          // delivered since this timeout was scheduled
+          scheduleKeepalive(keepaliveAfterNanos - idleNanos);
+          return;
+        }
+        if (pending == null) {
+          pending = Operation.newBuilder()
+              .setName(operationName)
+              .build();
+        }
+        scheduleKeepalive(keepaliveAfterNanos);
+      }
+      drain();
+    }
+
+    private void drain() {
+      synchronized (this) {
+        if (draining || closed) {
+          return;
+        }
+        draining = true;
+      }
+      try {
+        deliveryExecutor.execute(this::deliverPending);
+      } catch (RejectedExecutionException e) {
+        logger.log(SEVERE, format("could not deliver updates for %s", operationName), e);
+        close();
+      }
+    }
+
+    private void deliverPending() {
+      for (;;) {
+        Operation operation;
+        Runnable onComplete = null;
+        synchronized (this) {
+          if (closed || ctx.isCancelled()) {
+            draining = false;
+            return;
+          }
+          operation = pending;
+          if (operation != null) {
+            if (!isReady.getAsBoolean()) {
+              // resumed by the ready handler, with only the latest update
+              draining = false;
+              return;
+            }
+            pending = null;
+          } else {
+            draining = false;
+            if (completion == null) {
+              return;
+            }
+            onComplete = completion;
+            close();
+          }
+        }
+        try {
+          if (onComplete != null) {
+            onComplete.run();
+            return;
+          }
+          responseObserver.onNext(operation);
+          lastDeliveryNanos = System.nanoTime();
+        } catch (RuntimeException e) {
+          // reported to the instance with its next observation
+          deliveryException = e;
+          synchronized (this) {
+            draining = false;
+            close();
+          }
+          return;
+        }
       }
     }
   }
 
   KeepaliveWatcher createWatcher(StreamObserver<Operation> responseObserver) {
-    return new KeepaliveWatcher(Context.current()) {
-      void deliver(Operation operation) {
-        responseObserver.onNext(operation);
-      }
-    };
+    return new KeepaliveWatcher(Context.current(), responseObserver);
   }
 
   @Override
@@ -165,11 +287,11 @@ public class ExecutionService extends ExecutionGrpc.ExecutionImplBase {
       return;
     }
 
+    KeepaliveWatcher watcher = createWatcher(responseObserver);
     withCancellation(
+        watcher,
         responseObserver,
-        instance.watchOperation(
-            operationName,
-            createWatcher(responseObserver)));
+        instance.watchOperation(operationName, watcher));
   }
 
   @Override
@@ -185,8 +307,10 @@ public class ExecutionService extends ExecutionGrpc.ExecutionImplBase {
 
     logExecute(instance.getName(), request);
 
+    KeepaliveWatcher watcher = createWatcher(responseObserver);
     try {
       withCancellation(
+          watcher,
           responseObserver,
           instance.execute(
               request.getActionDigest(),
@@ -194,7 +318,7 @@ public class ExecutionService extends ExecutionGrpc.ExecutionImplBase {
               request.getExecutionPolicy(),
               request.getResultsCachePolicy(),
               TracingMetadataUtils.fromCurrentContext(),
-              createWatcher(responseObserver)));
+              watcher));
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
     }
@@ -1,8 +1,11 @@
 package build.buildfarm.server;
 
 import static build.buildfarm.common.UrlPath.detectResourceOperation;
+import static build.buildfarm.common.UrlPath.fromUploadCompressedBlobName;
+import static build.buildfarm.common.UrlPath.parseCompressor;
 import static build.buildfarm.common.UrlPath.parseUploadBlobDigest;
 import static build.buildfarm.common.UrlPath.parseUploadBlobUUID;
+import static build.buildfarm.common.UrlPath.parseUploadCompressedBlobUUID;
 import static build.buildfarm.common.grpc.Retrier.DEFAULT_IS_RETRIABLE;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static io.grpc.Status.INVALID_ARGUMENT;
@@ -12,8 +15,10 @@ import static java.util.logging.Level.FINER;
 import static java.util.logging.Level.SEVERE;
 
 import build.buildfarm.cas.DigestMismatchException;
+import build.buildfarm.common.Compression;
 import build.buildfarm.common.UrlPath.InvalidResourceNameException;
 import build.buildfarm.common.Write;
+import build.buildfarm.common.io.FeedbackOutputStream;
 import build.buildfarm.instance.Instance;
 import com.google.bytestream.ByteStreamProto.WriteRequest;
 import com.google.bytestream.ByteStreamProto.WriteResponse;
@@ -21,6 +26,7 @@ import com.google.protobuf.ByteString;
 import io.grpc.Context;
 import io.grpc.Context.CancellableContext;
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -36,10 +42,17 @@ class WriteStreamObserver implements StreamObserver<WriteRequest> {
   private final StreamObserver<WriteResponse> responseObserver;
   private final CancellableContext withCancellation;
 
+  private final ServerCallStreamObserver<WriteResponse> serverCallObserver;
+
   private boolean initialized = false;
   private String name = null;
   private Write write = null;
   private Instance instance = null;
+  private OutputStream out = null;
+  // compressed uploads are inflated into the write, and offsets count compressed bytes
+  private boolean compressed = false;
+  private long compressedOffset = 0;
+  private OutputStream decompressed = null;
 
   WriteStreamObserver(
       Instances instances,
@@ -51,6 +64,14 @@ class WriteStreamObserver implements StreamObserver<WriteRequest> {
     this.deadlineAfterUnits = deadlineAfterUnits;
     this.responseObserver = responseObserver;
     withCancellation = Context.current().withCancellation();
+    if (responseObserver instanceof ServerCallStreamObserver) {
+      // requests are admitted only as quickly as their output can send them
+      serverCallObserver = (ServerCallStreamObserver<WriteResponse>) responseObserver;
+      serverCallObserver.disableAutoInboundFlowControl();
+      serverCallObserver.request(1);
+    } else {
+      serverCallObserver = null;
+    }
   }
 
   @Override
@@ -60,6 +81,18 @@ class WriteStreamObserver implements StreamObserver<WriteRequest> {
     } else {
       initialize(request);
     }
+    requestNext();
+  }
+
+  private void requestNext() {
+    if (serverCallObserver == null) {
+      return;
+    }
+    if (out instanceof FeedbackOutputStream) {
+      ((FeedbackOutputStream) out).whenReady(() -> serverCallObserver.request(1));
+    } else {
+      serverCallObserver.request(1);
+    }
   }
 
   private Write getWrite(String resourceName)
@@ -70,11 +103,24 @@ class WriteStreamObserver implements StreamObserver<WriteRequest> {
             instances.getFromUploadBlob(resourceName),
             parseUploadBlobDigest(resourceName),
             parseUploadBlobUUID(resourceName));
+      case UploadCompressedBlob:
+        String compressor = parseCompressor(resourceName);
+        if (!Compression.isSupported(compressor)) {
+          throw new IOException(INVALID_ARGUMENT
+              .withDescription("unsupported compressor " + compressor)
+              .asException());
+        }
+        compressed = true;
+        return ByteStreamService.getUploadBlobWrite(
+            instances.get(fromUploadCompressedBlobName(resourceName)),
+            parseUploadBlobDigest(resourceName),
+            parseUploadCompressedBlobUUID(resourceName));
       case OperationStream:
         return ByteStreamService.getOperationStreamWrite(
             instances.getFromOperationStream(resourceName),
             resourceName);
       case Blob:
+      case CompressedBlob:
       default:
         throw new IOException(INVALID_ARGUMENT
             .withDescription("unknown resource operation for " + resourceName)
@@ -102,9 +148,10 @@ class WriteStreamObserver implements StreamObserver<WriteRequest> {
             () -> {
               if (!Context.current().isCancelled()) {
                 try {
-                  logger.finest(format("delivering committed_size for %s of %d", resourceName, write.getCommittedSize()));
+                  long committedSize = getCommittedSize();
+                  logger.finest(format("delivering committed_size for %s of %d", resourceName, committedSize));
                   responseObserver.onNext(WriteResponse.newBuilder()
-                      .setCommittedSize(write.getCommittedSize())
+                      .setCommittedSize(committedSize)
                       .build());
                   responseObserver.onCompleted();
                 } catch (Throwable t) {
@@ -127,6 +174,14 @@ class WriteStreamObserver implements StreamObserver<WriteRequest> {
     }
   }
 
+  private long getCommittedSize() {
+    if (!compressed) {
+      return write.getCommittedSize();
+    }
+    // a blob which was already present was not received in any compressed form
+    return initialized ? compressedOffset : -1;
+  }
+
   private void handleRequest(WriteRequest request) {
     String resourceName = request.getResourceName();
     if (resourceName.isEmpty()) {
@@ -144,7 +199,7 @@ class WriteStreamObserver implements StreamObserver<WriteRequest> {
       long offset,
       ByteString data,
       boolean finishWrite) {
-    long committedSize = write.getCommittedSize();
+    long committedSize = compressed ? compressedOffset : write.getCommittedSize();
     if (offset != 0 && offset != committedSize) {
       responseObserver.onError(INVALID_ARGUMENT
           .withDescription(format("offset %d does not match committed size %d", offset, committedSize))
@@ -154,8 +209,11 @@ class WriteStreamObserver implements StreamObserver<WriteRequest> {
           .withDescription(format("request resource_name %s does not match previous resource_name %s", resourceName, name))
           .asException());
     } else {
-      if (offset == 0 && offset != committedSize) {
+      if (offset == 0 && write.getCommittedSize() != 0) {
+        // compressed uploads cannot resume from a partial write
         write.reset();
+        decompressed = null;
+        compressedOffset = 0;
       }
 
       logger.finest(
@@ -173,7 +231,7 @@ class WriteStreamObserver implements StreamObserver<WriteRequest> {
   private void close() {
     logger.finest("closing stream due to finishWrite for " + name);
     try {
-      getOutput().close();
+      (compressed ? getDecompressed() : getOutput()).close();
     } catch (DigestMismatchException e) {
       responseObserver.onError(Status.INVALID_ARGUMENT
           .withDescription(e.getMessage())
@@ -186,14 +244,27 @@ class WriteStreamObserver implements StreamObserver<WriteRequest> {
 
   private void writeData(ByteString data) {
     try {
-      data.writeTo(getOutput());
+      if (compressed) {
+        data.writeTo(getDecompressed());
+        compressedOffset += data.size();
+      } else {
+        data.writeTo(getOutput());
+      }
     } catch (IOException e) {
       responseObserver.onError(Status.fromThrowable(e).asException());
     }
   }
 
   private OutputStream getOutput() throws IOException {
-    return write.getOutput(deadlineAfter, deadlineAfterUnits);
+    out = write.getOutput(deadlineAfter, deadlineAfterUnits);
+    return out;
+  }
+
+  private OutputStream getDecompressed() throws IOException {
+    if (decompressed == null) {
+      decompressed = Compression.decompress(getOutput());
+    }
+    return decompressed;
   }
 
   @Override
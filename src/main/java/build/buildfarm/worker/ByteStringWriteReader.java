@@ -15,24 +15,58 @@
 package build.buildfarm.worker;
 
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.Write;
+import com.google.common.hash.HashingOutputStream;
 import com.google.protobuf.ByteString;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
+/**
+ * captures an input, copying it to a write as it is read
+ *
+ * With a spill path, at most spillThreshold bytes are retained in memory.
+ * Beyond that, the entire input is streamed into a new file at the spill
+ * path and hashed as it is written, and only the leading bytes remain
+ * available as data.
+ */
 public class ByteStringWriteReader implements Runnable {
   private final InputStream input;
   private final Write write;
+  private final Path spillPath;
+  private final long spillThreshold;
+  private final DigestUtil digestUtil;
   private ByteString.Output data = ByteString.newOutput();
+  private HashingOutputStream spillOut = null;
+  private long size = 0;
+  private Digest spillDigest = null;
   private boolean completed;
   private IOException exception = null;
+  private boolean drained = false;
 
   public ByteStringWriteReader(InputStream input, Write write) {
+    this(input, write, /* spillPath=*/ null, /* spillThreshold=*/ 0, /* digestUtil=*/ null);
+  }
+
+  public ByteStringWriteReader(
+      InputStream input,
+      Write write,
+      Path spillPath,
+      long spillThreshold,
+      DigestUtil digestUtil) {
     this.input = input;
     this.write = write;
+    this.spillPath = spillPath;
+    this.spillThreshold = spillThreshold;
+    this.digestUtil = digestUtil;
     completed = false;
   }
 
@@ -44,25 +78,73 @@ public class ByteStringWriteReader implements Runnable {
     try (OutputStream writeOut = write.getOutput(1, SECONDS)) {
       while (!isComplete() && (len = input.read(buffer)) != -1) {
         if (len != 0) {
-          data.write(buffer, 0, len);
+          capture(buffer, len);
           writeOut.write(buffer, 0, len);
         }
       }
     } catch(IOException e) {
       exception = e;
     } finally {
-      try {
-        input.close();
-      } catch(IOException e) {
-        if (exception == null) {
-          exception = e;
-        } else {
-          exception.addSuppressed(e);
-        }
+      closeSpill();
+      closeInput();
+      drained();
+    }
+  }
+
+  private void capture(byte[] buffer, int len) throws IOException {
+    if (spillOut == null) {
+      if (spillPath == null || size + len <= spillThreshold) {
+        data.write(buffer, 0, len);
+        size += len;
+        return;
+      }
+      spillOut = digestUtil.newHashingOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(spillPath, CREATE_NEW)));
+      data.writeTo(spillOut);
+    }
+    spillOut.write(buffer, 0, len);
+    size += len;
+  }
+
+  private void closeSpill() {
+    if (spillOut == null) {
+      return;
+    }
+    try {
+      spillOut.close();
+      spillDigest = digestUtil.build(spillOut.hash().toString(), size);
+    } catch (IOException e) {
+      if (exception == null) {
+        exception = e;
+      } else {
+        exception.addSuppressed(e);
+      }
+    }
+  }
+
+  private void closeInput() {
+    try {
+      input.close();
+    } catch(IOException e) {
+      if (exception == null) {
+        exception = e;
+      } else {
+        exception.addSuppressed(e);
       }
     }
   }
 
+  private synchronized void drained() {
+    drained = true;
+    notifyAll();
+  }
+
+  private synchronized void waitForDrained() throws InterruptedException {
+    while (!drained) {
+      wait();
+    }
+  }
+
   private synchronized void waitForComplete() throws InterruptedException {
     while (!completed) {
       wait();
@@ -71,18 +153,30 @@ public class ByteStringWriteReader implements Runnable {
 
   private synchronized void complete() {
     completed = true;
-    notify();
+    notifyAll();
   }
 
   public synchronized boolean isComplete() {
     return completed;
   }
 
-  public ByteString getData() throws IOException, InterruptedException {
+  private void waitForCaptured() throws IOException, InterruptedException {
+    waitForDrained();
     if (exception != null) {
       throw exception;
     }
     waitForComplete();
+  }
+
+  /** the captured input, or only its leading bytes if it was spilled */
+  public ByteString getData() throws IOException, InterruptedException {
+    waitForCaptured();
     return data.toByteString();
   }
+
+  /** the digest of the input written to the spill path, or null if it was not spilled */
+  public Digest getSpillDigest() throws IOException, InterruptedException {
+    waitForCaptured();
+    return spillDigest;
+  }
 }
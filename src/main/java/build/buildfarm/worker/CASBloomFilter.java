@@ -0,0 +1,148 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * lock-free counting bloom filter of digests
+ *
+ * Counters are 4 bits wide, packed 8 to an int. A counter which reaches
+ * its maximum value is never decremented, so removals can only ever leave
+ * the filter reporting false positives, never false negatives for digests
+ * that remain added.
+ */
+public class CASBloomFilter {
+  private static final int COUNTER_BITS = 4;
+  private static final int COUNTERS_PER_WORD = Integer.SIZE / COUNTER_BITS;
+  private static final int COUNTER_MASK = (1 << COUNTER_BITS) - 1;
+
+  private static final HashFunction hashFunction = Hashing.murmur3_128();
+
+  private final AtomicIntegerArray words;
+  private final long numCounters;
+  private final int numHashFunctions;
+
+  public CASBloomFilter(long expectedInsertions, double falsePositiveRate) {
+    checkArgument(expectedInsertions > 0, "expectedInsertions must be positive");
+    checkArgument(
+        falsePositiveRate > 0 && falsePositiveRate < 1,
+        "falsePositiveRate must be in (0, 1)");
+    long counters = (long) Math.ceil(
+        -expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    long wordCount = (counters + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD;
+    checkArgument(wordCount <= Integer.MAX_VALUE, "bloom filter too large");
+    words = new AtomicIntegerArray((int) wordCount);
+    numCounters = wordCount * COUNTERS_PER_WORD;
+    numHashFunctions = Math.max(1, (int) Math.round(
+        (double) numCounters / expectedInsertions * Math.log(2)));
+  }
+
+  public void add(Digest digest) {
+    long[] hashes = hashes(digest);
+    for (int i = 0; i < numHashFunctions; i++) {
+      increment(index(hashes, i));
+    }
+  }
+
+  public void remove(Digest digest) {
+    long[] hashes = hashes(digest);
+    for (int i = 0; i < numHashFunctions; i++) {
+      decrement(index(hashes, i));
+    }
+  }
+
+  /** false only if the digest is definitely not present */
+  public boolean mightContain(Digest digest) {
+    long[] hashes = hashes(digest);
+    for (int i = 0; i < numHashFunctions; i++) {
+      if (counter(index(hashes, i)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public long getNumCounters() {
+    return numCounters;
+  }
+
+  public int getNumHashFunctions() {
+    return numHashFunctions;
+  }
+
+  private static long[] hashes(Digest digest) {
+    HashCode hashCode = hashFunction.newHasher()
+        .putString(digest.getHash(), US_ASCII)
+        .putLong(digest.getSizeBytes())
+        .hash();
+    byte[] bytes = hashCode.asBytes();
+    long h1 = 0;
+    long h2 = 0;
+    for (int i = 0; i < 8; i++) {
+      h1 |= (bytes[i] & 0xffL) << (i * 8);
+      h2 |= (bytes[i + 8] & 0xffL) << (i * 8);
+    }
+    return new long[] { h1, h2 };
+  }
+
+  private long index(long[] hashes, int i) {
+    long combined = hashes[0] + i * hashes[1];
+    return (combined & Long.MAX_VALUE) % numCounters;
+  }
+
+  private int counter(long index) {
+    int word = words.get((int) (index / COUNTERS_PER_WORD));
+    int shift = (int) (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+    return (word >>> shift) & COUNTER_MASK;
+  }
+
+  private void increment(long index) {
+    int wordIndex = (int) (index / COUNTERS_PER_WORD);
+    int shift = (int) (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+    for (;;) {
+      int word = words.get(wordIndex);
+      int count = (word >>> shift) & COUNTER_MASK;
+      if (count == COUNTER_MASK) {
+        return; // saturated
+      }
+      if (words.compareAndSet(wordIndex, word, word + (1 << shift))) {
+        return;
+      }
+    }
+  }
+
+  private void decrement(long index) {
+    int wordIndex = (int) (index / COUNTERS_PER_WORD);
+    int shift = (int) (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+    for (;;) {
+      int word = words.get(wordIndex);
+      int count = (word >>> shift) & COUNTER_MASK;
+      if (count == 0 || count == COUNTER_MASK) {
+        return; // underflow would indicate a mismatched removal
+      }
+      if (words.compareAndSet(wordIndex, word, word - (1 << shift))) {
+        return;
+      }
+    }
+  }
+}
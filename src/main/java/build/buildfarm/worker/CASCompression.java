@@ -0,0 +1,95 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * deflate storage of cache files at rest
+ *
+ * A blob is only compressed if it is at least minSizeBytes long, and a
+ * deflated sample of its leading bytes is at most maxSampleRatio of the
+ * sample's size.
+ */
+public class CASCompression {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final long minSizeBytes;
+  private final int level;
+  private final int sampleSizeBytes;
+  private final double maxSampleRatio;
+
+  public CASCompression(long minSizeBytes, int level, int sampleSizeBytes, double maxSampleRatio) {
+    this.minSizeBytes = minSizeBytes;
+    this.level = level;
+    this.sampleSizeBytes = sampleSizeBytes;
+    this.maxSampleRatio = maxSampleRatio;
+  }
+
+  public boolean shouldCompress(Path path, long size) throws IOException {
+    if (size < minSizeBytes) {
+      return false;
+    }
+    byte[] sample = new byte[(int) Math.min(size, sampleSizeBytes)];
+    int sampleSize;
+    try (InputStream in = Files.newInputStream(path)) {
+      sampleSize = ByteStreams.read(in, sample, 0, sample.length);
+    }
+    if (sampleSize == 0) {
+      return false;
+    }
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(sample, 0, sampleSize);
+      deflater.finish();
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long deflatedSize = 0;
+      while (!deflater.finished()) {
+        deflatedSize += deflater.deflate(buffer);
+      }
+      return deflatedSize <= sampleSize * maxSampleRatio;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** writes the deflated content of source to a new file at target, returning its size */
+  public long compress(Path source, Path target) throws IOException {
+    Deflater deflater = new Deflater(level);
+    try (InputStream in = Files.newInputStream(source);
+         OutputStream out = new DeflaterOutputStream(
+             Files.newOutputStream(target, CREATE_NEW), deflater, BUFFER_SIZE)) {
+      ByteStreams.copy(in, out);
+    } finally {
+      deflater.end();
+    }
+    return Files.size(target);
+  }
+
+  public static InputStream newInput(Path path) throws IOException {
+    return new InflaterInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE));
+  }
+}
@@ -14,6 +14,12 @@
 
 package build.buildfarm.worker;
 
+import static build.buildfarm.worker.CASFileCacheMetrics.Operation.EXPIRE_ENTRY;
+import static build.buildfarm.worker.CASFileCacheMetrics.Operation.LOCK_WAIT;
+import static build.buildfarm.worker.CASFileCacheMetrics.Operation.NEW_EXTERNAL_INPUT;
+import static build.buildfarm.worker.CASFileCacheMetrics.Operation.NEW_INPUT;
+import static build.buildfarm.worker.CASFileCacheMetrics.Operation.PUT;
+import static build.buildfarm.worker.CASFileCacheMetrics.Operation.PUT_DIRECTORY;
 import static build.buildfarm.worker.Utils.readdir;
 import static build.buildfarm.worker.Utils.removeDirectory;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -34,7 +40,12 @@ import static java.lang.String.format;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.APPEND;
 import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.attribute.PosixFilePermission.GROUP_WRITE;
+import static java.nio.file.attribute.PosixFilePermission.OTHERS_WRITE;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_WRITE;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.logging.Level.WARNING;
@@ -46,9 +57,13 @@ import build.bazel.remote.execution.v2.Directory;
 import build.bazel.remote.execution.v2.DirectoryNode;
 import build.bazel.remote.execution.v2.FileNode;
 import build.buildfarm.cas.ContentAddressableStorage;
+import build.buildfarm.cas.MemoryCAS;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.Write;
+import build.buildfarm.common.cache.CacheStats;
+import build.buildfarm.common.io.MappedFileInputStream;
 import build.buildfarm.v1test.BlobWriteKey;
+import build.buildfarm.v1test.CASCacheMetrics;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -78,6 +93,8 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -85,19 +102,25 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Condition;
@@ -107,6 +130,14 @@ import java.util.logging.Logger;
 public abstract class CASFileCache implements ContentAddressableStorage {
   private static final Logger logger = Logger.getLogger(CASFileCache.class.getName());
 
+  // mapping is only cheaper than reading for files spanning several chunks
+  private static final long MAPPED_INPUT_MIN_SIZE = 256 * 1024;
+
+  private static final String COMPRESSED_SUFFIX = "deflate";
+  private static final String INGEST_SUFFIX = ".ingest";
+  private static final Set<PosixFilePermission> WRITE_PERMISSIONS =
+      EnumSet.of(OWNER_WRITE, GROUP_WRITE, OTHERS_WRITE);
+
   private final Path root;
   private final long maxSizeInBytes;
   private final DigestUtil digestUtil;
@@ -116,6 +147,11 @@ public abstract class CASFileCache implements ContentAddressableStorage {
   private final Consumer<Digest> onPut;
   private final Consumer<Iterable<Digest>> onExpire;
   private final ExecutorService expireService;
+  private final CASMemoryTier memoryTier;
+  private final CASCompression compression;
+  private final CASBloomFilter bloomFilter;
+  private final CASFileCacheMetrics metrics = new CASFileCacheMetrics();
+  private final List<BooleanSupplier> referencePressureListeners = new CopyOnWriteArrayList<>();
   private final LoadingCache<BlobWriteKey, Write> writes = CacheBuilder.newBuilder()
       .expireAfterWrite(10, TimeUnit.MINUTES)
       .build(new CacheLoader<BlobWriteKey, Write>() {
@@ -143,8 +179,59 @@ public abstract class CASFileCache implements ContentAddressableStorage {
   private ListenableFuture<Path> lastPutDirectory = immediateFuture(null);
 
   private transient long sizeInBytes = 0;
+  private transient long compressionSavedBytes = 0;
   private transient Entry header = new SentinelEntry();
 
+  /** optional tiers and indexes of a cache, each absent unless set */
+  public static final class Options {
+    public static final Options DEFAULT = newBuilder().build();
+
+    private final CASMemoryTier memoryTier;
+    private final CASCompression compression;
+    private final CASBloomFilter bloomFilter;
+
+    private Options(
+        CASMemoryTier memoryTier,
+        CASCompression compression,
+        CASBloomFilter bloomFilter) {
+      this.memoryTier = memoryTier;
+      this.compression = compression;
+      this.bloomFilter = bloomFilter;
+    }
+
+    public static Builder newBuilder() {
+      return new Builder();
+    }
+
+    public static class Builder {
+      private CASMemoryTier memoryTier = null;
+      private CASCompression compression = null;
+      private CASBloomFilter bloomFilter = null;
+
+      private Builder() {
+      }
+
+      public Builder setMemoryTier(CASMemoryTier memoryTier) {
+        this.memoryTier = memoryTier;
+        return this;
+      }
+
+      public Builder setCompression(CASCompression compression) {
+        this.compression = compression;
+        return this;
+      }
+
+      public Builder setBloomFilter(CASBloomFilter bloomFilter) {
+        this.bloomFilter = bloomFilter;
+        return this;
+      }
+
+      public Options build() {
+        return new Options(memoryTier, compression, bloomFilter);
+      }
+    }
+  }
+
   public static class DigestMismatchException extends IOException {
     DigestMismatchException(String message) {
       super(message);
@@ -174,6 +261,26 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       ConcurrentMap<Path, Entry> storage,
       Consumer<Digest> onPut,
       Consumer<Iterable<Digest>> onExpire) {
+    this(
+        root,
+        maxSizeInBytes,
+        digestUtil,
+        expireService,
+        storage,
+        onPut,
+        onExpire,
+        Options.DEFAULT);
+  }
+
+  public CASFileCache(
+      Path root,
+      long maxSizeInBytes,
+      DigestUtil digestUtil,
+      ExecutorService expireService,
+      ConcurrentMap<Path, Entry> storage,
+      Consumer<Digest> onPut,
+      Consumer<Iterable<Digest>> onExpire,
+      Options options) {
     this.root = root;
     this.maxSizeInBytes = maxSizeInBytes;
     this.digestUtil = digestUtil;
@@ -181,6 +288,9 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     this.storage = storage;
     this.onPut = onPut;
     this.onExpire = onExpire;
+    this.memoryTier = options.memoryTier;
+    this.compression = options.compression;
+    this.bloomFilter = options.bloomFilter;
 
     header.before = header.after = header;
   }
@@ -211,61 +321,60 @@ public abstract class CASFileCache implements ContentAddressableStorage {
   }
 
   /**
-   * Parses the given fileName and invokes the onKey method if successful
+   * Parses the given fileName into a key if successful
    *
-   * if size > 0, consider the filename invalid if it does not match
+   * if size > 0, consider the filename invalid if it does not match,
+   * unless the file content is compressed
    */
-  private static <T> T parseFileEntryKey(String fileName, long size, DigestUtil digestUtil, BiFunction<Digest, Boolean, T> onKey) {
+  private FileEntryKey parseFileEntryKey(String fileName, long size) {
     String[] components = fileName.split("_");
     if (components.length < 2 || components.length > 3) {
       return null;
     }
 
     boolean isExecutable = false;
+    boolean isCompressed = false;
     Digest digest;
     try {
+      if (components.length == 3) {
+        if (components[2].equals("exec")) {
+          isExecutable = true;
+        } else if (components[2].equals(COMPRESSED_SUFFIX)) {
+          isCompressed = true;
+        } else {
+          return null;
+        }
+      }
+
       String sizeComponent = components[1];
       int parsedSizeComponent = Integer.parseInt(sizeComponent);
 
-      if (size > 0 && parsedSizeComponent != size) {
+      if (size > 0 && !isCompressed && parsedSizeComponent != size) {
         return null;
       }
 
       String hashComponent = components[0];
       digest = digestUtil.build(hashComponent, parsedSizeComponent);
-      if (components.length == 3) {
-        if (components[2].equals("exec")) {
-          isExecutable = true;
-        } else {
-          return null;
-        }
-      }
     } catch (NumberFormatException e) {
       return null;
     }
 
-    return onKey.apply(digest, isExecutable);
+    return new FileEntryKey(getKey(digest, isExecutable), isExecutable, isCompressed, digest);
   }
 
   private FileEntryKey parseFileEntryKey(String fileName) {
     return parseFileEntryKey(fileName, /* size=*/ -1);
   }
 
-  private FileEntryKey parseFileEntryKey(String fileName, long size) {
-    return parseFileEntryKey(
-        fileName,
-        size,
-        digestUtil,
-        (digest, isExecutable) -> new FileEntryKey(getKey(digest, isExecutable), isExecutable, digest));
-  }
-
   private boolean contains(Digest digest, boolean isExecutable) {
     Path key = getKey(digest, isExecutable);
     Entry e = storage.get(key);
     if (e == null) {
       return false;
     }
+    long lockStartNanos = CASFileCacheMetrics.start();
     synchronized (this) {
+      metrics.record(LOCK_WAIT, lockStartNanos);
       if (!entryExists(e)) {
         Entry removedEntry = storage.remove(key);
         if (removedEntry != null) {
@@ -287,7 +396,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       return true;
     }
 
-    if (Files.exists(e.key)) {
+    if (Files.exists(getEntryPath(e))) {
       e.existsDeadline = Deadline.after(10, SECONDS);
       return true;
     }
@@ -298,7 +407,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
   public Iterable<Digest> findMissingBlobs(Iterable<Digest> digests) throws InterruptedException {
     ImmutableList.Builder<Digest> missingDigests = ImmutableList.builder();
     for (Digest digest : digests) {
-      if (!contains(digest)) {
+      if (isDefinitelyMissing(digest) || !contains(digest)) {
         missingDigests.add(digest);
       }
     }
@@ -307,18 +416,195 @@ public abstract class CASFileCache implements ContentAddressableStorage {
 
   @Override
   public boolean contains(Digest digest) {
+    if (isDefinitelyMissing(digest)) {
+      return false;
+    }
     /* maybe swap the order here if we're higher in ratio on one side */
     return contains(digest, false) || contains(digest, true);
   }
 
+  /**
+   * the bloom filter tracks every key in storage, so a negative here
+   * requires neither the cache monitor nor a filesystem check
+   */
+  private boolean isDefinitelyMissing(Digest digest) {
+    return bloomFilter != null && !bloomFilter.mightContain(digest);
+  }
+
+  private void addToBloomFilter(Path key) {
+    if (bloomFilter != null) {
+      bloomFilter.add(keyToDigest(key, digestUtil));
+    }
+  }
+
+  private void removeFromBloomFilter(Path key) {
+    if (bloomFilter != null) {
+      bloomFilter.remove(keyToDigest(key, digestUtil));
+    }
+  }
+
   @Override
   public ListenableFuture<Iterable<Response>> getAllFuture(Iterable<Digest> digests) {
-    throw new UnsupportedOperationException();
+    return immediateFuture(MemoryCAS.getAll(digests, this::getAllBlob));
+  }
+
+  private ByteString getAllBlob(Digest digest) {
+    if (digest.getSizeBytes() == 0) {
+      return ByteString.EMPTY;
+    }
+    try (InputStream in = newInput(digest, /* offset=*/ 0)) {
+      return ByteString.readFrom(in);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public CASFileCacheMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * a snapshot of the cache counters, latencies, and occupancy
+   *
+   * Referenced entries are counted without the cache monitor, and may be
+   * inconsistent with the remaining occupancy figures.
+   */
+  public CASCacheMetrics getCASCacheMetrics() {
+    long referencedEntryCount = 0;
+    long referencedBytes = 0;
+    for (Entry e : storage.values()) {
+      if (e.referenceCount > 0) {
+        referencedEntryCount++;
+        referencedBytes += e.size;
+      }
+    }
+    CASCacheMetrics.Builder builder = metrics.toBuilder()
+        .setEntryCount(storage.size())
+        .setReferencedEntryCount(referencedEntryCount)
+        .setReferencedBytes(referencedBytes)
+        .setMaxSizeBytes(maxSizeInBytes);
+    synchronized (this) {
+      builder
+          .setDirectoryCount(directoryStorage.size())
+          .setSizeBytes(sizeInBytes)
+          .setEffectiveSizeBytes(sizeInBytes + compressionSavedBytes)
+          .setCompressionSavedBytes(compressionSavedBytes);
+    }
+    return builder.build();
+  }
+
+  /** hit and miss counts for the memory tier, or null if it is disabled */
+  public CacheStats getMemoryTierStats() {
+    return memoryTier == null ? null : memoryTier.stats();
+  }
+
+  private boolean isMemoryTierEligible(Digest digest) {
+    return memoryTier != null && memoryTier.accepts(digest);
+  }
+
+  private InputStream newMemoryTierInput(Digest digest, long offset) {
+    ByteString content = memoryTier.get(digest);
+    if (content == null) {
+      return null;
+    }
+    // the tier may only serve content that is still present in storage
+    for (boolean isExecutable : new boolean[] { false, true }) {
+      Path key = getKey(digest, isExecutable);
+      Entry e = storage.get(key);
+      if (e != null) {
+        synchronized (this) {
+          if (storage.get(key) == e) {
+            e.recordAccess(header);
+            metrics.memoryTierHits.increment();
+            return content.substring((int) offset).newInput();
+          }
+        }
+      }
+    }
+    memoryTier.invalidate(digest);
+    return null;
+  }
+
+  private InputStream readIntoMemoryTier(Digest digest, InputStream input, long offset) throws IOException {
+    ByteString content;
+    try {
+      content = ByteString.readFrom(input);
+    } finally {
+      input.close();
+    }
+    memoryTier.put(digest, content);
+    return content.substring((int) Math.min(offset, content.size())).newInput();
+  }
+
+  /**
+   * large files are presented through mappings so that they may be served
+   * without copying, falling back to a plain stream where mapping is not
+   * supported by the filesystem
+   */
+  private static InputStream newFileInput(Path key, long size, long offset) throws IOException {
+    if (size >= MAPPED_INPUT_MIN_SIZE) {
+      FileChannel channel = FileChannel.open(key, READ);
+      try {
+        return new MappedFileInputStream(channel, offset);
+      } catch (UnsupportedOperationException e) {
+        channel.close();
+      }
+    }
+    InputStream input = Files.newInputStream(key);
+    input.skip(offset);
+    return input;
+  }
+
+  /**
+   * compressed entries are inflated as they are read, and are locked against
+   * decompression in place while they are opened
+   */
+  private InputStream newEntryInput(Entry e, long offset) throws IOException {
+    synchronized (e) {
+      if (e.compressed) {
+        InputStream input = CASCompression.newInput(getEntryPath(e));
+        input.skip(offset);
+        return input;
+      }
+      return newFileInput(e.key, e.size, offset);
+    }
   }
 
   @Override
   public InputStream newInput(Digest digest, long offset) throws IOException {
+    long startNanos = CASFileCacheMetrics.start();
+    try {
+      InputStream input = newInputImpl(digest, offset);
+      metrics.inputHits.increment();
+      metrics.inputBytes.add(Math.max(digest.getSizeBytes() - offset, 0));
+      return input;
+    } catch (NoSuchFileException e) {
+      metrics.inputMisses.increment();
+      throw e;
+    } finally {
+      metrics.record(NEW_INPUT, startNanos);
+    }
+  }
+
+  /**
+   * an input for content already in the cache, which is not counted as an
+   * input hit or miss
+   */
+  protected InputStream newLocalInput(Digest digest, long offset) throws IOException {
+    return newInputImpl(digest, offset);
+  }
+
+  private InputStream newInputImpl(Digest digest, long offset) throws IOException {
     logger.finer(format("getting input stream for %s", DigestUtil.toString(digest)));
+    boolean memoryTierEligible = isMemoryTierEligible(digest);
+    if (memoryTierEligible && offset <= digest.getSizeBytes()) {
+      InputStream input = newMemoryTierInput(digest, offset);
+      if (input != null) {
+        return input;
+      }
+    }
     boolean isExecutable = false;
     do {
       Path key = getKey(digest, isExecutable);
@@ -326,8 +612,11 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       if (e != null) {
         InputStream input = null;
         try {
-          input = Files.newInputStream(key);
-          input.skip(offset);
+          if (memoryTierEligible) {
+            input = readIntoMemoryTier(digest, newEntryInput(e, /* offset=*/ 0), offset);
+          } else {
+            input = newEntryInput(e, offset);
+          }
         } catch (NoSuchFileException eNoEnt) {
           synchronized (this) {
             Entry removedEntry = storage.remove(key);
@@ -340,7 +629,9 @@ public abstract class CASFileCache implements ContentAddressableStorage {
           }
           continue;
         }
+        long lockStartNanos = CASFileCacheMetrics.start();
         synchronized (this) {
+          metrics.record(LOCK_WAIT, lockStartNanos);
           e.recordAccess(header);
         }
         return input;
@@ -375,6 +666,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
           () -> completeWrite(blob.getDigest()),
           blob.getDigest().getSizeBytes(),
           /* isExecutable=*/ false,
+          /* compressible=*/ true,
           null,
           () -> {
             Digest digest = blob.getDigest();
@@ -391,6 +683,9 @@ public abstract class CASFileCache implements ContentAddressableStorage {
             referenced = true;
           }
         }
+        if (memoryTier != null) {
+          memoryTier.put(blob.getDigest(), blob.getData());
+        }
       } finally {
         if (referenced) {
           decrementReference(blobPath);
@@ -548,6 +843,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
           () -> completeWrite(digest),
           digest.getSizeBytes(),
           /* isExecutable=*/ false,
+          /* compressible=*/ true,
           null,
           () -> {
             onPut.accept(digest);
@@ -574,6 +870,172 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     };
   }
 
+  /**
+   * insert the content of file as a non-executable blob, hashing it as it
+   * is copied into the cache so that it is only read once
+   *
+   * The file is left in place, and no reference to the entry is retained.
+   */
+  public Digest putFile(Path file) throws IOException, InterruptedException {
+    return putFile(file, onPut);
+  }
+
+  /**
+   * insert the content of file, notifying onInsert in place of the cache's
+   * onPut if it is newly inserted, allowing the caller to defer notification
+   */
+  public Digest putFile(Path file, Consumer<Digest> onInsert) throws IOException, InterruptedException {
+    return putFile(file, /* link=*/ false, onInsert);
+  }
+
+  /**
+   * insert the content of file, hard linking it into the cache rather than
+   * copying it if link is set, the file shares a filesystem with the root,
+   * and the filesystem supports posix permissions to make it read only
+   *
+   * The file is made read only before it is linked and hashed, so that its
+   * content cannot be changed under its digest by reopening it. A linked
+   * file shares its content and permissions with the cache entry, and must
+   * not be used after this call.
+   */
+  public Digest putFile(Path file, boolean link, Consumer<Digest> onInsert) throws IOException, InterruptedException {
+    long startNanos = CASFileCacheMetrics.start();
+    Path ingestPath = root.resolve(UUID.randomUUID() + INGEST_SUFFIX);
+    Digest digest;
+    if (link && createIngestLink(ingestPath, file)) {
+      try {
+        digest = digestUtil.compute(ingestPath);
+      } catch (IOException e) {
+        Files.deleteIfExists(ingestPath);
+        throw e;
+      }
+    } else {
+      if (link) {
+        metrics.ingestLinkFallbacks.increment();
+      }
+      digest = copyIngest(ingestPath, file);
+    }
+    insertIngested(ingestPath, digest, onInsert, startNanos);
+    return digest;
+  }
+
+  /**
+   * insert the content of file under a digest computed when it was written,
+   * without reading it again
+   *
+   * The file is moved into the cache where it shares a filesystem with the
+   * root, and copied otherwise. It is consumed by this call in either case,
+   * and must not be written to while it is inserted.
+   */
+  public void putFile(Path file, Digest digest, Consumer<Digest> onInsert) throws IOException, InterruptedException {
+    long startNanos = CASFileCacheMetrics.start();
+    Path ingestPath = root.resolve(UUID.randomUUID() + INGEST_SUFFIX);
+    try {
+      Files.move(file, ingestPath);
+    } catch (IOException e) {
+      // moves across filesystems are not supported for every provider
+      try (InputStream in = Files.newInputStream(file)) {
+        Files.copy(in, ingestPath);
+      } catch (IOException copyException) {
+        Files.deleteIfExists(ingestPath);
+        throw copyException;
+      }
+      Files.delete(file);
+    }
+    insertIngested(ingestPath, digest, onInsert, startNanos);
+  }
+
+  private boolean createIngestLink(Path ingestPath, Path file) {
+    try {
+      if (!Files.getFileStore(file).equals(Files.getFileStore(root))) {
+        // links cannot span filesystems, the file is copied as it is
+        return false;
+      }
+      if (!makeReadOnly(file)) {
+        // writers could still reopen the file, resort to a copy
+        return false;
+      }
+      Files.createLink(ingestPath, file);
+      return true;
+    } catch (UnsupportedOperationException|IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * returns true if the permission bits of the file deny writes to it
+   *
+   * The bits are checked rather than access to the file, which privileged
+   * users, such as root in a container, are granted regardless of them.
+   * Filesystems without posix permissions cannot make the file read only.
+   */
+  private static boolean makeReadOnly(Path file) throws IOException {
+    PosixFileAttributeView view = Files.getFileAttributeView(file, PosixFileAttributeView.class);
+    if (view == null) {
+      return false;
+    }
+    Set<PosixFilePermission> permissions = view.readAttributes().permissions();
+    if (permissions.removeAll(WRITE_PERMISSIONS)) {
+      view.setPermissions(permissions);
+    }
+    return Collections.disjoint(view.readAttributes().permissions(), WRITE_PERMISSIONS);
+  }
+
+  private Digest copyIngest(Path ingestPath, Path file) throws IOException {
+    HashingOutputStream hashOut = digestUtil.newHashingOutputStream(
+        Files.newOutputStream(ingestPath, CREATE_NEW));
+    long size;
+    try (OutputStream out = hashOut;
+         InputStream in = Files.newInputStream(file)) {
+      size = ByteStreams.copy(in, out);
+    } catch (IOException e) {
+      Files.deleteIfExists(ingestPath);
+      throw e;
+    }
+    return digestUtil.build(hashOut.hash().toString(), size);
+  }
+
+  /** insert a complete file in the root with the content of digest */
+  private void insertIngested(
+      Path ingestPath,
+      Digest digest,
+      Consumer<Digest> onInsert,
+      long startNanos) throws IOException, InterruptedException {
+    if (digest.getSizeBytes() == 0) {
+      Files.delete(ingestPath);
+      return;
+    }
+    Path key = getKey(digest, /* isExecutable=*/ false);
+    boolean inserted = false;
+    try {
+      boolean reserved = reserve(key, digest.getSizeBytes(), /* containingDirectory=*/ null);
+      metrics.record(PUT, startNanos);
+      if (reserved) {
+        metrics.putMisses.increment();
+        insertEntry(
+            ingestPath,
+            key,
+            digest.getSizeBytes(),
+            /* isExecutable=*/ false,
+            /* compressible=*/ true,
+            /* containingDirectory=*/ null,
+            () -> completeWrite(digest),
+            () -> {
+              onInsert.accept(digest);
+              writesInProgress.invalidate(digest);
+            });
+        inserted = true;
+      } else {
+        metrics.putHits.increment();
+      }
+      decrementReference(key);
+    } finally {
+      if (!inserted) {
+        Files.deleteIfExists(ingestPath);
+      }
+    }
+  }
+
   @Override
   public void put(Blob blob, Runnable onExpiration) {
     throw new UnsupportedOperationException();
@@ -654,11 +1116,13 @@ public abstract class CASFileCache implements ContentAddressableStorage {
   private static final class FileEntryKey {
     private final Path key;
     private final boolean isExecutable;
+    private final boolean isCompressed;
     private final Digest digest;
 
-    FileEntryKey(Path key, boolean isExecutable, Digest digest) {
+    FileEntryKey(Path key, boolean isExecutable, boolean isCompressed, Digest digest) {
       this.key = key;
       this.isExecutable = isExecutable;
+      this.isCompressed = isCompressed;
       this.digest = digest;
     }
 
@@ -670,6 +1134,10 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       return isExecutable;
     }
 
+    boolean getIsCompressed() {
+      return isCompressed;
+    }
+
     Digest getDigest() {
       return digest;
     }
@@ -755,16 +1223,26 @@ public abstract class CASFileCache implements ContentAddressableStorage {
           }
           if (fileEntryKey != null) {
             Path key = fileEntryKey.getKey();
-            if (storage.get(key) == null) {
+            Entry existingEntry = storage.get(key);
+            if (existingEntry == null) {
               long now = System.nanoTime();
               Entry e = new Entry(key, size, null, Deadline.after(10, SECONDS));
-              fileKeysBuilder.put(attrs.fileKey(), e);
+              if (fileEntryKey.getIsCompressed()) {
+                e.compressed = true;
+                compressionSavedBytes += fileEntryKey.getDigest().getSizeBytes() - size;
+              } else {
+                fileKeysBuilder.put(attrs.fileKey(), e);
+              }
+              addToBloomFilter(e.key);
               storage.put(e.key, e);
               onPut.accept(fileEntryKey.getDigest());
               synchronized (this) {
                 e.decrementReference(header);
               }
               sizeInBytes += size;
+            } else if (fileEntryKey.getIsCompressed() || existingEntry.compressed) {
+              // an interrupted decompression, the first loaded copy wins
+              Files.delete(file);
             }
           } else {
             Files.delete(file);
@@ -834,6 +1312,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
 
   private void decrementReference(Path inputFile) {
     decrementReferences(ImmutableList.of(inputFile), ImmutableList.of());
+    scheduleCompression(inputFile);
   }
 
   public synchronized void decrementReferences(Iterable<Path> inputFiles, Iterable<Digest> inputDirectories) {
@@ -868,7 +1347,13 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       if (dirEntry == null) {
         throw new IllegalStateException("inputDirectory " + DigestUtil.toString(inputDirectory) + " is not in directoryStorage");
       }
-      entriesDereferenced += decrementInputReferences(dirEntry.inputs);
+      if (dirEntry.referenceCount == 0) {
+        throw new IllegalStateException("inputDirectory " + DigestUtil.toString(inputDirectory) + " has 0 references and is being decremented");
+      }
+      // inputs are only held once on behalf of all references to the directory
+      if (--dirEntry.referenceCount == 0) {
+        entriesDereferenced += decrementInputReferences(dirEntry.inputs);
+      }
     }
     if (entriesDereferenced > 0) {
       notify();
@@ -910,20 +1395,64 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       Thread.currentThread().interrupt();
       throw new IOException(e);
     }
+    invalidateMemoryTier(entry.key);
+    removeFromBloomFilter(entry.key);
+    discountCompression(entry);
     // still debating this one being in this method
     sizeInBytes -= entry.size;
     // technically we should attempt to remove the file here,
     // but we're only called in contexts where it doesn't exist...
   }
 
+  /** must be called in synchronized context */
+  private void discountCompression(Entry e) {
+    if (e.compressed) {
+      compressionSavedBytes -= keyToDigest(e.key, digestUtil).getSizeBytes() - e.size;
+    }
+  }
+
+  private void invalidateMemoryTier(Path key) {
+    if (memoryTier != null) {
+      FileEntryKey fileEntryKey = parseFileEntryKey(key.getFileName().toString());
+      if (fileEntryKey != null) {
+        memoryTier.invalidate(fileEntryKey.getDigest());
+      }
+    }
+  }
+
   @VisibleForTesting
   public Path getDirectoryPath(Digest digest) {
     return root.resolve(digestFilename(digest) + "_dir");
   }
 
+  /**
+   * register a holder of references which may be released on demand
+   *
+   * When an entry must be expired and every entry is referenced, each
+   * listener is asked in turn to release references before the cache
+   * waits for one to be released, until one reports that it has. Listeners
+   * are called with the cache locked, and may only release references.
+   */
+  public void addReferencePressureListener(BooleanSupplier onReferencePressure) {
+    referencePressureListeners.add(onReferencePressure);
+  }
+
+  /** must be called in synchronized context */
+  private boolean relieveReferencePressure() {
+    for (BooleanSupplier listener : referencePressureListeners) {
+      if (listener.getAsBoolean()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /** must be called in synchronized context */
   private Entry waitForLastUnreferencedEntry(long blobSizeInBytes) throws InterruptedException {
     while (header.after == header) {
+      if (relieveReferencePressure()) {
+        continue;
+      }
       int references = 0;
       int keys = 0;
       int min = -1, max = 0;
@@ -954,6 +1483,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       logger.info(format(
           "CASFileCache::expireEntry(%d) unreferenced list is empty, %d bytes, %d keys with %d references, min(%d, %s), max(%d, %s)",
           blobSizeInBytes, sizeInBytes, keys, references, min, minkey, max, maxkey));
+      metrics.expirationWaits.increment();
       wait();
     }
     return header.after;
@@ -963,6 +1493,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
   private ListenableFuture<Path> expireEntry(
       long blobSizeInBytes,
       ExecutorService service) throws IOException, InterruptedException {
+    long startNanos = CASFileCacheMetrics.start();
     for (;;) {
       Entry e = null;
       while (e == null) {
@@ -972,18 +1503,51 @@ public abstract class CASFileCache implements ContentAddressableStorage {
         }
       }
       Path key = e.key;
+      Path expiredPath = getEntryPath(e);
       if (storage.remove(key) == e) {
         ImmutableList.Builder<ListenableFuture<Void>> directoryExpirationFutures = ImmutableList.builder();
         for (Digest containingDirectory : e.containingDirectories) {
           directoryExpirationFutures.add(expireDirectory(containingDirectory, service));
         }
         e.unlink();
+        invalidateMemoryTier(key);
+        removeFromBloomFilter(key);
+        discountCompression(e);
         sizeInBytes -= e.size;
-        return transform(allAsList(directoryExpirationFutures.build()), (result) -> key, service);
+        metrics.evictions.increment();
+        metrics.evictedBytes.add(e.size);
+        metrics.record(EXPIRE_ENTRY, startNanos);
+        return transform(allAsList(directoryExpirationFutures.build()), (result) -> expiredPath, service);
       }
     }
   }
 
+  /**
+   * reference every input of an unreferenced directory entry, or none of
+   * them if any is missing
+   *
+   * must be called in synchronized context
+   */
+  private boolean referenceDirectoryInputs(Digest digest, DirectoryEntry e) {
+    ImmutableList.Builder<Path> inputsBuilder = new ImmutableList.Builder<>();
+    for (Path input : e.inputs) {
+      Entry fileEntry = storage.get(input);
+      if (fileEntry == null) {
+        logger.severe(
+            format(
+                "CASFileCache::putDirectory(%s) exists, but input %s does not, purging it with fire and resorting to fetch",
+                DigestUtil.toString(digest),
+                input));
+        decrementReferencesSynchronized(inputsBuilder.build(), ImmutableList.<Digest>of());
+        return false;
+      }
+      fileEntry.incrementReference();
+      checkNotNull(input);
+      inputsBuilder.add(input);
+    }
+    return true;
+  }
+
   /** must be called in synchronized context */
   private void purgeDirectoryFromInputs(Digest digest, Iterable<Path> inputs) {
     for (Path input : inputs) {
@@ -1098,6 +1662,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       Digest digest,
       Map<Digest, Directory> directoriesIndex,
       ExecutorService service) {
+    long startNanos = CASFileCacheMetrics.start();
     Path path = getDirectoryPath(digest);
     Lock l = locks.acquire(path);
     logger.finest(format("locking directory %s", path.getFileName()));
@@ -1117,6 +1682,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
         () -> {
           l.unlock();
           logger.finest(format("directory %s has been unlocked", path.getFileName()));
+          metrics.record(PUT_DIRECTORY, startNanos);
         },
         service);
     return putFuture;
@@ -1193,42 +1759,42 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       ExecutorService service) throws IOException, InterruptedException {
     logger.finest(format("directory %s has been locked", path.getFileName()));
     ListenableFuture<Void> expireFuture;
+    long lockStartNanos = CASFileCacheMetrics.start();
     synchronized (this) {
+      metrics.record(LOCK_WAIT, lockStartNanos);
       DirectoryEntry e = directoryStorage.get(digest);
       if (e == null) {
         expireFuture = immediateFuture(null);
       } else {
-        ImmutableList.Builder<Path> inputsBuilder = new ImmutableList.Builder<>();
-        for (Path input : e.inputs) {
-          Entry fileEntry = storage.get(input);
-          if (fileEntry == null) {
-            logger.severe(
-                format(
-                    "CASFileCache::putDirectory(%s) exists, but input %s does not, purging it with fire and resorting to fetch",
-                    DigestUtil.toString(digest),
-                    input));
-            e = null;
-            break;
-          }
-          fileEntry.incrementReference();
-          checkNotNull(input);
-          inputsBuilder.add(input);
-        }
-
-        if (e != null) {
+        // a referenced directory already holds its inputs, so only the
+        // first reference has work proportional to the size of the tree
+        boolean inputsReferenced = e.referenceCount > 0 || referenceDirectoryInputs(digest, e);
+        if (inputsReferenced) {
           logger.finest(format("found existing entry for %s", path.getFileName()));
           if (directoryEntryExists(path, e, directoriesIndex)) {
+            e.referenceCount++;
+            metrics.directoryHits.increment();
             return immediateFuture(path);
           }
           logger.severe(format("directory %s does not exist in cache, purging it with fire and resorting to fetch", path.getFileName()));
+          if (e.referenceCount == 0) {
+            decrementReferencesSynchronized(e.inputs, ImmutableList.<Digest>of());
+          }
         }
 
-        decrementReferencesSynchronized(inputsBuilder.build(), ImmutableList.<Digest>of());
-        expireFuture = expireDirectory(digest, service);
-        logger.finest(format("expiring existing entry for %s", path.getFileName()));
+        if (e.referenceCount == 0) {
+          expireFuture = expireDirectory(digest, service);
+          logger.finest(format("expiring existing entry for %s", path.getFileName()));
+        } else {
+          // the entry remains for its current holders, who are carried over to its replacement
+          purgeDirectoryFromInputs(digest, e.inputs);
+          expireFuture = immediateFuture(null);
+          logger.finest(format("replacing referenced entry for %s", path.getFileName()));
+        }
       }
     }
 
+    metrics.directoryMisses.increment();
     ImmutableList.Builder<Path> inputsBuilder = ImmutableList.builder();
     ListenableFuture<Void> fetchFuture = transformAsync(
         expireFuture,
@@ -1273,6 +1839,10 @@ public abstract class CASFileCache implements ContentAddressableStorage {
           synchronized (this) {
             purgeDirectoryFromInputs(digest, inputs);
             decrementReferencesSynchronized(inputs, ImmutableList.<Digest>of());
+            DirectoryEntry replacedEntry = directoryStorage.get(digest);
+            if (replacedEntry != null && replacedEntry.referenceCount == 0) {
+              directoryStorage.remove(digest);
+            }
           }
           try {
             removeDirectory(path);
@@ -1292,8 +1862,15 @@ public abstract class CASFileCache implements ContentAddressableStorage {
               digest.getSizeBytes() == 0 ? Directory.getDefaultInstance() : directoriesIndex.get(digest),
               inputsBuilder.build(),
               Deadline.after(10, SECONDS));
+          e.referenceCount = 1;
           synchronized (this) {
-            directoryStorage.put(digest, e);
+            DirectoryEntry replacedEntry = directoryStorage.put(digest, e);
+            if (replacedEntry != null && replacedEntry.referenceCount > 0) {
+              e.referenceCount += replacedEntry.referenceCount;
+              if (decrementInputReferences(replacedEntry.inputs) > 0) {
+                notify();
+              }
+            }
           }
           return path;
         },
@@ -1311,6 +1888,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
         () -> completeWrite(digest),
         digest.getSizeBytes(),
         isExecutable,
+        /* compressible=*/ false,
         /* containingDirectory=*/ null,
         () -> {
           onPut.accept(digest);
@@ -1339,6 +1917,7 @@ public abstract class CASFileCache implements ContentAddressableStorage {
               () -> completeWrite(digest),
               digest.getSizeBytes(),
               isExecutable,
+              /* compressible=*/ false,
               containingDirectory,
               () -> {
                 onPut.accept(digest);
@@ -1352,10 +1931,37 @@ public abstract class CASFileCache implements ContentAddressableStorage {
         executor);
   }
 
+  /**
+   * reference every present and uncompressed entry among keys under a single
+   * acquisition of the cache monitor
+   *
+   * Each returned key has been referenced and must be decremented by the
+   * caller. Absent or compressed entries are left for put to populate.
+   */
+  public Set<Path> referenceExisting(Iterable<Path> keys) {
+    ImmutableSet.Builder<Path> referenced = ImmutableSet.builder();
+    long startNanos = CASFileCacheMetrics.start();
+    synchronized (this) {
+      metrics.record(LOCK_WAIT, startNanos);
+      for (Path key : keys) {
+        Entry e = storage.get(key);
+        if (e != null && !e.compressed && entryExists(e)) {
+          e.incrementReference();
+          referenced.add(key);
+          metrics.putHits.increment();
+        }
+      }
+    }
+    return referenced.build();
+  }
+
   private void copyExternalInput(Digest digest, CancellableOutputStream out) throws IOException, InterruptedException {
+    long startNanos = CASFileCacheMetrics.start();
+    metrics.externalInputs.increment();
     try {
       logger.finest(format("downloading %s", DigestUtil.toString(digest)));
-      ByteStreams.copy(newExternalInput(digest, /* offset=*/ 0), out);
+      metrics.externalInputBytes.add(ByteStreams.copy(newExternalInput(digest, /* offset=*/ 0), out));
+      metrics.record(NEW_EXTERNAL_INPUT, startNanos);
       logger.finest(format("download of %s complete", DigestUtil.toString(digest)));
     } catch (IOException e) {
       out.cancel();
@@ -1416,19 +2022,28 @@ public abstract class CASFileCache implements ContentAddressableStorage {
       Supplier<Boolean> writeWinner,
       long blobSizeInBytes,
       boolean isExecutable,
+      boolean compressible,
       Digest containingDirectory,
       Runnable onInsert) throws IOException, InterruptedException {
+    long startNanos = CASFileCacheMetrics.start();
     CancellableOutputStream out = putImplSynchronized(
         key,
         writeId,
         writeWinner,
         blobSizeInBytes,
         isExecutable,
+        compressible,
         containingDirectory,
         onInsert);
+    metrics.record(PUT, startNanos);
     if (out == DUPLICATE_OUTPUT_STREAM) {
+      metrics.putHits.increment();
+      if (!compressible) {
+        ensureUncompressed(key);
+      }
       return null;
     }
+    metrics.putMisses.increment();
     logger.finest(format("entry %s is missing, downloading and populating", key.getFileName()));
     return newCancellableOutputStream(out);
   }
@@ -1500,18 +2115,20 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     }
   }
 
-  private CancellableOutputStream putImplSynchronized(
+  /**
+   * reference an existing entry for key, returning false, or account for
+   * a new entry of blobSizeInBytes, expiring entries as necessary to make
+   * room for it, and returning true
+   */
+  private boolean reserve(
       Path key,
-      UUID writeId,
-      Supplier<Boolean> writeWinner,
       long blobSizeInBytes,
-      boolean isExecutable,
-      Digest containingDirectory,
-      Runnable onInsert)
-      throws IOException, InterruptedException {
+      Digest containingDirectory) throws IOException, InterruptedException {
     final ListenableFuture<Set<Digest>> expiredDigestsFuture;
 
+    long lockStartNanos = CASFileCacheMetrics.start();
     synchronized (this) {
+      metrics.record(LOCK_WAIT, lockStartNanos);
       Entry e = storage.get(key);
       if (e != null && !entryExists(e)) {
         Entry removedEntry = storage.remove(key);
@@ -1526,43 +2143,74 @@ public abstract class CASFileCache implements ContentAddressableStorage {
           e.containingDirectories.add(containingDirectory);
         }
         e.incrementReference();
-        return DUPLICATE_OUTPUT_STREAM;
+        return false;
       }
 
       sizeInBytes += blobSizeInBytes;
+      expiredDigestsFuture = expireEntries(blobSizeInBytes);
+    }
 
-      ImmutableList.Builder<ListenableFuture<Digest>> expiredKeysFutures = ImmutableList.builder();
-      while (sizeInBytes > maxSizeInBytes) {
-        expiredKeysFutures.add(
-            transformAsync(
-                expireEntry(blobSizeInBytes, expireService),
-                (expiredKey) -> {
-                  try {
-                    Files.delete(expiredKey);
-                  } catch (NoSuchFileException eNoEnt) {
-                    logger.severe(format("CASFileCache::putImpl: expired key %s did not exist to delete", expiredKey.toString()));
-                  }
-                  String fileName = expiredKey.getFileName().toString();
-                  FileEntryKey fileEntryKey = parseFileEntryKey(fileName);
-                  if (fileEntryKey == null) {
-                    logger.severe(format("error parsing expired key %s", expiredKey));
-                  } else if (storage.containsKey(getKey(fileEntryKey.getDigest(), !fileEntryKey.getIsExecutable()))) {
-                    return immediateFuture(null);
-                  }
-                  return immediateFuture(fileEntryKey.getDigest());
-                },
-                expireService));
-      }
-      expiredDigestsFuture = transform(
-          allAsList(expiredKeysFutures.build()),
-          (digests) -> ImmutableSet.copyOf(Iterables.filter(digests, (digest) -> digest != null)),
-          expireService);
+    notifyExpired(expiredDigestsFuture);
+    return true;
+  }
+
+  /**
+   * expire unreferenced entries until the cache fits within its maximum
+   * size, after growing by blobSizeInBytes
+   *
+   * must be called in synchronized context
+   */
+  private ListenableFuture<Set<Digest>> expireEntries(long blobSizeInBytes)
+      throws IOException, InterruptedException {
+    ImmutableList.Builder<ListenableFuture<Digest>> expiredKeysFutures = ImmutableList.builder();
+    while (sizeInBytes > maxSizeInBytes) {
+      expiredKeysFutures.add(
+          transformAsync(
+              expireEntry(blobSizeInBytes, expireService),
+              (expiredKey) -> {
+                try {
+                  Files.delete(expiredKey);
+                } catch (NoSuchFileException eNoEnt) {
+                  logger.severe(format("CASFileCache::putImpl: expired key %s did not exist to delete", expiredKey.toString()));
+                }
+                String fileName = expiredKey.getFileName().toString();
+                FileEntryKey fileEntryKey = parseFileEntryKey(fileName);
+                if (fileEntryKey == null) {
+                  logger.severe(format("error parsing expired key %s", expiredKey));
+                } else if (storage.containsKey(getKey(fileEntryKey.getDigest(), !fileEntryKey.getIsExecutable()))) {
+                  return immediateFuture(null);
+                }
+                return immediateFuture(fileEntryKey.getDigest());
+              },
+              expireService));
     }
+    return transform(
+        allAsList(expiredKeysFutures.build()),
+        (digests) -> ImmutableSet.copyOf(Iterables.filter(digests, (digest) -> digest != null)),
+        expireService);
+  }
 
+  private void notifyExpired(ListenableFuture<Set<Digest>> expiredDigestsFuture)
+      throws IOException, InterruptedException {
     Set<Digest> expiredDigests = getInterruptiblyOrIOException(expiredDigestsFuture);
     if (!expiredDigests.isEmpty()) {
       onExpire.accept(expiredDigests);
     }
+  }
+
+  private CancellableOutputStream putImplSynchronized(
+      Path key,
+      UUID writeId,
+      Supplier<Boolean> writeWinner,
+      long blobSizeInBytes,
+      boolean isExecutable,
+      boolean compressible,
+      Digest containingDirectory,
+      Runnable onInsert)
+      throws IOException, InterruptedException {
+    if (!reserve(key, blobSizeInBytes, containingDirectory)) {
+      return DUPLICATE_OUTPUT_STREAM;
+    }
 
     Path writePath = key.resolveSibling(key.getFileName() + "." + writeId);
     final long committedSize;
@@ -1633,34 +2281,190 @@ public abstract class CASFileCache implements ContentAddressableStorage {
           if (!fileName.startsWith(hash)) {
             throw new DigestMismatchException("blob digest mismatch, expected " + fileName + " to start with " + hash);
           }
-          setPermissions(writePath, isExecutable);
-
-          Entry entry = new Entry(
+          insertEntry(
+              writePath,
               key,
               blobSizeInBytes,
+              isExecutable,
+              compressible,
               containingDirectory,
-              Deadline.after(10, SECONDS));
+              writeWinner,
+              onInsert);
+        }
+      }
+    };
+  }
 
-          // maybe don't replace existing?
-          Files.move(writePath, key, REPLACE_EXISTING);
+  /** move a completed and verified write into place as the entry for key */
+  private void insertEntry(
+      Path writePath,
+      Path key,
+      long blobSizeInBytes,
+      boolean isExecutable,
+      boolean compressible,
+      Digest containingDirectory,
+      Supplier<Boolean> writeWinner,
+      Runnable onInsert) throws IOException {
+    setPermissions(writePath, isExecutable);
 
-          if (writeWinner.get()) {
-            logger.finest("won the race to insert " + key);
-            if (storage.putIfAbsent(key, entry) != null) {
-              throw new IllegalStateException("storage conflict with existing key for " + key);
-            }
-            try {
-              onInsert.run();
-            } catch (RuntimeException e) {
-              throw new IOException(e);
-            }
-          } else {
-            // we would lose our accountability and have a presumed reference if we returned
-            throw new IllegalStateException("lost the race to insert " + key);
+    Entry entry = new Entry(
+        key,
+        blobSizeInBytes,
+        containingDirectory,
+        Deadline.after(10, SECONDS));
+
+    // maybe don't replace existing?
+    Files.move(writePath, key, REPLACE_EXISTING);
+    // compressed once the writer releases it, off of the write path
+    entry.compressionPending = compressible && !isExecutable && compression != null;
+
+    if (writeWinner.get()) {
+      logger.finest("won the race to insert " + key);
+      addToBloomFilter(key);
+      if (storage.putIfAbsent(key, entry) != null) {
+        throw new IllegalStateException("storage conflict with existing key for " + key);
+      }
+      metrics.putBytes.add(blobSizeInBytes);
+      try {
+        onInsert.run();
+      } catch (RuntimeException e) {
+        throw new IOException(e);
+      }
+    } else {
+      // we would lose our accountability and have a presumed reference if we returned
+      throw new IllegalStateException("lost the race to insert " + key);
+    }
+  }
+
+  /**
+   * compress an inserted entry on the expire service, if it is still
+   * pending compression
+   */
+  private void scheduleCompression(Path key) {
+    Entry e = storage.get(key);
+    if (e == null) {
+      return;
+    }
+    synchronized (e) {
+      if (!e.compressionPending) {
+        return;
+      }
+      e.compressionPending = false;
+    }
+    try {
+      expireService.execute(() -> compressEntry(e));
+    } catch (RejectedExecutionException rejectedException) {
+      logger.log(SEVERE, "could not schedule compression of " + key, rejectedException);
+    }
+  }
+
+  /**
+   * replace the content of an entry with its compressed content if the
+   * policy selects it, accounting for the entry with its compressed size
+   *
+   * Entries which have been referenced, or removed, in the meantime are
+   * left uncompressed, since their files may already be linked.
+   */
+  private void compressEntry(Entry e) {
+    Path key = e.key;
+    Path compressingPath = key.resolveSibling(key.getFileName() + "." + COMPRESSED_SUFFIX);
+    Path compressedPath = getCompressedPath(key);
+    try {
+      synchronized (e) {
+        long size = e.size;
+        if (e.compressed || storage.get(key) != e || !compression.shouldCompress(key, size)) {
+          return;
+        }
+        long compressedSize;
+        try {
+          compressedSize = compression.compress(key, compressingPath);
+        } catch (IOException ioException) {
+          Files.deleteIfExists(compressingPath);
+          throw ioException;
+        }
+        if (compressedSize >= size) {
+          Files.delete(compressingPath);
+          return;
+        }
+        Files.move(compressingPath, compressedPath, REPLACE_EXISTING);
+        boolean compressed = false;
+        synchronized (this) {
+          if (storage.get(key) == e && e.referenceCount == 0) {
+            long savedBytes = size - compressedSize;
+            sizeInBytes -= savedBytes;
+            compressionSavedBytes += savedBytes;
+            e.size = compressedSize;
+            e.compressed = true;
+            compressed = true;
           }
         }
+        Files.delete(compressed ? key : compressedPath);
       }
-    };
+    } catch (IOException ioException) {
+      logger.log(SEVERE, "error compressing " + key, ioException);
+    }
+  }
+
+  /**
+   * replace a compressed entry with its inflated content, so that it may
+   * be linked into exec directories
+   *
+   * The entry must be referenced by the caller.
+   */
+  private void ensureUncompressed(Path key) throws IOException, InterruptedException {
+    Entry e = storage.get(key);
+    if (e == null) {
+      return;
+    }
+    ListenableFuture<Set<Digest>> expiredDigestsFuture;
+    synchronized (e) {
+      if (!e.compressed) {
+        return;
+      }
+      Path compressedPath = getCompressedPath(key);
+      Path inflatingPath = key.resolveSibling(key.getFileName() + ".inflate");
+      try (InputStream in = CASCompression.newInput(compressedPath)) {
+        Files.copy(in, inflatingPath, REPLACE_EXISTING);
+      } catch (IOException ioException) {
+        Files.deleteIfExists(inflatingPath);
+        throw ioException;
+      }
+      setPermissions(inflatingPath, /* isExecutable=*/ false);
+      Files.move(inflatingPath, key, REPLACE_EXISTING);
+      long inflatedSize = Files.size(key);
+      synchronized (this) {
+        long savedBytes = inflatedSize - e.size;
+        sizeInBytes += savedBytes;
+        compressionSavedBytes -= savedBytes;
+        e.size = inflatedSize;
+        e.compressed = false;
+        // the entry is referenced by the caller, and is not a candidate
+        expiredDigestsFuture = expireEntries(savedBytes);
+      }
+      Files.delete(compressedPath);
+    }
+    notifyExpired(expiredDigestsFuture);
+  }
+
+  private Path getCompressedPath(Path key) {
+    return key.resolveSibling(key.getFileName() + "_" + COMPRESSED_SUFFIX);
+  }
+
+  /** the path of the file holding the content of this entry */
+  private Path getEntryPath(Entry e) {
+    return e.compressed ? getCompressedPath(e.key) : e.key;
+  }
+
+  /**
+   * the number of bytes of content retained by the cache, which may exceed
+   * its maximum size by the savings of compressed entries
+   */
+  public synchronized long getEffectiveSizeInBytes() {
+    return sizeInBytes + compressionSavedBytes;
+  }
+
+  public synchronized long getSizeInBytes() {
+    return sizeInBytes;
   }
 
   private static void setPermissions(Path path, boolean isExecutable) throws IOException {
@@ -1671,7 +2475,11 @@ public abstract class CASFileCache implements ContentAddressableStorage {
   public static class Entry {
     Entry before, after;
     final Path key;
-    final long size;
+    // replaced under the entry's lock, and read without it
+    volatile long size;
+    volatile boolean compressed = false;
+    // guarded by the entry, set until the policy has considered compressing it
+    boolean compressionPending = false;
     final Set<Digest> containingDirectories;
     int referenceCount;
     Deadline existsDeadline;
@@ -1776,6 +2584,8 @@ public abstract class CASFileCache implements ContentAddressableStorage {
     public final Directory directory;
     public final Iterable<Path> inputs;
     Deadline existsDeadline;
+    // the inputs are referenced once while this is nonzero
+    int referenceCount = 0;
 
     public DirectoryEntry(Directory directory, Iterable<Path> inputs, Deadline existsDeadline) {
       this.directory = directory;
@@ -0,0 +1,152 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import build.buildfarm.v1test.CASCacheMetrics;
+import build.buildfarm.v1test.LatencyHistogram;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counters and latency histograms for a CASFileCache
+ *
+ * All updates are made with LongAdders, so recording is cheap under
+ * contention, and snapshots are only approximately consistent.
+ */
+public class CASFileCacheMetrics {
+  public enum Operation {
+    PUT("put"),
+    NEW_INPUT("newInput"),
+    PUT_DIRECTORY("putDirectory"),
+    EXPIRE_ENTRY("expireEntry"),
+    NEW_EXTERNAL_INPUT("newExternalInput"),
+    LOCK_WAIT("lockWait");
+
+    private final String name;
+
+    Operation(String name) {
+      this.name = name;
+    }
+  }
+
+  final LongAdder inputHits = new LongAdder();
+  final LongAdder inputMisses = new LongAdder();
+  final LongAdder memoryTierHits = new LongAdder();
+  final LongAdder inputBytes = new LongAdder();
+  final LongAdder putHits = new LongAdder();
+  final LongAdder putMisses = new LongAdder();
+  final LongAdder putBytes = new LongAdder();
+  final LongAdder externalInputs = new LongAdder();
+  final LongAdder externalInputBytes = new LongAdder();
+  private final LongAdder externalLocalFallbacks = new LongAdder();
+  final LongAdder directoryHits = new LongAdder();
+  final LongAdder directoryMisses = new LongAdder();
+  final LongAdder evictions = new LongAdder();
+  final LongAdder evictedBytes = new LongAdder();
+  final LongAdder expirationWaits = new LongAdder();
+  final LongAdder ingestLinkFallbacks = new LongAdder();
+
+  private final Histogram[] latencies = new Histogram[Operation.values().length];
+
+  public CASFileCacheMetrics() {
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i] = new Histogram();
+    }
+  }
+
+  /** returns a tick for a subsequent record */
+  public static long start() {
+    return System.nanoTime();
+  }
+
+  public void record(Operation operation, long startNanos) {
+    latencies[operation.ordinal()].add(NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+  }
+
+  /** an external input was satisfied by another copy within the cache */
+  public void recordExternalLocalFallback() {
+    externalLocalFallbacks.increment();
+  }
+
+  /** populates the counter and latency fields of a metrics message */
+  public CASCacheMetrics.Builder toBuilder() {
+    CASCacheMetrics.Builder builder = CASCacheMetrics.newBuilder()
+        .setInputHits(inputHits.sum())
+        .setInputMisses(inputMisses.sum())
+        .setMemoryTierHits(memoryTierHits.sum())
+        .setInputBytes(inputBytes.sum())
+        .setPutHits(putHits.sum())
+        .setPutMisses(putMisses.sum())
+        .setPutBytes(putBytes.sum())
+        .setExternalInputs(externalInputs.sum())
+        .setExternalInputBytes(externalInputBytes.sum())
+        .setExternalLocalFallbacks(externalLocalFallbacks.sum())
+        .setDirectoryHits(directoryHits.sum())
+        .setDirectoryMisses(directoryMisses.sum())
+        .setEvictions(evictions.sum())
+        .setEvictedBytes(evictedBytes.sum())
+        .setExpirationWaits(expirationWaits.sum())
+        .setIngestLinkFallbacks(ingestLinkFallbacks.sum());
+    for (Operation operation : Operation.values()) {
+      builder.addLatencies(latencies[operation.ordinal()].toMessage(operation.name));
+    }
+    return builder;
+  }
+
+  /**
+   * power of two buckets of microseconds, from [0, 1) through
+   * [2^(BUCKETS-2), infinity)
+   */
+  private static class Histogram {
+    private static final int BUCKETS = 32;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sumMicros = new LongAdder();
+
+    Histogram() {
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] = new LongAdder();
+      }
+    }
+
+    void add(long micros) {
+      if (micros < 0) {
+        micros = 0;
+      }
+      int bucket = Math.min(Long.SIZE - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+      counts[bucket].increment();
+      sumMicros.add(micros);
+    }
+
+    LatencyHistogram toMessage(String name) {
+      LatencyHistogram.Builder builder = LatencyHistogram.newBuilder()
+          .setName(name);
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        long bucketCount = counts[i].sum();
+        if (i < BUCKETS - 1) {
+          builder.addBucketUpperBoundsMicros(1L << i);
+        }
+        builder.addBucketCounts(bucketCount);
+        count += bucketCount;
+      }
+      return builder
+          .setCount(count)
+          .setSumMicros(sumMicros.sum())
+          .build();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.cache.Cache;
+import build.buildfarm.common.cache.CacheBuilder;
+import build.buildfarm.common.cache.CacheStats;
+import build.buildfarm.common.cache.Weigher;
+import com.google.protobuf.ByteString;
+import javax.annotation.Nullable;
+
+/**
+ * bounded in-heap retention of small blob contents
+ *
+ * The tier is only ever populated with content that has been (or is being)
+ * written to the file cache, and is never consulted for presence, so it may
+ * be evicted from or invalidated at any time without consequence.
+ */
+public class CASMemoryTier {
+  private static final Weigher<Digest, ByteString> weigher =
+      (digest, content) -> content.size();
+
+  private final long maxEntrySizeInBytes;
+  private final Cache<Digest, ByteString> blobs;
+
+  public CASMemoryTier(long maxSizeInBytes, long maxEntrySizeInBytes) {
+    this.maxEntrySizeInBytes = maxEntrySizeInBytes;
+    blobs = CacheBuilder.newBuilder()
+        .maximumWeight(maxSizeInBytes)
+        .weigher(weigher)
+        .recordStats()
+        .build();
+  }
+
+  /** whether a blob of this digest is eligible for retention */
+  public boolean accepts(Digest digest) {
+    long size = digest.getSizeBytes();
+    return size > 0 && size <= maxEntrySizeInBytes;
+  }
+
+  @Nullable
+  public ByteString get(Digest digest) {
+    return blobs.getIfPresent(digest);
+  }
+
+  public void put(Digest digest, ByteString content) {
+    if (accepts(digest) && content.size() == digest.getSizeBytes()) {
+      blobs.put(digest, content);
+    }
+  }
+
+  public void invalidate(Digest digest) {
+    blobs.invalidate(digest);
+  }
+
+  public long size() {
+    return blobs.size();
+  }
+
+  public CacheStats stats() {
+    return blobs.stats();
+  }
+}
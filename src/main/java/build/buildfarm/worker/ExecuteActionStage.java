@@ -14,24 +14,49 @@
 
 package build.buildfarm.worker;
 
+import static java.util.concurrent.Executors.newCachedThreadPool;
 import static java.util.logging.Level.SEVERE;
 
-import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Logger;
 
 public class ExecuteActionStage extends PipelineStage {
   private static final Logger logger = Logger.getLogger(ExecuteActionStage.class.getName());
 
-  private final Set<Thread> executors = new HashSet<>();
+  // executor and output pump threads are reused across actions
+  private final ThreadPoolExecutor executorService = (ThreadPoolExecutor) newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("executor-%d").build());
+  private final OutputPump outputPump;
+  private final Set<String> executors = new HashSet<>();
   private BlockingQueue<OperationContext> queue = new ArrayBlockingQueue<>(1);
+  private final ExecuteResources resources;
+  private final Map<String, ExecuteResources.Claim> claims = new HashMap<>();
+  private final PersistentWorkers persistentWorkers;
+  private boolean servicesShutdown = false;
 
   public ExecuteActionStage(WorkerContext workerContext, PipelineStage output, PipelineStage error) {
+    this(workerContext, output, error, /* resources=*/ null, /* persistentWorkers=*/ null);
+  }
+
+  public ExecuteActionStage(
+      WorkerContext workerContext,
+      PipelineStage output,
+      PipelineStage error,
+      ExecuteResources resources,
+      PersistentWorkers persistentWorkers) {
     super("ExecuteActionStage", workerContext, output, createDestroyExecDirStage(workerContext, error));
+    // the stdout and stderr of every executing process
+    outputPump = new OutputPump(2 * Math.max(1, workerContext.getExecuteStageWidth()));
+    this.resources = resources;
+    this.persistentWorkers = persistentWorkers;
   }
 
   static PipelineStage createDestroyExecDirStage(WorkerContext workerContext, PipelineStage nextStage) {
@@ -70,22 +95,118 @@ public class ExecuteActionStage extends PipelineStage {
       return false;
     }
 
-    while (executors.size() + queue.size() >= workerContext.getExecuteStageWidth()) {
+    while (!isClosed() && executors.size() + queue.size() >= workerContext.getExecuteStageWidth()) {
+      wait();
+    }
+    // operations fetched ahead are requeued if the stage closes while they wait
+    return !isClosed();
+  }
+
+  /**
+   * admit an operation by both the stage width and the resources its
+   * command requires, which are held until its executor is released
+   */
+  @Override
+  public synchronized boolean claim(OperationContext operationContext) throws InterruptedException {
+    if (resources == null) {
+      return claim();
+    }
+    if (isClosed()) {
+      return false;
+    }
+
+    ExecuteResources.Claim required = resources.required(operationContext.command);
+    while (!isClosed()
+        && (executors.size() + queue.size() >= workerContext.getExecuteStageWidth()
+            || !resources.fits(required))) {
       wait();
     }
+    if (isClosed()) {
+      return false;
+    }
+    claims.put(operationContext.operation.getName(), resources.acquire(required));
     return true;
   }
 
-  public synchronized int removeAndNotify() {
-    if (!executors.remove(Thread.currentThread())) {
-      throw new IllegalStateException("tried to remove unknown executor thread");
+  @Override
+  public synchronized void release(OperationContext operationContext) {
+    releaseResources(operationContext.operation.getName());
+  }
+
+  private synchronized void releaseResources(String operationName) {
+    if (releaseClaim(operationName)) {
+      // waiters may be admissible by resources rather than width
+      this.notifyAll();
     }
-    this.notify();
-    return executors.size();
   }
 
-  private String getUsage(int size) {
-    return String.format("%s/%d", size, workerContext.getExecuteStageWidth());
+  /** must be called in synchronized context */
+  private boolean releaseClaim(String operationName) {
+    if (resources == null) {
+      return false;
+    }
+    ExecuteResources.Claim claim = claims.remove(operationName);
+    if (claim == null) {
+      return false;
+    }
+    resources.release(claim);
+    return true;
+  }
+
+  /** the cpu list an operation is pinned to, or null if unpinned */
+  public synchronized String getCpuList(String operationName) {
+    ExecuteResources.Claim claim = claims.get(operationName);
+    return claim == null ? null : claim.getCpuList();
+  }
+
+  OutputPump getOutputPump() {
+    return outputPump;
+  }
+
+  /** the persistent workers available to actions, or null if disabled */
+  PersistentWorkers getPersistentWorkers() {
+    return persistentWorkers;
+  }
+
+  /**
+   * remove an executor and release its resources together, waking every
+   * claim, since any one of them may fit in what was freed
+   */
+  public int removeAndNotify(String operationName) {
+    int size;
+    boolean idle;
+    synchronized (this) {
+      if (!executors.remove(operationName)) {
+        throw new IllegalStateException("tried to remove unknown executor for " + operationName);
+      }
+      releaseClaim(operationName);
+      this.notifyAll();
+      size = executors.size();
+      idle = size == 0 && isClosed();
+    }
+    if (idle) {
+      // the last executor of a closed stage
+      shutdownServices();
+    }
+    return size;
+  }
+
+  private synchronized String getUsage(int size) {
+    String usage = String.format(
+        "%s/%d, %d threads (%d created), %d output threads (%d created)",
+        size,
+        workerContext.getExecuteStageWidth(),
+        executorService.getPoolSize(),
+        executorService.getLargestPoolSize(),
+        outputPump.getPoolSize(),
+        outputPump.getLargestPoolSize());
+    if (resources != null) {
+      usage += ", " + resources.getUsage();
+    }
+    if (persistentWorkers != null) {
+      usage += String.format(", %d idle persistent workers", persistentWorkers.getIdleCount());
+    }
+    return usage;
   }
 
   private void logComplete(int size) {
@@ -98,7 +219,7 @@ public class ExecuteActionStage extends PipelineStage {
   }
 
   public void releaseExecutor(String operationName, long usecs, long stallUSecs, int exitCode) {
-    int size = removeAndNotify();
+    int size = removeAndNotify(operationName);
     logComplete(
         operationName,
         usecs,
@@ -108,21 +229,51 @@ public class ExecuteActionStage extends PipelineStage {
 
   @Override
   protected synchronized boolean isClaimed() {
-    return Iterables.any(executors, (executor) -> executor.isAlive());
+    return !executors.isEmpty();
   }
 
   @Override
   protected void iterate() throws InterruptedException {
     OperationContext operationContext = take();
-    Thread executor = new Thread(new Executor(workerContext, operationContext, this));
+    String operationName = operationContext.operation.getName();
+    Executor executor = new Executor(workerContext, operationContext, this);
 
     int size;
     synchronized (this) {
-      executors.add(executor);
+      executors.add(operationName);
       size = executors.size();
     }
-    logStart(operationContext.operation.getName(), getUsage(size));
+    logStart(operationName, getUsage(size));
+
+    executorService.execute(executor);
+  }
 
-    executor.start();
+  @Override
+  public void close() {
+    super.close();
+    boolean idle;
+    synchronized (this) {
+      // release any claims waiting for a slot
+      notifyAll();
+      idle = executors.isEmpty();
+    }
+    // otherwise the last executor to be removed shuts down the services
+    if (idle) {
+      shutdownServices();
+    }
+  }
+
+  private void shutdownServices() {
+    synchronized (this) {
+      if (servicesShutdown) {
+        return;
+      }
+      servicesShutdown = true;
+    }
+    executorService.shutdown();
+    outputPump.stop();
+    if (persistentWorkers != null) {
+      persistentWorkers.stop();
+    }
   }
 }
@@ -0,0 +1,209 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static java.lang.String.format;
+import static java.util.logging.Level.WARNING;
+
+import build.bazel.remote.execution.v2.Command;
+import build.bazel.remote.execution.v2.Platform.Property;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.logging.Logger;
+
+/**
+ * the cores and memory of a worker available to executing actions
+ *
+ * Actions request resources with the "cores" or "min-cores" and "memory"
+ * or "min-memory" (in bytes) platform properties, defaulting to a single
+ * core and no memory. A request is capped at the total available, so that
+ * every action is eventually admissible. Zero totals are unbounded.
+ *
+ * Pinned claims are assigned ids from a set of cpus, which should be those
+ * the worker may run on.
+ *
+ * Not thread safe, guarded by the owning stage.
+ */
+public class ExecuteResources {
+  private static final Logger logger = Logger.getLogger(ExecuteResources.class.getName());
+
+  private static final String CPUS_ALLOWED_LIST = "Cpus_allowed_list:";
+
+  public static class Claim {
+    final int cores;
+    final long memoryBytes;
+    final BitSet coreIds;
+
+    Claim(int cores, long memoryBytes, BitSet coreIds) {
+      this.cores = cores;
+      this.memoryBytes = memoryBytes;
+      this.coreIds = coreIds;
+    }
+
+    /** the claimed core ids as a taskset cpu list, or null if not pinned */
+    public String getCpuList() {
+      if (coreIds == null) {
+        return null;
+      }
+      StringBuilder cpuList = new StringBuilder();
+      for (int id = coreIds.nextSetBit(0); id >= 0; id = coreIds.nextSetBit(id + 1)) {
+        if (cpuList.length() != 0) {
+          cpuList.append(',');
+        }
+        cpuList.append(id);
+      }
+      return cpuList.toString();
+    }
+  }
+
+  private final int cores;
+  private final long memoryBytes;
+  private final BitSet cpus;
+  private final BitSet claimedCoreIds = new BitSet();
+  private int claimedCores = 0;
+  private long claimedMemoryBytes = 0;
+
+  /** claims are pinned to ids from cpus, unless it is null */
+  public ExecuteResources(int cores, long memoryBytes, BitSet cpus) {
+    if (cpus != null && cores > cpus.cardinality()) {
+      logger.warning(format("limiting %d execute cores to %d pinnable cpus", cores, cpus.cardinality()));
+      cores = cpus.cardinality();
+    }
+    this.cores = cores;
+    this.memoryBytes = memoryBytes;
+    this.cpus = cores > 0 ? cpus : null;
+  }
+
+  /**
+   * parses a cpu list such as "0-3,8,10-11", as used by taskset and
+   * cpuset.cpus
+   */
+  public static BitSet parseCpuList(String cpuList) {
+    BitSet cpus = new BitSet();
+    for (String range : cpuList.trim().split(",")) {
+      if (range.isEmpty()) {
+        continue;
+      }
+      int dash = range.indexOf('-');
+      try {
+        if (dash < 0) {
+          cpus.set(Integer.parseInt(range.trim()));
+        } else {
+          int first = Integer.parseInt(range.substring(0, dash).trim());
+          int last = Integer.parseInt(range.substring(dash + 1).trim());
+          cpus.set(first, last + 1);
+        }
+      } catch (NumberFormatException|IndexOutOfBoundsException e) {
+        throw new IllegalArgumentException("invalid cpu list: " + cpuList, e);
+      }
+    }
+    return cpus;
+  }
+
+  /**
+   * the cpus this process may run on, from its affinity in
+   * /proc/self/status, or null if it cannot be determined
+   */
+  public static BitSet getAllowedCpus() {
+    try {
+      for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+        if (line.startsWith(CPUS_ALLOWED_LIST)) {
+          return parseCpuList(line.substring(CPUS_ALLOWED_LIST.length()));
+        }
+      }
+    } catch (IOException|IllegalArgumentException e) {
+      logger.log(WARNING, "could not read allowed cpus", e);
+    }
+    return null;
+  }
+
+  public Claim required(Command command) {
+    int requiredCores = 1;
+    long requiredMemoryBytes = 0;
+    for (Property property : command.getPlatform().getPropertiesList()) {
+      switch (property.getName()) {
+        case "cores":
+        case "min-cores":
+          requiredCores = (int) Math.min(Integer.MAX_VALUE, Math.max(requiredCores, parseProperty(property)));
+          break;
+        case "memory":
+        case "min-memory":
+          requiredMemoryBytes = Math.max(requiredMemoryBytes, parseProperty(property));
+          break;
+        default:
+          break;
+      }
+    }
+    if (cores > 0) {
+      requiredCores = Math.min(requiredCores, cores);
+    }
+    if (memoryBytes > 0) {
+      requiredMemoryBytes = Math.min(requiredMemoryBytes, memoryBytes);
+    }
+    return new Claim(requiredCores, requiredMemoryBytes, null);
+  }
+
+  private static long parseProperty(Property property) {
+    try {
+      return Math.max(0, Long.parseLong(property.getValue()));
+    } catch (NumberFormatException e) {
+      logger.warning(format("ignoring invalid %s platform property: %s", property.getName(), property.getValue()));
+      return 0;
+    }
+  }
+
+  public boolean fits(Claim required) {
+    return (cores <= 0 || claimedCores + required.cores <= cores)
+        && (memoryBytes <= 0 || claimedMemoryBytes + required.memoryBytes <= memoryBytes);
+  }
+
+  /** must only be called with a required claim that fits */
+  public Claim acquire(Claim required) {
+    claimedCores += required.cores;
+    claimedMemoryBytes += required.memoryBytes;
+    BitSet coreIds = null;
+    if (cpus != null) {
+      BitSet unclaimedCpus = (BitSet) cpus.clone();
+      unclaimedCpus.andNot(claimedCoreIds);
+      coreIds = new BitSet();
+      int id = -1;
+      for (int i = 0; i < required.cores; i++) {
+        id = unclaimedCpus.nextSetBit(id + 1);
+        coreIds.set(id);
+        claimedCoreIds.set(id);
+      }
+    }
+    return new Claim(required.cores, required.memoryBytes, coreIds);
+  }
+
+  public void release(Claim claim) {
+    claimedCores -= claim.cores;
+    claimedMemoryBytes -= claim.memoryBytes;
+    if (claim.coreIds != null) {
+      claimedCoreIds.andNot(claim.coreIds);
+    }
+  }
+
+  public String getUsage() {
+    return format(
+        "cores %d/%s, memory %d/%s",
+        claimedCores,
+        cores > 0 ? Integer.toString(cores) : "-",
+        claimedMemoryBytes,
+        memoryBytes > 0 ? Long.toString(memoryBytes) : "-");
+  }
+}
@@ -21,9 +21,11 @@ import static java.lang.String.format;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.MICROSECONDS;
 import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
 
 import build.bazel.remote.execution.v2.ActionResult;
 import build.bazel.remote.execution.v2.Command;
+import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.ExecuteOperationMetadata;
 import build.bazel.remote.execution.v2.ExecuteOperationMetadata.Stage;
 import build.bazel.remote.execution.v2.ExecuteResponse;
@@ -32,6 +34,8 @@ import build.bazel.remote.execution.v2.Platform.Property;
 import build.buildfarm.common.Write;
 import build.buildfarm.v1test.ExecutingOperationMetadata;
 import build.buildfarm.v1test.ExecutionPolicy;
+import build.buildfarm.v1test.WorkRequest;
+import build.buildfarm.v1test.WorkResponse;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.SettableFuture;
@@ -330,11 +334,32 @@ class Executor implements Runnable {
       ActionResult.Builder resultBuilder,
       Iterable<ExecutionPolicy> policies)
       throws IOException, InterruptedException {
-    ImmutableList.Builder<String> arguments = ImmutableList.builder();
-    arguments.addAll(
+    Iterable<String> wrapperArguments = ImmutableList.copyOf(
         transform(
             filter(policies, (policy) -> policy.getPolicyCase() == WRAPPER),
             (policy) -> policy.getWrapper().getPath()));
+
+    PersistentWorkers persistentWorkers = owner.getPersistentWorkers();
+    if (persistentWorkers != null && PersistentWorkers.supportsWorkers(command)) {
+      Code statusCode = executeOnPersistentWorker(
+          persistentWorkers,
+          operationName,
+          execDir,
+          command,
+          timeout,
+          wrapperArguments,
+          resultBuilder);
+      if (statusCode != null) {
+        return statusCode;
+      }
+    }
+
+    ImmutableList.Builder<String> arguments = ImmutableList.builder();
+    String cpuList = owner.getCpuList(operationName);
+    if (cpuList != null) {
+      arguments.add("taskset", "-c", cpuList);
+    }
+    arguments.addAll(wrapperArguments);
     arguments.addAll(command.getArgumentsList());
 
     ProcessBuilder processBuilder =
@@ -376,15 +401,13 @@ class Executor implements Runnable {
 
     stdoutWrite.reset();
     stderrWrite.reset();
-    ByteStringWriteReader stdoutReader = new ByteStringWriteReader(
-        process.getInputStream(), stdoutWrite);
-    ByteStringWriteReader stderrReader = new ByteStringWriteReader(
-        process.getErrorStream(), stderrWrite);
+    ByteStringWriteReader stdoutReader = newOutputReader(
+        process.getInputStream(), stdoutWrite, execDir, WorkerContext.STDOUT_SPILL_NAME);
+    ByteStringWriteReader stderrReader = newOutputReader(
+        process.getErrorStream(), stderrWrite, execDir, WorkerContext.STDERR_SPILL_NAME);
 
-    Thread stdoutReaderThread = new Thread(stdoutReader);
-    Thread stderrReaderThread = new Thread(stderrReader);
-    stdoutReaderThread.start();
-    stderrReaderThread.start();
+    owner.getOutputPump().register(stdoutReader);
+    owner.getOutputPump().register(stderrReader);
 
     Code statusCode = Code.OK;
     try {
@@ -414,12 +437,81 @@ class Executor implements Runnable {
       }
       throw e;
     }
-    stdoutReaderThread.join();
-    stderrReaderThread.join();
+    resultBuilder.setExitCode(exitCode);
+    Digest stdoutSpillDigest = stdoutReader.getSpillDigest();
+    if (stdoutSpillDigest != null) {
+      resultBuilder.setStdoutDigest(stdoutSpillDigest);
+    } else {
+      resultBuilder.setStdoutRaw(stdoutReader.getData());
+    }
+    Digest stderrSpillDigest = stderrReader.getSpillDigest();
+    if (stderrSpillDigest != null) {
+      resultBuilder.setStderrDigest(stderrSpillDigest);
+    } else {
+      resultBuilder.setStderrRaw(stderrReader.getData());
+    }
+    return statusCode;
+  }
+
+  /**
+   * run command as a request to a persistent worker
+   *
+   * Returns null if the worker could not be started, in which case the
+   * command should run as a new process. A worker which fails during its
+   * request fails the action, since the request may have modified the exec
+   * dir. Workers are not pinned to the cores claimed by a single action.
+   */
+  private Code executeOnPersistentWorker(
+      PersistentWorkers persistentWorkers,
+      String operationName,
+      Path execDir,
+      Command command,
+      Duration timeout,
+      Iterable<String> wrapperArguments,
+      ActionResult.Builder resultBuilder) throws IOException, InterruptedException {
+    PersistentWorkers.PersistentWorker worker;
+    WorkRequest request;
+    try {
+      request = PersistentWorkers.createRequest(command, execDir);
+      worker = persistentWorkers.acquire(PersistentWorkers.getKey(command, wrapperArguments), execDir);
+    } catch (IOException e) {
+      logger.log(WARNING, "error starting persistent worker for " + operationName, e);
+      return null;
+    }
+
+    long timeoutNanos = timeout == null ? 0 : Durations.toNanos(timeout);
+    WorkResponse response;
+    try {
+      response = worker.work(request, execDir, timeoutNanos);
+    } catch (IOException | InterruptedException e) {
+      persistentWorkers.release(worker, /* healthy=*/ false);
+      throw e;
+    }
+    if (response == null) {
+      logger.info("persistent worker timed out for " + operationName);
+      persistentWorkers.release(worker, /* healthy=*/ false);
+      resultBuilder.setExitCode(exitCode);
+      return Code.DEADLINE_EXCEEDED;
+    }
+    persistentWorkers.release(worker, /* healthy=*/ true);
+    exitCode = response.getExitCode();
     resultBuilder
         .setExitCode(exitCode)
-        .setStdoutRaw(stdoutReader.getData())
-        .setStderrRaw(stderrReader.getData());
-    return statusCode;
+        .setStderrRaw(ByteString.copyFromUtf8(response.getOutput()));
+    return Code.OK;
+  }
+
+  private ByteStringWriteReader newOutputReader(
+      InputStream input, Write write, Path execDir, String spillName) {
+    int spillThreshold = workerContext.getOutputSpillThreshold();
+    if (spillThreshold <= 0) {
+      return new ByteStringWriteReader(input, write);
+    }
+    return new ByteStringWriteReader(
+        input,
+        write,
+        workerContext.getOutputSpillPath(execDir, spillName),
+        spillThreshold,
+        workerContext.getDigestUtil());
   }
 }
@@ -0,0 +1,203 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.logging.Level.WARNING;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.InputStreamFactory;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
+
+/**
+ * fixed size blocks of blob content, retained in lru order within a
+ * memory bound
+ *
+ * Blocks are fetched individually from their offset within a blob, and
+ * concurrent requests for a block share a single fetch. Sequential reads
+ * may request readahead of the blocks which follow.
+ */
+class FuseBlockCache {
+  private static final Logger logger = Logger.getLogger(FuseBlockCache.class.getName());
+
+  static final int BLOCK_SIZE = 1024 * 1024;
+  private static final int READAHEAD_THREADS = 4;
+
+  private final InputStreamFactory inputStreamFactory;
+  private final long maxSizeBytes;
+  private final int readaheadBlocks;
+  private final ExecutorService readaheadService = newFixedThreadPool(
+      READAHEAD_THREADS,
+      new ThreadFactoryBuilder().setNameFormat("fuse-readahead-%d").setDaemon(true).build());
+  // access ordered, guarded by this
+  private final LinkedHashMap<BlockKey, ByteString> blocks = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<BlockKey, SettableFuture<ByteString>> fetches = new HashMap<>();
+  private long sizeBytes = 0;
+
+  private static final class BlockKey {
+    final Digest digest;
+    final long index;
+
+    BlockKey(Digest digest, long index) {
+      this.digest = digest;
+      this.index = index;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof BlockKey)) {
+        return false;
+      }
+      BlockKey key = (BlockKey) o;
+      return index == key.index && digest.equals(key.digest);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(digest, index);
+    }
+  }
+
+  FuseBlockCache(InputStreamFactory inputStreamFactory, long maxSizeBytes, int readaheadBlocks) {
+    this.inputStreamFactory = inputStreamFactory;
+    this.maxSizeBytes = maxSizeBytes;
+    this.readaheadBlocks = readaheadBlocks;
+  }
+
+  /** reads up to size bytes of the content of digest at offset */
+  ByteString read(Digest digest, long offset, int size) throws IOException, InterruptedException {
+    long end = Math.min(offset + size, digest.getSizeBytes());
+    ByteString content = ByteString.EMPTY;
+    while (offset < end) {
+      long index = offset / BLOCK_SIZE;
+      ByteString block = getBlock(new BlockKey(digest, index));
+      int blockOffset = (int) (offset - index * BLOCK_SIZE);
+      int blockEnd = (int) Math.min(block.size(), end - index * BLOCK_SIZE);
+      content = content.concat(block.substring(blockOffset, blockEnd));
+      offset += blockEnd - blockOffset;
+    }
+    return content;
+  }
+
+  /** fetches the blocks following offset in digest in the background */
+  void readahead(Digest digest, long offset) {
+    long firstIndex = (offset + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    long blockCount = (digest.getSizeBytes() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    for (long index = firstIndex; index < firstIndex + readaheadBlocks && index < blockCount; index++) {
+      BlockKey key = new BlockKey(digest, index);
+      SettableFuture<ByteString> fetch;
+      synchronized (this) {
+        if (blocks.containsKey(key) || fetches.containsKey(key)) {
+          continue;
+        }
+        fetch = SettableFuture.create();
+        fetches.put(key, fetch);
+      }
+      readaheadService.execute(() -> {
+        try {
+          fetch(key, fetch);
+        } catch (IOException e) {
+          logger.log(WARNING, "error reading ahead " + DigestUtil.toString(key.digest), e);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+    }
+  }
+
+  private ByteString getBlock(BlockKey key) throws IOException, InterruptedException {
+    SettableFuture<ByteString> fetch;
+    boolean fetching = false;
+    synchronized (this) {
+      ByteString block = blocks.get(key);
+      if (block != null) {
+        return block;
+      }
+      fetch = fetches.get(key);
+      if (fetch == null) {
+        fetch = SettableFuture.create();
+        fetches.put(key, fetch);
+        fetching = true;
+      }
+    }
+    if (fetching) {
+      return fetch(key, fetch);
+    }
+    try {
+      return fetch.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private ByteString fetch(BlockKey key, SettableFuture<ByteString> fetch) throws IOException, InterruptedException {
+    long offset = key.index * BLOCK_SIZE;
+    int length = (int) Math.min(BLOCK_SIZE, key.digest.getSizeBytes() - offset);
+    ByteString block;
+    try (InputStream in = inputStreamFactory.newInput(key.digest, offset)) {
+      block = ByteString.readFrom(ByteStreams.limit(in, length));
+      if (block.size() != length) {
+        throw new IOException(String.format(
+            "short read of %s at %d: %d of %d bytes",
+            DigestUtil.toString(key.digest), offset, block.size(), length));
+      }
+    } catch (IOException|InterruptedException|RuntimeException e) {
+      synchronized (this) {
+        fetches.remove(key);
+      }
+      fetch.setException(e);
+      throw e;
+    }
+    synchronized (this) {
+      fetches.remove(key);
+      if (blocks.put(key, block) == null) {
+        sizeBytes += block.size();
+      }
+      Iterator<ByteString> iter = blocks.values().iterator();
+      while (sizeBytes > maxSizeBytes && iter.hasNext()) {
+        sizeBytes -= iter.next().size();
+        iter.remove();
+      }
+    }
+    fetch.set(block);
+    return block;
+  }
+
+  synchronized long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  void stop() {
+    readaheadService.shutdownNow();
+  }
+}
@@ -14,7 +14,9 @@
 
 package build.buildfarm.worker;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
 
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
@@ -23,8 +25,12 @@ import build.bazel.remote.execution.v2.FileNode;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.InputStreamFactory;
 import build.buildfarm.common.Watchdog;
-import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Duration;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -33,7 +39,12 @@ import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -56,14 +67,42 @@ import ru.serce.jnrfuse.struct.FuseFileInfo;
 import ru.serce.jnrfuse.struct.Timespec;
 
 public class FuseCAS extends FuseStubFS {
+  // reads of the input stream factory consume at most this much from a stream
+  public static final int BLOCK_SIZE = FuseBlockCache.BLOCK_SIZE;
+
   private static final Logger logger = Logger.getLogger(FuseCAS.class.getName());
+  private static final long DEFAULT_BLOCK_CACHE_MAX_SIZE_BYTES = 256 * 1024 * 1024;
+  private static final int READAHEAD_BLOCKS = 4;
+  private static final long MAX_CHILDREN_CACHE_WEIGHT = 1024 * 1024;
+  static final int PREFETCH_THREADS = 16;
+  // prefetches are advisory, lookups fetch any directory which was dropped
+  static final int PREFETCH_QUEUE_SIZE = 4096;
+  // the kernel retains failed lookups for this long. Every change to the
+  // tree other than the addition of input roots, which are created at
+  // unique paths, is made through the mount and invalidates them.
+  private static final int NEGATIVE_TIMEOUT_SECONDS = 10;
 
   private final Path mountPath;
   private final InputStreamFactory inputStreamFactory;
   private final DirectoryEntry root;
   private final AtomicInteger fileHandleCounter = new AtomicInteger(1);
   private final Map<Integer, Entry> fileHandleEntries = new ConcurrentHashMap<>();
-  private final Map<Digest, Map<String, Entry>> childrenCache = new ConcurrentHashMap<>();
+  // the end of the last read of each handle, to detect sequential reads
+  private final Map<Integer, Long> readOffsets = new ConcurrentHashMap<>();
+  private final FuseBlockCache blockCache;
+  // weighed by entry count, directories are refetched if evicted
+  private final Cache<Digest, Map<String, Entry>> childrenCache = CacheBuilder.newBuilder()
+      .maximumWeight(MAX_CHILDREN_CACHE_WEIGHT)
+      .weigher((Digest digest, Map<String, Entry> children) -> children.size() + 1)
+      .build();
+  private final ThreadPoolExecutor prefetchService = new ThreadPoolExecutor(
+      PREFETCH_THREADS,
+      PREFETCH_THREADS,
+      0, MILLISECONDS,
+      new ArrayBlockingQueue<>(PREFETCH_QUEUE_SIZE),
+      new ThreadFactoryBuilder().setNameFormat("fuse-prefetch-%d").setDaemon(true).build());
+  // outstanding prefetches of each input root, by its entry
+  private final Map<Entry, Prefetch> prefetches = new ConcurrentHashMap<>();
 
   private transient boolean mounted = false;
   private transient long mounts = 0;
@@ -279,9 +318,11 @@ public class FuseCAS extends FuseStubFS {
   }
 
   class CASDirectoryEntry extends DirectoryEntry {
+    final Digest digest;
     private final DirectoryEntryChildrenFetcher childrenFetcher;
 
-    CASDirectoryEntry(DirectoryEntryChildrenFetcher childrenFetcher) {
+    CASDirectoryEntry(Digest digest, DirectoryEntryChildrenFetcher childrenFetcher) {
+      this.digest = digest;
       this.childrenFetcher = childrenFetcher;
     }
 
@@ -346,8 +387,13 @@ public class FuseCAS extends FuseStubFS {
   }
 
   public FuseCAS(Path mountPath, InputStreamFactory inputStreamFactory) {
+    this(mountPath, inputStreamFactory, DEFAULT_BLOCK_CACHE_MAX_SIZE_BYTES);
+  }
+
+  public FuseCAS(Path mountPath, InputStreamFactory inputStreamFactory, long blockCacheMaxSizeBytes) {
     this.mountPath = mountPath;
     this.inputStreamFactory = inputStreamFactory;
+    blockCache = new FuseBlockCache(inputStreamFactory, blockCacheMaxSizeBytes, READAHEAD_BLOCKS);
     root = new LocalDirectoryEntry();
   }
 
@@ -356,6 +402,8 @@ public class FuseCAS extends FuseStubFS {
       umount();
       mounts = 0;
     }
+    blockCache.stop();
+    prefetchService.shutdownNow();
   }
 
   @FunctionalInterface
@@ -395,7 +443,10 @@ public class FuseCAS extends FuseStubFS {
       }
       if (!mounted) {
         logger.info("Mounting FuseCAS");
-        String[] fuseOpts = new String[]{"-o", "max_write=131072", "-o", "big_writes"};
+        String[] fuseOpts = new String[]{
+            "-o", "max_write=131072",
+            "-o", "big_writes",
+            "-o", "negative_timeout=" + NEGATIVE_TIMEOUT_SECONDS};
         try {
           mount(mountPath, /* blocking=*/ false, /* debug=*/ false, /* fuseOpts=*/ fuseOpts);
         } catch (FuseException e) {
@@ -418,28 +469,102 @@ public class FuseCAS extends FuseStubFS {
     }
   }
 
-  private Map<String, Entry> fetchChildren(DirectoryEntry dirEntry, Digest digest) throws IOException, InterruptedException {
-    Map<String, Entry> children = childrenCache.get(digest);
-    if (children == null) {
-      try {
-        Directory directory = Directory.parseFrom(ByteString.readFrom(inputStreamFactory.newInput(digest, 0)));
+  private Map<String, Entry> loadChildren(Digest digest) throws IOException, InterruptedException {
+    Directory directory = Directory.parseFrom(ByteString.readFrom(inputStreamFactory.newInput(digest, 0)));
+
+    ImmutableMap.Builder<String, Entry> builder = new ImmutableMap.Builder<>();
+
+    for (FileNode fileNode : directory.getFilesList()) {
+      builder.put(fileNode.getName(), new FileEntry(fileNode.getDigest(), fileNode.getIsExecutable()));
+    }
+    for (DirectoryNode directoryNode : directory.getDirectoriesList()) {
+      Digest directoryDigest = directoryNode.getDigest();
+      builder.put(directoryNode.getName(), new CASDirectoryEntry(directoryDigest, fetchChildrenFunction(directoryDigest)));
+    }
+
+    return builder.build();
+  }
 
-        ImmutableMap.Builder<String, Entry> builder = new ImmutableMap.Builder<>();
+  private Map<String, Entry> fetchChildren(DirectoryEntry dirEntry, Digest digest) throws IOException, InterruptedException {
+    try {
+      // concurrent fetches of a directory, including prefetches, share a single load
+      return childrenCache.get(digest, () -> loadChildren(digest));
+    } catch (ExecutionException|UncheckedExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof InvalidProtocolBufferException) {
+        logger.log(SEVERE, "error parsing directory " + DigestUtil.toString(digest), cause);
+        return null;
+      }
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfInstanceOf(cause, InterruptedException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new IOException(cause);
+    }
+  }
 
-        for (FileNode fileNode : directory.getFilesList()) {
-          builder.put(fileNode.getName(), new FileEntry(fileNode.getDigest(), fileNode.getIsExecutable()));
+  /**
+   * fetches the directories of a tree breadth first, in parallel, ahead of
+   * lookups within it
+   *
+   * Directories which do not fit in the prefetch queue are dropped, and
+   * those still queued are removed when the prefetch is cancelled.
+   */
+  private class Prefetch {
+    private final Set<Runnable> pending = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled = false;
+
+    void fetch(Digest digest) {
+      if (cancelled) {
+        return;
+      }
+      Runnable task = new Runnable() {
+        @Override
+        public void run() {
+          pending.remove(this);
+          if (!cancelled) {
+            fetchAndDescend(digest);
+          }
         }
-        for (DirectoryNode directoryNode : directory.getDirectoriesList()) {
-          builder.put(directoryNode.getName(), new CASDirectoryEntry(fetchChildrenFunction(directoryNode.getDigest())));
+      };
+      pending.add(task);
+      try {
+        prefetchService.execute(task);
+      } catch (RejectedExecutionException e) {
+        pending.remove(task);
+      }
+    }
+
+    private void fetchAndDescend(Digest digest) {
+      Map<String, Entry> children;
+      try {
+        children = fetchChildren(/* dirEntry=*/ null, digest);
+      } catch (IOException|RuntimeException e) {
+        logger.log(WARNING, "error prefetching directory " + DigestUtil.toString(digest), e);
+        return;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      if (children == null) {
+        return;
+      }
+      for (Entry child : children.values()) {
+        if (child instanceof CASDirectoryEntry) {
+          Digest childDigest = ((CASDirectoryEntry) child).digest;
+          if (childrenCache.getIfPresent(childDigest) == null) {
+            fetch(childDigest);
+          }
         }
+      }
+    }
 
-        children = builder.build();
-        childrenCache.put(digest, children);
-      } catch (InvalidProtocolBufferException e) {
-        logger.log(SEVERE, "error parsing directory " + DigestUtil.toString(digest), e);
+    void cancel() {
+      cancelled = true;
+      for (Runnable task : pending) {
+        prefetchService.remove(task);
       }
+      pending.clear();
     }
-    return children;
   }
 
   private DirectoryEntryChildrenFetcher fetchChildrenFunction(Digest digest) {
@@ -448,14 +573,27 @@ public class FuseCAS extends FuseStubFS {
 
   public void createInputRoot(String topdir, Digest inputRoot) throws IOException, InterruptedException {
     incMounts();
+    Entry entry = new CASDirectoryEntry(inputRoot, fetchChildrenFunction(inputRoot));
     resolveTopdir(topdir, root, (currentDir, base) -> {
       // FIXME duplicates?
-      currentDir.putChild(base, new CASDirectoryEntry(fetchChildrenFunction(inputRoot)));
+      cancelPrefetch(currentDir.getChild(base));
+      currentDir.putChild(base, entry);
     });
+    Prefetch prefetch = new Prefetch();
+    prefetches.put(entry, prefetch);
+    prefetch.fetch(inputRoot);
+  }
+
+  private void cancelPrefetch(Entry entry) {
+    Prefetch prefetch = entry == null ? null : prefetches.remove(entry);
+    if (prefetch != null) {
+      prefetch.cancel();
+    }
   }
 
   public void destroyInputRoot(String topdir) throws IOException, InterruptedException {
     resolveTopdir(topdir, root, (currentDir, base) -> {
+      cancelPrefetch(currentDir.getChild(base));
       currentDir.removeChild(base);
     });
     decMounts();
@@ -808,6 +946,7 @@ public class FuseCAS extends FuseStubFS {
   @Override
   public int release(String path, FuseFileInfo fi) {
     fileHandleEntries.remove(fi.fh.intValue());
+    readOffsets.remove(fi.fh.intValue());
 
     /*
     // Maybe do this, maybe not
@@ -871,25 +1010,11 @@ public class FuseCAS extends FuseStubFS {
       return -ErrorCodes.EISDIR();
     }
 
-    ByteString content;
-    if (entry.isWritable()) {
-      WriteFileEntry writeFileEntry = (WriteFileEntry) entry;
-
-      content = writeFileEntry.content;
-    } else {
-      FileEntry fileEntry = (FileEntry) entry;
-
-      try {
-        content = ByteString.readFrom(inputStreamFactory.newInput(fileEntry.digest, 0));
-      } catch (InterruptedException e) {
-        return -ErrorCodes.EINTR();
-      } catch (IOException e) {
-        return -ErrorCodes.EIO();
-      }
-
-      Preconditions.checkState(fileEntry.digest.getSizeBytes() == content.size());
+    if (!entry.isWritable()) {
+      return readFileEntry((FileEntry) entry, fi.fh.intValue(), buf, size, offset);
     }
 
+    ByteString content = ((WriteFileEntry) entry).content;
     int length = content.size();
     if (offset < length) {
       if (offset + size > length) {
@@ -903,6 +1028,28 @@ public class FuseCAS extends FuseStubFS {
     return (int) size;
   }
 
+  private int readFileEntry(FileEntry fileEntry, int fh, Pointer buf, long size, long offset) {
+    ByteString content;
+    try {
+      content = blockCache.read(fileEntry.digest, offset, (int) Math.min(size, Integer.MAX_VALUE));
+    } catch (InterruptedException e) {
+      return -ErrorCodes.EINTR();
+    } catch (IOException e) {
+      logger.log(SEVERE, "error reading " + DigestUtil.toString(fileEntry.digest), e);
+      return -ErrorCodes.EIO();
+    }
+
+    long end = offset + content.size();
+    Long expectedOffset = readOffsets.put(fh, end);
+    if (expectedOffset != null && expectedOffset == offset) {
+      blockCache.readahead(fileEntry.digest, end);
+    }
+
+    byte[] bytes = content.toByteArray();
+    buf.put(0, bytes, 0, bytes.length);
+    return bytes.length;
+  }
+
   @Override
   public int mkdir(String path, @mode_t long mode) {
     // FIXME mode validation 
@@ -20,20 +20,45 @@ import build.bazel.remote.execution.v2.ExecuteOperationMetadata;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+/**
+ * fetches the inputs of matched operations into exec dirs
+ *
+ * A fetcher which has completed its exec dir remains claimed while it
+ * waits for an execute slot, but no longer occupies a fetch slot. Up to
+ * lookahead operations may be fetched ahead of the execute stage this
+ * way, so long as the inputs of those waiting stay within lookaheadBytes.
+ */
 public class InputFetchStage extends PipelineStage {
   private static final Logger logger = Logger.getLogger(InputFetchStage.class.getName());
 
   private final Set<Thread> fetchers = Sets.newHashSet();
+  private final Map<Thread, Long> prefetched = new HashMap<>();
   private final BlockingQueue<OperationContext> queue = new ArrayBlockingQueue<>(1);
+  private final int lookahead;
+  private final long lookaheadBytes;
+  private long prefetchedBytes = 0;
 
   public InputFetchStage(WorkerContext workerContext, PipelineStage output, PipelineStage error) {
+    this(workerContext, output, error, /* lookahead=*/ 0, /* lookaheadBytes=*/ 0);
+  }
+
+  public InputFetchStage(
+      WorkerContext workerContext,
+      PipelineStage output,
+      PipelineStage error,
+      int lookahead,
+      long lookaheadBytes) {
     super("InputFetchStage", workerContext, output, error);
+    this.lookahead = lookahead;
+    this.lookaheadBytes = lookaheadBytes;
   }
 
   @Override
@@ -68,22 +93,55 @@ public class InputFetchStage extends PipelineStage {
       return false;
     }
 
-    while (fetchers.size() + queue.size() >= workerContext.getInputFetchStageWidth()) {
+    while (isFull()) {
       wait();
     }
     return true;
   }
 
+  private boolean isFull() {
+    int width = workerContext.getInputFetchStageWidth();
+    int claimedCount = fetchers.size() + queue.size();
+    if (claimedCount - prefetched.size() >= width) {
+      return true;
+    }
+    int limit = width;
+    if (lookaheadBytes <= 0 || prefetchedBytes < lookaheadBytes) {
+      limit += lookahead;
+    }
+    return claimedCount >= limit;
+  }
+
+  /**
+   * the current fetcher has created its exec dir, with inputBytes of
+   * inputs, and will wait for an execute slot
+   */
+  synchronized void prefetched(long inputBytes) {
+    prefetched.put(Thread.currentThread(), inputBytes);
+    prefetchedBytes += inputBytes;
+    this.notifyAll();
+  }
+
   public synchronized int removeAndNotify() {
-    if (!fetchers.remove(Thread.currentThread())) {
+    Thread fetcher = Thread.currentThread();
+    if (!fetchers.remove(fetcher)) {
       throw new IllegalStateException("tried to remove unknown fetcher thread");
     }
-    this.notify();
+    Long inputBytes = prefetched.remove(fetcher);
+    if (inputBytes != null) {
+      prefetchedBytes -= inputBytes;
+    }
+    this.notifyAll();
     return fetchers.size();
   }
 
-  private String getUsage(int size) {
-    return String.format("%s/%d", size, workerContext.getInputFetchStageWidth());
+  private synchronized String getUsage(int size) {
+    return String.format(
+        "%s/%d, %d prefetched (%d bytes)",
+        size - prefetched.size(),
+        workerContext.getInputFetchStageWidth(),
+        prefetched.size(),
+        prefetchedBytes);
   }
 
   private void logComplete(int size) {
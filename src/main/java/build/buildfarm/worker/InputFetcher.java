@@ -18,11 +18,17 @@ import static build.bazel.remote.execution.v2.ExecuteOperationMetadata.Stage.QUE
 import static java.lang.String.format;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Level.WARNING;
 
 import build.bazel.remote.execution.v2.Action;
 import build.bazel.remote.execution.v2.Command;
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.DirectoryNode;
+import build.bazel.remote.execution.v2.FileNode;
+import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.Poller;
 import build.buildfarm.v1test.QueuedOperation;
 import com.google.common.base.Stopwatch;
@@ -31,12 +37,20 @@ import com.google.protobuf.util.Durations;
 import io.grpc.Deadline;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.logging.Logger;
 
 public class InputFetcher implements Runnable {
   private static final Logger logger = Logger.getLogger(InputFetcher.class.getName());
+  // bounds the keepalive of an operation fetched ahead of an execute slot
+  private static final long LOOKAHEAD_DEADLINE_MINUTES = 10;
 
   private final WorkerContext workerContext;
   private final OperationContext operationContext;
@@ -119,23 +133,93 @@ public class InputFetcher implements Runnable {
         .setAction(queuedOperation.getAction())
         .setCommand(queuedOperation.getCommand())
         .build();
-    boolean claimed = owner.output().claim();
+
+    // free our fetch slot and keep the operation claimed while we wait
+    owner.prefetched(getInputBytes(queuedOperation));
+    operationContext.poller.pause();
+    final Thread fetcherThread = Thread.currentThread();
+    workerContext.resumePoller(
+        operationContext.poller,
+        "InputFetcher",
+        operationContext.queueEntry,
+        QUEUED,
+        () -> fetcherThread.interrupt(),
+        Deadline.after(LOOKAHEAD_DEADLINE_MINUTES, MINUTES));
+
+    boolean claimed;
+    try {
+      claimed = owner.output().claim(executeOperationContext);
+    } catch (InterruptedException e) {
+      destroyExecDir(execDir);
+      throw e;
+    }
     operationContext.poller.pause();
     if (claimed) {
       try {
         owner.output().put(executeOperationContext);
       } catch (InterruptedException e) {
-        owner.output().release();
+        owner.output().release(executeOperationContext);
+        destroyExecDir(execDir);
         throw e;
       }
     } else {
       workerContext.logInfo("InputFetcher: Operation " + operationName + " Failed to claim output");
 
+      destroyExecDir(execDir);
       owner.error().put(operationContext);
     }
     return stopwatch.elapsed(MICROSECONDS) - fetchUSecs;
   }
 
+  private long getInputBytes(QueuedOperation queuedOperation) {
+    DigestUtil digestUtil = workerContext.getDigestUtil();
+    Map<Digest, Directory> directoriesIndex = new HashMap<>();
+    for (Directory directory : queuedOperation.getDirectoriesList()) {
+      directoriesIndex.put(digestUtil.compute(directory), directory);
+    }
+    return getInputBytes(queuedOperation.getAction().getInputRootDigest(), directoriesIndex);
+  }
+
+  /**
+   * the size of the distinct files in the tree at digest
+   *
+   * Every file in an exec dir is a link to a cache entry, so each unique
+   * file digest holds its size in the cache once, however many times it
+   * occurs in the tree.
+   */
+  static long getInputBytes(Digest digest, Map<Digest, Directory> directoriesIndex) {
+    Set<Digest> visitedDirectories = new HashSet<>();
+    Set<Digest> fileDigests = new HashSet<>();
+    Deque<Digest> pendingDirectories = new ArrayDeque<>();
+    pendingDirectories.push(digest);
+    long bytes = 0;
+    while (!pendingDirectories.isEmpty()) {
+      Directory directory = directoriesIndex.get(pendingDirectories.pop());
+      if (directory == null) {
+        continue;
+      }
+      for (FileNode fileNode : directory.getFilesList()) {
+        if (fileDigests.add(fileNode.getDigest())) {
+          bytes += fileNode.getDigest().getSizeBytes();
+        }
+      }
+      for (DirectoryNode directoryNode : directory.getDirectoriesList()) {
+        if (visitedDirectories.add(directoryNode.getDigest())) {
+          pendingDirectories.push(directoryNode.getDigest());
+        }
+      }
+    }
+    return bytes;
+  }
+
+  private void destroyExecDir(Path execDir) throws InterruptedException {
+    try {
+      workerContext.destroyExecDir(execDir);
+    } catch (IOException e) {
+      logger.log(SEVERE, "error while destroying " + execDir, e);
+    }
+  }
+
   @Override
   public void run() {
     long stallUSecs = 0;
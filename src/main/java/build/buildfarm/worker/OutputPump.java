@@ -0,0 +1,67 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * reads the output pipes of child processes on a shared pool of threads
+ *
+ * Process pipes are not selectable, so each pipe is read with blocking
+ * reads by one pool thread until it reaches the end of its input. Threads
+ * are created on demand up to maxThreads, reused for subsequent pipes, and
+ * exit once idle. The bound must admit every pipe of concurrently running
+ * processes, since a queued pipe could otherwise stall its writer.
+ */
+public class OutputPump {
+  private static final long IDLE_SECONDS = 60;
+
+  private final ThreadPoolExecutor readers;
+
+  public OutputPump(int maxThreads) {
+    readers = new ThreadPoolExecutor(
+        maxThreads,
+        maxThreads,
+        IDLE_SECONDS, SECONDS,
+        new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder()
+            .setNameFormat("output-pump-%d")
+            .setDaemon(true)
+            .build());
+    readers.allowCoreThreadTimeOut(true);
+  }
+
+  /** read the input of reader on a pool thread until drained */
+  public void register(ByteStringWriteReader reader) {
+    readers.execute(reader);
+  }
+
+  int getPoolSize() {
+    return readers.getPoolSize();
+  }
+
+  int getLargestPoolSize() {
+    return readers.getLargestPoolSize();
+  }
+
+  /** pipes being read are drained before their threads exit */
+  public void stop() {
+    readers.shutdown();
+  }
+}
@@ -0,0 +1,386 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static build.buildfarm.worker.Utils.removeDirectory;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+
+import build.bazel.remote.execution.v2.Command;
+import build.bazel.remote.execution.v2.Platform.Property;
+import build.buildfarm.v1test.WorkRequest;
+import build.buildfarm.v1test.WorkResponse;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * long-lived worker processes, reused across actions with the same tool
+ *
+ * An action requests a persistent worker with a "supports-workers"
+ * platform property and a trailing flagfile argument, as bazel marks its
+ * worker actions. The arguments preceding the flagfiles start the worker
+ * with --persistent_worker, and the flagfile contents are sent to it as a
+ * WorkRequest. Workers are keyed by their startup arguments and
+ * environment, and by an optional "persistentWorkerKey" property, with
+ * which a client should distinguish tool versions.
+ *
+ * Each worker runs in its own directory, which is populated with links to
+ * the top level entries of the exec dir of the action it is serving, so
+ * that paths relative to the exec dir resolve as they would for a new
+ * process. Entries created at the top level of the worker directory are
+ * moved into the exec dir once a request completes. The stderr of a worker
+ * is appended to a log beside its directory, which is truncated before a
+ * request once it exceeds MAX_LOG_BYTES.
+ *
+ * At most maxIdleWorkers are retained between requests, evicting the
+ * least recently used.
+ */
+public class PersistentWorkers {
+  private static final Logger logger = Logger.getLogger(PersistentWorkers.class.getName());
+
+  public static final String SUPPORTS_WORKERS_PROPERTY = "supports-workers";
+  public static final String WORKER_KEY_PROPERTY = "persistentWorkerKey";
+  private static final String PERSISTENT_WORKER_FLAG = "--persistent_worker";
+  private static final String FLAGFILE_FLAG = "--flagfile=";
+  private static final long MAX_LOG_BYTES = 1024 * 1024;
+
+  private final Path root;
+  private final int maxIdleWorkers;
+  // least recently used first
+  private final LinkedList<PersistentWorker> idleWorkers = new LinkedList<>();
+  // a read from a worker cannot be interrupted, only ended by its exit
+  private final ExecutorService exchangeService = newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("persistent-worker-exchange-%d").setDaemon(true).build());
+
+  public PersistentWorkers(Path root, int maxIdleWorkers) {
+    this.root = root;
+    this.maxIdleWorkers = maxIdleWorkers;
+  }
+
+  public static final class Key {
+    private final List<String> startupArguments;
+    private final ImmutableMap<String, String> environment;
+    private final String keyProperty;
+
+    Key(List<String> startupArguments, ImmutableMap<String, String> environment, String keyProperty) {
+      this.startupArguments = startupArguments;
+      this.environment = environment;
+      this.keyProperty = keyProperty;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) o;
+      return startupArguments.equals(key.startupArguments)
+          && environment.equals(key.environment)
+          && keyProperty.equals(key.keyProperty);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(startupArguments, environment, keyProperty);
+    }
+  }
+
+  private static boolean isFlagfile(String argument) {
+    return (argument.startsWith("@") && !argument.startsWith("@@"))
+        || argument.startsWith(FLAGFILE_FLAG);
+  }
+
+  private static int flagfilesIndex(List<String> arguments) {
+    int index = arguments.size();
+    while (index > 0 && isFlagfile(arguments.get(index - 1))) {
+      index--;
+    }
+    return index;
+  }
+
+  /** whether the command requests a persistent worker and can be run by one */
+  public static boolean supportsWorkers(Command command) {
+    boolean marked = false;
+    for (Property property : command.getPlatform().getPropertiesList()) {
+      if (property.getName().equals(SUPPORTS_WORKERS_PROPERTY)) {
+        String value = property.getValue();
+        marked = value.equals("1") || value.equals("true");
+      }
+    }
+    List<String> arguments = command.getArgumentsList();
+    int index = flagfilesIndex(arguments);
+    return marked && index > 0 && index < arguments.size();
+  }
+
+  /**
+   * the key for a worker to serve command, with prefix arguments, such as
+   * execution policy wrappers, preceding its startup arguments
+   */
+  public static Key getKey(Command command, Iterable<String> prefixArguments) {
+    List<String> arguments = command.getArgumentsList();
+    ImmutableList.Builder<String> startupArguments = ImmutableList.builder();
+    startupArguments.addAll(prefixArguments);
+    startupArguments.addAll(arguments.subList(0, flagfilesIndex(arguments)));
+    startupArguments.add(PERSISTENT_WORKER_FLAG);
+
+    ImmutableMap.Builder<String, String> environment = ImmutableMap.builder();
+    for (Command.EnvironmentVariable environmentVariable : command.getEnvironmentVariablesList()) {
+      environment.put(environmentVariable.getName(), environmentVariable.getValue());
+    }
+
+    String keyProperty = "";
+    for (Property property : command.getPlatform().getPropertiesList()) {
+      if (property.getName().equals(WORKER_KEY_PROPERTY)) {
+        keyProperty = property.getValue();
+      }
+    }
+    return new Key(startupArguments.build(), environment.build(), keyProperty);
+  }
+
+  /**
+   * expands the trailing flagfiles of command, relative to execDir, into
+   * request arguments
+   *
+   * Each worker serves a single request at a time, so requests carry the
+   * singleplex request id of 0.
+   */
+  public static WorkRequest createRequest(Command command, Path execDir) throws IOException {
+    List<String> arguments = command.getArgumentsList();
+    WorkRequest.Builder request = WorkRequest.newBuilder();
+    for (String flagfile : arguments.subList(flagfilesIndex(arguments), arguments.size())) {
+      String path = flagfile.startsWith(FLAGFILE_FLAG)
+          ? flagfile.substring(FLAGFILE_FLAG.length())
+          : flagfile.substring(1);
+      for (String line : Files.readAllLines(execDir.resolve(path), UTF_8)) {
+        if (!line.isEmpty()) {
+          request.addArguments(line);
+        }
+      }
+    }
+    return request.build();
+  }
+
+  public class PersistentWorker {
+    private final Key key;
+    private final Path workDir;
+    private final Path log;
+    private final Process process;
+    private final OutputStream requests;
+    private final InputStream responses;
+    private final List<Path> links = new ArrayList<>();
+
+    private PersistentWorker(Key key, Path workDir, Path execDir) throws IOException {
+      this.key = key;
+      this.workDir = workDir;
+      log = workDir.resolveSibling(workDir.getFileName() + ".log");
+      Files.createDirectories(workDir);
+      link(execDir);
+      ProcessBuilder processBuilder = new ProcessBuilder(key.startupArguments)
+          .directory(workDir.toAbsolutePath().toFile())
+          .redirectError(Redirect.appendTo(log.toFile()));
+      processBuilder.environment().clear();
+      processBuilder.environment().putAll(key.environment);
+      try {
+        process = processBuilder.start();
+      } catch (IOException e) {
+        unlink(execDir);
+        removeDirectory(workDir);
+        throw e;
+      }
+      requests = process.getOutputStream();
+      responses = process.getInputStream();
+    }
+
+    private void link(Path execDir) throws IOException {
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(execDir)) {
+        for (Path entry : entries) {
+          Path link = workDir.resolve(entry.getFileName().toString());
+          Files.createSymbolicLink(link, entry.toAbsolutePath());
+          links.add(link);
+        }
+      }
+    }
+
+    /** removes the links to execDir, moving any new entries into it */
+    private void unlink(Path execDir) throws IOException {
+      // the worker may have removed or replaced any of them
+      for (Path link : links) {
+        Files.deleteIfExists(link);
+      }
+      links.clear();
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(workDir)) {
+        for (Path entry : entries) {
+          Path target = execDir.resolve(entry.getFileName().toString());
+          if (Files.isDirectory(target, NOFOLLOW_LINKS)) {
+            removeDirectory(target);
+          }
+          Files.move(entry, target, REPLACE_EXISTING);
+        }
+      }
+    }
+
+    private void truncateLog() {
+      try {
+        if (Files.size(log) > MAX_LOG_BYTES) {
+          // appended to by the worker, so that it continues from the start
+          try (FileChannel channel = FileChannel.open(log, WRITE)) {
+            channel.truncate(0);
+          }
+        }
+      } catch (IOException e) {
+        logger.log(WARNING, "error truncating persistent worker log " + log, e);
+      }
+    }
+
+    private WorkResponse exchange(WorkRequest request) throws IOException {
+      request.writeDelimitedTo(requests);
+      requests.flush();
+      WorkResponse response = WorkResponse.parseDelimitedFrom(responses);
+      if (response == null) {
+        throw new IOException("persistent worker exited without a response");
+      }
+      return response;
+    }
+
+    boolean isAlive() {
+      return process.isAlive();
+    }
+
+    /**
+     * sends request to the worker and waits for its response, running
+     * in execDir, and destroying the worker if it does not respond
+     * within timeoutNanos or the wait is interrupted
+     *
+     * Returns null if the request timed out. A worker which fails its
+     * request in any way must not be reused.
+     */
+    public WorkResponse work(WorkRequest request, Path execDir, long timeoutNanos)
+        throws IOException, InterruptedException {
+      truncateLog();
+      if (links.isEmpty()) {
+        link(execDir);
+      }
+      Future<WorkResponse> exchange = exchangeService.submit(() -> exchange(request));
+      try {
+        if (timeoutNanos > 0) {
+          return exchange.get(timeoutNanos, NANOSECONDS);
+        }
+        return exchange.get();
+      } catch (TimeoutException e) {
+        process.destroyForcibly();
+        return null;
+      } catch (InterruptedException e) {
+        process.destroyForcibly();
+        throw e;
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        Throwables.throwIfInstanceOf(cause, IOException.class);
+        Throwables.throwIfUnchecked(cause);
+        throw new RuntimeException(cause);
+      } finally {
+        unlink(execDir);
+      }
+    }
+
+    private void destroy() {
+      process.destroyForcibly();
+      try {
+        removeDirectory(workDir);
+        Files.deleteIfExists(log);
+      } catch (IOException e) {
+        logger.log(SEVERE, "error removing persistent worker directory " + workDir, e);
+      }
+    }
+  }
+
+  /** an idle worker for key, or a new one started in execDir */
+  public PersistentWorker acquire(Key key, Path execDir) throws IOException {
+    synchronized (this) {
+      Iterator<PersistentWorker> iter = idleWorkers.descendingIterator();
+      while (iter.hasNext()) {
+        PersistentWorker worker = iter.next();
+        if (worker.key.equals(key)) {
+          iter.remove();
+          if (worker.isAlive()) {
+            return worker;
+          }
+          worker.destroy();
+        }
+      }
+    }
+    return new PersistentWorker(key, root.resolve("worker-" + UUID.randomUUID()), execDir);
+  }
+
+  /** retains a worker which completed its request, or destroys one which failed */
+  public void release(PersistentWorker worker, boolean healthy) {
+    if (!healthy || !worker.isAlive()) {
+      worker.destroy();
+      return;
+    }
+    List<PersistentWorker> evicted = new ArrayList<>();
+    synchronized (this) {
+      idleWorkers.addLast(worker);
+      while (idleWorkers.size() > maxIdleWorkers) {
+        evicted.add(idleWorkers.removeFirst());
+      }
+    }
+    for (PersistentWorker evictedWorker : evicted) {
+      evictedWorker.destroy();
+    }
+  }
+
+  public synchronized int getIdleCount() {
+    return idleWorkers.size();
+  }
+
+  public void stop() {
+    List<PersistentWorker> workers;
+    synchronized (this) {
+      workers = new ArrayList<>(idleWorkers);
+      idleWorkers.clear();
+    }
+    for (PersistentWorker worker : workers) {
+      worker.destroy();
+    }
+    exchangeService.shutdownNow();
+  }
+}
@@ -171,6 +171,16 @@ public abstract class PipelineStage implements Runnable {
     notify();
   }
 
+  /** claim on behalf of a particular operation, which may be considered for admission */
+  public boolean claim(OperationContext operationContext) throws InterruptedException {
+    return claim();
+  }
+
+  /** release a claim made on behalf of an operation that was not put */
+  public void release(OperationContext operationContext) {
+    release();
+  }
+
   public void close() {
     closed = true;
   }
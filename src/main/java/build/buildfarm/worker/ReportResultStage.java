@@ -25,6 +25,7 @@ import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.Poller;
 import build.buildfarm.instance.stub.Chunker;
 import build.buildfarm.v1test.CompletedOperationMetadata;
+import build.buildfarm.v1test.ExecDirMaterialization;
 import build.buildfarm.v1test.ExecutingOperationMetadata;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
@@ -144,7 +145,7 @@ public class ReportResultStage extends PipelineStage {
 
     long completedAt = System.currentTimeMillis();
 
-    CompletedOperationMetadata completedMetadata = CompletedOperationMetadata.newBuilder()
+    CompletedOperationMetadata.Builder completedMetadataBuilder = CompletedOperationMetadata.newBuilder()
         .setCompletedAt(completedAt)
         .setExecutedOn(workerContext.getName())
         .setMatchedIn(operationContext.matchedIn)
@@ -154,8 +155,13 @@ public class ReportResultStage extends PipelineStage {
         .setExecuteOperationMetadata(metadata.toBuilder()
             .setStage(ExecuteOperationMetadata.Stage.COMPLETED)
             .build())
-        .setRequestMetadata(operationContext.queueEntry.getExecuteEntry().getRequestMetadata())
-        .build();
+        .setRequestMetadata(operationContext.queueEntry.getExecuteEntry().getRequestMetadata());
+    ExecDirMaterialization materialization =
+        workerContext.getExecDirMaterialization(operationContext.execDir);
+    if (materialization != null) {
+      completedMetadataBuilder.setExecDirMaterialization(materialization);
+    }
+    CompletedOperationMetadata completedMetadata = completedMetadataBuilder.build();
 
     Operation operation = operationContext.operation.toBuilder()
         .setDone(true)
@@ -26,6 +26,7 @@ import build.buildfarm.common.Write;
 import build.buildfarm.instance.Instance;
 import build.buildfarm.instance.Instance.MatchListener;
 import build.buildfarm.v1test.CASInsertionPolicy;
+import build.buildfarm.v1test.ExecDirMaterialization;
 import build.buildfarm.v1test.ExecutionPolicy;
 import build.buildfarm.v1test.QueueEntry;
 import build.buildfarm.v1test.QueuedOperation;
@@ -36,6 +37,10 @@ import java.io.IOException;
 import java.nio.file.Path;
 
 public interface WorkerContext {
+  // names of output captured beyond the spill threshold, see getOutputSpillPath
+  String STDOUT_SPILL_NAME = "stdout";
+  String STDERR_SPILL_NAME = "stderr";
+
   String getName();
   Poller createPoller(String name, QueueEntry queueEntry, Stage stage);
   void resumePoller(Poller poller, String name, QueueEntry queueEntry, Stage stage, Runnable onFailure, Deadline deadline);
@@ -54,11 +59,15 @@ public interface WorkerContext {
   boolean hasMaximumActionTimeout();
   boolean getStreamStdout();
   boolean getStreamStderr();
+  int getOutputSpillThreshold();
+  // a path outside of the exec dir, unique to its operation, removed with the exec dir
+  Path getOutputSpillPath(Path execDir, String name);
   Duration getDefaultActionTimeout();
   Duration getMaximumActionTimeout();
   QueuedOperation getQueuedOperation(QueueEntry queueEntry) throws IOException, InterruptedException;
   Path createExecDir(String operationName, Iterable<Directory> directories, Action action, Command command) throws IOException, InterruptedException;
   void destroyExecDir(Path execDir) throws IOException, InterruptedException;
+  ExecDirMaterialization getExecDirMaterialization(Path execDir);
   void uploadOutputs(ActionResult.Builder resultBuilder, Path actionRoot, Iterable<String> outputFiles, Iterable<String> outputDirs) throws IOException, InterruptedException;
   boolean putOperation(Operation operation, Action Action) throws IOException, InterruptedException;
   void putActionResult(ActionKey actionKey, ActionResult actionResult) throws IOException, InterruptedException;
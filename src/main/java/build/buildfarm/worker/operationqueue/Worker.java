@@ -40,6 +40,7 @@ import build.bazel.remote.execution.v2.ExecuteOperationMetadata;
 import build.bazel.remote.execution.v2.ExecuteOperationMetadata.Stage;
 import build.bazel.remote.execution.v2.FileNode;
 import build.bazel.remote.execution.v2.Platform;
+import build.buildfarm.common.Compression;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.DigestUtil.ActionKey;
 import build.buildfarm.common.DigestUtil.HashFunction;
@@ -54,6 +55,7 @@ import build.buildfarm.instance.stub.ByteStreamUploader;
 import build.buildfarm.instance.stub.Chunker;
 import build.buildfarm.instance.stub.StubInstance;
 import build.buildfarm.v1test.CASInsertionPolicy;
+import build.buildfarm.v1test.ExecDirMaterialization;
 import build.buildfarm.v1test.ExecuteEntry;
 import build.buildfarm.v1test.ExecutionPolicy;
 import build.buildfarm.v1test.InstanceEndpoint;
@@ -175,7 +177,7 @@ public class Worker {
   }
 
   private static ByteStreamUploader createStubUploader(Channel channel, Retrier retrier) {
-    return new ByteStreamUploader("", channel, null, 300, retrier, retryScheduler);
+    return new ByteStreamUploader("", channel, null, 300, retrier, retryScheduler, Compression.DEFLATE);
   }
 
   private static Instance newStubInstance(
@@ -197,7 +199,8 @@ public class Worker {
         digestUtil,
         channel,
         60 /* FIXME CONFIG */, SECONDS,
-        retrier, retryScheduler);
+        retrier, retryScheduler,
+        /* compressBlobs=*/ true);
   }
 
   public Worker(WorkerConfig config) throws ConfigurationException {
@@ -580,6 +583,17 @@ public class Worker {
         return config.getStreamStderr();
       }
 
+      @Override
+      public int getOutputSpillThreshold() {
+        // outputs are uploaded from memory by the manifest
+        return 0;
+      }
+
+      @Override
+      public Path getOutputSpillPath(Path execDir, String name) {
+        throw new UnsupportedOperationException();
+      }
+
       @Override
       public Duration getDefaultActionTimeout() {
         return config.getDefaultActionTimeout();
@@ -707,6 +721,11 @@ public class Worker {
         removeDirectory(execDir);
       }
 
+      @Override
+      public ExecDirMaterialization getExecDirMaterialization(Path execDir) {
+        return null;
+      }
+
       @Override
       public ExecutionPolicy getExecutionPolicy(String name) {
         return policies.get(name);
@@ -0,0 +1,77 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.ShardBackplane;
+import com.google.common.collect.ImmutableList;
+import io.grpc.Status;
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * adds the locations of blobs stored concurrently on a worker to the
+ * backplane in batches
+ *
+ * Each put waits until its location has been added, as it did with a
+ * request per blob. Puts which arrive while a batch is being added are
+ * collected, and added together by the next of them to proceed, so that
+ * the blobs of a BatchUpdateBlobs request take a round trip or two rather
+ * than one each. The locations of a failed batch remain pending for the
+ * next put, and the failure is surfaced to the put that sent it.
+ */
+class BlobLocationBatcher implements Consumer<Digest> {
+  private final ShardBackplane backplane;
+  private final String name;
+  private final Queue<Digest> pendingDigests = new ConcurrentLinkedQueue<>();
+
+  BlobLocationBatcher(ShardBackplane backplane, String name) {
+    this.backplane = backplane;
+    this.name = name;
+  }
+
+  @Override
+  public void accept(Digest digest) {
+    pendingDigests.add(digest);
+    synchronized (this) {
+      // a previous batch may have already included our digest
+      List<Digest> digests = drainPendingDigests();
+      if (digests.isEmpty()) {
+        return;
+      }
+      try {
+        backplane.addBlobsLocation(digests, name);
+      } catch (IOException e) {
+        pendingDigests.addAll(digests);
+        throw Status.fromThrowable(e).asRuntimeException();
+      }
+    }
+  }
+
+  int getPendingCount() {
+    return pendingDigests.size();
+  }
+
+  private List<Digest> drainPendingDigests() {
+    ImmutableList.Builder<Digest> digests = ImmutableList.builder();
+    for (Digest digest = pendingDigests.poll(); digest != null; digest = pendingDigests.poll()) {
+      digests.add(digest);
+    }
+    return digests.build();
+  }
+}
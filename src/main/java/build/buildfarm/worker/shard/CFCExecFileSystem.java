@@ -23,6 +23,7 @@ import static com.google.common.util.concurrent.Futures.allAsList;
 import static com.google.common.util.concurrent.Futures.catchingAsync;
 import static com.google.common.util.concurrent.Futures.immediateFailedFuture;
 import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.google.common.util.concurrent.Futures.successfulAsList;
 import static com.google.common.util.concurrent.Futures.transform;
 import static com.google.common.util.concurrent.Futures.transformAsync;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
@@ -41,37 +42,60 @@ import build.bazel.remote.execution.v2.FileNode;
 import build.buildfarm.cas.ContentAddressableStorage;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.DigestUtil.ActionKey;
+import build.buildfarm.v1test.ExecDirMaterialization;
 import build.buildfarm.worker.CASFileCache;
 import build.buildfarm.worker.Dirent;
 import build.buildfarm.worker.OutputDirectory;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.util.Durations;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 class CFCExecFileSystem implements ExecFileSystem {
   private static final Logger logger = Logger.getLogger(Worker.class.getName());
 
+  // upper bound of links made by a single task on the link service
+  private static final int LINK_BATCH_SIZE = 128;
+
   private final Path root;
   private final CASFileCache fileCache;
   private final boolean linkInputDirectories; // perform first-available non-output symlinking and retain directories in cache
   private final Map<Path, Iterable<Path>> rootInputFiles = new ConcurrentHashMap<>();
   private final Map<Path, Iterable<Digest>> rootInputDirectories = new ConcurrentHashMap<>();
+  private final Map<Path, ExecDirMaterialization> rootMaterializations = new ConcurrentHashMap<>();
+  private final Map<Path, ExecDirTemplate> rootTemplates = new ConcurrentHashMap<>();
+  // access ordered for eviction, guarded by itself
+  private final Map<TemplateKey, ExecDirTemplate> templates = new LinkedHashMap<>(16, 0.75f, /* accessOrder=*/ true);
+  private final int templateCacheSize;
   private final ExecutorService fetchService = newWorkStealingPool(128);
   private final ExecutorService removeDirectoryService;
+  private final ExecutorService linkService;
   private final long deadlineAfter;
   private final TimeUnit deadlineAfterUnits;
 
@@ -80,14 +104,21 @@ class CFCExecFileSystem implements ExecFileSystem {
       CASFileCache fileCache,
       boolean linkInputDirectories,
       ExecutorService removeDirectoryService,
+      ExecutorService linkService,
+      int templateCacheSize,
       long deadlineAfter,
       TimeUnit deadlineAfterUnits) {
     this.root = root;
     this.fileCache = fileCache;
     this.linkInputDirectories = linkInputDirectories;
     this.removeDirectoryService = removeDirectoryService;
+    this.linkService = linkService;
+    this.templateCacheSize = templateCacheSize;
     this.deadlineAfter = deadlineAfter;
     this.deadlineAfterUnits = deadlineAfterUnits;
+    if (templateCacheSize > 0) {
+      fileCache.addReferencePressureListener(this::evictIdleTemplate);
+    }
   }
 
   @Override
@@ -122,6 +153,9 @@ class CFCExecFileSystem implements ExecFileSystem {
     if (!shutdownAndAwaitTermination(fetchService, 1, MINUTES)) {
       logger.severe("could not terminate fetchService");
     }
+    if (!shutdownAndAwaitTermination(linkService, 1, MINUTES)) {
+      logger.severe("could not terminate linkService");
+    }
     if (!shutdownAndAwaitTermination(removeDirectoryService, 1, MINUTES)) {
       logger.severe("could not terminate removeDirectoryService");
     }
@@ -143,84 +177,325 @@ class CFCExecFileSystem implements ExecFileSystem {
         .getOutput(deadlineAfter, deadlineAfterUnits);
   }
 
-  private ListenableFuture<Void> put(
-      Path path,
-      FileNode fileNode,
-      ImmutableList.Builder<Path> inputFiles) {
-    Path filePath = path.resolve(fileNode.getName());
-    Digest digest = fileNode.getDigest();
-    if (digest.getSizeBytes() == 0) {
-      return listeningDecorator(fetchService).submit(() -> {
-        Files.createFile(filePath);
-        // ignore executable
-        return null;
-      });
+  /** a unique (digest, executable) file and every place it appears in an exec dir */
+  private static class FilePlacement {
+    final Digest digest;
+    final boolean isExecutable;
+    final List<Path> paths = new ArrayList<>();
+
+    FilePlacement(Digest digest, boolean isExecutable) {
+      this.digest = digest;
+      this.isExecutable = isExecutable;
     }
-    return transformAsync(
-        fileCache.put(
-            digest,
-            fileNode.getIsExecutable(),
-            /* containingDirectory=*/ null,
-            fetchService),
-        (fileCacheKey) -> {
-          checkNotNull(fileCacheKey);
-          // we saw null entries in the built immutable list without synchronization
-          synchronized (inputFiles) {
-            inputFiles.add(fileCacheKey);
-          }
-          if (fileNode.getDigest().getSizeBytes() != 0) {
-            try {
-              Files.createLink(filePath, fileCacheKey);
-            } catch (IOException e) {
-              return immediateFailedFuture(e);
-            }
-          }
-          return immediateFuture((Void) null);
-        },
-        fetchService);
   }
 
-  private Iterable<ListenableFuture<Void>> fetchInputs(
-      Path path,
-      Digest directoryDigest,
+  /** a directory awaiting expansion in the breadth first walk */
+  private static class PendingDirectory {
+    final Path path;
+    final Digest digest;
+    final OutputDirectory outputDirectory;
+
+    PendingDirectory(Path path, Digest digest, OutputDirectory outputDirectory) {
+      this.path = path;
+      this.digest = digest;
+      this.outputDirectory = outputDirectory;
+    }
+  }
+
+  /**
+   * the complete layout of an exec dir, computed without touching the
+   * filesystem, with all paths relative to the exec dir
+   */
+  private static class ExecDirPlan {
+    final List<Path> directories = new ArrayList<>();
+    final Map<Path, FilePlacement> files = new LinkedHashMap<>();
+    final List<Path> emptyFiles = new ArrayList<>();
+    final Map<Path, Digest> linkedDirectories = new LinkedHashMap<>();
+    int fileCount = 0;
+  }
+
+  private ExecDirPlan plan(
+      Path base,
+      Digest inputRootDigest,
       Map<Digest, Directory> directoriesIndex,
-      OutputDirectory outputDirectory,
-      ImmutableList.Builder<Path> inputFiles,
-      ImmutableList.Builder<Digest> inputDirectories)
-      throws IOException, InterruptedException {
-    Directory directory = directoriesIndex.get(directoryDigest);
-    if (directory == null) {
-      throw new IOException("Directory " + DigestUtil.toString(directoryDigest) + " is not in directories index");
-    }
-
-    Iterable<ListenableFuture<Void>> downloads = directory.getFilesList()
-        .stream()
-        .map((fileNode) -> put(path, fileNode, inputFiles))
-        .collect(ImmutableList.<ListenableFuture<Void>>toImmutableList());
-
-    for (DirectoryNode directoryNode : directory.getDirectoriesList()) {
-      Digest digest = directoryNode.getDigest();
-      String name = directoryNode.getName();
-      OutputDirectory childOutputDirectory = outputDirectory != null
-          ? outputDirectory.getChild(name) : null;
-      Path dirPath = path.resolve(name);
-      if (childOutputDirectory != null || !linkInputDirectories || name.equals("external")) {
-        Files.createDirectories(dirPath);
-        downloads = concat(downloads, fetchInputs(dirPath, digest, directoriesIndex, childOutputDirectory, inputFiles, inputDirectories));
+      OutputDirectory outputDirectory) throws IOException {
+    ExecDirPlan plan = new ExecDirPlan();
+    Queue<PendingDirectory> pending = new ArrayDeque<>();
+    pending.add(new PendingDirectory(base, inputRootDigest, outputDirectory));
+    while (!pending.isEmpty()) {
+      PendingDirectory pendingDirectory = pending.poll();
+      Path path = pendingDirectory.path;
+      Directory directory = directoriesIndex.get(pendingDirectory.digest);
+      if (directory == null) {
+        throw new IOException("Directory " + DigestUtil.toString(pendingDirectory.digest) + " is not in directories index");
+      }
+
+      for (FileNode fileNode : directory.getFilesList()) {
+        Path filePath = path.resolve(fileNode.getName());
+        Digest digest = fileNode.getDigest();
+        plan.fileCount++;
+        if (digest.getSizeBytes() == 0) {
+          // ignore executable
+          plan.emptyFiles.add(filePath);
+        } else {
+          boolean isExecutable = fileNode.getIsExecutable();
+          plan.files.computeIfAbsent(
+              fileCache.getKey(digest, isExecutable),
+              (key) -> new FilePlacement(digest, isExecutable))
+              .paths.add(filePath);
+        }
+      }
+
+      for (DirectoryNode directoryNode : directory.getDirectoriesList()) {
+        Digest digest = directoryNode.getDigest();
+        String name = directoryNode.getName();
+        OutputDirectory childOutputDirectory = pendingDirectory.outputDirectory != null
+            ? pendingDirectory.outputDirectory.getChild(name) : null;
+        Path dirPath = path.resolve(name);
+        // the top level external directory is materialized, though its
+        // children may be linked, as may any other subtree without outputs
+        boolean isExternalRoot = path.equals(base) && name.equals("external");
+        if (childOutputDirectory != null || !linkInputDirectories || isExternalRoot) {
+          plan.directories.add(dirPath);
+          pending.add(new PendingDirectory(dirPath, digest, childOutputDirectory));
+        } else {
+          plan.linkedDirectories.put(dirPath, digest);
+        }
+      }
+    }
+    return plan;
+  }
+
+  /**
+   * a retained plan for an input root and output layout, along with the
+   * cache references which keep every one of its inputs present
+   *
+   * Exec dirs created from a template share its references, which are
+   * released to the cache once the template has been evicted and its
+   * last user destroyed. Templates without users are also evicted when
+   * the cache cannot otherwise make room.
+   */
+  private static class ExecDirTemplate {
+    final ExecDirPlan plan;
+    final Iterable<Path> inputFiles;
+    final Iterable<Digest> inputDirectories;
+    int users = 1;
+    boolean evicted = false;
+
+    ExecDirTemplate(ExecDirPlan plan, Iterable<Path> inputFiles, Iterable<Digest> inputDirectories) {
+      this.plan = plan;
+      this.inputFiles = inputFiles;
+      this.inputDirectories = inputDirectories;
+    }
+  }
+
+  /** the determinants of an exec dir plan */
+  private static final class TemplateKey {
+    final Digest inputRootDigest;
+    final List<String> outputFiles;
+    final List<String> outputDirectories;
+
+    TemplateKey(Digest inputRootDigest, List<String> outputFiles, List<String> outputDirectories) {
+      this.inputRootDigest = inputRootDigest;
+      this.outputFiles = outputFiles;
+      this.outputDirectories = outputDirectories;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof TemplateKey)) {
+        return false;
+      }
+      TemplateKey other = (TemplateKey) o;
+      return inputRootDigest.equals(other.inputRootDigest)
+          && outputFiles.equals(other.outputFiles)
+          && outputDirectories.equals(other.outputDirectories);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(inputRootDigest, outputFiles, outputDirectories);
+    }
+  }
+
+  private ExecDirTemplate acquireTemplate(TemplateKey key) {
+    synchronized (templates) {
+      ExecDirTemplate template = templates.get(key);
+      if (template != null) {
+        template.users++;
+      }
+      return template;
+    }
+  }
+
+  /**
+   * retain a template of a newly created exec dir, transferring its
+   * references, unless one already exists for the key
+   */
+  private ExecDirTemplate registerTemplate(
+      TemplateKey key,
+      ExecDirPlan plan,
+      Iterable<Path> inputFiles,
+      Iterable<Digest> inputDirectories) {
+    ExecDirTemplate template = new ExecDirTemplate(plan, inputFiles, inputDirectories);
+    ImmutableList.Builder<ExecDirTemplate> releasedTemplates = ImmutableList.builder();
+    synchronized (templates) {
+      if (templates.containsKey(key)) {
+        return null;
+      }
+      templates.put(key, template);
+      Iterator<ExecDirTemplate> eldest = templates.values().iterator();
+      while (templates.size() > templateCacheSize) {
+        ExecDirTemplate evictedTemplate = eldest.next();
+        eldest.remove();
+        evictedTemplate.evicted = true;
+        if (evictedTemplate.users == 0) {
+          releasedTemplates.add(evictedTemplate);
+        }
+      }
+    }
+    releaseReferences(releasedTemplates.build());
+    return template;
+  }
+
+  /**
+   * evict the least recently used template without users, releasing its
+   * references so that the cache can expire its inputs
+   */
+  private boolean evictIdleTemplate() {
+    ExecDirTemplate evictedTemplate = null;
+    synchronized (templates) {
+      Iterator<ExecDirTemplate> iter = templates.values().iterator();
+      while (evictedTemplate == null && iter.hasNext()) {
+        ExecDirTemplate template = iter.next();
+        if (template.users == 0) {
+          iter.remove();
+          template.evicted = true;
+          evictedTemplate = template;
+        }
+      }
+    }
+    if (evictedTemplate == null) {
+      return false;
+    }
+    releaseReferences(ImmutableList.of(evictedTemplate));
+    return true;
+  }
+
+  private void releaseTemplate(ExecDirTemplate template) {
+    boolean released;
+    synchronized (templates) {
+      released = --template.users == 0 && template.evicted;
+    }
+    if (released) {
+      releaseReferences(ImmutableList.of(template));
+    }
+  }
+
+  private void invalidateTemplate(TemplateKey key, ExecDirTemplate template) {
+    synchronized (templates) {
+      templates.remove(key, template);
+      template.evicted = true;
+    }
+    releaseTemplate(template);
+  }
+
+  private void releaseReferences(Iterable<ExecDirTemplate> releasedTemplates) {
+    for (ExecDirTemplate template : releasedTemplates) {
+      fileCache.decrementReferences(template.inputFiles, template.inputDirectories);
+    }
+  }
+
+  private static Void createLinks(Path execDir, Iterable<Path> paths, Path fileCacheKey) throws IOException {
+    for (Path path : paths) {
+      Files.createLink(execDir.resolve(path), fileCacheKey);
+    }
+    return null;
+  }
+
+  private static Void createEmptyFiles(Path execDir, Iterable<Path> paths) throws IOException {
+    for (Path path : paths) {
+      Files.createFile(execDir.resolve(path));
+    }
+    return null;
+  }
+
+  private static void createDirectories(Path execDir, ExecDirPlan plan) throws IOException {
+    for (Path directory : plan.directories) {
+      Files.createDirectory(execDir.resolve(directory));
+    }
+  }
+
+  /**
+   * link all referenced files in batches, while absent files are fetched
+   * and linked as they arrive
+   */
+  private List<ListenableFuture<Void>> materializeFiles(
+      Path execDir,
+      ExecDirPlan plan,
+      Set<Path> cachedKeys,
+      Queue<Path> inputFiles,
+      ImmutableList.Builder<ListenableFuture<Path>> fetchFutures) {
+    ListeningExecutorService linkExecutor = listeningDecorator(linkService);
+    ImmutableList.Builder<ListenableFuture<Void>> linkFutures = ImmutableList.builder();
+
+    for (List<Path> batch : Lists.partition(plan.emptyFiles, LINK_BATCH_SIZE)) {
+      linkFutures.add(linkExecutor.submit(() -> createEmptyFiles(execDir, batch)));
+    }
+
+    List<Runnable> batch = new ArrayList<>();
+    int batchSize = 0;
+    for (Map.Entry<Path, FilePlacement> entry : plan.files.entrySet()) {
+      Path fileCacheKey = entry.getKey();
+      FilePlacement placement = entry.getValue();
+      if (cachedKeys.contains(fileCacheKey)) {
+        batch.add(() -> {
+          try {
+            createLinks(execDir, placement.paths, fileCacheKey);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+        batchSize += placement.paths.size();
+        if (batchSize >= LINK_BATCH_SIZE) {
+          linkFutures.add(submitLinks(linkExecutor, batch));
+          batch = new ArrayList<>();
+          batchSize = 0;
+        }
       } else {
-        downloads = concat(downloads, ImmutableList.of(transform(
-            linkDirectory(dirPath, digest, directoriesIndex),
-            (result) -> {
-              // we saw null entries in the built immutable list without synchronization
-              synchronized (inputDirectories) {
-                inputDirectories.add(digest);
-              }
-              return null;
+        ListenableFuture<Path> fetchFuture = fileCache.put(
+            placement.digest,
+            placement.isExecutable,
+            /* containingDirectory=*/ null,
+            fetchService);
+        fetchFutures.add(fetchFuture);
+        linkFutures.add(transformAsync(
+            fetchFuture,
+            (key) -> {
+              checkNotNull(key);
+              inputFiles.add(key);
+              return linkExecutor.submit(() -> createLinks(execDir, placement.paths, key));
             },
-            fetchService)));
+            directExecutor()));
       }
     }
-    return downloads;
+    if (!batch.isEmpty()) {
+      linkFutures.add(submitLinks(linkExecutor, batch));
+    }
+    return linkFutures.build();
+  }
+
+  private static ListenableFuture<Void> submitLinks(ListeningExecutorService linkExecutor, List<Runnable> batch) {
+    return catchingAsync(
+        linkExecutor.submit(() -> {
+          for (Runnable link : batch) {
+            link.run();
+          }
+          return (Void) null;
+        }),
+        UncheckedIOException.class,
+        (e) -> immediateFailedFuture(e.getCause()),
+        directExecutor());
   }
 
   private ListenableFuture<Void> linkDirectory(
@@ -285,6 +560,40 @@ class CFCExecFileSystem implements ExecFileSystem {
     }
   }
 
+  /** wait for all materialization futures, through interrupts, throwing any failures */
+  private static void waitForMaterialization(Path execDir, Iterable<ListenableFuture<Void>> futures)
+      throws ExecDirException, InterruptedException {
+    boolean wasInterrupted = false;
+    ImmutableList.Builder<Throwable> exceptions = ImmutableList.builder();
+    for (ListenableFuture<Void> future : futures) {
+      try {
+        getWithoutInterrupt(future);
+      } catch (ExecutionException e) {
+        // just to ensure that no other code can react to interrupt status
+        boolean isInterrupted = Thread.interrupted();
+        exceptions.add(e.getCause());
+        if (isInterrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (Thread.interrupted()) {
+        wasInterrupted = true;
+      }
+    }
+    checkExecErrors(execDir, exceptions.build());
+    if (wasInterrupted) {
+      throw new InterruptedException();
+    }
+  }
+
+  private static ExecDirMaterialization.Builder newMaterialization(ExecDirPlan plan) {
+    return ExecDirMaterialization.newBuilder()
+        .setDirectories(plan.directories.size())
+        .setFiles(plan.fileCount)
+        .setUniqueFiles(plan.files.size())
+        .setLinkedDirectories(plan.linkedDirectories.size());
+  }
+
   @Override
   public Path createExecDir(String operationName, Map<Digest, Directory> directoriesIndex, Action action, Command command) throws IOException, InterruptedException {
     OutputDirectory outputDirectory = OutputDirectory.parse(
@@ -297,66 +606,174 @@ class CFCExecFileSystem implements ExecFileSystem {
     }
     Files.createDirectories(execDir);
 
-    ImmutableList.Builder<Path> inputFiles = new ImmutableList.Builder<>();
-    ImmutableList.Builder<Digest> inputDirectories = new ImmutableList.Builder<>();
-
-    logger.info("ExecFileSystem::createExecDir(" + DigestUtil.toString(action.getInputRootDigest()) + ") calling fetchInputs");
-    Iterable<ListenableFuture<Void>> fetchedFutures =
-        fetchInputs(
-            execDir,
-            action.getInputRootDigest(),
-            directoriesIndex,
-            outputDirectory,
-            inputFiles,
-            inputDirectories);
+    TemplateKey templateKey = new TemplateKey(
+        action.getInputRootDigest(),
+        command.getOutputFilesList(),
+        command.getOutputDirectoriesList());
+    ExecDirTemplate template = templateCacheSize > 0 ? acquireTemplate(templateKey) : null;
+    if (template != null) {
+      logger.info("ExecFileSystem::createExecDir(" + DigestUtil.toString(action.getInputRootDigest()) + ") materializing from template");
+      createExecDirFromTemplate(execDir, templateKey, template);
+    } else {
+      createExecDirFromInputs(execDir, templateKey, directoriesIndex, action.getInputRootDigest(), outputDirectory);
+    }
+
+    logger.info("ExecFileSystem::createExecDir(" + DigestUtil.toString(action.getInputRootDigest()) + ") stamping output directories");
+    try {
+      outputDirectory.stamp(execDir);
+    } catch (IOException e) {
+      destroyExecDir(execDir);
+      throw e;
+    }
+    return execDir;
+  }
+
+  /**
+   * link every input of a template directly to the cache entries it holds,
+   * with no cache lookups or fetches
+   */
+  private void createExecDirFromTemplate(
+      Path execDir,
+      TemplateKey templateKey,
+      ExecDirTemplate template) throws IOException, InterruptedException {
+    ExecDirPlan plan = template.plan;
     boolean success = false;
     try {
-      boolean wasInterrupted = false;
-      ImmutableList.Builder<Throwable> exceptions = ImmutableList.builder();
-      for (ListenableFuture<Void> fetchedFuture : fetchedFutures) {
-        try {
-          getWithoutInterrupt(fetchedFuture);
-        } catch (ExecutionException e) {
-          // just to ensure that no other code can react to interrupt status
-          boolean isInterrupted = Thread.interrupted();
-          exceptions.add(e.getCause());
-          if (isInterrupted) {
-            Thread.currentThread().interrupt();
-          }
-        }
-        if (Thread.interrupted()) {
-          wasInterrupted = true;
-        }
-      }
-      checkExecErrors(execDir, exceptions.build());
-      if (wasInterrupted) {
-        throw new InterruptedException();
+      long startAt = System.nanoTime();
+      createDirectories(execDir, plan);
+      long directoriesCreatedAt = System.nanoTime();
+
+      ListeningExecutorService linkExecutor = listeningDecorator(linkService);
+      // every key is held by the template, so nothing is fetched or referenced here
+      Iterable<ListenableFuture<Void>> linkedFutures = materializeFiles(
+          execDir,
+          plan,
+          plan.files.keySet(),
+          /* inputFiles=*/ null,
+          /* fetchFutures=*/ null);
+      for (Map.Entry<Path, Digest> linkedDirectory : plan.linkedDirectories.entrySet()) {
+        Path execPath = execDir.resolve(linkedDirectory.getKey());
+        Path cachePath = fileCache.getDirectoryPath(linkedDirectory.getValue());
+        linkedFutures = concat(linkedFutures, ImmutableList.of(linkExecutor.submit(() -> {
+          Files.createSymbolicLink(execPath, cachePath);
+          return (Void) null;
+        })));
       }
+      waitForMaterialization(execDir, linkedFutures);
+      long linkedAt = System.nanoTime();
+
+      rootMaterializations.put(execDir, newMaterialization(plan)
+          .setFromTemplate(true)
+          .setDirectoriesCreatedIn(Durations.fromNanos(directoriesCreatedAt - startAt))
+          .setLinkedIn(Durations.fromNanos(linkedAt - directoriesCreatedAt))
+          .setCachedFiles(plan.files.size())
+          .build());
+      rootTemplates.put(execDir, template);
       success = true;
     } finally {
       if (!success) {
-        fileCache.decrementReferences(inputFiles.build(), inputDirectories.build());
+        invalidateTemplate(templateKey, template);
         removeDirectory(execDir);
       }
     }
+  }
 
-    rootInputFiles.put(execDir, inputFiles.build());
-    rootInputDirectories.put(execDir, inputDirectories.build());
+  /**
+   * reference all present files with one cache lookup, fetch the rest, and
+   * retain the result as a template when enabled
+   */
+  private void createExecDirFromInputs(
+      Path execDir,
+      TemplateKey templateKey,
+      Map<Digest, Directory> directoriesIndex,
+      Digest inputRootDigest,
+      OutputDirectory outputDirectory) throws IOException, InterruptedException {
+    Queue<Path> inputFiles = new ConcurrentLinkedQueue<>();
+    Queue<Digest> inputDirectories = new ConcurrentLinkedQueue<>();
 
-    logger.info("ExecFileSystem::createExecDir(" + DigestUtil.toString(action.getInputRootDigest()) + ") stamping output directories");
+    ExecDirPlan plan;
+    ExecDirMaterialization.Builder materialization;
+    boolean success = false;
     try {
-      outputDirectory.stamp(execDir);
-    } catch (IOException e) {
-      destroyExecDir(execDir);
-      throw e;
+      long planStartAt = System.nanoTime();
+      plan = plan(execDir.getFileSystem().getPath(""), inputRootDigest, directoriesIndex, outputDirectory);
+      long plannedAt = System.nanoTime();
+
+      createDirectories(execDir, plan);
+      long directoriesCreatedAt = System.nanoTime();
+
+      logger.info("ExecFileSystem::createExecDir(" + DigestUtil.toString(inputRootDigest) + ") materializing inputs");
+      Set<Path> cachedKeys = fileCache.referenceExisting(plan.files.keySet());
+      inputFiles.addAll(cachedKeys);
+
+      ImmutableList.Builder<ListenableFuture<Path>> fetchFutures = ImmutableList.builder();
+      Iterable<ListenableFuture<Void>> linkedFutures = materializeFiles(execDir, plan, cachedKeys, inputFiles, fetchFutures);
+      for (Map.Entry<Path, Digest> linkedDirectory : plan.linkedDirectories.entrySet()) {
+        Digest digest = linkedDirectory.getValue();
+        ListenableFuture<Void> directoryFuture = transform(
+            linkDirectory(execDir.resolve(linkedDirectory.getKey()), digest, directoriesIndex),
+            (result) -> {
+              inputDirectories.add(digest);
+              return null;
+            },
+            fetchService);
+        linkedFutures = concat(linkedFutures, ImmutableList.of(directoryFuture));
+      }
+
+      AtomicLong fetchedAt = new AtomicLong();
+      ListenableFuture<List<Path>> fetched = successfulAsList(fetchFutures.build());
+      fetched.addListener(() -> fetchedAt.set(System.nanoTime()), directExecutor());
+
+      waitForMaterialization(
+          execDir,
+          concat(linkedFutures, ImmutableList.of(transform(fetched, (result) -> null, directExecutor()))));
+      long linkedAt = System.nanoTime();
+
+      materialization = newMaterialization(plan)
+          .setPlannedIn(Durations.fromNanos(plannedAt - planStartAt))
+          .setDirectoriesCreatedIn(Durations.fromNanos(directoriesCreatedAt - plannedAt))
+          .setFetchedIn(Durations.fromNanos(Math.max(fetchedAt.get(), directoriesCreatedAt) - directoriesCreatedAt))
+          .setLinkedIn(Durations.fromNanos(linkedAt - directoriesCreatedAt))
+          .setCachedFiles(cachedKeys.size());
+      success = true;
+    } finally {
+      if (!success) {
+        fileCache.decrementReferences(ImmutableList.copyOf(inputFiles), ImmutableList.copyOf(inputDirectories));
+        removeDirectory(execDir);
+      }
+    }
+
+    rootMaterializations.put(execDir, materialization.build());
+    ExecDirTemplate template = null;
+    if (templateCacheSize > 0) {
+      template = registerTemplate(
+          templateKey,
+          plan,
+          ImmutableList.copyOf(inputFiles),
+          ImmutableList.copyOf(inputDirectories));
+    }
+    if (template != null) {
+      rootTemplates.put(execDir, template);
+    } else {
+      rootInputFiles.put(execDir, ImmutableList.copyOf(inputFiles));
+      rootInputDirectories.put(execDir, ImmutableList.copyOf(inputDirectories));
     }
-    return execDir;
+  }
+
+  @Override
+  public ExecDirMaterialization getExecDirMaterialization(Path execDir) {
+    return rootMaterializations.get(execDir);
   }
 
   @Override
   public void destroyExecDir(Path execDir) throws IOException, InterruptedException {
     Iterable<Path> inputFiles = rootInputFiles.remove(execDir);
     Iterable<Digest> inputDirectories = rootInputDirectories.remove(execDir);
+    rootMaterializations.remove(execDir);
+    ExecDirTemplate template = rootTemplates.remove(execDir);
+    if (template != null) {
+      releaseTemplate(template);
+    }
     if (inputFiles != null || inputDirectories != null) {
       fileCache.decrementReferences(
           inputFiles == null ? ImmutableList.of() : inputFiles,
@@ -7,6 +7,7 @@ import build.bazel.remote.execution.v2.Directory;
 import build.buildfarm.cas.ContentAddressableStorage;
 import build.buildfarm.common.InputStreamFactory;
 import build.buildfarm.common.OutputStreamFactory;
+import build.buildfarm.v1test.ExecDirMaterialization;
 import java.nio.file.Path;
 import java.io.IOException;
 import java.util.List;
@@ -19,4 +20,5 @@ interface ExecFileSystem extends InputStreamFactory, OutputStreamFactory {
   ContentAddressableStorage getStorage();
   Path createExecDir(String operationName, Map<Digest, Directory> directoriesIndex, Action action, Command command) throws IOException, InterruptedException;
   void destroyExecDir(Path execDir) throws IOException, InterruptedException;
+  ExecDirMaterialization getExecDirMaterialization(Path execDir);
 }
@@ -19,6 +19,7 @@ import build.bazel.remote.execution.v2.Command;
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
 import build.buildfarm.cas.ContentAddressableStorage;
+import build.buildfarm.v1test.ExecDirMaterialization;
 import build.buildfarm.worker.FuseCAS;
 import java.io.IOException;
 import java.io.InputStream;
@@ -75,4 +76,10 @@ class FuseExecFileSystem implements ExecFileSystem {
     String topdir = root.relativize(actionRoot).toString();
     fuseCAS.destroyInputRoot(topdir);
   }
+
+  @Override
+  public ExecDirMaterialization getExecDirMaterialization(Path execDir) {
+    // input roots are served lazily by fuse and have no materialization
+    return null;
+  }
 }
@@ -21,7 +21,8 @@ class ShardCASFileCache extends CASFileCache {
       DigestUtil digestUtil,
       ExecutorService expireService,
       Consumer<Digest> onPut,
-      Consumer<Iterable<Digest>> onExpire) {
+      Consumer<Iterable<Digest>> onExpire,
+      CASFileCache.Options options) {
     super(
         root,
         maxSizeInBytes,
@@ -29,8 +30,15 @@ class ShardCASFileCache extends CASFileCache {
         expireService,
         /* storage=*/ Maps.newConcurrentMap(),
         onPut,
-        onExpire);
-    this.inputStreamFactory = createInputStreamFactory(this, shardInputStreamFactory);
+        onExpire,
+        options);
+    this.inputStreamFactory = createInputStreamFactory(
+        (digest, offset) -> {
+          InputStream input = newLocalInput(digest, offset);
+          getMetrics().recordExternalLocalFallback();
+          return input;
+        },
+        shardInputStreamFactory);
   }
 
   /**
@@ -14,8 +14,17 @@
 
 package build.buildfarm.worker.shard;
 
+import static build.buildfarm.worker.CASFileCache.getInterruptiblyOrIOException;
 import static com.google.common.collect.Maps.uniqueIndex;
+import static com.google.common.util.concurrent.Futures.allAsList;
+import static com.google.common.util.concurrent.Futures.getDone;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.google.common.util.concurrent.Futures.transformAsync;
+import static com.google.common.util.concurrent.Futures.whenAllSucceed;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
 import static java.lang.String.format;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Level.WARNING;
@@ -28,9 +37,11 @@ import build.bazel.remote.execution.v2.Directory;
 import build.bazel.remote.execution.v2.ExecuteOperationMetadata;
 import build.bazel.remote.execution.v2.ExecuteOperationMetadata.Stage;
 import build.bazel.remote.execution.v2.FileNode;
+import build.bazel.remote.execution.v2.OutputDirectory;
 import build.bazel.remote.execution.v2.OutputFile;
 import build.bazel.remote.execution.v2.Platform;
 import build.bazel.remote.execution.v2.Tree;
+import build.buildfarm.cas.ContentAddressableStorage;
 import build.buildfarm.cas.ContentAddressableStorage.Blob;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.DigestUtil.ActionKey;
@@ -42,8 +53,10 @@ import build.buildfarm.common.grpc.Retrier;
 import build.buildfarm.common.grpc.Retrier.Backoff;
 import build.buildfarm.instance.Instance;
 import build.buildfarm.instance.Instance.MatchListener;
+import build.buildfarm.worker.CASFileCache;
 import build.buildfarm.worker.RetryingMatchListener;
 import build.buildfarm.worker.WorkerContext;
+import build.buildfarm.v1test.ExecDirMaterialization;
 import build.buildfarm.v1test.ExecuteEntry;
 import build.buildfarm.v1test.CASInsertionPolicy;
 import build.buildfarm.v1test.ExecutionPolicy;
@@ -55,6 +68,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.longrunning.Operation;
 import com.google.protobuf.Any;
 import com.google.protobuf.ByteString;
@@ -66,17 +81,19 @@ import io.grpc.StatusRuntimeException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.FileVisitResult;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.Stack;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
@@ -89,11 +106,15 @@ class ShardWorkerContext implements WorkerContext {
   private final Duration operationPollPeriod;
   private final OperationPoller operationPoller;
   private final int inlineContentLimit;
+  private final int outputSpillThreshold;
+  private final Path outputSpillRoot;
   private final int inputFetchStageWidth;
   private final int executeStageWidth;
   private final ShardBackplane backplane;
   private final ExecFileSystem execFileSystem;
   private final InputStreamFactory inputStreamFactory;
+  private final ListeningExecutorService outputUploadService;
+  private final boolean linkOutputFiles;
   private final Map<String, ExecutionPolicy> policies;
   private final Instance instance;
   private final long deadlineAfter;
@@ -106,11 +127,15 @@ class ShardWorkerContext implements WorkerContext {
       Duration operationPollPeriod,
       OperationPoller operationPoller,
       int inlineContentLimit,
+      int outputSpillThreshold,
+      Path outputSpillRoot,
       int inputFetchStageWidth,
       int executeStageWidth,
       ShardBackplane backplane,
       ExecFileSystem execFileSystem,
       InputStreamFactory inputStreamFactory,
+      ExecutorService outputUploadService,
+      boolean linkOutputFiles,
       Iterable<ExecutionPolicy> policies,
       Instance instance,
       long deadlineAfter,
@@ -120,11 +145,15 @@ class ShardWorkerContext implements WorkerContext {
     this.operationPollPeriod = operationPollPeriod;
     this.operationPoller = operationPoller;
     this.inlineContentLimit = inlineContentLimit;
+    this.outputSpillThreshold = outputSpillThreshold;
+    this.outputSpillRoot = outputSpillRoot;
     this.inputFetchStageWidth = inputFetchStageWidth;
     this.executeStageWidth = executeStageWidth;
     this.backplane = backplane;
     this.execFileSystem = execFileSystem;
     this.inputStreamFactory = inputStreamFactory;
+    this.outputUploadService = listeningDecorator(outputUploadService);
+    this.linkOutputFiles = linkOutputFiles;
     this.policies = uniqueIndex(policies, (policy) -> policy.getName());
     this.instance = instance;
     this.deadlineAfter = deadlineAfter;
@@ -378,6 +407,16 @@ class ShardWorkerContext implements WorkerContext {
     return true;
   }
 
+  @Override
+  public int getOutputSpillThreshold() {
+    return outputSpillThreshold;
+  }
+
+  @Override
+  public Path getOutputSpillPath(Path execDir, String name) {
+    return outputSpillRoot.resolve(execDir.getFileName() + "." + name);
+  }
+
   @Override
   public Duration getDefaultActionTimeout() {
     return null;
@@ -405,7 +444,27 @@ class ShardWorkerContext implements WorkerContext {
     }
   }
 
-  private void updateActionResultStdOutputs(ActionResult.Builder resultBuilder) throws InterruptedException {
+  private void updateActionResultStdOutputs(
+      ActionResult.Builder resultBuilder,
+      Path actionRoot,
+      Consumer<Digest> onInsert) throws IOException, InterruptedException {
+    if (resultBuilder.hasStdoutDigest()) {
+      Path spillPath = getOutputSpillPath(actionRoot, STDOUT_SPILL_NAME);
+      if (insertsSpilledOutput(getStdoutCasPolicy())) {
+        insertSpilledOutput(resultBuilder.getStdoutDigest(), spillPath, onInsert);
+      } else {
+        resultBuilder.clearStdoutDigest();
+      }
+    }
+    if (resultBuilder.hasStderrDigest()) {
+      Path spillPath = getOutputSpillPath(actionRoot, STDERR_SPILL_NAME);
+      if (insertsSpilledOutput(getStderrCasPolicy())) {
+        insertSpilledOutput(resultBuilder.getStderrDigest(), spillPath, onInsert);
+      } else {
+        resultBuilder.clearStderrDigest();
+      }
+    }
+
     ByteString stdoutRaw = resultBuilder.getStdoutRaw();
     if (stdoutRaw.size() > 0) {
       // reset to allow policy to determine inlining
@@ -425,6 +484,153 @@ class ShardWorkerContext implements WorkerContext {
     }
   }
 
+  /**
+   * spilled output exceeds the spill threshold and is never inlined, so it
+   * is inserted by any policy which inserts content above the inline limit
+   */
+  private static boolean insertsSpilledOutput(CASInsertionPolicy policy) {
+    return policy.equals(CASInsertionPolicy.ALWAYS_INSERT)
+        || policy.equals(CASInsertionPolicy.INSERT_ABOVE_LIMIT);
+  }
+
+  /**
+   * insert output spilled by the executor under the digest it computed as
+   * the output was captured
+   */
+  private void insertSpilledOutput(Digest digest, Path file, Consumer<Digest> onInsert) throws IOException, InterruptedException {
+    ContentAddressableStorage storage = execFileSystem.getStorage();
+    if (storage instanceof CASFileCache) {
+      ((CASFileCache) storage).putFile(file, digest, onInsert);
+    } else {
+      insertFile(digest, file);
+    }
+  }
+
+  /**
+   * insert a file into storage, in a single pass where the storage supports it
+   *
+   * The file's permissions must be observed before it is ingested, since a
+   * linked file takes on those of its cache entry.
+   */
+  private Digest ingestFile(Path file, Consumer<Digest> onInsert) throws IOException, InterruptedException {
+    ContentAddressableStorage storage = execFileSystem.getStorage();
+    if (storage instanceof CASFileCache) {
+      return ((CASFileCache) storage).putFile(file, linkOutputFiles, onInsert);
+    }
+    Digest digest = getDigestUtil().compute(file);
+    insertFile(digest, file);
+    return digest;
+  }
+
+  private static class UploadedDirectory {
+    final Directory directory;
+    final List<Directory> descendants;
+
+    UploadedDirectory(Directory directory, List<Directory> descendants) {
+      this.directory = directory;
+      this.descendants = descendants;
+    }
+  }
+
+  private static List<Path> listSorted(Path dir) throws IOException {
+    List<Path> entries = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path entry : stream) {
+        entries.add(entry);
+      }
+    }
+    entries.sort(Comparator.comparing((Path entry) -> entry.getFileName().toString()));
+    return entries;
+  }
+
+  private FileNode uploadFileNode(Path file, Path outputDirPath, Consumer<Digest> onInsert) throws IOException, InterruptedException {
+    boolean isExecutable = Files.isExecutable(file);
+    Digest digest;
+    try {
+      digest = ingestFile(file, onInsert);
+    } catch (NoSuchFileException e) {
+      logger.log(SEVERE, format("error visiting file %s under output dir %s", outputDirPath.relativize(file), outputDirPath.toAbsolutePath()), e);
+      return null;
+    }
+
+    // should we cast to PosixFilePermissions and do gymnastics there for executable?
+
+    // TODO symlink per revision proposal
+    return FileNode.newBuilder()
+        .setName(file.getFileName().toString())
+        .setDigest(digest)
+        .setIsExecutable(isExecutable)
+        .build();
+  }
+
+  /**
+   * upload the files beneath dir concurrently, and assemble its Directory
+   * as its children complete, without blocking any upload threads
+   */
+  private ListenableFuture<UploadedDirectory> uploadDirectory(
+      Path dir, Path outputDirPath, Consumer<Digest> onInsert) {
+    return transformAsync(
+        outputUploadService.submit(() -> listSorted(dir)),
+        (entries) -> {
+          ImmutableList.Builder<ListenableFuture<FileNode>> fileNodeFutures = ImmutableList.builder();
+          ImmutableList.Builder<String> subdirectoryNames = ImmutableList.builder();
+          ImmutableList.Builder<ListenableFuture<UploadedDirectory>> subdirectoryFutures = ImmutableList.builder();
+          for (Path entry : entries) {
+            if (Files.isDirectory(entry, NOFOLLOW_LINKS)) {
+              subdirectoryNames.add(entry.getFileName().toString());
+              subdirectoryFutures.add(uploadDirectory(entry, outputDirPath, onInsert));
+            } else {
+              fileNodeFutures.add(outputUploadService.submit(() -> uploadFileNode(entry, outputDirPath, onInsert)));
+            }
+          }
+          List<String> names = subdirectoryNames.build();
+          ListenableFuture<List<FileNode>> fileNodesFuture = allAsList(fileNodeFutures.build());
+          ListenableFuture<List<UploadedDirectory>> subdirectoriesFuture = allAsList(subdirectoryFutures.build());
+          return whenAllSucceed(fileNodesFuture, subdirectoriesFuture).call(
+              () -> {
+                Directory.Builder directory = Directory.newBuilder();
+                for (FileNode fileNode : getDone(fileNodesFuture)) {
+                  if (fileNode != null) {
+                    directory.addFiles(fileNode);
+                  }
+                }
+                ImmutableList.Builder<Directory> descendants = ImmutableList.builder();
+                List<UploadedDirectory> subdirectories = getDone(subdirectoriesFuture);
+                for (int i = 0; i < subdirectories.size(); i++) {
+                  UploadedDirectory subdirectory = subdirectories.get(i);
+                  directory.addDirectoriesBuilder()
+                      .setName(names.get(i))
+                      .setDigest(getDigestUtil().compute(subdirectory.directory));
+                  descendants.add(subdirectory.directory);
+                  descendants.addAll(subdirectory.descendants);
+                }
+                return new UploadedDirectory(directory.build(), descendants.build());
+              },
+              directExecutor());
+        },
+        directExecutor());
+  }
+
+  private ListenableFuture<OutputDirectory> uploadOutputDirectory(
+      String outputDir, Path outputDirPath, Consumer<Digest> onInsert) {
+    return transformAsync(
+        uploadDirectory(outputDirPath, outputDirPath, onInsert),
+        (uploadedDirectory) -> {
+          Tree tree = Tree.newBuilder()
+              .setRoot(uploadedDirectory.directory)
+              .addAllChildren(uploadedDirectory.descendants)
+              .build();
+          ByteString treeBlob = tree.toByteString();
+          Digest treeDigest = getDigestUtil().compute(treeBlob);
+          insertBlob(treeDigest, treeBlob);
+          return immediateFuture(OutputDirectory.newBuilder()
+              .setPath(outputDir)
+              .setTreeDigest(treeDigest)
+              .build());
+        },
+        outputUploadService);
+  }
+
   @Override
   public void uploadOutputs(
       ActionResult.Builder resultBuilder,
@@ -432,6 +638,11 @@ class ShardWorkerContext implements WorkerContext {
       Iterable<String> outputFiles,
       Iterable<String> outputDirs)
       throws IOException, InterruptedException {
+    // locations of newly inserted blobs are registered together once all outputs are in
+    Queue<Digest> insertedDigests = new ConcurrentLinkedQueue<>();
+    Consumer<Digest> onInsert = insertedDigests::add;
+
+    ImmutableList.Builder<ListenableFuture<OutputFile>> outputFileFutures = ImmutableList.builder();
     for (String outputFile : outputFiles) {
       Path outputPath = actionRoot.resolve(outputFile);
       if (!Files.exists(outputPath)) {
@@ -443,20 +654,23 @@ class ShardWorkerContext implements WorkerContext {
       // want to decrement input references *before* this to ensure that we cannot
       // cause an internal deadlock
 
-      Digest digest;
-      try {
-        digest = getDigestUtil().compute(outputPath);
-      } catch (NoSuchFileException e) {
-        continue;
-      }
-
-      OutputFile.Builder outputFileBuilder = resultBuilder.addOutputFilesBuilder()
-          .setPath(outputFile)
-          .setDigest(digest)
-          .setIsExecutable(Files.isExecutable(outputPath));
-      insertFile(digest, outputPath);
+      outputFileFutures.add(outputUploadService.submit(() -> {
+        boolean isExecutable = Files.isExecutable(outputPath);
+        Digest digest;
+        try {
+          digest = ingestFile(outputPath, onInsert);
+        } catch (NoSuchFileException e) {
+          return null;
+        }
+        return OutputFile.newBuilder()
+            .setPath(outputFile)
+            .setDigest(digest)
+            .setIsExecutable(isExecutable)
+            .build();
+      }));
     }
 
+    ImmutableList.Builder<ListenableFuture<OutputDirectory>> outputDirectoryFutures = ImmutableList.builder();
     for (String outputDir : outputDirs) {
       Path outputDirPath = actionRoot.resolve(outputDir);
       if (!Files.exists(outputDirPath)) {
@@ -464,67 +678,25 @@ class ShardWorkerContext implements WorkerContext {
         continue;
       }
 
-      Tree.Builder treeBuilder = Tree.newBuilder();
-      Directory.Builder outputRoot = treeBuilder.getRootBuilder();
-      Files.walkFileTree(outputDirPath, new SimpleFileVisitor<Path>() {
-        Directory.Builder currentDirectory = null;
-        Stack<Directory.Builder> path = new Stack<>();
-
-        @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-          Digest digest;
-          try {
-            digest = getDigestUtil().compute(file);
-          } catch (NoSuchFileException e) {
-            logger.log(SEVERE, format("error visiting file %s under output dir %s", outputDirPath.relativize(file), outputDirPath.toAbsolutePath()), e);
-            return FileVisitResult.CONTINUE;
-          }
-
-          // should we cast to PosixFilePermissions and do gymnastics there for executable?
-
-          // TODO symlink per revision proposal
-          FileNode.Builder fileNodeBuilder = currentDirectory.addFilesBuilder()
-              .setName(file.getFileName().toString())
-              .setDigest(digest)
-              .setIsExecutable(Files.isExecutable(file));
-          insertFile(digest, file);
-          return FileVisitResult.CONTINUE;
-        }
-
-        @Override
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-          path.push(currentDirectory);
-          if (dir.equals(outputDirPath)) {
-            currentDirectory = outputRoot;
-          } else {
-            currentDirectory = treeBuilder.addChildrenBuilder();
-          }
-          return FileVisitResult.CONTINUE;
-        }
+      outputDirectoryFutures.add(uploadOutputDirectory(outputDir, outputDirPath, onInsert));
+    }
 
-        @Override
-        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-          Directory.Builder parentDirectory = path.pop();
-          if (parentDirectory != null) {
-            parentDirectory.addDirectoriesBuilder()
-                .setName(dir.getFileName().toString())
-                .setDigest(getDigestUtil().compute(currentDirectory.build()));
-          }
-          currentDirectory = parentDirectory;
-          return FileVisitResult.CONTINUE;
+    try {
+      for (OutputFile outputFile : getInterruptiblyOrIOException(allAsList(outputFileFutures.build()))) {
+        if (outputFile != null) {
+          resultBuilder.addOutputFiles(outputFile);
         }
-      });
-      Tree tree = treeBuilder.build();
-      ByteString treeBlob = tree.toByteString();
-      Digest treeDigest = getDigestUtil().compute(treeBlob);
-      insertBlob(treeDigest, treeBlob);
-      resultBuilder.addOutputDirectoriesBuilder()
-          .setPath(outputDir)
-          .setTreeDigest(treeDigest);
+      }
+      resultBuilder.addAllOutputDirectories(
+          getInterruptiblyOrIOException(allAsList(outputDirectoryFutures.build())));
+
+      /* put together our outputs and update the result */
+      updateActionResultStdOutputs(resultBuilder, actionRoot, onInsert);
+    } finally {
+      if (!insertedDigests.isEmpty()) {
+        backplane.addBlobsLocation(ImmutableList.copyOf(insertedDigests), getName());
+      }
     }
-
-    /* put together our outputs and update the result */
-    updateActionResultStdOutputs(resultBuilder);
   }
 
   private void logComplete(String operationName) {
@@ -573,9 +745,18 @@ class ShardWorkerContext implements WorkerContext {
   // might want to split for removeDirectory and decrement references to avoid removing for streamed output
   @Override
   public void destroyExecDir(Path execDir) throws IOException, InterruptedException {
+    if (outputSpillThreshold > 0) {
+      Files.deleteIfExists(getOutputSpillPath(execDir, STDOUT_SPILL_NAME));
+      Files.deleteIfExists(getOutputSpillPath(execDir, STDERR_SPILL_NAME));
+    }
     execFileSystem.destroyExecDir(execDir);
   }
 
+  @Override
+  public ExecDirMaterialization getExecDirMaterialization(Path execDir) {
+    return execFileSystem.getExecDirMaterialization(execDir);
+  }
+
   @Override
   public void putActionResult(ActionKey actionKey, ActionResult actionResult)
       throws IOException, InterruptedException {
@@ -39,6 +39,7 @@ import build.buildfarm.common.TokenizableIterator;
 import build.buildfarm.common.TreeIterator.DirectoryEntry;
 import build.buildfarm.common.Watcher;
 import build.buildfarm.common.Write;
+import build.buildfarm.common.grpc.ReadFlow;
 import build.buildfarm.instance.AbstractServerInstance;
 import build.buildfarm.v1test.CompletedOperationMetadata;
 import build.buildfarm.v1test.ExecutingOperationMetadata;
@@ -71,6 +72,8 @@ import javax.naming.ConfigurationException;
 public class ShardWorkerInstance extends AbstractServerInstance {
   private static final Logger logger = Logger.getLogger(ShardWorkerInstance.class.getName());
 
+  private static final int BLOB_CHUNK_SIZE = 1024 * 1024;
+
   private final ShardWorkerInstanceConfig config;
   private final ShardBackplane backplane;
   private final InputStreamFactory inputStreamFactory;
@@ -119,25 +122,6 @@ public class ShardWorkerInstance extends AbstractServerInstance {
     throw new UnsupportedOperationException();
   }
 
-  private void getBlob(InputStream input, long remaining, long limit, StreamObserver<ByteString> blobObserver) {
-    try {
-      if (limit == 0 || limit > remaining) {
-        limit = remaining;
-      }
-      // slice up into 1M chunks
-      long chunkSize = Math.min(1024 * 1024, limit);
-      byte[] chunk = new byte[(int) chunkSize];
-      while (limit > 0) {
-        int n = input.read(chunk);
-        blobObserver.onNext(ByteString.copyFrom(chunk, 0, n));
-        limit -= n;
-      }
-      blobObserver.onCompleted();
-    } catch (IOException e) {
-      blobObserver.onError(e);
-    }
-  }
-
   @Override
   public void getBlob(
       Digest blobDigest,
@@ -146,8 +130,9 @@ public class ShardWorkerInstance extends AbstractServerInstance {
       long readDeadlineAfter,
       TimeUnit readDeadlineAfterUnits,
       StreamObserver<ByteString> blobObserver) {
-    try (InputStream input = inputStreamFactory.newInput(blobDigest, offset)) {
-      getBlob(input, blobDigest.getSizeBytes() - offset, limit, blobObserver);
+    InputStream input;
+    try {
+      input = inputStreamFactory.newInput(blobDigest, offset);
     } catch (IOException e) {
       blobObserver.onError(Status.NOT_FOUND.withCause(e).asException());
       try {
@@ -155,9 +140,17 @@ public class ShardWorkerInstance extends AbstractServerInstance {
       } catch (IOException backplaneException) {
         logger.log(SEVERE, "error removing blob location for " + DigestUtil.toString(blobDigest), backplaneException);
       }
+      return;
     } catch (InterruptedException e) {
       blobObserver.onError(Status.CANCELLED.withCause(e).asException());
+      return;
+    }
+    long remaining = blobDigest.getSizeBytes() - offset;
+    if (limit == 0 || limit > remaining) {
+      limit = remaining;
     }
+    // slice up into 1M chunks, sent as the observer becomes ready
+    ReadFlow.start(input, limit, BLOB_CHUNK_SIZE, (chunk) -> chunk, blobObserver);
   }
 
   protected TokenizableIterator<DirectoryEntry> createTreeIterator(
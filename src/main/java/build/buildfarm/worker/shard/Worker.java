@@ -36,16 +36,22 @@ import build.buildfarm.server.InstanceNotFoundException;
 import build.buildfarm.server.Instances;
 import build.buildfarm.server.ContentAddressableStorageService;
 import build.buildfarm.server.ByteStreamService;
+import build.buildfarm.worker.CASBloomFilter;
+import build.buildfarm.worker.CASCompression;
 import build.buildfarm.worker.CASFileCache;
+import build.buildfarm.worker.CASMemoryTier;
 import build.buildfarm.worker.ExecuteActionStage;
+import build.buildfarm.worker.ExecuteResources;
 import build.buildfarm.worker.FuseCAS;
 import build.buildfarm.worker.InputFetchStage;
 import build.buildfarm.worker.MatchStage;
+import build.buildfarm.worker.PersistentWorkers;
 import build.buildfarm.worker.Pipeline;
 import build.buildfarm.worker.PipelineStage;
 import build.buildfarm.worker.PutOperationStage;
 import build.buildfarm.worker.ReportResultStage;
 import build.buildfarm.worker.WorkerContext;
+import build.buildfarm.v1test.CASCacheCompressionConfig;
 import build.buildfarm.v1test.QueuedOperationMetadata;
 import build.buildfarm.v1test.ShardWorkerConfig;
 import build.buildfarm.v1test.ShardWorker;
@@ -62,12 +68,14 @@ import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.Status;
 import io.grpc.Status.Code;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
@@ -82,14 +90,27 @@ public class Worker {
 
   private static final int shutdownWaitTimeInSeconds = 10;
 
+  private static final long defaultMemoryTierMaxEntrySizeInBytes = 64 * 1024;
+
+  private static final int defaultCompressionLevel = 1;
+
+  private static final int defaultCompressionSampleSizeInBytes = 64 * 1024;
+
+  private static final double defaultCompressionMaxSampleRatio = 0.8;
+
+  private static final double defaultBloomFilterFalsePositiveRate = 0.01;
+  private static final String OUTPUT_SPILL_DIRECTORY = "output-spill";
+
   private final ShardWorkerConfig config;
   private final ShardWorkerInstance instance;
   private final Server server;
   private final Path root;
   private final DigestUtil digestUtil;
   private final ExecFileSystem execFileSystem;
+  private final ExecutorService outputUploadService;
   private final Pipeline pipeline;
   private final ShardBackplane backplane;
+  private final BlobLocationBatcher blobLocations;
   private final LoadingCache<String, Instance> workerStubs;
 
   public Worker(String session, ShardWorkerConfig config) throws ConfigurationException {
@@ -154,6 +175,7 @@ public class Worker {
             (o) -> false);
         break;
     }
+    blobLocations = new BlobLocationBatcher(backplane, config.getPublicName());
 
     workerStubs = WorkerStubs.create(digestUtil);
 
@@ -180,15 +202,29 @@ public class Worker {
             instances,
             /* deadlineAfter=*/ 1, DAYS,
             /* requestLogLevel=*/ FINER))
-        .addService(new ByteStreamService(instances, /* writeDeadlineAfter=*/ 1, DAYS))
+        .addService(new ByteStreamService(
+            instances,
+            /* writeDeadlineAfter=*/ 1, DAYS,
+            config.getReadChunkSizeBytes()))
+        .addService(new WorkerMetricsService(execFileSystem.getStorage()))
         .build();
 
+    int outputUploadWidth = config.getOutputUploadWidth();
+    if (outputUploadWidth <= 0) {
+      outputUploadWidth = Runtime.getRuntime().availableProcessors();
+    }
+    outputUploadService = newFixedThreadPool(
+        outputUploadWidth,
+        new ThreadFactoryBuilder().setNameFormat("output-upload-pool-%d").build());
+
     WorkerContext context = new ShardWorkerContext(
         config.getPublicName(),
         config.getPlatform(),
         config.getOperationPollPeriod(),
         backplane::pollOperation,
         config.getInlineContentLimit(),
+        config.getOutputSpillThreshold(),
+        root.resolve(OUTPUT_SPILL_DIRECTORY),
         config.getInputFetchStageWidth(),
         config.getExecuteStageWidth(),
         backplane,
@@ -197,6 +233,8 @@ public class Worker {
             new FailoverInputStreamFactory(
                 execFileSystem.getStorage(),
                 remoteInputStreamFactory)),
+        outputUploadService,
+        config.getLinkOutputFilesIntoCasCache(),
         config.getExecutionPoliciesList(),
         instance,
         /* deadlineAfter=*/ 1, /* deadlineAfterUnits=*/ DAYS);
@@ -204,9 +242,19 @@ public class Worker {
     PipelineStage completeStage = new PutOperationStage((operation) -> context.deactivate(operation.getName()));
     PipelineStage errorStage = completeStage; /* new ErrorStage(); */
     PipelineStage reportResultStage = new ReportResultStage(context, completeStage, errorStage);
-    PipelineStage executeActionStage = new ExecuteActionStage(context, reportResultStage, errorStage);
+    PipelineStage executeActionStage = new ExecuteActionStage(
+        context,
+        reportResultStage,
+        errorStage,
+        createExecuteResources(),
+        createPersistentWorkers());
     reportResultStage.setInput(executeActionStage);
-    PipelineStage inputFetchStage = new InputFetchStage(context, executeActionStage, new PutOperationStage(context::requeue));
+    PipelineStage inputFetchStage = new InputFetchStage(
+        context,
+        executeActionStage,
+        new PutOperationStage(context::requeue),
+        config.getInputFetchStageLookahead(),
+        /* lookaheadBytes=*/ config.getCasCacheMaxSizeBytes() / 2);
     executeActionStage.setInput(inputFetchStage);
     PipelineStage matchStage = new MatchStage(context, inputFetchStage, errorStage);
     inputFetchStage.setInput(matchStage);
@@ -222,30 +270,38 @@ public class Worker {
   }
 
   private ExecFileSystem createFuseExecFileSystem(InputStreamFactory remoteInputStreamFactory) {
-    final ContentAddressableStorage storage = new MemoryCAS(config.getCasMaxSizeBytes(), this::onStoragePut);
+    final ContentAddressableStorage storage = new MemoryCAS(config.getCasMaxSizeBytes(), blobLocations);
     InputStreamFactory storageInputStreamFactory = (digest, offset) -> storage.get(digest).getData().substring((int) offset).newInput();
 
     InputStreamFactory localPopulatingInputStreamFactory = new InputStreamFactory() {
       @Override
       public InputStream newInput(Digest blobDigest, long offset) throws IOException, InterruptedException {
-        ByteString content = ByteString.readFrom(remoteInputStreamFactory.newInput(blobDigest, offset));
+        if (offset != 0 || blobDigest.getSizeBytes() > FuseCAS.BLOCK_SIZE) {
+          // block reads consume only what they need from the remote stream
+          return remoteInputStreamFactory.newInput(blobDigest, offset);
+        }
 
-        if (offset == 0) {
-          // extra computations
-          Blob blob = new Blob(content, digestUtil);
-          // here's hoping that our digest matches...
-          storage.put(blob);
+        // a blob within a single block is retained whole
+        ByteString content;
+        try (InputStream in = remoteInputStreamFactory.newInput(blobDigest, offset)) {
+          content = ByteString.readFrom(ByteStreams.limit(in, FuseCAS.BLOCK_SIZE));
         }
 
+        // extra computations
+        Blob blob = new Blob(content, digestUtil);
+        // here's hoping that our digest matches...
+        storage.put(blob);
+
         return content.newInput();
       }
     };
-    return new FuseExecFileSystem(
-        root,
-        new FuseCAS(root,
-            new EmptyInputStreamFactory(
-                new FailoverInputStreamFactory(storageInputStreamFactory, localPopulatingInputStreamFactory))),
-        storage);
+    InputStreamFactory fuseInputStreamFactory = new EmptyInputStreamFactory(
+        new FailoverInputStreamFactory(storageInputStreamFactory, localPopulatingInputStreamFactory));
+    long blockCacheMaxSizeBytes = config.getFuseBlockCacheMaxSizeBytes();
+    FuseCAS fuseCAS = blockCacheMaxSizeBytes > 0
+        ? new FuseCAS(root, fuseInputStreamFactory, blockCacheMaxSizeBytes)
+        : new FuseCAS(root, fuseInputStreamFactory);
+    return new FuseExecFileSystem(root, fuseCAS, storage);
   }
 
   private ExecFileSystem createExecFileSystem(InputStreamFactory remoteInputStreamFactory) throws ConfigurationException {
@@ -257,26 +313,130 @@ public class Worker {
         getValidCasCacheDirectory(config, root));
   }
 
+  private CASMemoryTier createMemoryTier() {
+    long maxSizeInBytes = config.getCasCacheMemoryTierMaxSizeBytes();
+    if (maxSizeInBytes <= 0) {
+      return null;
+    }
+    long maxEntrySizeInBytes = config.getCasCacheMemoryTierMaxEntrySizeBytes();
+    if (maxEntrySizeInBytes <= 0) {
+      maxEntrySizeInBytes = defaultMemoryTierMaxEntrySizeInBytes;
+    }
+    return new CASMemoryTier(maxSizeInBytes, maxEntrySizeInBytes);
+  }
+
+  private CASCompression createCompression() {
+    if (!config.hasCasCacheCompression()) {
+      return null;
+    }
+    CASCacheCompressionConfig compressionConfig = config.getCasCacheCompression();
+    int level = compressionConfig.getLevel();
+    int sampleSizeBytes = compressionConfig.getSampleSizeBytes();
+    double maxSampleRatio = compressionConfig.getMaxSampleRatio();
+    return new CASCompression(
+        compressionConfig.getMinSizeBytes(),
+        level > 0 ? level : defaultCompressionLevel,
+        sampleSizeBytes > 0 ? sampleSizeBytes : defaultCompressionSampleSizeInBytes,
+        maxSampleRatio > 0 ? maxSampleRatio : defaultCompressionMaxSampleRatio);
+  }
+
+  private CASBloomFilter createBloomFilter() {
+    long expectedEntries = config.getCasCacheBloomFilterExpectedEntries();
+    if (expectedEntries <= 0) {
+      return null;
+    }
+    double falsePositiveRate = config.getCasCacheBloomFilterFalsePositiveRate();
+    if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+      falsePositiveRate = defaultBloomFilterFalsePositiveRate;
+    }
+    return new CASBloomFilter(expectedEntries, falsePositiveRate);
+  }
+
+  private ExecuteResources createExecuteResources() throws ConfigurationException {
+    if (config.getExecuteStageCores() <= 0 && config.getExecuteStageMemoryBytes() <= 0) {
+      return null;
+    }
+    BitSet cpus = null;
+    if (config.getPinExecuteStageCores()) {
+      checkTaskset();
+      cpus = getExecuteStageCpus();
+    }
+    return new ExecuteResources(
+        config.getExecuteStageCores(),
+        config.getExecuteStageMemoryBytes(),
+        cpus);
+  }
+
+  /** pinned commands are run under taskset, which must be on the path */
+  private static void checkTaskset() throws ConfigurationException {
+    String path = System.getenv("PATH");
+    if (path != null) {
+      for (String directory : path.split(File.pathSeparator)) {
+        if (!directory.isEmpty() && Files.isExecutable(Paths.get(directory, "taskset"))) {
+          return;
+        }
+      }
+    }
+    throw new ConfigurationException("pin_execute_stage_cores requires taskset, which was not found on the path");
+  }
+
+  private BitSet getExecuteStageCpus() {
+    String cpuList = config.getExecuteStageCpuList();
+    if (!cpuList.isEmpty()) {
+      return ExecuteResources.parseCpuList(cpuList);
+    }
+    BitSet cpus = ExecuteResources.getAllowedCpus();
+    if (cpus == null) {
+      cpus = new BitSet();
+      cpus.set(0, config.getExecuteStageCores());
+    }
+    return cpus;
+  }
+
+  private PersistentWorkers createPersistentWorkers() {
+    int maxIdleWorkers = config.getMaxIdlePersistentWorkers();
+    if (maxIdleWorkers <= 0) {
+      return null;
+    }
+    return new PersistentWorkers(root.resolve("persistent-workers"), maxIdleWorkers);
+  }
+
   private ExecFileSystem createCFCExecFileSystem(InputStreamFactory remoteInputStreamFactory, Path casCacheDirectory) {
     ExecutorService removeDirectoryService =
         newFixedThreadPool(
             /* nThreads=*/ 32,
             new ThreadFactoryBuilder().setNameFormat("remove-directory-pool-%d").build());
 
+    int execDirLinkWidth = config.getExecDirLinkWidth();
+    if (execDirLinkWidth <= 0) {
+      execDirLinkWidth = Runtime.getRuntime().availableProcessors();
+    }
+    ExecutorService linkService =
+        newFixedThreadPool(
+            execDirLinkWidth,
+            new ThreadFactoryBuilder().setNameFormat("exec-dir-link-pool-%d").build());
+
     CASFileCache fileCache = new ShardCASFileCache(
         remoteInputStreamFactory,
         root.resolve(casCacheDirectory),
         config.getCasCacheMaxSizeBytes(),
         digestUtil,
         removeDirectoryService,
-        this::onStoragePut,
-        this::onStorageExpire);
+        blobLocations,
+        this::onStorageExpire,
+        CASFileCache.Options.newBuilder()
+            .setMemoryTier(createMemoryTier())
+            .setCompression(createCompression())
+            .setBloomFilter(createBloomFilter())
+            .build());
 
     return new CFCExecFileSystem(
         root,
         fileCache,
         config.getLinkInputDirectories(),
         removeDirectoryService,
+        linkService,
+        config.getExecDirTemplateCacheSize(),
         /* deadlineAfter=*/ 1, /* deadlineAfterUnits=*/ DAYS);
   }
 
@@ -289,7 +449,19 @@ public class Worker {
       Thread.interrupted();
       interrupted = true;
     }
+    outputUploadService.shutdown();
     logger.info("Stopping exec filesystem");
+    if (execFileSystem.getStorage() instanceof CASFileCache) {
+      CASFileCache fileCache = (CASFileCache) execFileSystem.getStorage();
+      if (fileCache.getMemoryTierStats() != null) {
+        logger.info("CAS memory tier: " + fileCache.getMemoryTierStats());
+      }
+      logger.info(
+          String.format(
+              "CAS cache: %d bytes stored, %d bytes effective",
+              fileCache.getSizeInBytes(),
+              fileCache.getEffectiveSizeInBytes()));
+    }
     execFileSystem.stop();
     if (server != null) {
       logger.info("Shutting down the server");
@@ -316,14 +488,6 @@ public class Worker {
     }
   }
 
-  private void onStoragePut(Digest digest) {
-    try {
-      backplane.addBlobLocation(digest, config.getPublicName());
-    } catch (IOException e) {
-      throw Status.fromThrowable(e).asRuntimeException();
-    }
-  }
-
   private void onStorageExpire(Iterable<Digest> digests) {
     try {
       backplane.removeBlobsLocation(digests, config.getPublicName());
@@ -439,6 +603,10 @@ public class Worker {
       removeWorker(config.getPublicName());
 
       execFileSystem.start((digests) -> addBlobsLocation(digests, config.getPublicName()));
+      // the exec filesystem clears the root of anything left by a previous run
+      if (config.getOutputSpillThreshold() > 0) {
+        Files.createDirectories(root.resolve(OUTPUT_SPILL_DIRECTORY));
+      }
 
       server.start();
       startFailsafeRegistration();
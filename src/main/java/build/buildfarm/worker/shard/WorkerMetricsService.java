@@ -0,0 +1,45 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import build.buildfarm.cas.ContentAddressableStorage;
+import build.buildfarm.v1test.CASCacheMetrics;
+import build.buildfarm.v1test.GetCASCacheMetricsRequest;
+import build.buildfarm.v1test.WorkerMetricsGrpc;
+import build.buildfarm.worker.CASFileCache;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+class WorkerMetricsService extends WorkerMetricsGrpc.WorkerMetricsImplBase {
+  private final ContentAddressableStorage storage;
+
+  WorkerMetricsService(ContentAddressableStorage storage) {
+    this.storage = storage;
+  }
+
+  @Override
+  public void getCASCacheMetrics(
+      GetCASCacheMetricsRequest request,
+      StreamObserver<CASCacheMetrics> responseObserver) {
+    if (!(storage instanceof CASFileCache)) {
+      responseObserver.onError(Status.UNIMPLEMENTED
+          .withDescription("worker storage is not a cas cache")
+          .asException());
+      return;
+    }
+    responseObserver.onNext(((CASFileCache) storage).getCASCacheMetrics());
+    responseObserver.onCompleted();
+  }
+}
@@ -0,0 +1,108 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.protobuf.util.Durations;
+import io.grpc.Deadline;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PollerTest {
+  @Test
+  public void pollsPeriodicallyUntilPaused() throws InterruptedException {
+    Poller poller = new Poller(Durations.fromMillis(100));
+    AtomicInteger polls = new AtomicInteger();
+    CountDownLatch polled = new CountDownLatch(3);
+    poller.resume(
+        () -> {
+          polls.incrementAndGet();
+          polled.countDown();
+          return true;
+        },
+        () -> {},
+        Deadline.after(10, SECONDS));
+    assertThat(polled.await(10, SECONDS)).isTrue();
+
+    poller.pause();
+    int pausedPolls = polls.get();
+    Thread.sleep(500);
+    assertThat(polls.get()).isEqualTo(pausedPolls);
+  }
+
+  @Test
+  public void failedPollStopsPolling() throws InterruptedException {
+    Poller poller = new Poller(Durations.fromMillis(100));
+    AtomicInteger polls = new AtomicInteger();
+    CountDownLatch polled = new CountDownLatch(1);
+    poller.resume(
+        () -> {
+          polls.incrementAndGet();
+          polled.countDown();
+          return false;
+        },
+        () -> {},
+        Deadline.after(10, SECONDS));
+    assertThat(polled.await(10, SECONDS)).isTrue();
+
+    Thread.sleep(500);
+    assertThat(polls.get()).isEqualTo(1);
+    poller.pause();
+  }
+
+  @Test
+  public void expiryEndsPolling() throws InterruptedException {
+    // the period outlasts the expiry deadline
+    Poller poller = new Poller(Durations.fromSeconds(10));
+    AtomicInteger polls = new AtomicInteger();
+    CountDownLatch expired = new CountDownLatch(1);
+    poller.resume(
+        () -> {
+          polls.incrementAndGet();
+          return true;
+        },
+        expired::countDown,
+        Deadline.after(200, MILLISECONDS));
+
+    assertThat(expired.await(10, SECONDS)).isTrue();
+    assertThat(polls.get()).isEqualTo(0);
+    poller.pause();
+  }
+
+  @Test
+  public void pausedPollerCanBeResumed() throws InterruptedException {
+    Poller poller = new Poller(Durations.fromMillis(100));
+    poller.resume(() -> true, () -> {}, Deadline.after(10, SECONDS));
+    poller.pause();
+
+    CountDownLatch polled = new CountDownLatch(1);
+    poller.resume(
+        () -> {
+          polled.countDown();
+          return true;
+        },
+        () -> {},
+        Deadline.after(10, SECONDS));
+    assertThat(polled.await(10, SECONDS)).isTrue();
+    poller.pause();
+  }
+}
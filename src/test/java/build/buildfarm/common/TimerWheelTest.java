@@ -0,0 +1,66 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TimerWheelTest {
+  private TimerWheel timerWheel;
+
+  @Before
+  public void setUp() {
+    // a small wheel so that timeouts span rotations
+    timerWheel = new TimerWheel("test-timer-wheel", 1, MILLISECONDS, 4, directExecutor());
+  }
+
+  @After
+  public void tearDown() {
+    timerWheel.stop();
+  }
+
+  @Test
+  public void scheduledTimeoutsExpireAfterTheirDelay() throws InterruptedException {
+    CountDownLatch expired = new CountDownLatch(2);
+    long start = System.nanoTime();
+    timerWheel.schedule(expired::countDown, 0, MILLISECONDS);
+    timerWheel.schedule(expired::countDown, 20, MILLISECONDS);
+    assertThat(expired.await(10, SECONDS)).isTrue();
+    assertThat(System.nanoTime() - start).isAtLeast(MILLISECONDS.toNanos(20));
+  }
+
+  @Test
+  public void cancelledTimeoutsDoNotExpire() throws InterruptedException {
+    AtomicBoolean cancelledExpired = new AtomicBoolean(false);
+    CountDownLatch expired = new CountDownLatch(1);
+    TimerWheel.Timeout timeout = timerWheel.schedule(() -> cancelledExpired.set(true), 10, MILLISECONDS);
+    timerWheel.schedule(expired::countDown, 20, MILLISECONDS);
+    assertThat(timeout.cancel()).isTrue();
+    assertThat(expired.await(10, SECONDS)).isTrue();
+    assertThat(cancelledExpired.get()).isFalse();
+    assertThat(timeout.cancel()).isFalse();
+  }
+}
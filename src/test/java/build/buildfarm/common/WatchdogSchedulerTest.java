@@ -0,0 +1,68 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import build.buildfarm.common.WatchdogScheduler.ScheduledWatchdog;
+import com.google.protobuf.util.Durations;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class WatchdogSchedulerTest {
+  private WatchdogScheduler watchdogScheduler;
+
+  @Before
+  public void setUp() {
+    watchdogScheduler = new WatchdogScheduler("test-watchdog", 1);
+  }
+
+  @After
+  public void tearDown() {
+    watchdogScheduler.stop();
+  }
+
+  @Test
+  public void pettedWatchdogExpiresAfterLastPet() throws InterruptedException {
+    CountDownLatch expired = new CountDownLatch(1);
+    ScheduledWatchdog watchdog = watchdogScheduler.start(Durations.fromMillis(300), expired::countDown);
+    long lastPet = System.nanoTime();
+    for (int i = 0; i < 5; i++) {
+      MILLISECONDS.sleep(100);
+      watchdog.pet();
+      lastPet = System.nanoTime();
+    }
+    assertThat(expired.await(10, SECONDS)).isTrue();
+    assertThat(System.nanoTime() - lastPet).isAtLeast(MILLISECONDS.toNanos(300));
+  }
+
+  @Test
+  public void stoppedWatchdogDoesNotExpire() throws InterruptedException {
+    CountDownLatch stoppedExpired = new CountDownLatch(1);
+    CountDownLatch expired = new CountDownLatch(1);
+    ScheduledWatchdog watchdog = watchdogScheduler.start(Durations.fromMillis(100), stoppedExpired::countDown);
+    watchdogScheduler.start(Durations.fromMillis(300), expired::countDown);
+    watchdog.stop();
+    assertThat(expired.await(10, SECONDS)).isTrue();
+    assertThat(stoppedExpired.getCount()).isEqualTo(1);
+  }
+}
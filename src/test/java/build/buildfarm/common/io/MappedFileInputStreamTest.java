@@ -0,0 +1,105 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.common.io;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.protobuf.ByteString.copyFromUtf8;
+import static java.nio.file.StandardOpenOption.READ;
+
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MappedFileInputStreamTest {
+  private final ByteString content = copyFromUtf8("Hello, World");
+  private Path path;
+
+  @Before
+  public void setUp() throws IOException {
+    path = Files.createTempFile("mapped-file-input-test", ".blob");
+    Files.write(path, content.toByteArray());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.delete(path);
+  }
+
+  private MappedFileInputStream newInput(long offset, long windowSize) throws IOException {
+    return new MappedFileInputStream(FileChannel.open(path, READ), offset, windowSize);
+  }
+
+  @Test
+  public void readByteStringSpansWindows() throws IOException {
+    try (MappedFileInputStream in = newInput(/* offset=*/ 0, /* windowSize=*/ 5)) {
+      assertThat(in.readByteString(100)).isEqualTo(content.substring(0, 5));
+      assertThat(in.readByteString(3)).isEqualTo(content.substring(5, 8));
+      assertThat(in.readByteString(100)).isEqualTo(content.substring(8, 10));
+      assertThat(in.readByteString(100)).isEqualTo(content.substring(10));
+      assertThat(in.readByteString(100)).isNull();
+    }
+  }
+
+  @Test
+  public void readFromOffset() throws IOException {
+    try (MappedFileInputStream in = newInput(/* offset=*/ 7, /* windowSize=*/ 64)) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content.substring(7));
+      assertThat(in.read()).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  public void skipAdvancesWithinBounds() throws IOException {
+    try (MappedFileInputStream in = newInput(/* offset=*/ 0, /* windowSize=*/ 4)) {
+      assertThat(in.skip(6)).isEqualTo(6);
+      assertThat(in.read()).isEqualTo('W');
+      assertThat(in.skip(100)).isEqualTo(content.size() - 7);
+      assertThat(in.available()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void readsAcrossUnmappedWindows() throws IOException {
+    long sharedMappedBytes = MappedFileInputStream.getSharedMappedBytes();
+    byte[] buf = new byte[3];
+    ByteString.Output out = ByteString.newOutput();
+    try (MappedFileInputStream in = newInput(/* offset=*/ 0, /* windowSize=*/ 5)) {
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        out.write(buf, 0, n);
+      }
+    }
+    assertThat(out.toByteString()).isEqualTo(content);
+    assertThat(MappedFileInputStream.getSharedMappedBytes()).isAtMost(sharedMappedBytes);
+  }
+
+  @Test
+  public void readByteStringRetainsWindowAfterClose() throws IOException {
+    ByteString chunk;
+    try (MappedFileInputStream in = newInput(/* offset=*/ 0, /* windowSize=*/ 64)) {
+      chunk = in.readByteString(5);
+      assertThat(MappedFileInputStream.getSharedMappedBytes()).isAtLeast((long) content.size());
+    }
+    assertThat(chunk).isEqualTo(content.substring(0, 5));
+  }
+}
@@ -0,0 +1,157 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PipelinedBatcherTest {
+  private ExecutorService callService;
+
+  @Before
+  public void setUp() {
+    callService = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    callService.shutdownNow();
+  }
+
+  private static List<Integer> doubled(List<Integer> requests) {
+    List<Integer> results = new ArrayList<>(requests.size());
+    for (int request : requests) {
+      results.add(request * 2);
+    }
+    return results;
+  }
+
+  @Test
+  public void callReturnsResultOfItsRequest() throws IOException {
+    PipelinedBatcher<Integer, Integer> batcher = new PipelinedBatcher<>(PipelinedBatcherTest::doubled);
+    assertThat(batcher.call(21)).isEqualTo(42);
+  }
+
+  @Test
+  public void callsArrivingDuringBatchAreBatchedTogether() throws Exception {
+    List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+    List<Thread> leaders = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch firstBatchStarted = new CountDownLatch(1);
+    CountDownLatch firstBatchReleased = new CountDownLatch(1);
+    PipelinedBatcher<Integer, Integer> batcher = new PipelinedBatcher<>((requests) -> {
+      batches.add(ImmutableList.copyOf(requests));
+      leaders.add(Thread.currentThread());
+      if (batches.size() == 1) {
+        firstBatchStarted.countDown();
+        try {
+          firstBatchReleased.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      return doubled(requests);
+    });
+
+    List<Thread> callers = Collections.synchronizedList(new ArrayList<>());
+    Future<Integer> first = callService.submit(() -> {
+      callers.add(Thread.currentThread());
+      return batcher.call(0);
+    });
+    assertThat(firstBatchStarted.await(10, SECONDS)).isTrue();
+    List<Future<Integer>> waiting = new ArrayList<>();
+    for (int i = 1; i <= 4; i++) {
+      int request = i;
+      waiting.add(callService.submit(() -> {
+        callers.add(Thread.currentThread());
+        return batcher.call(request);
+      }));
+    }
+    // all of the callers are waiting behind the first batch
+    while (callers.size() < 5) {
+      Thread.sleep(1);
+    }
+    Thread.sleep(100);
+    firstBatchReleased.countDown();
+
+    assertThat(first.get(10, SECONDS)).isEqualTo(0);
+    for (int i = 0; i < waiting.size(); i++) {
+      assertThat(waiting.get(i).get(10, SECONDS)).isEqualTo((i + 1) * 2);
+    }
+    assertThat(batches).hasSize(2);
+    assertThat(batches.get(0)).containsExactly(0);
+    assertThat(batches.get(1)).containsExactly(1, 2, 3, 4);
+    // the first leader returned after its own batch, a waiting caller ran the next
+    assertThat(leaders.get(1)).isNotSameAs(leaders.get(0));
+    assertThat(callers.subList(1, 5)).contains(leaders.get(1));
+  }
+
+  @Test
+  public void batchFailureFailsEachCallInBatch() throws Exception {
+    CountDownLatch firstBatchStarted = new CountDownLatch(1);
+    CountDownLatch firstBatchReleased = new CountDownLatch(1);
+    PipelinedBatcher<Integer, Integer> batcher = new PipelinedBatcher<>((requests) -> {
+      if (requests.contains(0)) {
+        firstBatchStarted.countDown();
+        try {
+          firstBatchReleased.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      if (requests.contains(-1)) {
+        throw new IOException("batch failed");
+      }
+      return doubled(requests);
+    });
+
+    Future<Integer> first = callService.submit(() -> batcher.call(0));
+    assertThat(firstBatchStarted.await(10, SECONDS)).isTrue();
+    List<Future<Integer>> failing = new ArrayList<>();
+    failing.add(callService.submit(() -> batcher.call(-1)));
+    failing.add(callService.submit(() -> batcher.call(2)));
+    Thread.sleep(100);
+    firstBatchReleased.countDown();
+
+    assertThat(first.get(10, SECONDS)).isEqualTo(0);
+    for (Future<Integer> call : failing) {
+      Throwable cause = null;
+      try {
+        call.get(10, SECONDS);
+      } catch (ExecutionException e) {
+        cause = e.getCause();
+      }
+      assertThat(cause).isInstanceOf(IOException.class);
+    }
+    // later calls are batched anew
+    assertThat(batcher.call(3)).isEqualTo(6);
+  }
+}
@@ -43,6 +43,9 @@ import static org.mockito.Mockito.when;
 
 import build.bazel.remote.execution.v2.Action;
 import build.bazel.remote.execution.v2.ActionResult;
+import build.bazel.remote.execution.v2.BatchReadBlobsResponse.Response;
+import build.bazel.remote.execution.v2.BatchUpdateBlobsRequest;
+import build.bazel.remote.execution.v2.BatchUpdateBlobsResponse;
 import build.bazel.remote.execution.v2.Command;
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
@@ -69,6 +72,7 @@ import build.buildfarm.v1test.QueuedOperation;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
@@ -785,6 +789,85 @@ public class ShardInstanceTest {
     assertThat(missingDigests).containsExactly(digest);
   }
 
+  private static Response okResponse(Digest digest, ByteString content) {
+    return Response.newBuilder()
+        .setDigest(digest)
+        .setData(content)
+        .setStatus(com.google.rpc.Status.newBuilder().setCode(Code.OK.getNumber()))
+        .build();
+  }
+
+  @Test
+  public void allBlobsAreReadWithOneBatchPerWorker() throws Exception {
+    Instance otherWorkerInstance = mock(Instance.class);
+    when(mockInstanceLoader.load(eq("worker"))).thenReturn(mockWorkerInstance);
+    when(mockInstanceLoader.load(eq("other-worker"))).thenReturn(otherWorkerInstance);
+    when(mockBackplane.getWorkers()).thenReturn(ImmutableSet.of("worker", "other-worker"));
+
+    ByteString fooContent = ByteString.copyFromUtf8("foo");
+    ByteString barContent = ByteString.copyFromUtf8("bar");
+    ByteString bazContent = ByteString.copyFromUtf8("baz");
+    Digest fooDigest = DIGEST_UTIL.compute(fooContent);
+    Digest barDigest = DIGEST_UTIL.compute(barContent);
+    Digest bazDigest = DIGEST_UTIL.compute(bazContent);
+    Digest emptyDigest = DIGEST_UTIL.compute(ByteString.EMPTY);
+    when(mockBackplane.getBlobDigestsWorkers(any(Iterable.class))).thenReturn(ImmutableMap.of(
+        fooDigest, ImmutableSet.of("worker"),
+        barDigest, ImmutableSet.of("worker"),
+        bazDigest, ImmutableSet.of("other-worker")));
+    List<Digest> workerDigests = ImmutableList.of(fooDigest, barDigest);
+    when(mockWorkerInstance.getAllBlobsFuture(eq(workerDigests))).thenReturn(immediateFuture(ImmutableList.of(
+        okResponse(fooDigest, fooContent),
+        okResponse(barDigest, barContent))));
+    when(otherWorkerInstance.getAllBlobsFuture(eq(ImmutableList.of(bazDigest)))).thenReturn(immediateFuture(ImmutableList.of(
+        okResponse(bazDigest, bazContent))));
+
+    Iterable<Response> responses = instance.getAllBlobsFuture(
+        ImmutableList.of(bazDigest, fooDigest, emptyDigest, barDigest)).get();
+
+    assertThat(responses).containsExactly(
+        okResponse(bazDigest, bazContent),
+        okResponse(fooDigest, fooContent),
+        okResponse(emptyDigest, ByteString.EMPTY),
+        okResponse(barDigest, barContent)).inOrder();
+    verify(mockBackplane, times(1)).getBlobDigestsWorkers(any(Iterable.class));
+    verify(mockWorkerInstance, times(1)).getAllBlobsFuture(eq(workerDigests));
+    verify(otherWorkerInstance, times(1)).getAllBlobsFuture(eq(ImmutableList.of(bazDigest)));
+    verify(mockBackplane, never()).getBlobLocationSet(any(Digest.class));
+  }
+
+  @Test
+  public void allBlobsArePutWithOneBatchPerWorker() throws Exception {
+    when(mockInstanceLoader.load(eq("worker"))).thenReturn(mockWorkerInstance);
+    when(mockBackplane.getWorkers()).thenReturn(ImmutableSet.of("worker"));
+
+    ImmutableList.Builder<BatchUpdateBlobsRequest.Request> requestsBuilder = ImmutableList.builder();
+    ImmutableList.Builder<BatchUpdateBlobsResponse.Response> responsesBuilder = ImmutableList.builder();
+    for (String content : ImmutableList.of("foo", "bar", "baz")) {
+      ByteString blob = ByteString.copyFromUtf8(content);
+      Digest digest = DIGEST_UTIL.compute(blob);
+      requestsBuilder.add(BatchUpdateBlobsRequest.Request.newBuilder()
+          .setDigest(digest)
+          .setData(blob)
+          .build());
+      responsesBuilder.add(BatchUpdateBlobsResponse.Response.newBuilder()
+          .setDigest(digest)
+          .setStatus(com.google.rpc.Status.newBuilder().setCode(Code.OK.getNumber()))
+          .build());
+    }
+    List<BatchUpdateBlobsRequest.Request> requests = requestsBuilder.build();
+    List<BatchUpdateBlobsResponse.Response> workerResponses = responsesBuilder.build();
+    when(mockWorkerInstance.putAllBlobsFuture(eq(requests), any(Long.class), any(TimeUnit.class)))
+        .thenReturn(immediateFuture(workerResponses));
+
+    Iterable<BatchUpdateBlobsResponse.Response> responses =
+        instance.putAllBlobsFuture(requests, 1, SECONDS).get();
+
+    assertThat(responses).containsExactlyElementsIn(workerResponses).inOrder();
+    verify(mockWorkerInstance, times(1)).putAllBlobsFuture(eq(requests), any(Long.class), any(TimeUnit.class));
+    verify(mockWorkerInstance, never()).getBlobWrite(any(Digest.class), any(UUID.class));
+  }
+
   @Test
   public void watchOperationFutureIsDoneForCompleteOperation() throws IOException {
     Watcher watcher = mock(Watcher.class);
@@ -0,0 +1,143 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.instance.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.Write;
+import build.buildfarm.instance.Instance;
+import com.google.common.collect.ImmutableMap;
+import io.grpc.Status;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class WritesTest {
+  private static final Digest DIGEST = Digest.newBuilder()
+      .setHash("blob")
+      .setSizeBytes(3)
+      .build();
+
+  /** selects the first of workers which has not failed the upload */
+  private static Writes newWrites(Map<String, Instance> workers) {
+    return new Writes(
+        (excludedWorkers) -> {
+          for (String worker : workers.keySet()) {
+            if (!excludedWorkers.contains(worker)) {
+              return worker;
+            }
+          }
+          throw Status.UNAVAILABLE.withDescription("no available workers").asRuntimeException();
+        },
+        workers::get);
+  }
+
+  @Test
+  public void unavailableWorkerFailsOverForCommittedSize() {
+    UUID uuid = UUID.randomUUID();
+    Write failedWrite = mock(Write.class);
+    when(failedWrite.getCommittedSize()).thenThrow(Status.UNAVAILABLE.asRuntimeException());
+    Instance failedWorker = mock(Instance.class);
+    when(failedWorker.getBlobWrite(DIGEST, uuid)).thenReturn(failedWrite);
+
+    Write write = mock(Write.class);
+    when(write.getCommittedSize()).thenReturn(0L);
+    Instance worker = mock(Instance.class);
+    when(worker.getBlobWrite(DIGEST, uuid)).thenReturn(write);
+
+    Writes writes = newWrites(ImmutableMap.of("failed", failedWorker, "worker", worker));
+    assertThat(writes.get(DIGEST, uuid).getCommittedSize()).isEqualTo(0L);
+    // subsequent writes of the upload are directed to the new worker
+    assertThat(writes.get(DIGEST, uuid).getCommittedSize()).isEqualTo(0L);
+  }
+
+  @Test
+  public void failedOutputDirectsUploadToAnotherWorker() throws IOException {
+    UUID uuid = UUID.randomUUID();
+    OutputStream failedOut = mock(OutputStream.class);
+    doThrow(new IOException(Status.UNAVAILABLE.asException()))
+        .when(failedOut).write(any(byte[].class), eq(0), eq(3));
+    Write failedWrite = mock(Write.class);
+    when(failedWrite.getOutput(any(Long.class), any(TimeUnit.class))).thenReturn(failedOut);
+    Instance failedWorker = mock(Instance.class);
+    when(failedWorker.getBlobWrite(DIGEST, uuid)).thenReturn(failedWrite);
+
+    Write write = mock(Write.class);
+    when(write.getCommittedSize()).thenReturn(0L);
+    Instance worker = mock(Instance.class);
+    when(worker.getBlobWrite(DIGEST, uuid)).thenReturn(write);
+
+    Writes writes = newWrites(ImmutableMap.of("failed", failedWorker, "worker", worker));
+    OutputStream out = writes.get(DIGEST, uuid).getOutput(1, TimeUnit.SECONDS);
+    IOException failure = null;
+    try {
+      out.write(new byte[3], 0, 3);
+    } catch (IOException e) {
+      failure = e;
+    }
+    assertThat(failure).isNotNull();
+    assertThat(Status.fromThrowable(failure).getCode()).isEqualTo(Status.Code.UNAVAILABLE);
+    // the client resumes from the committed size of another worker
+    assertThat(writes.get(DIGEST, uuid).getCommittedSize()).isEqualTo(0L);
+  }
+
+  @Test
+  public void failedWorkerIsNotSelectedAgainForUpload() throws IOException {
+    UUID uuid = UUID.randomUUID();
+    OutputStream failedOut = mock(OutputStream.class);
+    doThrow(new IOException(Status.UNAVAILABLE.asException()))
+        .when(failedOut).write(any(byte[].class), eq(0), eq(3));
+    Write failedWrite = mock(Write.class);
+    when(failedWrite.getCommittedSize()).thenReturn(0L);
+    when(failedWrite.getOutput(any(Long.class), any(TimeUnit.class))).thenReturn(failedOut);
+    Instance failedWorker = mock(Instance.class);
+    when(failedWorker.getBlobWrite(DIGEST, uuid)).thenReturn(failedWrite);
+
+    Write write = mock(Write.class);
+    when(write.getCommittedSize()).thenReturn(3L);
+    Instance worker = mock(Instance.class);
+    when(worker.getBlobWrite(DIGEST, uuid)).thenReturn(write);
+
+    // the failed worker remains first among the workers
+    Writes writes = newWrites(ImmutableMap.of("failed", failedWorker, "worker", worker));
+    Write upload = writes.get(DIGEST, uuid);
+    assertThat(upload.getCommittedSize()).isEqualTo(0L);
+    IOException failure = null;
+    try {
+      upload.getOutput(1, TimeUnit.SECONDS).write(new byte[3], 0, 3);
+    } catch (IOException e) {
+      failure = e;
+    }
+    assertThat(failure).isNotNull();
+
+    assertThat(upload.getCommittedSize()).isEqualTo(3L);
+    assertThat(writes.get(DIGEST, uuid).getCommittedSize()).isEqualTo(3L);
+    verify(failedWorker, times(1)).getBlobWrite(DIGEST, uuid);
+  }
+}
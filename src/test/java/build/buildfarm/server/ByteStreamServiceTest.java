@@ -15,6 +15,9 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.Compression;
+import build.buildfarm.common.Compression.ChunkDeflater;
+import build.buildfarm.common.Compression.ChunkInflater;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.Write;
 import build.buildfarm.instance.Instance;
@@ -22,7 +25,12 @@ import build.buildfarm.instance.stub.ByteStreamUploader;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.bytestream.ByteStreamGrpc;
+import com.google.bytestream.ByteStreamGrpc.ByteStreamBlockingStub;
 import com.google.bytestream.ByteStreamGrpc.ByteStreamStub;
+import com.google.bytestream.ByteStreamProto.QueryWriteStatusRequest;
+import com.google.bytestream.ByteStreamProto.QueryWriteStatusResponse;
+import com.google.bytestream.ByteStreamProto.ReadRequest;
+import com.google.bytestream.ByteStreamProto.ReadResponse;
 import com.google.bytestream.ByteStreamProto.WriteRequest;
 import com.google.bytestream.ByteStreamProto.WriteResponse;
 import com.google.protobuf.ByteString;
@@ -31,14 +39,20 @@ import io.grpc.Server;
 import io.grpc.Status;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import io.grpc.util.MutableHandlerRegistry;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -231,4 +245,268 @@ public class ByteStreamServiceTest {
     verify(write, atLeastOnce()).getOutput(any(Long.class), any(TimeUnit.class));
     verify(write, times(2)).addListener(any(Runnable.class), any(Executor.class));
   }
+
+  @Test
+  public void readIsDrivenByClientDemand() throws Exception {
+    int chunkSize = ByteStreamService.DEFAULT_READ_CHUNK_SIZE;
+    int chunks = 16;
+    byte[] data = new byte[chunkSize * chunks];
+    new Random(1).nextBytes(data);
+    ByteString content = ByteString.copyFrom(data);
+    Digest digest = DIGEST_UTIL.compute(content);
+
+    AtomicLong bytesRead = new AtomicLong();
+    InputStream in = new FilterInputStream(content.newInput()) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int readBytes = super.read(b, off, len);
+        if (readBytes > 0) {
+          bytesRead.addAndGet(readBytes);
+        }
+        return readBytes;
+      }
+    };
+    Instance instance = mock(Instance.class);
+    when(instance.newBlobInput(eq(digest), eq(0L), any(Long.class), any(TimeUnit.class))).thenReturn(in);
+    String resourceName = "blobs/" + DigestUtil.toString(digest);
+    when(instances.getFromBlob(eq(resourceName))).thenReturn(instance);
+
+    Channel channel = InProcessChannelBuilder.forName(fakeServerName).directExecutor().build();
+    ByteStreamStub service = ByteStreamGrpc.newStub(channel);
+
+    // a throttled client, which requests each response only once it has received the last
+    ByteString.Output output = ByteString.newOutput();
+    SettableFuture<ByteString> readFuture = SettableFuture.create();
+    AtomicLong maxBytesAhead = new AtomicLong();
+    service.read(
+        ReadRequest.newBuilder().setResourceName(resourceName).build(),
+        new ClientResponseObserver<ReadRequest, ReadResponse>() {
+          private ClientCallStreamObserver<ReadRequest> requestStream;
+
+          @Override
+          public void beforeStart(ClientCallStreamObserver<ReadRequest> requestStream) {
+            this.requestStream = requestStream;
+            requestStream.disableAutoInboundFlowControl();
+          }
+
+          @Override
+          public void onNext(ReadResponse response) {
+            output.write(response.getData().toByteArray(), 0, response.getData().size());
+            maxBytesAhead.accumulateAndGet(bytesRead.get() - output.size(), Math::max);
+            requestStream.request(1);
+          }
+
+          @Override
+          public void onError(Throwable t) {
+            readFuture.setException(t);
+          }
+
+          @Override
+          public void onCompleted() {
+            readFuture.set(output.toByteString());
+          }
+        });
+
+    assertThat(readFuture.get()).isEqualTo(content);
+    // the server never reads more than the chunk it has been asked for
+    assertThat(maxBytesAhead.get()).isAtMost((long) chunkSize);
+  }
+
+  @Test
+  public void compressedReadInflatesToContent() throws Exception {
+    // compressible, spanning several read chunks
+    byte[] block = new byte[1024];
+    new Random(1).nextBytes(block);
+    ByteString content = ByteString.EMPTY;
+    for (int i = 0; i < ByteStreamService.DEFAULT_READ_CHUNK_SIZE * 4 / block.length; i++) {
+      content = content.concat(ByteString.copyFrom(block));
+    }
+    Digest digest = DIGEST_UTIL.compute(content);
+
+    Instance instance = mock(Instance.class);
+    when(instance.newBlobInput(eq(digest), eq(0L), any(Long.class), any(TimeUnit.class))).thenReturn(content.newInput());
+    when(instances.get(eq(""))).thenReturn(instance);
+    String resourceName = "compressed-blobs/" + Compression.DEFLATE + "/" + DigestUtil.toString(digest);
+
+    Channel channel = InProcessChannelBuilder.forName(fakeServerName).directExecutor().build();
+    ByteStreamStub service = ByteStreamGrpc.newStub(channel);
+    ChunkInflater inflater = new ChunkInflater();
+    ByteString.Output output = ByteString.newOutput();
+    AtomicLong compressedSize = new AtomicLong();
+    SettableFuture<ByteString> readFuture = SettableFuture.create();
+    service.read(
+        ReadRequest.newBuilder().setResourceName(resourceName).build(),
+        new StreamObserver<ReadResponse>() {
+          @Override
+          public void onNext(ReadResponse response) {
+            compressedSize.addAndGet(response.getData().size());
+            try {
+              inflater.inflate(response.getData()).writeTo(output);
+            } catch (IOException e) {
+              readFuture.setException(e);
+            }
+          }
+
+          @Override
+          public void onError(Throwable t) {
+            readFuture.setException(t);
+          }
+
+          @Override
+          public void onCompleted() {
+            readFuture.set(output.toByteString());
+          }
+        });
+
+    assertThat(readFuture.get()).isEqualTo(content);
+    assertThat(inflater.finished()).isTrue();
+    assertThat(compressedSize.get()).isLessThan((long) content.size());
+    inflater.end();
+  }
+
+  @Test
+  public void compressedUploadIsInflatedIntoWrite() throws Exception {
+    ByteString content = ByteString.copyFromUtf8("Hello, World! Hello, World! Hello, World!");
+    Digest digest = DIGEST_UTIL.compute(content);
+    UUID uuid = UUID.randomUUID();
+
+    SettableFuture<ByteString> writtenFuture = SettableFuture.create();
+    ByteString.Output output = ByteString.newOutput((int) digest.getSizeBytes());
+    OutputStream out = new OutputStream() {
+      @Override
+      public void close() {
+        if (output.size() == digest.getSizeBytes()) {
+          writtenFuture.set(output.toByteString());
+        }
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        output.write(b, off, len);
+      }
+
+      @Override
+      public void write(int b) {
+        output.write(b);
+      }
+    };
+
+    Write write = mock(Write.class);
+    when(write.getOutput(any(Long.class), any(TimeUnit.class))).thenReturn(out);
+    doAnswer(invocation -> (long) output.size()).when(write).getCommittedSize();
+    doAnswer(answerVoid((Runnable listener, Executor executor) -> writtenFuture.addListener(listener, executor)))
+        .when(write).addListener(any(Runnable.class), any(Executor.class));
+
+    Instance instance = mock(Instance.class);
+    when(instance.getBlobWrite(digest, uuid)).thenReturn(write);
+    when(instances.get(eq(""))).thenReturn(instance);
+    String resourceName = ByteStreamUploader.getCompressedResourceName(
+        uuid, /* instanceName=*/ null, Compression.DEFLATE, digest);
+
+    ChunkDeflater deflater = new ChunkDeflater();
+    ByteString first = deflater.deflate(content.substring(0, 6), /* last=*/ false);
+    ByteString rest = deflater.deflate(content.substring(6), /* last=*/ true);
+    deflater.end();
+
+    Channel channel = InProcessChannelBuilder.forName(fakeServerName).directExecutor().build();
+    ByteStreamStub service = ByteStreamGrpc.newStub(channel);
+    FutureWriteResponseObserver futureResponder = new FutureWriteResponseObserver();
+    StreamObserver<WriteRequest> requestObserver = service.write(futureResponder);
+    requestObserver.onNext(WriteRequest.newBuilder()
+        .setWriteOffset(0)
+        .setResourceName(resourceName)
+        .setData(first)
+        .build());
+    requestObserver.onNext(WriteRequest.newBuilder()
+        .setWriteOffset(first.size())
+        .setData(rest)
+        .setFinishWrite(true)
+        .build());
+    // committed_size is counted in compressed bytes
+    assertThat(futureResponder.get()).isEqualTo(WriteResponse.newBuilder()
+        .setCommittedSize(first.size() + rest.size())
+        .build());
+    requestObserver.onCompleted();
+    assertThat(writtenFuture.get()).isEqualTo(content);
+  }
+
+  @Test
+  public void compressedReadRangeIsInUncompressedUnits() throws Exception {
+    ByteString content = ByteString.copyFromUtf8("The quick brown fox jumps over the lazy dog");
+    Digest digest = DIGEST_UTIL.compute(content);
+
+    Instance instance = mock(Instance.class);
+    when(instance.newBlobInput(eq(digest), eq(4L), any(Long.class), any(TimeUnit.class)))
+        .thenReturn(content.substring(4).newInput());
+    when(instances.get(eq(""))).thenReturn(instance);
+    String resourceName = "compressed-blobs/" + Compression.DEFLATE + "/" + DigestUtil.toString(digest);
+
+    Channel channel = InProcessChannelBuilder.forName(fakeServerName).directExecutor().build();
+    ByteStreamStub service = ByteStreamGrpc.newStub(channel);
+    ChunkInflater inflater = new ChunkInflater();
+    ByteString.Output output = ByteString.newOutput();
+    SettableFuture<ByteString> readFuture = SettableFuture.create();
+    service.read(
+        ReadRequest.newBuilder()
+            .setResourceName(resourceName)
+            .setReadOffset(4)
+            .setReadLimit(15)
+            .build(),
+        new StreamObserver<ReadResponse>() {
+          @Override
+          public void onNext(ReadResponse response) {
+            try {
+              inflater.inflate(response.getData()).writeTo(output);
+            } catch (IOException e) {
+              readFuture.setException(e);
+            }
+          }
+
+          @Override
+          public void onError(Throwable t) {
+            readFuture.setException(t);
+          }
+
+          @Override
+          public void onCompleted() {
+            readFuture.set(output.toByteString());
+          }
+        });
+
+    // the range is a complete compressed stream
+    assertThat(readFuture.get()).isEqualTo(content.substring(4, 19));
+    assertThat(inflater.finished()).isTrue();
+    inflater.end();
+  }
+
+  @Test
+  public void compressedUploadStatusIsInCompressedUnits() throws Exception {
+    ByteString content = ByteString.copyFromUtf8("Hello, World!");
+    Digest digest = DIGEST_UTIL.compute(content);
+    UUID uuid = UUID.randomUUID();
+
+    Instance instance = mock(Instance.class);
+    when(instances.get(eq(""))).thenReturn(instance);
+    String resourceName = ByteStreamUploader.getCompressedResourceName(
+        uuid, /* instanceName=*/ null, Compression.DEFLATE, digest);
+    Channel channel = InProcessChannelBuilder.forName(fakeServerName).directExecutor().build();
+    ByteStreamBlockingStub service = ByteStreamGrpc.newBlockingStub(channel);
+    QueryWriteStatusRequest request = QueryWriteStatusRequest.newBuilder()
+        .setResourceName(resourceName)
+        .build();
+
+    // incomplete compressed uploads restart from the beginning
+    when(instance.containsBlob(digest)).thenReturn(false);
+    assertThat(service.queryWriteStatus(request)).isEqualTo(QueryWriteStatusResponse.newBuilder()
+        .setCommittedSize(0)
+        .setComplete(false)
+        .build());
+
+    // the compressed size of a complete upload is unknown
+    when(instance.containsBlob(digest)).thenReturn(true);
+    assertThat(service.queryWriteStatus(request)).isEqualTo(QueryWriteStatusResponse.newBuilder()
+        .setCommittedSize(-1)
+        .setComplete(true)
+        .build());
+  }
 }
@@ -1,57 +1,108 @@
 package build.buildfarm.server;
 
 import static com.google.common.truth.Truth.assertThat;
-import static com.google.common.util.concurrent.MoreExecutors.shutdownAndAwaitTermination;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
-import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
-import build.buildfarm.instance.Instance;
+import build.bazel.remote.execution.v2.ExecuteOperationMetadata;
+import build.buildfarm.common.TimerWheel;
 import build.buildfarm.server.ExecutionService.KeepaliveWatcher;
-import com.google.common.util.concurrent.ListenableFuture;
 import com.google.longrunning.Operation;
+import com.google.protobuf.Any;
 import io.grpc.Context;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
-import java.util.concurrent.ScheduledExecutorService;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 
 @RunWith(JUnit4.class)
 public class ExecutionServiceTest {
   private Instances instances;
+  private TimerWheel keepaliveWheel;
 
   @Before
   public void setUp() throws Exception {
     instances = mock(Instances.class);
+    keepaliveWheel = new TimerWheel("keepalive", 10, MILLISECONDS, 64, directExecutor());
+  }
+
+  @After
+  public void tearDown() {
+    keepaliveWheel.stop();
   }
 
   @Test
   public void keepaliveIsCancelledWithContext() throws Exception {
-    ScheduledExecutorService keepaliveScheduler = newSingleThreadScheduledExecutor();
     ExecutionService service = new ExecutionService(
         instances,
         /* keepaliveAfter=*/ 1,
         /* keepaliveUnit=*/ SECONDS, // far enough in the future that we'll get scheduled and cancelled without executing
-        keepaliveScheduler);
+        keepaliveWheel,
+        directExecutor());
     Context.CancellableContext withCancellation = Context.current().withCancellation();
     StreamObserver<Operation> response = mock(StreamObserver.class);
     Operation operation = Operation.newBuilder()
         .setName("immediately-cancelled-watch-operation")
         .build();
-    ListenableFuture<?> future = withCancellation.call(() -> {
-      KeepaliveWatcher watcher = service.createWatcher(response);
-      watcher.observe(operation);
-      return watcher.getFuture();
+    KeepaliveWatcher watcher = withCancellation.call(() -> {
+      KeepaliveWatcher keepaliveWatcher = service.createWatcher(response);
+      keepaliveWatcher.observe(operation);
+      return keepaliveWatcher;
     });
-    assertThat(future).isNotNull();
+    assertThat(watcher.isKeepaliveScheduled()).isTrue();
     withCancellation.cancel(null);
-    assertThat(future.isCancelled()).isTrue();
-    assertThat(shutdownAndAwaitTermination(keepaliveScheduler, 1, SECONDS)).isTrue();
+    assertThat(watcher.isKeepaliveScheduled()).isFalse();
     // should only get one call for the real operation
     verify(response, times(1)).onNext(operation);
   }
+
+  @Test
+  public void onlyLatestUpdateIsDeliveredWhenReady() throws Exception {
+    ExecutionService service = new ExecutionService(
+        instances,
+        /* keepaliveAfter=*/ 1,
+        /* keepaliveUnit=*/ SECONDS,
+        keepaliveWheel,
+        directExecutor());
+    ServerCallStreamObserver<Operation> response = mock(ServerCallStreamObserver.class);
+    when(response.isReady()).thenReturn(false);
+    KeepaliveWatcher watcher = service.createWatcher(response);
+    ArgumentCaptor<Runnable> onReadyCaptor = ArgumentCaptor.forClass(Runnable.class);
+    verify(response, times(1)).setOnReadyHandler(onReadyCaptor.capture());
+
+    Operation queued = Operation.newBuilder()
+        .setName("coalesced-operation")
+        .build();
+    Operation executing = queued.toBuilder()
+        .setMetadata(Any.pack(ExecuteOperationMetadata.newBuilder()
+            .setStage(ExecuteOperationMetadata.Stage.EXECUTING)
+            .build()))
+        .build();
+    Operation completed = queued.toBuilder()
+        .setDone(true)
+        .build();
+    watcher.observe(queued);
+    watcher.observe(executing);
+    watcher.observe(completed);
+    watcher.complete(response::onCompleted);
+    verify(response, never()).onNext(any(Operation.class));
+    verify(response, never()).onCompleted();
+
+    when(response.isReady()).thenReturn(true);
+    onReadyCaptor.getValue().run();
+    verify(response, times(1)).onNext(any(Operation.class));
+    verify(response, times(1)).onNext(completed);
+    verify(response, times(1)).onCompleted();
+  }
 }
@@ -0,0 +1,162 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.DigestUtil.HashFunction;
+import build.buildfarm.common.Write;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ByteStringWriteReaderTest {
+  private final DigestUtil DIGEST_UTIL = new DigestUtil(HashFunction.SHA256);
+  private ByteArrayOutputStream written;
+  private Write write;
+  private Path spillPath;
+
+  @Before
+  public void setUp() throws IOException {
+    spillPath = Jimfs.newFileSystem(Configuration.unix()).getPath("/spill/stdout");
+    Files.createDirectories(spillPath.getParent());
+    write = mock(Write.class);
+    // the write completes when its output is closed
+    List<Runnable> listeners = new ArrayList<>();
+    doAnswer((invocation) -> {
+      listeners.add(invocation.getArgument(0));
+      return null;
+    }).when(write).addListener(any(Runnable.class), any(Executor.class));
+    written = new ByteArrayOutputStream() {
+      @Override
+      public void close() {
+        for (Runnable listener : listeners) {
+          listener.run();
+        }
+      }
+    };
+    when(write.getOutput(anyLong(), any(TimeUnit.class))).thenReturn(written);
+  }
+
+  @Test
+  public void runCapturesAndWritesInput() throws Exception {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    ByteStringWriteReader reader = new ByteStringWriteReader(content.newInput(), write);
+
+    reader.run();
+
+    assertThat(reader.getData()).isEqualTo(content);
+    assertThat(written.toByteArray()).isEqualTo(content.toByteArray());
+  }
+
+  @Test
+  public void runSurfacesReadFailure() throws Exception {
+    InputStream input = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        throw new IOException("broken pipe");
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        throw new IOException("broken pipe");
+      }
+    };
+    ByteStringWriteReader reader = new ByteStringWriteReader(input, write);
+
+    reader.run();
+
+    IOException exception = null;
+    try {
+      reader.getData();
+    } catch (IOException e) {
+      exception = e;
+    }
+    assertThat(exception).isNotNull();
+    assertThat(exception.getMessage()).isEqualTo("broken pipe");
+  }
+
+  @Test
+  public void outputWithinThresholdIsNotSpilled() throws Exception {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    ByteStringWriteReader reader = new ByteStringWriteReader(
+        content.newInput(), write, spillPath, /* spillThreshold=*/ content.size(), DIGEST_UTIL);
+
+    reader.run();
+
+    assertThat(reader.getSpillDigest()).isNull();
+    assertThat(reader.getData()).isEqualTo(content);
+    assertThat(Files.exists(spillPath)).isFalse();
+  }
+
+  @Test
+  public void outputBeyondThresholdIsSpilled() throws Exception {
+    ByteString content = ByteString.copyFromUtf8("The quick brown fox jumps over the lazy dog");
+    int spillThreshold = 20;
+    ByteStringWriteReader reader = new ByteStringWriteReader(
+        content.newInput(), write, spillPath, spillThreshold, DIGEST_UTIL);
+
+    reader.run();
+
+    Digest spillDigest = reader.getSpillDigest();
+    assertThat(spillDigest).isEqualTo(DIGEST_UTIL.compute(content));
+    assertThat(ByteString.copyFrom(Files.readAllBytes(spillPath))).isEqualTo(content);
+    // only leading bytes are retained in memory
+    ByteString data = reader.getData();
+    assertThat(data.size()).isAtMost(spillThreshold);
+    assertThat(content.startsWith(data)).isTrue();
+    // the whole of the output is still written
+    assertThat(written.toByteArray()).isEqualTo(content.toByteArray());
+  }
+
+  @Test
+  public void existingSpillPathFailsCapture() throws Exception {
+    Files.write(spillPath, new byte[] { 1 });
+    ByteString content = ByteString.copyFromUtf8("The quick brown fox jumps over the lazy dog");
+    ByteStringWriteReader reader = new ByteStringWriteReader(
+        content.newInput(), write, spillPath, /* spillThreshold=*/ 8, DIGEST_UTIL);
+
+    reader.run();
+
+    IOException exception = null;
+    try {
+      reader.getSpillDigest();
+    } catch (IOException e) {
+      exception = e;
+    }
+    assertThat(exception).isNotNull();
+  }
+}
@@ -19,11 +19,14 @@ import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
 import static com.google.common.util.concurrent.MoreExecutors.shutdownAndAwaitTermination;
+import static java.nio.file.StandardOpenOption.APPEND;
 import static java.util.concurrent.Executors.newSingleThreadExecutor;
 import static java.util.concurrent.TimeUnit.MICROSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
@@ -31,14 +34,17 @@ import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
 import build.bazel.remote.execution.v2.DirectoryNode;
 import build.bazel.remote.execution.v2.FileNode;
+import build.buildfarm.cas.ContentAddressableStorage.Blob;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.DigestUtil.HashFunction;
 import build.buildfarm.common.InputStreamFactory;
 import build.buildfarm.common.Write;
+import build.buildfarm.v1test.CASCacheMetrics;
 import build.buildfarm.worker.CASFileCache.Entry;
 import build.buildfarm.worker.CASFileCache.PutDirectoryException;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.common.jimfs.Configuration;
@@ -51,12 +57,19 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
@@ -113,15 +126,19 @@ class CASFileCacheTest {
     blobs = Maps.newHashMap();
     putService = newSingleThreadExecutor();
     storage = Maps.newConcurrentMap();
-    fileCache = new CASFileCache(
+    fileCache = newFileCache(CASFileCache.Options.DEFAULT);
+  }
+
+  private CASFileCache newFileCache(CASFileCache.Options options) {
+    return new CASFileCache(
         root,
         /* maxSizeInBytes=*/ 1024,
         DIGEST_UTIL,
-        /* expireService=*/
-        newDirectExecutorService(),
+        /* expireService=*/ newDirectExecutorService(),
         storage,
         onPut,
-        onExpire) {
+        onExpire,
+        options) {
       @Override
       protected InputStream newExternalInput(Digest digest, long offset) {
         ByteString content = blobs.get(digest);
@@ -184,6 +201,284 @@ class CASFileCacheTest {
     assertThat(Files.isExecutable(path)).isTrue();
   }
 
+  @Test
+  public void memoryTierServesPutBlobWithoutFile() throws IOException, InterruptedException {
+    CASFileCache fileCache = newFileCache(CASFileCache.Options.newBuilder()
+        .setMemoryTier(new CASMemoryTier(/* maxSizeInBytes=*/ 1024, /* maxEntrySizeInBytes=*/ 64))
+        .build());
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Digest digest = DIGEST_UTIL.compute(content);
+    fileCache.put(new Blob(content, digest));
+    Path key = fileCache.getKey(digest, false);
+    assertThat(Files.exists(key)).isTrue();
+    // content must only come from the memory tier now
+    Files.delete(key);
+
+    try (InputStream in = fileCache.newInput(digest, /* offset=*/ 7)) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content.substring(7));
+    }
+    assertThat(fileCache.getMemoryTierStats().hitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void compressedBlobIsInflatedForInputAndMaterialization() throws IOException, InterruptedException {
+    CASFileCache fileCache = newFileCache(CASFileCache.Options.newBuilder()
+        .setCompression(new CASCompression(
+            /* minSizeBytes=*/ 64,
+            /* level=*/ 1,
+            /* sampleSizeBytes=*/ 256,
+            /* maxSampleRatio=*/ 0.8))
+        .build());
+    ByteString content = ByteString.copyFrom(new byte[512]);
+    Digest digest = DIGEST_UTIL.compute(content);
+    fileCache.put(new Blob(content, digest));
+    Path key = fileCache.getKey(digest, false);
+    assertThat(Files.exists(key)).isFalse();
+    assertThat(fileCache.getSizeInBytes()).isLessThan(content.size());
+    assertThat(fileCache.getEffectiveSizeInBytes()).isEqualTo(content.size());
+
+    try (InputStream in = fileCache.newInput(digest, /* offset=*/ 0)) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    }
+
+    // FIXME https://github.com/google/truth/issues/285 assertThat(Path) is ambiguous
+    assertThat(fileCache.put(digest, false).equals(key)).isTrue();
+    assertThat(Files.exists(key)).isTrue();
+    assertThat(fileCache.getSizeInBytes()).isEqualTo(content.size());
+  }
+
+  @Test
+  public void inflatingCompressedBlobExpiresEntriesToFit() throws IOException, InterruptedException {
+    CASFileCache fileCache = newFileCache(CASFileCache.Options.newBuilder()
+        .setCompression(new CASCompression(
+            /* minSizeBytes=*/ 64,
+            /* level=*/ 1,
+            /* sampleSizeBytes=*/ 256,
+            /* maxSampleRatio=*/ 0.8))
+        .build());
+    ByteString compressible = ByteString.copyFrom(new byte[768]);
+    Digest compressibleDigest = DIGEST_UTIL.compute(compressible);
+    byte[] random = new byte[512];
+    new Random(1).nextBytes(random);
+    ByteString incompressible = ByteString.copyFrom(random);
+    Digest incompressibleDigest = DIGEST_UTIL.compute(incompressible);
+    fileCache.put(new Blob(compressible, compressibleDigest));
+    fileCache.put(new Blob(incompressible, incompressibleDigest));
+    assertThat(fileCache.getSizeInBytes()).isLessThan(compressible.size() + incompressible.size());
+
+    fileCache.put(compressibleDigest, /* isExecutable=*/ false);
+
+    assertThat(fileCache.getSizeInBytes()).isEqualTo(compressible.size());
+    assertThat(Files.exists(fileCache.getKey(incompressibleDigest, false))).isFalse();
+    verify(onExpire, times(1)).accept(ImmutableSet.of(incompressibleDigest));
+  }
+
+  @Test
+  public void bloomFilterTracksPresentBlobs() throws IOException, InterruptedException {
+    CASFileCache fileCache = newFileCache(CASFileCache.Options.newBuilder()
+        .setBloomFilter(new CASBloomFilter(/* expectedInsertions=*/ 16, /* falsePositiveRate=*/ 0.01))
+        .build());
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Digest digest = DIGEST_UTIL.compute(content);
+    ByteString missingContent = ByteString.copyFromUtf8("Goodbye, World");
+    Digest missingDigest = DIGEST_UTIL.compute(missingContent);
+    blobs.put(digest, content);
+    fileCache.put(digest, /* isExecutable=*/ false);
+    fileCache.put(digest, /* isExecutable=*/ true);
+
+    assertThat(fileCache.findMissingBlobs(ImmutableList.of(digest, missingDigest)))
+        .containsExactly(missingDigest);
+    assertThat(fileCache.contains(digest)).isTrue();
+  }
+
+  @Test
+  public void metricsCountHitsMissesAndExternalInputs() throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Digest digest = DIGEST_UTIL.compute(content);
+    Digest missingDigest = DIGEST_UTIL.compute(ByteString.copyFromUtf8("Goodbye, World"));
+    blobs.put(digest, content);
+    fileCache.put(digest, /* isExecutable=*/ false);
+    fileCache.put(digest, /* isExecutable=*/ false);
+    try (InputStream in = fileCache.newInput(digest, /* offset=*/ 0)) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    }
+    boolean missing = false;
+    try {
+      fileCache.newInput(missingDigest, /* offset=*/ 0).close();
+    } catch (NoSuchFileException e) {
+      missing = true;
+    }
+    assertThat(missing).isTrue();
+
+    CASCacheMetrics metrics = fileCache.getCASCacheMetrics();
+    assertThat(metrics.getPutMisses()).isEqualTo(1);
+    assertThat(metrics.getPutHits()).isEqualTo(1);
+    assertThat(metrics.getPutBytes()).isEqualTo(content.size());
+    assertThat(metrics.getExternalInputs()).isEqualTo(1);
+    assertThat(metrics.getExternalInputBytes()).isEqualTo(content.size());
+    assertThat(metrics.getInputHits()).isEqualTo(1);
+    assertThat(metrics.getInputMisses()).isEqualTo(1);
+    assertThat(metrics.getEntryCount()).isEqualTo(1);
+    assertThat(metrics.getReferencedEntryCount()).isEqualTo(1);
+    assertThat(metrics.getSizeBytes()).isEqualTo(content.size());
+    assertThat(metrics.getEffectiveSizeBytes()).isEqualTo(content.size());
+    assertThat(metrics.getCompressionSavedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void metricsCountCompressionSavings() throws IOException, InterruptedException {
+    CASFileCache fileCache = newFileCache(CASFileCache.Options.newBuilder()
+        .setCompression(new CASCompression(
+            /* minSizeBytes=*/ 64,
+            /* level=*/ 1,
+            /* sampleSizeBytes=*/ 256,
+            /* maxSampleRatio=*/ 0.8))
+        .build());
+    ByteString content = ByteString.copyFrom(new byte[512]);
+    Digest digest = DIGEST_UTIL.compute(content);
+    fileCache.put(new Blob(content, digest));
+
+    CASCacheMetrics metrics = fileCache.getCASCacheMetrics();
+    assertThat(metrics.getSizeBytes()).isLessThan(content.size());
+    assertThat(metrics.getEffectiveSizeBytes()).isEqualTo(content.size());
+    assertThat(metrics.getCompressionSavedBytes())
+        .isEqualTo(content.size() - metrics.getSizeBytes());
+  }
+
+  @Test
+  public void localInputsAreNotCountedAsInputs() throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Digest digest = DIGEST_UTIL.compute(content);
+    blobs.put(digest, content);
+    fileCache.put(digest, /* isExecutable=*/ false);
+    try (InputStream in = fileCache.newLocalInput(digest, /* offset=*/ 0)) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    }
+
+    CASCacheMetrics metrics = fileCache.getCASCacheMetrics();
+    assertThat(metrics.getInputHits()).isEqualTo(0);
+    assertThat(metrics.getInputMisses()).isEqualTo(0);
+  }
+
+  @Test
+  public void putFileHashesAndInsertsContent() throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Path file = root.resolve("output");
+    Files.write(file, content.toByteArray());
+    List<Digest> inserted = new ArrayList<>();
+
+    Digest digest = fileCache.putFile(file, inserted::add);
+
+    assertThat(digest).isEqualTo(DIGEST_UTIL.compute(content));
+    assertThat(inserted).containsExactly(digest);
+    assertThat(Files.exists(file)).isTrue();
+    try (InputStream in = fileCache.newInput(digest, /* offset=*/ 0)) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    }
+    // a second insertion of the same content is not reported
+    assertThat(fileCache.putFile(file, inserted::add)).isEqualTo(digest);
+    assertThat(inserted).containsExactly(digest);
+  }
+
+  @Test
+  public void putFileLinksContentOnlyOnceReadOnly() throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Path file = root.resolve("output");
+    Files.write(file, content.toByteArray());
+
+    Digest digest = fileCache.putFile(file, /* link=*/ true, (inserted) -> {});
+
+    assertThat(digest).isEqualTo(DIGEST_UTIL.compute(content));
+    Path key = fileCache.getKey(digest, /* isExecutable=*/ false);
+    // filesystems without posix permissions get a copy
+    boolean posix = Files.getFileAttributeView(file, PosixFileAttributeView.class) != null;
+    assertThat(Files.isSameFile(file, key)).isEqualTo(posix);
+    assertThat(fileCache.getCASCacheMetrics().getIngestLinkFallbacks()).isEqualTo(posix ? 0 : 1);
+  }
+
+  @Test
+  public void putFileCopiesAcrossFilesystemsWithoutChangingPermissions() throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Path file = Jimfs.newFileSystem(Configuration.unix()).getPath("/output");
+    Files.write(file, content.toByteArray());
+    Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file);
+
+    Digest digest = fileCache.putFile(file, /* link=*/ true, (inserted) -> {});
+
+    assertThat(digest).isEqualTo(DIGEST_UTIL.compute(content));
+    assertThat(Files.getPosixFilePermissions(file)).isEqualTo(permissions);
+    assertThat(fileCache.getCASCacheMetrics().getIngestLinkFallbacks()).isEqualTo(1);
+    try (InputStream in = fileCache.newInput(digest, /* offset=*/ 0)) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    }
+  }
+
+  @Test
+  public void putFileWithDigestConsumesFile() throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Digest digest = DIGEST_UTIL.compute(content);
+    Path file = root.resolve("stdout");
+    Files.write(file, content.toByteArray());
+    List<Digest> inserted = new ArrayList<>();
+
+    fileCache.putFile(file, digest, inserted::add);
+
+    assertThat(inserted).containsExactly(digest);
+    assertThat(Files.exists(file)).isFalse();
+    try (InputStream in = fileCache.newInput(digest, /* offset=*/ 0)) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    }
+  }
+
+  @Test
+  public void putFileWithDigestCopiesAcrossFilesystems() throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Digest digest = DIGEST_UTIL.compute(content);
+    Path file = Jimfs.newFileSystem(Configuration.unix()).getPath("/stdout");
+    Files.write(file, content.toByteArray());
+
+    fileCache.putFile(file, digest, (inserted) -> {});
+
+    assertThat(Files.exists(file)).isFalse();
+    try (InputStream in = fileCache.newInput(digest, /* offset=*/ 0)) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    }
+  }
+
+  @Test
+  public void putFileLinkIsNotChangedByLaterWrites() throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Path file = root.resolve("output");
+    Files.write(file, content.toByteArray());
+
+    Digest digest = fileCache.putFile(file, /* link=*/ true, (inserted) -> {});
+    try (OutputStream out = Files.newOutputStream(file, APPEND)) {
+      out.write("Goodbye".getBytes(StandardCharsets.UTF_8));
+    } catch (AccessDeniedException e) {
+      // the linked output is read only
+    }
+
+    try (InputStream in = fileCache.newInput(digest, /* offset=*/ 0)) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(content);
+    }
+  }
+
+  @Test
+  public void referenceExistingReferencesOnlyPresentEntries() throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Digest digest = DIGEST_UTIL.compute(content);
+    blobs.put(digest, content);
+    Path presentKey = fileCache.put(digest, /* isExecutable=*/ false);
+    fileCache.decrementReferences(ImmutableList.of(presentKey), ImmutableList.of());
+    Path absentKey = fileCache.getKey(digest, /* isExecutable=*/ true);
+
+    Set<Path> referenced = fileCache.referenceExisting(ImmutableList.of(presentKey, absentKey));
+
+    assertThat(referenced).containsExactly(presentKey);
+    assertThat(storage.get(presentKey).referenceCount).isEqualTo(1);
+    assertThat(storage.containsKey(absentKey)).isFalse();
+  }
+
   @Test
   public void putDirectoryCreatesTree() throws IOException, InterruptedException {
     ByteString file = ByteString.copyFromUtf8("Peanut Butter");
@@ -212,6 +507,35 @@ class CASFileCacheTest {
     assertThat(Files.isDirectory(dirPath.resolve("subdir"))).isTrue();
   }
 
+  @Test
+  public void putDirectoryReferencesInputsOnceForAllHolders() throws IOException, InterruptedException {
+    ByteString file = ByteString.copyFromUtf8("Peanut Butter");
+    Digest fileDigest = DIGEST_UTIL.compute(file);
+    blobs.put(fileDigest, file);
+    Directory directory = Directory.newBuilder()
+        .addFiles(FileNode.newBuilder()
+            .setName("file")
+            .setDigest(fileDigest)
+            .build())
+        .build();
+    Digest dirDigest = DIGEST_UTIL.compute(directory);
+    Map<Digest, Directory> directoriesIndex = ImmutableMap.of(dirDigest, directory);
+    Path fileKey = fileCache.getKey(fileDigest, /* isExecutable=*/ false);
+
+    getInterruptiblyOrIOException(fileCache.putDirectory(dirDigest, directoriesIndex, putService));
+    getInterruptiblyOrIOException(fileCache.putDirectory(dirDigest, directoriesIndex, putService));
+    assertThat(storage.get(fileKey).referenceCount).isEqualTo(1);
+
+    fileCache.decrementReferences(ImmutableList.of(), ImmutableList.of(dirDigest));
+    assertThat(storage.get(fileKey).referenceCount).isEqualTo(1);
+    fileCache.decrementReferences(ImmutableList.of(), ImmutableList.of(dirDigest));
+    assertThat(storage.get(fileKey).referenceCount).isEqualTo(0);
+
+    // an unreferenced directory references its inputs again on reuse
+    getInterruptiblyOrIOException(fileCache.putDirectory(dirDigest, directoriesIndex, putService));
+    assertThat(storage.get(fileKey).referenceCount).isEqualTo(1);
+  }
+
   @Test
   public void putDirectoryIOExceptionRollsBack() throws IOException, InterruptedException {
     ByteString file = ByteString.copyFromUtf8("Peanut Butter");
@@ -14,14 +14,25 @@
 
 package build.buildfarm.worker;
 
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import build.bazel.remote.execution.v2.Command;
+import build.bazel.remote.execution.v2.Platform;
 import build.buildfarm.v1test.ExecuteEntry;
 import build.buildfarm.v1test.QueueEntry;
+import com.google.longrunning.Operation;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -47,4 +58,90 @@ public class ExecuteActionStageTest {
     verify(context, times(1)).destroyExecDir(errorContext.execDir);
     verify(error, times(1)).put(errorContext);
   }
+
+  private static OperationContext coresContext(String name, int cores) {
+    return OperationContext.newBuilder()
+        .setOperation(Operation.newBuilder()
+            .setName(name)
+            .build())
+        .setCommand(Command.newBuilder()
+            .setPlatform(Platform.newBuilder()
+                .addProperties(Platform.Property.newBuilder()
+                    .setName("cores")
+                    .setValue(Integer.toString(cores))))
+            .build())
+        .build();
+  }
+
+  @Test
+  public void claimAdmitsByResourcesAndPinsCores() throws Exception {
+    WorkerContext context = mock(WorkerContext.class);
+    when(context.getExecuteStageWidth()).thenReturn(8);
+
+    ExecuteActionStage executeActionStage = new ExecuteActionStage(
+        context,
+        /* output=*/ null,
+        /* error=*/ null,
+        new ExecuteResources(/* cores=*/ 4, /* memoryBytes=*/ 0, ExecuteResources.parseCpuList("0-3")),
+        /* persistentWorkers=*/ null);
+    OperationContext first = coresContext("first", 3);
+    assertThat(executeActionStage.claim(first)).isTrue();
+    assertThat(executeActionStage.getCpuList("first")).isEqualTo("0,1,2");
+
+    executeActionStage.release(first);
+    // would block if the cores of the first were still claimed
+    OperationContext second = coresContext("second", 4);
+    assertThat(executeActionStage.claim(second)).isTrue();
+    assertThat(executeActionStage.getCpuList("second")).isEqualTo("0,1,2,3");
+  }
+
+  @Test
+  public void claimPinsCoresFromCpuSet() throws Exception {
+    WorkerContext context = mock(WorkerContext.class);
+    when(context.getExecuteStageWidth()).thenReturn(8);
+
+    ExecuteActionStage executeActionStage = new ExecuteActionStage(
+        context,
+        /* output=*/ null,
+        /* error=*/ null,
+        new ExecuteResources(/* cores=*/ 4, /* memoryBytes=*/ 0, ExecuteResources.parseCpuList("4-5,8,10")),
+        /* persistentWorkers=*/ null);
+    assertThat(executeActionStage.claim(coresContext("first", 1))).isTrue();
+    assertThat(executeActionStage.getCpuList("first")).isEqualTo("4");
+    assertThat(executeActionStage.claim(coresContext("second", 3))).isTrue();
+    assertThat(executeActionStage.getCpuList("second")).isEqualTo("5,8,10");
+  }
+
+  @Test
+  public void claimBlocksUntilResourcesAreReleased() throws Exception {
+    WorkerContext context = mock(WorkerContext.class);
+    when(context.getExecuteStageWidth()).thenReturn(8);
+
+    ExecuteActionStage executeActionStage = new ExecuteActionStage(
+        context,
+        /* output=*/ null,
+        /* error=*/ null,
+        new ExecuteResources(/* cores=*/ 4, /* memoryBytes=*/ 0, /* cpus=*/ null),
+        /* persistentWorkers=*/ null);
+    OperationContext first = coresContext("first", 3);
+    assertThat(executeActionStage.claim(first)).isTrue();
+
+    ExecutorService claimService = newSingleThreadExecutor();
+    try {
+      Future<Boolean> secondClaim = claimService.submit(() -> executeActionStage.claim(coresContext("second", 2)));
+      boolean timedOut = false;
+      try {
+        secondClaim.get(100, MILLISECONDS);
+      } catch (TimeoutException e) {
+        timedOut = true;
+      }
+      // only one of four cores remains
+      assertThat(timedOut).isTrue();
+
+      executeActionStage.release(first);
+      assertThat(secondClaim.get(10, SECONDS)).isTrue();
+    } finally {
+      claimService.shutdownNow();
+    }
+  }
 }
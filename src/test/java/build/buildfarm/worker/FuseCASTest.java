@@ -15,15 +15,20 @@
 package build.buildfarm.worker;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 import build.bazel.remote.execution.v2.Digest;
 import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.DirectoryNode;
 import build.bazel.remote.execution.v2.FileNode;
 import build.buildfarm.common.InputStreamFactory;
 import com.google.protobuf.ByteString;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import jnr.constants.platform.OpenFlags;
 import jnr.ffi.Pointer;
 import jnr.ffi.Runtime;
@@ -49,6 +54,7 @@ public class FuseCASTest {
   public final ExpectedException exception = ExpectedException.none();
 
   private final ByteString content = ByteString.copyFromUtf8("Peanut Butter");
+  private final AtomicInteger contentReads = new AtomicInteger();
 
   @Before
   public void setUp() {
@@ -65,7 +71,8 @@ public class FuseCASTest {
                 .build())
             .build().toByteString().newInput();
         } else if( blobDigest.getHash().equals("/test/file") ) {
-          return content.newInput();
+          contentReads.incrementAndGet();
+          return content.substring((int) offset).newInput();
         }
         throw new UnsupportedOperationException();
       }
@@ -432,6 +439,22 @@ public class FuseCASTest {
     assertThat(new String(data, 0)).isEqualTo("Peanut");
   }
 
+  @Test
+  public void readInputRootedFetchesBlockOnce() throws IOException, InterruptedException {
+    fuseCAS.createInputRoot("test", Digest.newBuilder().setHash("/test").build());
+    byte[] data = new byte[7];
+    u8[] array = Struct.arrayOf(Runtime.getSystemRuntime(), u8.class, data.length);
+    Pointer buf = ((DelegatingMemoryIO) Struct.getMemory(array[0])).getDelegatedMemoryIO();
+    FuseFileInfo fi = new SystemFuseFileInfo();
+    fi.flags.set(0);
+    assertThat(fuseCAS.open("/test/file", fi)).isEqualTo(0);
+    assertThat(fuseCAS.read("/test/file", buf, /* size=*/ 6, /* offset=*/ 0, fi)).isEqualTo(6);
+    assertThat(fuseCAS.read("/test/file", buf, /* size=*/ 7, /* offset=*/ 6, fi)).isEqualTo(7);
+    buf.get(0, data, 0, data.length);
+    assertThat(new String(data, 0)).isEqualTo(" Butter");
+    assertThat(contentReads.get()).isEqualTo(1);
+  }
+
   @Test
   public void fallocatePunchHole() {
     assertThat(fuseCAS.fallocate(
@@ -477,4 +500,105 @@ public class FuseCASTest {
     fuseCAS.getattr("/foo", fileStat);
     assertThat(fileStat.st_size.longValue()).isEqualTo(1024);
   }
+
+  private static Directory createWideDirectory(String name, int width) {
+    Directory.Builder directory = Directory.newBuilder();
+    for (int i = 0; i < width; i++) {
+      directory.addDirectories(DirectoryNode.newBuilder()
+          .setName("dir" + i)
+          .setDigest(Digest.newBuilder()
+              .setHash(name + "/dir" + i)));
+    }
+    return directory.build();
+  }
+
+  /**
+   * serves /wide with width subdirectories, each of which blocks until
+   * released, and has a nested subdirectory if nested
+   */
+  private static InputStreamFactory createWideInputStreamFactory(
+      int width,
+      boolean nested,
+      AtomicInteger fetches,
+      Semaphore blocked,
+      CountDownLatch released) {
+    Directory wide = createWideDirectory("/wide", width);
+    return (digest, offset) -> {
+      fetches.incrementAndGet();
+      String hash = digest.getHash();
+      if (hash.equals("/wide")) {
+        return wide.toByteString().newInput();
+      }
+      if (hash.endsWith("/nested")) {
+        return Directory.getDefaultInstance().toByteString().newInput();
+      }
+      blocked.release();
+      released.await();
+      Directory directory = nested
+          ? Directory.newBuilder()
+              .addDirectories(DirectoryNode.newBuilder()
+                  .setName("nested")
+                  .setDigest(Digest.newBuilder()
+                      .setHash(hash + "/nested")))
+              .build()
+          : Directory.getDefaultInstance();
+      return directory.toByteString().newInput();
+    };
+  }
+
+  private static void awaitFetches(AtomicInteger fetches, int count) throws InterruptedException {
+    long deadline = System.nanoTime() + SECONDS.toNanos(10);
+    while (fetches.get() < count && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    // any excess fetches would have been queued behind these
+    Thread.sleep(100);
+  }
+
+  @Test
+  public void prefetchQueueIsBounded() throws Exception {
+    int width = FuseCAS.PREFETCH_THREADS + FuseCAS.PREFETCH_QUEUE_SIZE + 16;
+    AtomicInteger fetches = new AtomicInteger();
+    Semaphore blocked = new Semaphore(0);
+    CountDownLatch released = new CountDownLatch(1);
+    FuseCAS wideFuseCAS = new FuseCAS(
+        null, createWideInputStreamFactory(width, /* nested=*/ false, fetches, blocked, released));
+    try {
+      wideFuseCAS.createInputRoot("wide", Digest.newBuilder().setHash("/wide").build());
+      assertThat(blocked.tryAcquire(FuseCAS.PREFETCH_THREADS, 10, SECONDS)).isTrue();
+      released.countDown();
+
+      // the directory fetching /wide occupied a thread as it queued its children
+      awaitFetches(fetches, FuseCAS.PREFETCH_THREADS + FuseCAS.PREFETCH_QUEUE_SIZE);
+      assertThat(fetches.get()).isAtMost(1 + FuseCAS.PREFETCH_THREADS + FuseCAS.PREFETCH_QUEUE_SIZE);
+      assertThat(fetches.get()).isLessThan(1 + width);
+    } finally {
+      released.countDown();
+      wideFuseCAS.stop();
+    }
+  }
+
+  @Test
+  public void destroyInputRootCancelsPrefetch() throws Exception {
+    int width = FuseCAS.PREFETCH_THREADS + 16;
+    AtomicInteger fetches = new AtomicInteger();
+    Semaphore blocked = new Semaphore(0);
+    CountDownLatch released = new CountDownLatch(1);
+    FuseCAS wideFuseCAS = new FuseCAS(
+        null, createWideInputStreamFactory(width, /* nested=*/ true, fetches, blocked, released));
+    try {
+      wideFuseCAS.createInputRoot("wide", Digest.newBuilder().setHash("/wide").build());
+      assertThat(blocked.tryAcquire(FuseCAS.PREFETCH_THREADS, 10, SECONDS)).isTrue();
+
+      wideFuseCAS.destroyInputRoot("wide");
+      released.countDown();
+
+      // neither the queued directories nor the nested ones of those in progress are fetched
+      awaitFetches(fetches, 1 + FuseCAS.PREFETCH_THREADS);
+      assertThat(fetches.get()).isEqualTo(1 + FuseCAS.PREFETCH_THREADS);
+    } finally {
+      released.countDown();
+      wideFuseCAS.stop();
+    }
+  }
 }
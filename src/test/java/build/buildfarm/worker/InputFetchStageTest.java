@@ -15,6 +15,8 @@
 package build.buildfarm.worker;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -22,9 +24,13 @@ import static org.mockito.Mockito.verify;
 import build.bazel.remote.execution.v2.Action;
 import build.bazel.remote.execution.v2.Command;
 import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.DirectoryNode;
 import build.bazel.remote.execution.v2.ExecuteOperationMetadata;
 import build.bazel.remote.execution.v2.ExecuteOperationMetadata.Stage;
+import build.bazel.remote.execution.v2.FileNode;
 import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.DigestUtil.HashFunction;
 import build.buildfarm.common.Poller;
 import build.buildfarm.v1test.ExecuteEntry;
 import build.buildfarm.v1test.QueueEntry;
@@ -37,9 +43,17 @@ import com.google.protobuf.Any;
 import io.grpc.Deadline;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 import java.util.logging.Logger;
@@ -146,4 +160,146 @@ public class InputFetchStageTest {
     OperationContext operationContext = error.getOperationContexts().get(0);
     assertThat(operationContext).isEqualTo(badContext);
   }
+
+  private final DigestUtil DIGEST_UTIL = new DigestUtil(HashFunction.SHA256);
+
+  // a 10 byte file, twice in each of two occurrences of the same directory
+  private QueuedOperation createRepeatedInputOperation() {
+    Digest fileDigest = Digest.newBuilder()
+        .setHash("file")
+        .setSizeBytes(10)
+        .build();
+    Directory child = Directory.newBuilder()
+        .addFiles(FileNode.newBuilder()
+            .setName("file")
+            .setDigest(fileDigest))
+        .addFiles(FileNode.newBuilder()
+            .setName("same")
+            .setDigest(fileDigest))
+        .build();
+    Digest childDigest = DIGEST_UTIL.compute(child);
+    Directory root = Directory.newBuilder()
+        .addDirectories(DirectoryNode.newBuilder()
+            .setName("a")
+            .setDigest(childDigest))
+        .addDirectories(DirectoryNode.newBuilder()
+            .setName("b")
+            .setDigest(childDigest))
+        .build();
+    return QueuedOperation.newBuilder()
+        .setAction(Action.newBuilder()
+            .setInputRootDigest(DIGEST_UTIL.compute(root)))
+        .setCommand(Command.newBuilder()
+            .addArguments("true"))
+        .addDirectories(root)
+        .addDirectories(child)
+        .build();
+  }
+
+  @Test
+  public void inputBytesCountEachFileDigestOnce() {
+    QueuedOperation queuedOperation = createRepeatedInputOperation();
+    Map<Digest, Directory> directoriesIndex = new HashMap<>();
+    for (Directory directory : queuedOperation.getDirectoriesList()) {
+      directoriesIndex.put(DIGEST_UTIL.compute(directory), directory);
+    }
+
+    long inputBytes = InputFetcher.getInputBytes(
+        queuedOperation.getAction().getInputRootDigest(),
+        directoriesIndex);
+
+    assertThat(inputBytes).isEqualTo(10);
+  }
+
+  @Test
+  public void lookaheadAdmitsOperationsWithinInputBytes() throws Exception {
+    QueuedOperation queuedOperation = createRepeatedInputOperation();
+    WorkerContext workerContext = new StubWorkerContext() {
+      @Override
+      public DigestUtil getDigestUtil() {
+        return DIGEST_UTIL;
+      }
+
+      @Override
+      public void resumePoller(
+          Poller poller,
+          String name,
+          QueueEntry queueEntry,
+          Stage stage,
+          Runnable onFailure,
+          Deadline deadline) {
+      }
+
+      @Override
+      public int getInputFetchStageWidth() {
+        return 1;
+      }
+
+      @Override
+      public QueuedOperation getQueuedOperation(QueueEntry queueEntry) {
+        return queuedOperation;
+      }
+
+      @Override
+      public Path createExecDir(String operationName, Iterable<Directory> directories, Action action, Command command) {
+        return Paths.get(operationName);
+      }
+
+      @Override
+      public void destroyExecDir(Path execDir) {
+      }
+    };
+
+    // execute slots never become available while the test is running
+    Semaphore waiting = new Semaphore(0);
+    CountDownLatch executeAvailable = new CountDownLatch(1);
+    PipelineSink output = new PipelineSink((operationContext) -> false) {
+      @Override
+      public boolean claim(OperationContext operationContext) throws InterruptedException {
+        waiting.release();
+        executeAvailable.await();
+        return false;
+      }
+    };
+    PipelineSink error = new PipelineSink((operationContext) -> false);
+    // 10 bytes of inputs per operation, admitting a second but not a third
+    InputFetchStage inputFetchStage = new InputFetchStage(
+        workerContext, output, error, /* lookahead=*/ 2, /* lookaheadBytes=*/ 15);
+    ExecutorService claimService = Executors.newSingleThreadExecutor();
+    try {
+      inputFetchStage.put(createOperationContext("first"));
+      inputFetchStage.iterate();
+      assertThat(waiting.tryAcquire(10, SECONDS)).isTrue();
+      assertThat(claimService.submit(inputFetchStage::claim).get(10, SECONDS)).isTrue();
+
+      inputFetchStage.put(createOperationContext("second"));
+      inputFetchStage.iterate();
+      assertThat(waiting.tryAcquire(10, SECONDS)).isTrue();
+      Future<Boolean> claim = claimService.submit(inputFetchStage::claim);
+      boolean timedOut = false;
+      try {
+        claim.get(100, MILLISECONDS);
+      } catch (TimeoutException e) {
+        timedOut = true;
+      }
+      assertThat(timedOut).isTrue();
+
+      executeAvailable.countDown();
+      // the prefetched inputs are released with their fetchers
+      assertThat(claim.get(10, SECONDS)).isTrue();
+    } finally {
+      executeAvailable.countDown();
+      claimService.shutdownNow();
+    }
+  }
+
+  private static OperationContext createOperationContext(String operationName) {
+    return OperationContext.newBuilder()
+        .setPoller(mock(Poller.class))
+        .setQueueEntry(QueueEntry.newBuilder()
+            .setExecuteEntry(ExecuteEntry.newBuilder()
+                .setOperationName(operationName))
+            .build())
+        .build();
+  }
 }
@@ -0,0 +1,104 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import build.buildfarm.common.Write;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class OutputPumpTest {
+  private OutputPump outputPump;
+
+  @Before
+  public void setUp() {
+    outputPump = new OutputPump(/* maxThreads=*/ 1);
+  }
+
+  @After
+  public void tearDown() {
+    outputPump.stop();
+  }
+
+  /** a write which completes when its output is closed */
+  private static Write newWrite() throws IOException {
+    Write write = mock(Write.class);
+    List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    doAnswer((invocation) -> {
+      listeners.add(invocation.getArgument(0));
+      return null;
+    }).when(write).addListener(any(Runnable.class), any(Executor.class));
+    when(write.getOutput(anyLong(), any(TimeUnit.class))).thenReturn(new ByteArrayOutputStream() {
+      @Override
+      public void close() {
+        for (Runnable listener : listeners) {
+          listener.run();
+        }
+      }
+    });
+    return write;
+  }
+
+  @Test(timeout = 10000)
+  public void outputIsReadUntilEndOfInput() throws Exception {
+    PipedOutputStream processOut = new PipedOutputStream();
+    ByteStringWriteReader reader = new ByteStringWriteReader(new PipedInputStream(processOut), newWrite());
+    outputPump.register(reader);
+
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    content.writeTo(processOut);
+    processOut.close();
+
+    assertThat(reader.getData()).isEqualTo(content);
+  }
+
+  @Test(timeout = 10000)
+  public void pipesAreReadByAtMostMaxThreads() throws Exception {
+    PipedOutputStream processOut = new PipedOutputStream();
+    ByteStringWriteReader blockedReader = new ByteStringWriteReader(new PipedInputStream(processOut), newWrite());
+    ByteString content = ByteString.copyFromUtf8("queued");
+    ByteStringWriteReader queuedReader = new ByteStringWriteReader(content.newInput(), newWrite());
+    outputPump.register(blockedReader);
+    outputPump.register(queuedReader);
+
+    // the only thread is blocked in a read of the first pipe
+    Thread.sleep(100);
+    assertThat(queuedReader.isComplete()).isFalse();
+
+    processOut.close();
+    assertThat(blockedReader.getData()).isEqualTo(ByteString.EMPTY);
+    assertThat(queuedReader.getData()).isEqualTo(content);
+    assertThat(outputPump.getLargestPoolSize()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,194 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker;
+
+import static build.buildfarm.worker.Utils.removeDirectory;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import build.bazel.remote.execution.v2.Command;
+import build.bazel.remote.execution.v2.Platform;
+import build.bazel.remote.execution.v2.Platform.Property;
+import build.buildfarm.v1test.WorkRequest;
+import build.buildfarm.v1test.WorkResponse;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PersistentWorkersTest {
+  private Path root;
+  private Path execDir;
+  private PersistentWorkers persistentWorkers;
+
+  /**
+   * responds to each request with its arguments and the number of requests
+   * it has served
+   *
+   * --hang never responds, and --replace=name replaces the top level entry
+   * name with a new file.
+   */
+  public static final class EchoWorker {
+    public static void main(String[] args) throws Exception {
+      int served = 0;
+      for (;;) {
+        WorkRequest request = WorkRequest.parseDelimitedFrom(System.in);
+        if (request == null) {
+          return;
+        }
+        served++;
+        for (String argument : request.getArgumentsList()) {
+          if (argument.equals("--hang")) {
+            Thread.sleep(Long.MAX_VALUE);
+          } else if (argument.startsWith("--replace=")) {
+            Path path = Paths.get(argument.substring("--replace=".length()));
+            Files.deleteIfExists(path);
+            Files.write(path, ImmutableList.of("replaced"), UTF_8);
+          }
+        }
+        WorkResponse.newBuilder()
+            .setOutput(String.join(" ", request.getArgumentsList()) + " " + served)
+            .build()
+            .writeDelimitedTo(System.out);
+        System.out.flush();
+      }
+    }
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    root = Files.createTempDirectory("persistent-workers-test");
+    execDir = root.resolve("exec");
+    Files.createDirectories(execDir);
+    persistentWorkers = new PersistentWorkers(root.resolve("workers"), /* maxIdleWorkers=*/ 1);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    persistentWorkers.stop();
+    removeDirectory(root);
+  }
+
+  private Command createCommand(String... arguments) throws IOException {
+    Files.write(execDir.resolve("flagfile"), ImmutableList.copyOf(arguments), UTF_8);
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    return Command.newBuilder()
+        .addArguments(java)
+        .addArguments("-cp")
+        .addArguments(System.getProperty("java.class.path"))
+        .addArguments(EchoWorker.class.getName())
+        .addArguments("@flagfile")
+        .setPlatform(Platform.newBuilder()
+            .addProperties(Property.newBuilder()
+                .setName(PersistentWorkers.SUPPORTS_WORKERS_PROPERTY)
+                .setValue("1")))
+        .build();
+  }
+
+  private WorkResponse work(Command command) throws IOException, InterruptedException {
+    PersistentWorkers.PersistentWorker worker = persistentWorkers.acquire(
+        PersistentWorkers.getKey(command, ImmutableList.of()), execDir);
+    WorkResponse response = worker.work(
+        PersistentWorkers.createRequest(command, execDir), execDir, SECONDS.toNanos(30));
+    persistentWorkers.release(worker, /* healthy=*/ response != null);
+    return response;
+  }
+
+  @Test
+  public void requestIsAnsweredWithResponse() throws Exception {
+    Command command = createCommand("--first", "--second");
+    assertThat(PersistentWorkers.supportsWorkers(command)).isTrue();
+
+    WorkResponse response = work(command);
+
+    assertThat(response.getOutput()).isEqualTo("--first --second 1");
+    assertThat(persistentWorkers.getIdleCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void idleWorkerIsReused() throws Exception {
+    assertThat(work(createCommand("--first")).getOutput()).isEqualTo("--first 1");
+    assertThat(work(createCommand("--second")).getOutput()).isEqualTo("--second 2");
+    assertThat(persistentWorkers.getIdleCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void replacedEntriesAreMovedIntoExecDir() throws Exception {
+    Files.write(execDir.resolve("output"), ImmutableList.of("original"), UTF_8);
+
+    work(createCommand("--replace=output"));
+
+    assertThat(Files.isSymbolicLink(execDir.resolve("output"))).isFalse();
+    assertThat(Files.readAllLines(execDir.resolve("output"), UTF_8)).containsExactly("replaced");
+  }
+
+  @Test
+  public void timedOutWorkerIsDestroyed() throws Exception {
+    Command command = createCommand("--hang");
+    PersistentWorkers.PersistentWorker worker = persistentWorkers.acquire(
+        PersistentWorkers.getKey(command, ImmutableList.of()), execDir);
+
+    WorkResponse response = worker.work(
+        PersistentWorkers.createRequest(command, execDir), execDir, MILLISECONDS.toNanos(500));
+
+    assertThat(response).isNull();
+    awaitExit(worker);
+  }
+
+  @Test
+  public void interruptedRequestDestroysWorker() throws Exception {
+    Command command = createCommand("--hang");
+    PersistentWorkers.PersistentWorker worker = persistentWorkers.acquire(
+        PersistentWorkers.getKey(command, ImmutableList.of()), execDir);
+    WorkRequest request = PersistentWorkers.createRequest(command, execDir);
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    Thread thread = new Thread(() -> {
+      try {
+        worker.work(request, execDir, /* timeoutNanos=*/ 0);
+      } catch (Exception e) {
+        failure.set(e);
+      }
+    });
+    thread.start();
+    while (thread.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+
+    thread.interrupt();
+    thread.join(SECONDS.toMillis(10));
+
+    assertThat(thread.isAlive()).isFalse();
+    assertThat(failure.get()).isInstanceOf(InterruptedException.class);
+    awaitExit(worker);
+  }
+
+  private static void awaitExit(PersistentWorkers.PersistentWorker worker) throws InterruptedException {
+    long deadline = System.nanoTime() + SECONDS.toNanos(10);
+    while (worker.isAlive() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(worker.isAlive()).isFalse();
+  }
+}
@@ -29,6 +29,7 @@ import build.buildfarm.worker.CASFileCache;
 import build.buildfarm.instance.Instance;
 import build.buildfarm.instance.Instance.MatchListener;
 import build.buildfarm.v1test.CASInsertionPolicy;
+import build.buildfarm.v1test.ExecDirMaterialization;
 import build.buildfarm.v1test.ExecutionPolicy;
 import build.buildfarm.v1test.QueueEntry;
 import build.buildfarm.v1test.QueuedOperation;
@@ -57,11 +58,14 @@ class StubWorkerContext implements WorkerContext {
   @Override public boolean hasMaximumActionTimeout() { throw new UnsupportedOperationException(); }
   @Override public boolean getStreamStdout() { throw new UnsupportedOperationException(); }
   @Override public boolean getStreamStderr() { throw new UnsupportedOperationException(); }
+  @Override public int getOutputSpillThreshold() { throw new UnsupportedOperationException(); }
+  @Override public Path getOutputSpillPath(Path execDir, String name) { throw new UnsupportedOperationException(); }
   @Override public Duration getDefaultActionTimeout() { throw new UnsupportedOperationException(); }
   @Override public Duration getMaximumActionTimeout() { throw new UnsupportedOperationException(); }
   @Override public QueuedOperation getQueuedOperation(QueueEntry queueEntry) { throw new UnsupportedOperationException(); }
   @Override public Path createExecDir(String operationName, Iterable<Directory> directories, Action action, Command command) { throw new UnsupportedOperationException(); }
   @Override public void destroyExecDir(Path execDir) { throw new UnsupportedOperationException(); }
+  @Override public ExecDirMaterialization getExecDirMaterialization(Path execDir) { throw new UnsupportedOperationException(); }
   @Override public void uploadOutputs(ActionResult.Builder resultBuilder, Path actionRoot, Iterable<String> outputFiles, Iterable<String> outputDirs) { throw new UnsupportedOperationException(); }
   @Override public boolean putOperation(Operation operation, Action action) { throw new UnsupportedOperationException(); }
   @Override public Write getOperationStreamWrite(String name) { throw new UnsupportedOperationException(); }
@@ -0,0 +1,122 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import build.bazel.remote.execution.v2.Digest;
+import build.buildfarm.common.ShardBackplane;
+import com.google.common.collect.ImmutableList;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BlobLocationBatcherTest {
+  private static Digest digest(String hash) {
+    return Digest.newBuilder()
+        .setHash(hash)
+        .setSizeBytes(1)
+        .build();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void putsDuringBatchAreAddedTogether() throws Exception {
+    ShardBackplane backplane = mock(ShardBackplane.class);
+    CountDownLatch firstAdding = new CountDownLatch(1);
+    CountDownLatch firstAdded = new CountDownLatch(1);
+    List<List<Digest>> batches = new ArrayList<>();
+    doAnswer((invocation) -> {
+      List<Digest> batch = ImmutableList.copyOf((Iterable<Digest>) invocation.getArgument(0));
+      synchronized (batches) {
+        batches.add(batch);
+      }
+      if (batch.contains(digest("first"))) {
+        firstAdding.countDown();
+        firstAdded.await();
+      }
+      return null;
+    }).when(backplane).addBlobsLocation(any(Iterable.class), eq("worker"));
+    BlobLocationBatcher blobLocations = new BlobLocationBatcher(backplane, "worker");
+
+    ExecutorService putService = Executors.newCachedThreadPool();
+    try {
+      Future<?> first = putService.submit(() -> blobLocations.accept(digest("first")));
+      firstAdding.await();
+      List<Future<?>> puts = new ArrayList<>();
+      for (String hash : ImmutableList.of("second", "third", "fourth")) {
+        puts.add(putService.submit(() -> blobLocations.accept(digest(hash))));
+      }
+      // the later puts queue behind the first batch
+      while (blobLocations.getPendingCount() < 3) {
+        Thread.sleep(1);
+      }
+      firstAdded.countDown();
+      first.get(10, SECONDS);
+      for (Future<?> put : puts) {
+        put.get(10, SECONDS);
+      }
+    } finally {
+      firstAdded.countDown();
+      putService.shutdownNow();
+    }
+
+    assertThat(batches).hasSize(2);
+    assertThat(batches.get(0)).containsExactly(digest("first"));
+    assertThat(batches.get(1)).containsExactly(digest("second"), digest("third"), digest("fourth"));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void failedBatchRemainsPending() throws Exception {
+    ShardBackplane backplane = mock(ShardBackplane.class);
+    doThrow(new IOException(Status.UNAVAILABLE.asException()))
+        .doNothing()
+        .when(backplane).addBlobsLocation(any(Iterable.class), eq("worker"));
+    BlobLocationBatcher blobLocations = new BlobLocationBatcher(backplane, "worker");
+
+    StatusRuntimeException failure = null;
+    try {
+      blobLocations.accept(digest("first"));
+    } catch (StatusRuntimeException e) {
+      failure = e;
+    }
+    assertThat(failure).isNotNull();
+    assertThat(failure.getStatus().getCode()).isEqualTo(Status.Code.UNAVAILABLE);
+
+    blobLocations.accept(digest("second"));
+
+    verify(backplane, times(1))
+        .addBlobsLocation(ImmutableList.of(digest("first"), digest("second")), "worker");
+  }
+}
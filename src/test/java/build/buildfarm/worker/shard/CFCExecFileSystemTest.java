@@ -0,0 +1,133 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import build.bazel.remote.execution.v2.Action;
+import build.bazel.remote.execution.v2.Command;
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.FileNode;
+import build.buildfarm.cas.ContentAddressableStorage.Blob;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.DigestUtil.HashFunction;
+import build.buildfarm.worker.CASFileCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CFCExecFileSystemTest {
+  private final DigestUtil DIGEST_UTIL = new DigestUtil(HashFunction.SHA256);
+
+  private final Map<Digest, ByteString> blobs = new HashMap<>();
+  private CASFileCache fileCache;
+  private CFCExecFileSystem execFileSystem;
+  private ExecutorService putService;
+
+  @Before
+  public void setUp() throws IOException {
+    Path root = Jimfs.newFileSystem(Configuration.unix()).getPath("/worker");
+    Path cacheRoot = root.resolve("cache");
+    Files.createDirectories(cacheRoot);
+    fileCache = new CASFileCache(
+        cacheRoot,
+        /* maxSizeInBytes=*/ 1024,
+        DIGEST_UTIL,
+        /* expireService=*/ newDirectExecutorService()) {
+      @Override
+      protected InputStream newExternalInput(Digest digest, long offset) throws IOException {
+        ByteString content = blobs.get(digest);
+        if (content == null) {
+          throw new NoSuchFileException(DigestUtil.toString(digest));
+        }
+        return content.substring((int) offset).newInput();
+      }
+    };
+    execFileSystem = new CFCExecFileSystem(
+        root,
+        fileCache,
+        /* linkInputDirectories=*/ false,
+        /* removeDirectoryService=*/ newDirectExecutorService(),
+        /* linkService=*/ newDirectExecutorService(),
+        /* templateCacheSize=*/ 4,
+        /* deadlineAfter=*/ 1,
+        /* deadlineAfterUnits=*/ DAYS);
+    putService = newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    putService.shutdownNow();
+    execFileSystem.stop();
+  }
+
+  @Test
+  public void fullCacheAcceptsPutsWhileTemplatesAreRetained() throws Exception {
+    ByteString input = ByteString.copyFrom(new byte[600]);
+    Digest inputDigest = DIGEST_UTIL.compute(input);
+    blobs.put(inputDigest, input);
+    Directory inputRoot = Directory.newBuilder()
+        .addFiles(FileNode.newBuilder()
+            .setName("input")
+            .setDigest(inputDigest))
+        .build();
+    Digest inputRootDigest = DIGEST_UTIL.compute(inputRoot);
+    Map<Digest, Directory> directoriesIndex = ImmutableMap.of(inputRootDigest, inputRoot);
+    Action action = Action.newBuilder()
+        .setInputRootDigest(inputRootDigest)
+        .build();
+    Command command = Command.getDefaultInstance();
+
+    Path execDir = execFileSystem.createExecDir("first", directoriesIndex, action, command);
+    execFileSystem.destroyExecDir(execDir);
+    execDir = execFileSystem.createExecDir("second", directoriesIndex, action, command);
+    // the input remains referenced by the template between exec dirs
+    assertThat(execFileSystem.getExecDirMaterialization(execDir).getFromTemplate()).isTrue();
+    execFileSystem.destroyExecDir(execDir);
+
+    // the only entry is held by the idle template
+    ByteString content = ByteString.copyFromUtf8(new String(new char[600]).replace('\0', 'x'));
+    Digest digest = DIGEST_UTIL.compute(content);
+    Future<?> put = putService.submit(() -> {
+      fileCache.put(new Blob(content, digest));
+      return null;
+    });
+    put.get(10, SECONDS);
+
+    assertThat(fileCache.contains(digest)).isTrue();
+    assertThat(fileCache.contains(inputDigest)).isFalse();
+  }
+}
@@ -0,0 +1,126 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package build.buildfarm.worker.shard;
+
+import static build.buildfarm.worker.WorkerContext.STDOUT_SPILL_NAME;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import build.bazel.remote.execution.v2.ActionResult;
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Platform;
+import build.buildfarm.common.DigestUtil;
+import build.buildfarm.common.DigestUtil.HashFunction;
+import build.buildfarm.common.InputStreamFactory;
+import build.buildfarm.common.ShardBackplane;
+import build.buildfarm.instance.Instance;
+import build.buildfarm.worker.CASFileCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Duration;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ShardWorkerContextTest {
+  private final DigestUtil DIGEST_UTIL = new DigestUtil(HashFunction.SHA256);
+
+  private Path actionRoot;
+  private Path spillRoot;
+  private CASFileCache fileCache;
+  private ShardBackplane backplane;
+  private ShardWorkerContext context;
+
+  @Before
+  public void setUp() throws Exception {
+    FileSystem fileSystem = Jimfs.newFileSystem(Configuration.unix());
+    Path root = fileSystem.getPath("/worker");
+    actionRoot = root.resolve("operation");
+    spillRoot = root.resolve("output-spill");
+    Path cacheRoot = root.resolve("cache");
+    Files.createDirectories(actionRoot);
+    Files.createDirectories(spillRoot);
+    Files.createDirectories(cacheRoot);
+    fileCache = new CASFileCache(
+        cacheRoot,
+        /* maxSizeInBytes=*/ 1024,
+        DIGEST_UTIL,
+        /* expireService=*/ newDirectExecutorService()) {
+      @Override
+      protected InputStream newExternalInput(Digest digest, long offset) throws IOException {
+        throw new NoSuchFileException(DigestUtil.toString(digest));
+      }
+    };
+    ExecFileSystem execFileSystem = mock(ExecFileSystem.class);
+    when(execFileSystem.getStorage()).thenReturn(fileCache);
+    backplane = mock(ShardBackplane.class);
+    context = new ShardWorkerContext(
+        "worker",
+        Platform.getDefaultInstance(),
+        Duration.getDefaultInstance(),
+        mock(OperationPoller.class),
+        /* inlineContentLimit=*/ 0,
+        /* outputSpillThreshold=*/ 8,
+        spillRoot,
+        /* inputFetchStageWidth=*/ 1,
+        /* executeStageWidth=*/ 1,
+        backplane,
+        execFileSystem,
+        mock(InputStreamFactory.class),
+        newDirectExecutorService(),
+        /* linkOutputFiles=*/ false,
+        /* policies=*/ ImmutableList.of(),
+        mock(Instance.class),
+        /* deadlineAfter=*/ 1,
+        SECONDS);
+  }
+
+  @Test
+  public void spilledStdoutIsInsertedUnderItsDigest() throws Exception {
+    ByteString stdout = ByteString.copyFromUtf8("The quick brown fox jumps over the lazy dog");
+    Digest stdoutDigest = DIGEST_UTIL.compute(stdout);
+    Path spillPath = context.getOutputSpillPath(actionRoot, STDOUT_SPILL_NAME);
+    Files.write(spillPath, stdout.toByteArray());
+    ActionResult.Builder resultBuilder = ActionResult.newBuilder()
+        .setStdoutDigest(stdoutDigest);
+
+    context.uploadOutputs(
+        resultBuilder,
+        actionRoot,
+        /* outputFiles=*/ ImmutableList.of(),
+        /* outputDirs=*/ ImmutableList.of());
+
+    assertThat(resultBuilder.getStdoutDigest()).isEqualTo(stdoutDigest);
+    assertThat(fileCache.contains(stdoutDigest)).isTrue();
+    try (InputStream in = fileCache.newInput(stdoutDigest, /* offset=*/ 0)) {
+      assertThat(ByteString.readFrom(in)).isEqualTo(stdout);
+    }
+    verify(backplane).addBlobsLocation(ImmutableList.of(stdoutDigest), "worker");
+  }
+}
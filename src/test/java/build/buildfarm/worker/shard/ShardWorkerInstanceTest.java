@@ -18,10 +18,12 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import build.bazel.remote.execution.v2.Digest;
 import build.buildfarm.cas.ContentAddressableStorage;
 import build.buildfarm.common.DigestUtil;
 import build.buildfarm.common.DigestUtil.HashFunction;
@@ -33,15 +35,19 @@ import build.buildfarm.v1test.ExecuteEntry;
 import build.buildfarm.v1test.QueueEntry;
 import build.buildfarm.v1test.ShardWorkerInstanceConfig;
 import com.google.longrunning.Operation;
+import com.google.protobuf.ByteString;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import java.io.IOException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
 import javax.naming.ConfigurationException;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -104,4 +110,29 @@ public class ShardWorkerInstanceTest {
         .thenThrow(SocketException.class);
     instance.getOperation("op");
   }
+
+  @Test
+  public void getBlobIsDrivenByReadiness() throws IOException, InterruptedException {
+    ByteString content = ByteString.copyFromUtf8("Hello, World");
+    Digest digest = DIGEST_UTIL.compute(content);
+    when(inputStreamFactory.newInput(digest, /* offset=*/ 0)).thenReturn(content.newInput());
+    ServerCallStreamObserver<ByteString> blobObserver = mock(ServerCallStreamObserver.class);
+    when(blobObserver.isReady()).thenReturn(false);
+
+    instance.getBlob(
+        digest,
+        /* offset=*/ 0,
+        /* limit=*/ 0,
+        /* readDeadlineAfter=*/ 1,
+        TimeUnit.SECONDS,
+        blobObserver);
+    ArgumentCaptor<Runnable> onReadyCaptor = ArgumentCaptor.forClass(Runnable.class);
+    verify(blobObserver, times(1)).setOnReadyHandler(onReadyCaptor.capture());
+    verify(blobObserver, never()).onNext(any(ByteString.class));
+
+    when(blobObserver.isReady()).thenReturn(true);
+    onReadyCaptor.getValue().run();
+    verify(blobObserver, times(1)).onNext(content);
+    verify(blobObserver, times(1)).onCompleted();
+  }
 }